@@ -0,0 +1,231 @@
+package com.benrevo.inventory.benchmarks;
+
+import com.benrevo.inventory.DataAccess;
+import com.benrevo.inventory.EmbeddedStore;
+import com.benrevo.inventory.InventoryStore;
+import com.benrevo.inventory.ItemRequest;
+import com.benrevo.inventory.ItemStream;
+import com.benrevo.inventory.RequestReader;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of each DataAccess method against an in-memory H2 database in PostgreSQL mode, through the same pool,
+ * statement cache and interceptors the application uses, with the user id cache off and on. The inventory cache is
+ * not installed, so every read reaches the database. The same methods are measured on an {@link EmbeddedStore} in a
+ * temporary directory, whose writes include the sync of its log to disk; the user id cache does not apply to it.
+ *
+ * Reads run against a user holding a fixed inventory of the given size; writes that add rows go to a separate user,
+ * so they do not change what the reads measure.
+ *
+ * @author John Hurst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataAccessBenchmark {
+
+    private static final String URL = "jdbc:h2:mem:bench;MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+    private static final String READER = "reader";
+    private static final String WRITER = "writer";
+    private static final String PASSWORD = "password";
+    private static final int PAGE_SIZE = 100;
+    private static final int BATCH_ITEMS = 100;
+
+    @Param({"10", "1000", "100000"})
+    public int items;
+
+    @Param({"0", "10000"})
+    public int userIdCacheSize;
+
+    @Param({"jdbc", "embedded"})
+    public String store;
+
+    private InventoryStore dataAccess;
+    private File storeDir;
+    private List<ItemRequest> updates;
+    private List<ItemRequest> additions;
+    private Map<Integer, Long> deltas;
+    private int middleId;
+    private int users;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        if ("embedded".equals(store)) {
+            storeDir = Files.createTempDirectory("store-bench").toFile();
+            dataAccess = new EmbeddedStore(storeDir, 64 << 20, 0, 0, 4);
+        } else {
+            try (Connection conn = DriverManager.getConnection(URL);
+                 Statement st = conn.createStatement()) {
+                st.execute("RUNSCRIPT FROM 'classpath:/schema-h2.sql'");
+            }
+            dataAccess = new DataAccess(new JSONObject()
+                    .put("key", URL)
+                    .put("poolMin", 1)
+                    .put("poolMax", 4));
+        }
+        dataAccess.migrateSchema();
+        dataAccess.setUserIdCacheSize(userIdCacheSize);
+        dataAccess.cleanDatabase();
+        dataAccess.addUser(READER, PASSWORD);
+        dataAccess.addUser(WRITER, PASSWORD);
+
+        JSONArray ids = dataAccess.addItems(newItems(READER, items).iterator(), READER).getJSONArray("ids");
+        middleId = ids.getInt(ids.length() / 2);
+
+        int updated = Math.min(items, BATCH_ITEMS);
+        JSONArray data = new JSONArray();
+        deltas = new HashMap<>();
+        for (int i = 0; i < updated; i++) {
+            int id = ids.getInt(i);
+            data.put(new JSONObject().put("id", id).put("name", "Updated " + id).put("amount", i));
+            deltas.put(id, 1L);
+        }
+        updates = read(new JSONObject().put("username", READER).put("data", data));
+        additions = newItems(WRITER, BATCH_ITEMS);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException, IOException {
+        dataAccess.cleanDatabase();
+        dataAccess.close();
+        if (storeDir != null) {
+            try (Stream<Path> files = Files.walk(storeDir.toPath())) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Build new items as a bulk request would carry them
+     * @param username      Owner of the items
+     * @param count         Number of items
+     * @return              Items parsed from a request body
+     * @throws IOException  Throws if the body cannot be read
+     */
+    private static List<ItemRequest> newItems(String username, int count) throws IOException {
+        JSONArray data = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            data.put(new JSONObject().put("name", "Product " + i).put("amount", i % 1000));
+        }
+        return read(new JSONObject().put("username", username).put("data", data));
+    }
+
+    /**
+     * Parse a bulk request body up front, so that parsing is not part of the measurement
+     * @param body          Body with a data array
+     * @return              Items of the data array
+     * @throws IOException  Throws if the body cannot be read
+     */
+    private static List<ItemRequest> read(JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        List<ItemRequest> result = new ArrayList<>();
+        try (RequestReader reader = new RequestReader(new ByteArrayInputStream(bytes), Long.MAX_VALUE)) {
+            ItemStream stream = new ItemStream(reader, body.getString("username"));
+            while (stream.hasNext()) {
+                result.add(stream.next());
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int addUser() throws SQLException {
+        return dataAccess.addUser("user" + users++, PASSWORD);
+    }
+
+    @Benchmark
+    public JSONObject getUser() throws SQLException {
+        return dataAccess.getUser(READER);
+    }
+
+    @Benchmark
+    public int authenticate() throws SQLException {
+        return dataAccess.authenticate(READER, PASSWORD);
+    }
+
+    @Benchmark
+    public void streamInventory(Blackhole blackhole) throws SQLException {
+        dataAccess.streamInventory(READER, (id, name, amount, version) -> blackhole.consume(name));
+    }
+
+    @Benchmark
+    public void streamInventoryPage(Blackhole blackhole) throws SQLException {
+        dataAccess.streamInventoryPage(READER, middleId, PAGE_SIZE,
+                (id, name, amount, version) -> blackhole.consume(name));
+    }
+
+    @Benchmark
+    public JSONObject getInventorySummary() throws SQLException {
+        return dataAccess.getInventorySummary(READER);
+    }
+
+    @Benchmark
+    public JSONObject updateItem() throws SQLException {
+        return dataAccess.updateItem(updates.iterator(), READER);
+    }
+
+    @Benchmark
+    public int adjustItems() throws SQLException {
+        return dataAccess.adjustItems(READER, deltas);
+    }
+
+    @Benchmark
+    public Integer addItem() throws SQLException {
+        return dataAccess.addItem("Product", 1, WRITER);
+    }
+
+    @Benchmark
+    public JSONObject addItems() throws SQLException {
+        return dataAccess.addItems(additions.iterator(), WRITER);
+    }
+
+    @Benchmark
+    public JSONObject importItems() throws SQLException {
+        return dataAccess.importItems(WRITER, additions);
+    }
+
+    /**
+     * Add an item and delete it again, so that every deletion finds a row without the table shrinking
+     * @return True if the item was deleted
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Benchmark
+    public boolean addAndDeleteItem() throws SQLException {
+        return dataAccess.deleteItem(dataAccess.addItem("Product", 1, WRITER), WRITER);
+    }
+}
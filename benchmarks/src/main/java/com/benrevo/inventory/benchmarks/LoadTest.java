@@ -0,0 +1,547 @@
+package com.benrevo.inventory.benchmarks;
+
+import com.benrevo.inventory.Histogram;
+import com.benrevo.inventory.InventoryManagementApplication;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test: starts the application on a random port against an in-memory H2 database and drives a mix of
+ * register, login, add, update and delete requests at it, then reports throughput, latency quantiles and error rates
+ * per endpoint on stdout and as JSON.
+ *
+ * Load is open-loop: request start times follow a Poisson process at the given rate, whether or not earlier requests
+ * have completed, and latency is measured from the scheduled start time. A server that falls behind therefore shows up
+ * as growing latency instead of a lower request rate. Operations, users and arrival times all come from one seeded
+ * random generator, so runs with the same options send the same request sequence and can be compared across commits.
+ *
+ * Options are given as --name=value, see {@link Options}. Any other --name=value argument is passed to the
+ * application, e.g. --inventory.db.queue-capacity=5000.
+ *
+ * @author John Hurst
+ */
+public class LoadTest {
+
+    private static final String URL = "jdbc:h2:mem:load;MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+    private static final String PASSWORD = "password";
+
+    /**
+     * Requests the load test sends, with the status that counts as success
+     */
+    private enum Operation {
+        REGISTER(200),
+        LOGIN(200),
+        ADD(200),
+        UPDATE(200),
+        DELETE(204);
+
+        private final int expected;
+
+        Operation(int expected) {
+            this.expected = expected;
+        }
+
+        private String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Options options;
+    private final String baseUrl;
+    private final List<User> users = new ArrayList<>();
+    private final Map<Operation, EndpointStats> stats = new EnumMap<>(Operation.class);
+    private final AtomicInteger registered = new AtomicInteger();
+
+    private LoadTest(Options options, int port) {
+        this.options = options;
+        this.baseUrl = "http://localhost:" + port;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new EndpointStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> appArgs = new ArrayList<>();
+        Options options = Options.parse(args, appArgs);
+        appArgs.add("--server.port=0");
+
+        createSchema();
+        File protectedFile = File.createTempFile("protected", null);
+        Files.write(protectedFile.toPath(), new JSONObject()
+                .put("type", 1)
+                .put("key", URL)
+                .put("poolMax", options.poolMax)
+                .toString().getBytes(StandardCharsets.UTF_8));
+        System.setProperty("inventory.protected", protectedFile.getPath());
+        System.setProperty("http.maxConnections", String.valueOf(options.clients));
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(InventoryManagementApplication.class)
+                .run(appArgs.toArray(new String[0]));
+        try {
+            int port = Integer.parseInt(context.getEnvironment().getProperty("local.server.port"));
+            LoadTest test = new LoadTest(options, port);
+            test.setUp();
+            JSONObject results = test.run();
+            File out = new File(options.out);
+            if (out.getParentFile() != null) {
+                out.getParentFile().mkdirs();
+            }
+            Files.write(out.toPath(), results.toString(2).getBytes(StandardCharsets.UTF_8));
+            test.print(results);
+            System.out.println("Results written to " + out.getPath());
+        } finally {
+            context.close();
+            protectedFile.delete();
+        }
+    }
+
+    /**
+     * Create the application tables in the in-memory database
+     * @throws SQLException Throws if the schema script fails
+     */
+    private static void createSchema() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(URL);
+             Statement st = conn.createStatement()) {
+            st.execute("RUNSCRIPT FROM 'classpath:/schema-h2.sql'");
+        }
+    }
+
+    /**
+     * Register the users the load runs as and give each of them an initial inventory. None of this is measured.
+     * @throws IOException Throws if a request fails
+     */
+    private void setUp() throws IOException {
+        for (int i = 0; i < options.users; i++) {
+            User user = new User("user" + i);
+            Response response = send("POST", "/register", null, new JSONObject()
+                    .put("username", user.username)
+                    .put("password", PASSWORD));
+            if (response.status != 200) {
+                throw new IOException("Registering " + user.username + " failed with " + response.status);
+            }
+            user.token = new JSONObject(response.body).getString("auth");
+            JSONArray data = new JSONArray();
+            for (int k = 0; k < options.items; k++) {
+                data.put(new JSONObject().put("name", "Product " + k).put("amount", k));
+            }
+            response = send("POST", "/inventory/add/batch", user.token, new JSONObject()
+                    .put("username", user.username)
+                    .put("data", data));
+            if (response.status != 200) {
+                throw new IOException("Adding items for " + user.username + " failed with " + response.status);
+            }
+            JSONArray ids = new JSONObject(response.body).getJSONArray("ids");
+            for (int k = 0; k < ids.length(); k++) {
+                user.ids.add(ids.getInt(k));
+            }
+            users.add(user);
+        }
+    }
+
+    /**
+     * Send requests at the configured rate for the warmup and measurement periods, then wait for the outstanding
+     * requests to finish
+     * @return                      JSON Object with the configuration and the results per endpoint
+     * @throws InterruptedException Throws if interrupted while waiting for outstanding requests
+     */
+    private JSONObject run() throws InterruptedException {
+        ExecutorService clients = Executors.newFixedThreadPool(options.clients);
+        Random random = new Random(options.seed);
+        double meanIntervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rate;
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(options.warmup);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(options.duration);
+        long scheduled = start;
+        while (scheduled < end) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Operation operation = options.pick(random.nextDouble());
+            User user = users.get(random.nextInt(users.size()));
+            long startedAt = scheduled;
+            EndpointStats target = startedAt >= measureStart ? stats.get(operation) : null;
+            clients.execute(() -> call(operation, user, startedAt, target));
+            scheduled += (long) (-Math.log(1 - random.nextDouble()) * meanIntervalNanos);
+        }
+        clients.shutdown();
+        boolean drained = clients.awaitTermination(options.drainSeconds, TimeUnit.SECONDS);
+        int unfinished = drained ? 0 : clients.shutdownNow().size();
+
+        JSONObject results = new JSONObject();
+        results.put("config", options.toJson());
+        JSONObject endpoints = new JSONObject();
+        EndpointStats total = new EndpointStats();
+        for (Map.Entry<Operation, EndpointStats> entry : stats.entrySet()) {
+            endpoints.put(entry.getKey().label(), entry.getValue().toJson(options.duration));
+            total.add(entry.getValue());
+        }
+        results.put("endpoints", endpoints);
+        results.put("total", total.toJson(options.duration));
+        results.put("unfinished", unfinished);
+        return results;
+    }
+
+    /**
+     * Send one request and record its outcome
+     * @param operation Request to send
+     * @param user      User sending the request
+     * @param startedAt Scheduled start time, from System.nanoTime()
+     * @param target    Statistics to record into, or null during warmup
+     */
+    private void call(Operation operation, User user, long startedAt, EndpointStats target) {
+        String outcome;
+        boolean ok;
+        try {
+            int status = execute(operation, user);
+            if (status == 0) {
+                if (target != null) {
+                    target.skipped.increment();
+                }
+                return;
+            }
+            outcome = String.valueOf(status);
+            ok = status == operation.expected;
+        } catch (IOException | RuntimeException e) {
+            outcome = e.getClass().getSimpleName();
+            ok = false;
+        }
+        if (target != null) {
+            target.record(outcome, ok, System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * Send one request
+     * @param operation     Request to send
+     * @param user          User sending the request
+     * @return              HTTP status, or 0 if the request was skipped because the user has no item to delete
+     * @throws IOException  Throws if the request cannot be sent or its response cannot be read
+     */
+    private int execute(Operation operation, User user) throws IOException {
+        Response response;
+        switch (operation) {
+            case REGISTER:
+                return send("POST", "/register", null, new JSONObject()
+                        .put("username", "new" + registered.incrementAndGet())
+                        .put("password", PASSWORD)).status;
+            case LOGIN:
+                response = send("POST", "/login", null, new JSONObject()
+                        .put("username", user.username)
+                        .put("password", PASSWORD));
+                if (response.token != null) {
+                    user.token = response.token;
+                }
+                return response.status;
+            case ADD:
+                response = send("POST", "/inventory/add", user.token, new JSONObject()
+                        .put("username", user.username)
+                        .put("name", "Product")
+                        .put("amount", 1));
+                if (response.status == 200) {
+                    user.ids.add(new JSONObject(response.body).getInt("id"));
+                }
+                return response.status;
+            case UPDATE:
+                Integer id = user.ids.peekLast();
+                return send("PUT", "/inventory/update", user.token, new JSONObject()
+                        .put("username", user.username)
+                        .put("data", new JSONArray().put(new JSONObject()
+                                .put("id", id == null ? 0 : id)
+                                .put("name", "Updated")
+                                .put("amount", 2)))).status;
+            case DELETE:
+                Integer deleted = user.ids.pollFirst();
+                if (deleted == null) {
+                    return 0;
+                }
+                return send("DELETE", "/inventory/delete", user.token, new JSONObject()
+                        .put("username", user.username)
+                        .put("id", deleted)).status;
+            default:
+                throw new IllegalArgumentException(operation.name());
+        }
+    }
+
+    /**
+     * Send a request with a JSON body and read the whole response, so the connection can be reused
+     * @param method        HTTP method
+     * @param path          Path of the endpoint
+     * @param token         Authentication token, or null
+     * @param body          Request body
+     * @return              Status, body and Authentication header of the response
+     * @throws IOException  Throws if the request cannot be sent or its response cannot be read
+     */
+    private Response send(String method, String path, String token, JSONObject body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(options.timeoutMs);
+        conn.setReadTimeout(options.timeoutMs);
+        conn.setRequestProperty("Content-Type", "application/json");
+        if (token != null) {
+            conn.setRequestProperty("Authentication", token);
+        }
+        conn.setDoOutput(true);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        int status = conn.getResponseCode();
+        String text = "";
+        try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            if (in != null) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                int n;
+                while ((n = in.read(chunk)) != -1) {
+                    buffer.write(chunk, 0, n);
+                }
+                text = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+        return new Response(status, text, conn.getHeaderField("Authentication"));
+    }
+
+    /**
+     * Print the results as a table
+     * @param results Results returned by {@link #run()}
+     */
+    private void print(JSONObject results) {
+        System.out.println(String.format("%-10s %10s %10s %8s %10s %10s %10s %10s",
+                "endpoint", "requests", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        JSONObject endpoints = results.getJSONObject("endpoints");
+        for (Operation operation : Operation.values()) {
+            printRow(operation.label(), endpoints.getJSONObject(operation.label()));
+        }
+        printRow("total", results.getJSONObject("total"));
+        if (results.getInt("unfinished") > 0) {
+            System.out.println(results.getInt("unfinished") + " requests were still queued when the run ended");
+        }
+    }
+
+    private static void printRow(String label, JSONObject row) {
+        System.out.println(String.format("%-10s %10d %10.1f %7.2f%% %10.2f %10.2f %10.2f %10.2f",
+                label, row.getLong("requests"), row.getDouble("throughput"), row.getDouble("errorRate") * 100,
+                row.getDouble("p50Ms"), row.getDouble("p99Ms"), row.getDouble("p999Ms"), row.getDouble("maxMs")));
+    }
+
+    /**
+     * Load test options, set with --name=value
+     */
+    private static class Options {
+        /** Requests per second, on average */
+        double rate = 500;
+        /** Seconds measured, after the warmup */
+        int duration = 60;
+        /** Seconds of load before measuring starts */
+        int warmup = 10;
+        /** Client threads, and so the maximum number of requests in flight */
+        int clients = 500;
+        /** Users registered before the run, each request is sent as one of them */
+        int users = 100;
+        /** Items added to each user's inventory before the run */
+        int items = 10;
+        /** Relative weight of each request */
+        String mix = "register=5,login=10,add=35,update=30,delete=20";
+        /** Seed of the random generator choosing operations, users and arrival times */
+        long seed = 1;
+        /** Maximum pooled database connections of the application */
+        int poolMax = 20;
+        /** Connect and read timeout of each request */
+        int timeoutMs = 30000;
+        /** Seconds to wait for outstanding requests once the run ends */
+        int drainSeconds = 60;
+        /** File the JSON results are written to */
+        String out = "target/load-results.json";
+
+        private final Map<Operation, Double> weights = new LinkedHashMap<>();
+
+        /**
+         * Parse options, collecting the arguments meant for the application
+         * @param args      Command line arguments
+         * @param appArgs   Receives the arguments that are not load test options
+         * @return          Options
+         */
+        static Options parse(String[] args, List<String> appArgs) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (name) {
+                    case "rate": options.rate = Double.parseDouble(value); break;
+                    case "duration": options.duration = Integer.parseInt(value); break;
+                    case "warmup": options.warmup = Integer.parseInt(value); break;
+                    case "clients": options.clients = Integer.parseInt(value); break;
+                    case "users": options.users = Integer.parseInt(value); break;
+                    case "items": options.items = Integer.parseInt(value); break;
+                    case "mix": options.mix = value; break;
+                    case "seed": options.seed = Long.parseLong(value); break;
+                    case "poolMax": options.poolMax = Integer.parseInt(value); break;
+                    case "timeoutMs": options.timeoutMs = Integer.parseInt(value); break;
+                    case "drainSeconds": options.drainSeconds = Integer.parseInt(value); break;
+                    case "out": options.out = value; break;
+                    default: appArgs.add(arg);
+                }
+            }
+            double sum = 0;
+            for (String part : options.mix.split(",")) {
+                String[] pair = part.split("=");
+                double weight = Double.parseDouble(pair[1]);
+                options.weights.put(Operation.valueOf(pair[0].trim().toUpperCase()), weight);
+                sum += weight;
+            }
+            if (sum <= 0 || options.rate <= 0 || options.users <= 0) {
+                throw new IllegalArgumentException("rate, users and the mix must be positive");
+            }
+            for (Map.Entry<Operation, Double> weight : options.weights.entrySet()) {
+                weight.setValue(weight.getValue() / sum);
+            }
+            return options;
+        }
+
+        /**
+         * Pick an operation according to the mix
+         * @param uniform   Random number between 0 and 1
+         * @return          Operation
+         */
+        Operation pick(double uniform) {
+            Operation last = null;
+            for (Map.Entry<Operation, Double> weight : weights.entrySet()) {
+                last = weight.getKey();
+                uniform -= weight.getValue();
+                if (uniform < 0) {
+                    break;
+                }
+            }
+            return last;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("rate", rate)
+                    .put("duration", duration)
+                    .put("warmup", warmup)
+                    .put("clients", clients)
+                    .put("users", users)
+                    .put("items", items)
+                    .put("mix", mix)
+                    .put("seed", seed)
+                    .put("poolMax", poolMax)
+                    .put("timeoutMs", timeoutMs)
+                    .put("processors", Runtime.getRuntime().availableProcessors())
+                    .put("java", System.getProperty("java.version"));
+        }
+    }
+
+    /**
+     * Outcomes and latencies of one endpoint
+     */
+    private static class EndpointStats {
+        private final Histogram latency = new Histogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final Map<String, LongAdder> outcomes = new ConcurrentSkipListMap<>();
+
+        void record(String outcome, boolean ok, long nanos) {
+            latency.record(nanos);
+            if (!ok) {
+                errors.increment();
+            }
+            outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+        }
+
+        void add(EndpointStats other) {
+            latency.add(other.latency);
+            errors.add(other.errors.sum());
+            skipped.add(other.skipped.sum());
+            for (Map.Entry<String, LongAdder> outcome : other.outcomes.entrySet()) {
+                outcomes.computeIfAbsent(outcome.getKey(), k -> new LongAdder()).add(outcome.getValue().sum());
+            }
+        }
+
+        /**
+         * @param seconds   Length of the measured period
+         * @return          JSON Object with counts, throughput, error rate and latency quantiles in milliseconds
+         */
+        JSONObject toJson(int seconds) {
+            long requests = latency.getCount();
+            JSONObject statuses = new JSONObject();
+            for (Map.Entry<String, LongAdder> outcome : outcomes.entrySet()) {
+                statuses.put(outcome.getKey(), outcome.getValue().sum());
+            }
+            return new JSONObject()
+                    .put("requests", requests)
+                    .put("errors", errors.sum())
+                    .put("skipped", skipped.sum())
+                    .put("throughput", (double) requests / seconds)
+                    .put("errorRate", requests == 0 ? 0 : (double) errors.sum() / requests)
+                    .put("p50Ms", latency.valueAt(0.5) / 1e6)
+                    .put("p99Ms", latency.valueAt(0.99) / 1e6)
+                    .put("p999Ms", latency.valueAt(0.999) / 1e6)
+                    .put("maxMs", latency.getMax() / 1e6)
+                    .put("statuses", statuses);
+        }
+    }
+
+    /**
+     * User the load runs as, with the ids of its items
+     */
+    private static class User {
+        private final String username;
+        private final ConcurrentLinkedDeque<Integer> ids = new ConcurrentLinkedDeque<>();
+        private volatile String token;
+
+        private User(String username) {
+            this.username = username;
+        }
+    }
+
+    /**
+     * Response of one request
+     */
+    private static class Response {
+        private final int status;
+        private final String body;
+        private final String token;
+
+        private Response(int status, String body, String token) {
+            this.status = status;
+            this.body = body;
+            this.token = token;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.benrevo.inventory.benchmarks;
+
+import com.benrevo.inventory.ItemRequest;
+import com.benrevo.inventory.ItemStream;
+import com.benrevo.inventory.RequestReader;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading request bodies: a single item body and a bulk body of 10, 1,000 and 100,000 items, read with the
+ * streaming reader used by RestController against URL decoding and parsing into a JSONObject as the endpoints
+ * originally did.
+ *
+ * @author John Hurst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    private static final String USERNAME = "benchmark-user";
+    private static final long MAX_BYTES = Long.MAX_VALUE;
+
+    @Param({"10", "1000", "100000"})
+    public int items;
+
+    private byte[] single;
+    private byte[] bulk;
+
+    @Setup
+    public void setUp() {
+        JSONArray data = new JSONArray();
+        for (int i = 1; i <= items; i++) {
+            data.put(new JSONObject().put("id", i).put("name", "Product " + i).put("amount", i * 3));
+        }
+        single = new JSONObject().put("username", USERNAME).put("name", "Product 1").put("amount", 3).toString()
+                .getBytes(StandardCharsets.UTF_8);
+        bulk = new JSONObject().put("username", USERNAME).put("data", data).toString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ItemRequest streamedSingle() throws IOException {
+        try (RequestReader reader = new RequestReader(new ByteArrayInputStream(single), MAX_BYTES)) {
+            return ItemRequest.read(reader);
+        }
+    }
+
+    @Benchmark
+    public void streamedBulk(Blackhole blackhole) throws IOException {
+        try (RequestReader reader = new RequestReader(new ByteArrayInputStream(bulk), MAX_BYTES)) {
+            ItemStream stream = new ItemStream(reader, USERNAME);
+            while (stream.hasNext()) {
+                blackhole.consume(stream.next());
+            }
+        }
+    }
+
+    @Benchmark
+    public JSONObject legacySingle() throws IOException {
+        return new JSONObject(URLDecoder.decode(new String(single, StandardCharsets.UTF_8), "UTF-8"));
+    }
+
+    @Benchmark
+    public void legacyBulk(Blackhole blackhole) throws IOException {
+        JSONObject bodyObj = new JSONObject(URLDecoder.decode(new String(bulk, StandardCharsets.UTF_8), "UTF-8"));
+        JSONArray data = bodyObj.getJSONArray("data");
+        for (int i = 0; i < data.length(); i++) {
+            blackhole.consume(data.getJSONObject(i));
+        }
+    }
+}
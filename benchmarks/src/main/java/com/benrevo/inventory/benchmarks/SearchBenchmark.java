@@ -0,0 +1,89 @@
+package com.benrevo.inventory.benchmarks;
+
+import com.benrevo.inventory.InventoryItem;
+import com.benrevo.inventory.InventorySearchIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of searching an inventory of 1,000 and 100,000 items held in an {@link InventorySearchIndex}: a prefix, a
+ * substring long enough for the trigram index, a short substring that scans, a low-stock amount range, and the
+ * linear scan over all items that clients did before, for comparison.
+ *
+ * @author John Hurst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final String[] WORDS = {"apple", "banana", "cherry", "grape", "lemon", "mango", "melon", "orange",
+            "peach", "pear", "plum", "berry", "kiwi", "lime", "fig", "date"};
+    private static final int LIMIT = 100;
+
+    @Param({"1000", "100000"})
+    public int items;
+
+    private List<InventoryItem> inventory;
+    private InventorySearchIndex.UserIndex index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        inventory = new ArrayList<>(items);
+        for (int i = 1; i <= items; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            inventory.add(new InventoryItem(i, name, random.nextInt(1000)));
+        }
+        index = new InventorySearchIndex.UserIndex(inventory);
+    }
+
+    @Benchmark
+    public List<InventoryItem> prefix() {
+        return index.search(new InventorySearchIndex.Query("mango lem", false, null, null, LIMIT));
+    }
+
+    @Benchmark
+    public List<InventoryItem> substring() {
+        return index.search(new InventorySearchIndex.Query("berry 77", true, null, null, LIMIT));
+    }
+
+    @Benchmark
+    public List<InventoryItem> shortSubstring() {
+        return index.search(new InventorySearchIndex.Query("9", true, null, null, LIMIT));
+    }
+
+    @Benchmark
+    public List<InventoryItem> lowStock() {
+        return index.search(new InventorySearchIndex.Query(null, false, null, 5, LIMIT));
+    }
+
+    @Benchmark
+    public List<InventoryItem> linearScan() {
+        List<InventoryItem> result = new ArrayList<>();
+        for (InventoryItem item : inventory) {
+            if (item.getName().toLowerCase(Locale.ROOT).contains("berry 77")) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+}
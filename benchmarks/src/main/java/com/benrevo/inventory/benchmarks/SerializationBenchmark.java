@@ -0,0 +1,103 @@
+package com.benrevo.inventory.benchmarks;
+
+import com.benrevo.inventory.InventoryItem;
+import com.benrevo.inventory.InventoryStreamWriter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing an inventory response of 10, 1,000 and 100,000 items in each streamed format, against building the
+ * whole response as a JSONArray the way the inventory endpoint originally did.
+ *
+ * @author John Hurst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int items;
+
+    @Param({"JSON", "NDJSON", "CSV"})
+    public InventoryStreamWriter.Format format;
+
+    private List<InventoryItem> inventory;
+
+    @Setup
+    public void setUp() {
+        inventory = new ArrayList<>(items);
+        for (int i = 1; i <= items; i++) {
+            inventory.add(new InventoryItem(i, "Product \"" + i + "\", size " + (i % 7), i * 3));
+        }
+    }
+
+    @Benchmark
+    public long streamed() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        InventoryStreamWriter writer = new InventoryStreamWriter(format, out, "token");
+        for (InventoryItem item : inventory) {
+            writer.item(item.getId(), item.getName(), item.getAmount(), item.getVersion());
+        }
+        writer.finish();
+        return out.count;
+    }
+
+    /**
+     * Build the response in memory as the original endpoint did. Only the JSON format existed then, so the other
+     * formats repeat the JSON measurement and can be ignored.
+     * @return Length of the response
+     */
+    @Benchmark
+    public int legacyJsonArray() {
+        JSONArray array = new JSONArray();
+        for (InventoryItem item : inventory) {
+            JSONObject tempObj = new JSONObject();
+            tempObj.put("id", item.getId());
+            tempObj.put("name", item.getName());
+            tempObj.put("amount", item.getAmount());
+            array.put(tempObj);
+        }
+        JSONObject rObj = new JSONObject();
+        rObj.put("auth", "token");
+        rObj.put("data", array);
+        return rObj.toString().length();
+    }
+
+    /**
+     * Output stream that only counts bytes, so the measurement is the serialization and not buffer growth
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
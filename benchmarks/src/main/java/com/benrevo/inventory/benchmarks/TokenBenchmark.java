@@ -0,0 +1,75 @@
+package com.benrevo.inventory.benchmarks;
+
+import com.benrevo.inventory.TokenService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of authenticating a request: the original SHA-512 and Base64 check of username plus password, as a baseline,
+ * against issuing and verifying the signed tokens that replaced it.
+ *
+ * @author John Hurst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBenchmark {
+
+    private static final String USERNAME = "benchmark-user";
+    private static final String PASSWORD = "benchmark-password";
+
+    private TokenService tokenService;
+    private String token;
+    private String legacyHash;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        tokenService = new TokenService(null, 3600);
+        token = tokenService.issue(1, USERNAME);
+        legacyHash = legacyHash(USERNAME, PASSWORD);
+    }
+
+    /**
+     * Hash the way checkAuth did before tokens, on every authenticated request
+     * @param user      Username
+     * @param password  Password
+     * @return          Base64 of the SHA-512 digest of username plus password
+     * @throws NoSuchAlgorithmException Throws if the JVM has no SHA-512
+     */
+    private static String legacyHash(String user, String password) throws NoSuchAlgorithmException {
+        return Base64.getEncoder().encodeToString(
+                MessageDigest.getInstance("SHA-512").digest((user + password).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public boolean legacySha512Check() throws NoSuchAlgorithmException {
+        return legacyHash.equals(legacyHash(USERNAME, PASSWORD));
+    }
+
+    @Benchmark
+    public String issueToken() {
+        return tokenService.issue(1, USERNAME);
+    }
+
+    @Benchmark
+    public TokenService.Claims verifyToken() {
+        return tokenService.verify(token);
+    }
+}
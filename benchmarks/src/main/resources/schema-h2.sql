@@ -0,0 +1,16 @@
+-- Tables of the application for the embedded H2 database; indexes are added by the application's migrations
+CREATE SEQUENCE IF NOT EXISTS users_id_seq;
+CREATE SEQUENCE IF NOT EXISTS inventory_id_seq;
+
+CREATE TABLE IF NOT EXISTS users (
+    id INTEGER DEFAULT NEXT VALUE FOR users_id_seq PRIMARY KEY,
+    username VARCHAR(255) NOT NULL,
+    password VARCHAR(255) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS inventory (
+    id INTEGER DEFAULT NEXT VALUE FOR inventory_id_seq PRIMARY KEY,
+    productname VARCHAR(255) NOT NULL,
+    amount INTEGER NOT NULL,
+    userid INTEGER NOT NULL REFERENCES users (id)
+);
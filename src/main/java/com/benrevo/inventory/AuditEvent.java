@@ -0,0 +1,137 @@
+package com.benrevo.inventory;
+
+import org.json.JSONObject;
+
+/**
+ * One entry of the audit journal: a change a user made to one of their items, or an import, which is journaled
+ * without its items. Fields that do not apply to the action are null.
+ *
+ * @author John Hurst
+ */
+public class AuditEvent {
+    private final String instance;
+    private final long seq;
+    private final long position;
+    private final long time;
+    private final String username;
+    private final String action;
+    private final Integer itemId;
+    private final String name;
+    private final Integer amount;
+    private final Long delta;
+
+    /**
+     * Create an event of no particular journal instance, whose position is its sequence number
+     * @param seq       Sequence number, increasing in the order the changes were journaled
+     * @param time      Time of the change in milliseconds since the epoch
+     * @param username  User who made the change, who owns the item
+     * @param action    "add", "update", "adjust", "delete" or "import"
+     * @param itemId    Id of the item, null for an import
+     * @param name      Name of the item after the change, null for an adjustment, deletion or import
+     * @param amount    Amount of the item after the change, null for an adjustment, deletion or import
+     * @param delta     Amount added by an adjustment, null for other actions
+     */
+    public AuditEvent(long seq, long time, String username, String action, Integer itemId, String name,
+                      Integer amount, Long delta) {
+        this(null, seq, seq, time, username, action, itemId, name, amount, delta);
+    }
+
+    /**
+     * @param instance  Journal instance that journaled the change, which with the sequence number identifies the
+     *                  event, or null
+     * @param seq       Sequence number, increasing in the order the instance journaled the changes
+     * @param position  Position of the event in the sink it was read from, which history is paged by: the row id in
+     *                  the audit table, the sequence number otherwise
+     * @param time      Time of the change in milliseconds since the epoch
+     * @param username  User who made the change, who owns the item
+     * @param action    "add", "update", "adjust", "delete" or "import"
+     * @param itemId    Id of the item, null for an import
+     * @param name      Name of the item after the change, null for an adjustment, deletion or import
+     * @param amount    Amount of the item after the change, null for an adjustment, deletion or import
+     * @param delta     Amount added by an adjustment, null for other actions
+     */
+    public AuditEvent(String instance, long seq, long position, long time, String username, String action,
+                      Integer itemId, String name, Integer amount, Long delta) {
+        this.instance = instance;
+        this.seq = seq;
+        this.position = position;
+        this.time = time;
+        this.username = username;
+        this.action = action;
+        this.itemId = itemId;
+        this.name = name;
+        this.amount = amount;
+        this.delta = delta;
+    }
+
+    /**
+     * Read an event written by {@link #toJSON()}
+     * @param json  JSON Object of the event
+     * @return      Event
+     */
+    public static AuditEvent fromJSON(JSONObject json) {
+        long seq = json.getLong("seq");
+        return new AuditEvent(json.optString("instance", null), seq, seq, json.getLong("time"),
+                json.getString("username"), json.getString("action"), json.has("id") ? json.getInt("id") : null,
+                json.has("name") ? json.getString("name") : null, json.has("amount") ? json.getInt("amount") : null,
+                json.has("delta") ? json.getLong("delta") : null);
+    }
+
+    /**
+     * @return JSON Object {"instance":String, "seq":Long, "time":Long, "username":String, "action":String, "id":Int,
+     *         "name":String, "amount":Int, "delta":Long} without the fields that are null
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.putOpt("instance", instance);
+        json.put("seq", seq);
+        json.put("time", time);
+        json.put("username", username);
+        json.put("action", action);
+        json.putOpt("id", itemId);
+        json.putOpt("name", name);
+        json.putOpt("amount", amount);
+        json.putOpt("delta", delta);
+        return json;
+    }
+
+    public String getInstance() {
+        return instance;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public Integer getItemId() {
+        return itemId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Integer getAmount() {
+        return amount;
+    }
+
+    public Long getDelta() {
+        return delta;
+    }
+}
@@ -0,0 +1,373 @@
+package com.benrevo.inventory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Journal of who changed which item and when, written off the request path.
+ *
+ * The journal listens to committed inventory changes and turns each changed item into an {@link AuditEvent} in a
+ * bounded queue, which costs the writing request a few allocations. A background thread drains the queue in batches
+ * of up to batchSize events, waiting up to lingerMs for a batch to fill, and stores each batch in the
+ * {@link AuditSink} with one write.
+ *
+ * Each journal has a random instance id, and numbers its events from the clock at start in microseconds, so the
+ * sequence numbers of one instance keep increasing across restarts. Events of several instances interleave; the
+ * instance id and sequence number together identify an event.
+ *
+ * When the queue is full the overflow policy decides: BLOCK waits for space and then drops the events, DROP drops
+ * them at once, and SPILL appends them to a spill file next to the journal. Under BLOCK, one change notification
+ * waits at most blockMs in all, however many items it carries, since it runs on the thread that committed them. A
+ * batch the sink fails to store is spilled as well, whatever the policy. The writer replays the spill file into the
+ * sink once the queue has room and the sink works again, also after a restart, so spilled events arrive late; the
+ * sink recognises events it already holds, see {@link AuditSink#writeAuditEvents}. Closing the journal writes what
+ * is queued; events published after that are spilled for the next start. Dropped and spilled events are counted.
+ *
+ * @author John Hurst
+ */
+public class AuditJournal implements InventoryListener {
+
+    /**
+     * What happens to an event that finds the queue full
+     */
+    public enum Overflow {
+        BLOCK, DROP, SPILL;
+
+        /**
+         * @param name  Policy name, in any case
+         * @return      Policy
+         * @throws IllegalArgumentException Throws if there is no such policy
+         */
+        public static Overflow of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final long IDLE_MS = 200;
+    private static final long RETRY_MS = 1000;
+
+    private final AuditSink sink;
+    private final BlockingQueue<AuditEvent> queue;
+    private final int capacity;
+    private final int batchSize;
+    private final long lingerMs;
+    private final Overflow overflow;
+    private final long blockMs;
+    private final File spillFile;
+    private final File replayFile;
+    private final Object spillLock = new Object();
+    private final String instance = UUID.randomUUID().toString();
+    private final AtomicLong seq = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+    private long nextReplay;
+
+    /**
+     * Start the journal's writer thread, which first replays events spilled by an earlier process
+     * @param sink          Storage of the events
+     * @param capacity      Number of events the queue holds
+     * @param batchSize     Maximum number of events stored with one write
+     * @param lingerMs      Time the writer waits for a batch to fill once it has an event
+     * @param overflow      Policy for events that find the queue full
+     * @param blockMs       Time an event waits for space under the BLOCK policy
+     * @param spillFile     File receiving spilled events, in a directory that exists
+     */
+    public AuditJournal(AuditSink sink, int capacity, int batchSize, long lingerMs, Overflow overflow, long blockMs,
+                        File spillFile) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.lingerMs = lingerMs;
+        this.overflow = overflow;
+        this.blockMs = blockMs;
+        this.spillFile = spillFile;
+        this.replayFile = new File(spillFile.getPath() + ".replay");
+        writer = new Thread(this::run, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void itemsAdded(String username, List<InventoryItem> items) {
+        long deadline = deadline();
+        for (InventoryItem item : items) {
+            publish(deadline, username, "add", item.getId(), item.getName(), item.getAmount(), null);
+        }
+    }
+
+    @Override
+    public void itemsImported(String username) {
+        publish(deadline(), username, "import", null, null, null, null);
+    }
+
+    @Override
+    public void itemsUpdated(String username, List<InventoryItem> items) {
+        long deadline = deadline();
+        for (InventoryItem item : items) {
+            publish(deadline, username, "update", item.getId(), item.getName(), item.getAmount(), null);
+        }
+    }
+
+    @Override
+    public void itemsAdjusted(String username, Map<Integer, Long> deltas, long version) {
+        long deadline = deadline();
+        for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+            publish(deadline, username, "adjust", delta.getKey(), null, null, delta.getValue());
+        }
+    }
+
+    @Override
+    public void itemDeleted(String username, int id) {
+        publish(deadline(), username, "delete", id, null, null, null);
+    }
+
+    /**
+     * @return Time from System.nanoTime() until which the events of one change notification may wait for space
+     */
+    private long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockMs);
+    }
+
+    /**
+     * Read a user's most recent changes from the sink, newest first. Events still queued are not included.
+     * @param username      User whose changes are read
+     * @param before        Only events at a smaller position are read, Long.MAX_VALUE for the newest
+     * @param limit         Maximum number of events to read
+     * @return              Events by descending position, see {@link AuditEvent#getPosition()}
+     * @throws IOException  Throws if a file sink cannot be read
+     * @throws SQLException Throws if a table sink cannot be read
+     */
+    public List<AuditEvent> history(String username, long before, int limit) throws IOException, SQLException {
+        return sink.readAuditEvents(username, before, limit);
+    }
+
+    /**
+     * Get a snapshot of the journal's statistics
+     * @return JSON Object {"queued":Int, "capacity":Int, "overflow":String, "written":Long, "dropped":Long,
+     *         "spilled":Long, "failures":Long}
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("queued", queue.size());
+        stats.put("capacity", capacity);
+        stats.put("overflow", overflow.name().toLowerCase(Locale.ROOT));
+        stats.put("written", written.get());
+        stats.put("dropped", dropped.get());
+        stats.put("spilled", spilled.get());
+        stats.put("failures", failures.get());
+        return stats;
+    }
+
+    /**
+     * Stop taking events and write the queued ones. Events the writer could not store within the timeout are
+     * spilled.
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<AuditEvent> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        spill(rest);
+    }
+
+    /**
+     * Queue an event, applying the overflow policy if the queue is full
+     * @param deadline  Time from System.nanoTime() until which the BLOCK policy waits for space
+     * @param username  User who made the change
+     * @param action    Kind of change
+     * @param itemId    Id of the item, or null
+     * @param name      Name of the item after the change, or null
+     * @param amount    Amount of the item after the change, or null
+     * @param delta     Amount added by an adjustment, or null
+     */
+    private void publish(long deadline, String username, String action, Integer itemId, String name, Integer amount,
+                         Long delta) {
+        long next = seq.incrementAndGet();
+        AuditEvent event = new AuditEvent(instance, next, next, System.currentTimeMillis(), username, action, itemId,
+                name, amount, delta);
+        if (closed) {
+            spill(Collections.singletonList(event));
+            return;
+        }
+        boolean queued;
+        if (overflow == Overflow.BLOCK) {
+            try {
+                queued = queue.offer(event, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        } else {
+            queued = queue.offer(event);
+        }
+        if (!queued) {
+            if (overflow == Overflow.SPILL) {
+                spill(Collections.singletonList(event));
+            } else {
+                drop(1);
+            }
+        }
+    }
+
+    /**
+     * Drain the queue into the sink in batches until the journal is closed and the queue is empty, replaying
+     * spilled events when there is nothing else to do
+     */
+    private void run() {
+        List<AuditEvent> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                AuditEvent first = queue.poll(IDLE_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    replay(false);
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - batch.size());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+                while (batch.size() < batchSize && !closed) {
+                    long remaining = deadline - System.nanoTime();
+                    AuditEvent next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                // Only close stops the writer
+            }
+            if (!batch.isEmpty() && !write(batch)) {
+                spill(batch);
+            }
+            batch.clear();
+            if (queue.size() < capacity / 2) {
+                replay(false);
+            }
+        }
+        replay(true);
+    }
+
+    /**
+     * Store a batch in the sink
+     * @param batch Events to store
+     * @return      True if they were stored
+     */
+    private boolean write(List<AuditEvent> batch) {
+        try {
+            sink.writeAuditEvents(batch);
+            written.addAndGet(batch.size());
+            Metrics.AUDIT_EVENTS.add("written", batch.size());
+            return true;
+        } catch (IOException | SQLException | RuntimeException e) {
+            failures.incrementAndGet();
+            nextReplay = System.currentTimeMillis() + RETRY_MS;
+            System.err.println("Cannot write " + batch.size() + " audit events: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Store the spilled events in the sink, in batches, then delete the spill. Called by the writer only.
+     * @param force True to try even while the sink recently failed
+     */
+    private void replay(boolean force) {
+        if (!force && System.currentTimeMillis() < nextReplay) {
+            return;
+        }
+        synchronized (spillLock) {
+            if (!replayFile.exists()) {
+                if (spillFile.length() == 0 || !spillFile.renameTo(replayFile)) {
+                    return;
+                }
+            }
+        }
+        List<AuditEvent> batch = new ArrayList<>(batchSize);
+        try (BufferedReader reader = Files.newBufferedReader(replayFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    batch.add(AuditEvent.fromJSON(new JSONObject(line)));
+                } catch (JSONException e) {
+                    // Line cut short by a crash
+                    continue;
+                }
+                if (batch.size() == batchSize) {
+                    if (!write(batch)) {
+                        return;
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if ((batch.isEmpty() || write(batch)) && !replayFile.delete()) {
+            System.err.println("Cannot delete " + replayFile);
+        }
+    }
+
+    /**
+     * Append events to the spill file, dropping them if it cannot be written
+     * @param events Events to spill
+     */
+    private void spill(List<AuditEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder(events.size() * 128);
+        for (AuditEvent event : events) {
+            lines.append(event.toJSON()).append('\n');
+        }
+        synchronized (spillLock) {
+            try (Writer out = new OutputStreamWriter(Files.newOutputStream(spillFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8)) {
+                out.write(lines.toString());
+                spilled.addAndGet(events.size());
+                Metrics.AUDIT_EVENTS.add("spilled", events.size());
+            } catch (IOException e) {
+                e.printStackTrace();
+                drop(events.size());
+            }
+        }
+    }
+
+    /**
+     * Count dropped events
+     * @param count Number of events dropped
+     */
+    private void drop(int count) {
+        dropped.addAndGet(count);
+        Metrics.AUDIT_EVENTS.add("dropped", count);
+    }
+}
@@ -0,0 +1,147 @@
+package com.benrevo.inventory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Audit events in local files of one JSON object per line, named audit-&lt;n&gt;.ndjson. A file is appended to until
+ * it exceeds maxBytes, then the next one is started; only the newest maxFiles files are kept.
+ *
+ * Every batch is written with one write and forced to disk. Reading a user's history scans the files from the newest
+ * until enough events are found, so it suits occasional lookups rather than heavy querying.
+ *
+ * @author John Hurst
+ */
+public class AuditLogFile implements AuditSink {
+
+    private static final String PREFIX = "audit-";
+    private static final String SUFFIX = ".ndjson";
+
+    private final File dir;
+    private final long maxBytes;
+    private final int maxFiles;
+    private long current;
+
+    /**
+     * Continue the newest file in a directory, or start the first one
+     * @param dir           Directory of the files, created if missing
+     * @param maxBytes      Size above which the next file is started
+     * @param maxFiles      Number of files kept
+     * @throws IOException  Throws if the directory cannot be created
+     */
+    public AuditLogFile(File dir, long maxBytes, int maxFiles) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        List<Long> numbers = fileNumbers();
+        current = numbers.isEmpty() ? 0 : numbers.get(0);
+    }
+
+    @Override
+    public synchronized void writeAuditEvents(List<AuditEvent> events) throws IOException {
+        StringBuilder lines = new StringBuilder(events.size() * 128);
+        for (AuditEvent event : events) {
+            lines.append(event.toJSON()).append('\n');
+        }
+        if (file(current).length() >= maxBytes) {
+            current++;
+            List<Long> numbers = fileNumbers();
+            for (int i = maxFiles - 1; i < numbers.size(); i++) {
+                if (!file(numbers.get(i)).delete()) {
+                    System.err.println("Cannot delete " + file(numbers.get(i)));
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file(current).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Read a user's most recent events, scanning the files from the newest. Lines that are not complete events, such
+     * as the last line of a write cut short by a crash, are skipped.
+     * @param username      User whose changes are read
+     * @param before        Only events with a smaller sequence number, their position in files, are read
+     * @param limit         Maximum number of events to read
+     * @return              Events by descending sequence number
+     * @throws IOException  Throws if a file cannot be read
+     */
+    @Override
+    public List<AuditEvent> readAuditEvents(String username, long before, int limit) throws IOException {
+        List<AuditEvent> found = new ArrayList<>();
+        String quoted = JSONObject.quote(username);
+        for (long number : fileNumbers()) {
+            try (BufferedReader reader = Files.newBufferedReader(file(number).toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // Cheap filter before parsing; the parsed username decides
+                    if (!line.contains(quoted)) {
+                        continue;
+                    }
+                    try {
+                        AuditEvent event = AuditEvent.fromJSON(new JSONObject(line));
+                        if (event.getUsername().equals(username) && event.getSeq() < before) {
+                            found.add(event);
+                        }
+                    } catch (JSONException e) {
+                        // Incomplete line
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted by a roll meanwhile
+            }
+            if (found.size() >= limit) {
+                break;
+            }
+        }
+        found.sort(Comparator.comparingLong(AuditEvent::getSeq).reversed());
+        return found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+    }
+
+    /**
+     * @return Numbers of the files, newest first
+     */
+    private List<Long> fileNumbers() {
+        List<Long> numbers = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not an audit file
+                    }
+                }
+            }
+        }
+        numbers.sort(Collections.reverseOrder());
+        return numbers;
+    }
+
+    private File file(long number) {
+        return new File(dir, PREFIX + number + SUFFIX);
+    }
+}
@@ -0,0 +1,36 @@
+package com.benrevo.inventory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Durable storage of the {@link AuditJournal}: the audit_log table of {@link DataAccess}, or the rolling files of
+ * {@link AuditLogFile}
+ *
+ * @author John Hurst
+ */
+public interface AuditSink {
+
+    /**
+     * Store a batch of events. A sink may store a batch in parts, such as one transaction per shard, so a batch that
+     * failed may be partly stored; the journal stores all of it again later. The table sink skips the events it
+     * already holds, recognised by their instance and sequence number, while files may hold them twice.
+     * @param events        Events in journal order
+     * @throws IOException  Throws if a file sink cannot be written
+     * @throws SQLException Throws if a table sink cannot be written
+     */
+    void writeAuditEvents(List<AuditEvent> events) throws IOException, SQLException;
+
+    /**
+     * Read a user's most recent events, newest first
+     * @param username      User whose changes are read
+     * @param before        Only events at a smaller position are read, Long.MAX_VALUE for the newest; see
+     *                      {@link AuditEvent#getPosition()}
+     * @param limit         Maximum number of events to read
+     * @return              Events by descending position
+     * @throws IOException  Throws if a file sink cannot be read
+     * @throws SQLException Throws if a table sink cannot be read
+     */
+    List<AuditEvent> readAuditEvents(String username, long before, int limit) throws IOException, SQLException;
+}
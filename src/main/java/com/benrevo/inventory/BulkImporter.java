@@ -0,0 +1,408 @@
+package com.benrevo.inventory;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Streams NDJSON and CSV import bodies into the inventory.
+ *
+ * Each import runs on two threads of the importer's own: a parser thread reads records from the body with an
+ * {@link ImportReader} and groups valid items into chunks, and a writer thread writes the chunks with
+ * {@link InventoryStore#importItems}, one transaction per chunk. A bounded queue of chunks sits between them, so a
+ * parser that gets ahead of the database waits instead of buffering the body; memory use per import is bounded by the
+ * queue, whatever the size of the body. Imports never run on the {@link DatabaseExecutor}, so a long import neither
+ * holds one of its threads nor counts against its concurrency limit; each running import uses one pooled connection
+ * of its own.
+ *
+ * Chunks that were written stay written if a later chunk fails or the import is cut short, and the report says how
+ * far the import got. Imports are capped; an import that finds all threads busy is refused with a
+ * RejectedExecutionException. {@link #cancel} stops an import whose request is gone, closing its body so the parser
+ * does not go on reading it.
+ *
+ * @author John Hurst
+ */
+public class BulkImporter {
+
+    private static final long OFFER_WAIT_MS = 100;
+
+    private final InventoryStore dataAccess;
+    private final int chunkSize;
+    private final int queueChunks;
+    private final int maxRecordChars;
+    private final int maxErrors;
+    private final ThreadPoolExecutor parsers;
+    private final ThreadPoolExecutor writers;
+    private final Map<Long, Report> running = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Create an importer
+     * @param dataAccess        Data layer the items are written to
+     * @param maxConcurrent     Maximum number of imports running at once
+     * @param chunkSize         Items written per transaction
+     * @param queueChunks       Parsed chunks an import may hold waiting to be written
+     * @param maxRecordChars    Maximum length of one record in characters
+     * @param maxErrors         Maximum number of rejected records listed in a report; all are counted
+     */
+    public BulkImporter(InventoryStore dataAccess, int maxConcurrent, int chunkSize, int queueChunks,
+                        int maxRecordChars, int maxErrors) {
+        this.dataAccess = dataAccess;
+        this.chunkSize = chunkSize;
+        this.queueChunks = queueChunks;
+        this.maxRecordChars = maxRecordChars;
+        this.maxErrors = maxErrors;
+        this.parsers = newPool(maxConcurrent, "import-parser");
+        this.writers = newPool(maxConcurrent, "import-writer");
+    }
+
+    /**
+     * Create a pool of threads that are started on demand and refuse work when all are busy
+     * @param threads   Maximum number of threads
+     * @param name      Name of the threads
+     * @return          Thread pool
+     */
+    private static ThreadPoolExecutor newPool(int threads, String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Create the report of a new import, before it runs, so that the caller holds it whatever the outcome
+     * @param username  User the items are added for
+     * @return          Report of the import
+     */
+    public Report newReport(String username) {
+        return new Report(ids.incrementAndGet(), username, maxErrors);
+    }
+
+    /**
+     * Start an import on a writer thread, which writes the chunks while a parser thread reads the body. Once the
+     * import ends, the report holds the progress made and, if it failed, the reason.
+     * @param report    Report of the import, from {@link #newReport}
+     * @param body      Request body, encoded in UTF-8
+     * @param format    Format of the body, NDJSON or CSV
+     * @param done      Called on the writer thread with null when the import completed, or with the exception that
+     *                  ended it: an IOException if the body could not be read, an SQLException if a chunk could not
+     *                  be written, an InterruptedException if it was cancelled, or an IllegalArgumentException if the
+     *                  format is not NDJSON or CSV or the CSV header is unusable
+     * @throws RejectedExecutionException Throws if the maximum number of imports are running
+     */
+    public void start(Report report, InputStream body, InventoryStreamWriter.Format format,
+                      Consumer<Exception> done) {
+        report.body = body;
+        report.writer = writers.submit(() -> {
+            try {
+                run(report, body, format);
+                done.accept(null);
+            } catch (Exception e) {
+                done.accept(e);
+            }
+        });
+        if (report.stopped) {
+            report.writer.cancel(true);
+        }
+    }
+
+    /**
+     * Stop an import, e.g. because its request timed out. The writer is interrupted and the body is closed, so a
+     * parser waiting for the client stops reading instead of holding its thread until the client gives up.
+     * @param report    Report of the import
+     */
+    public void cancel(Report report) {
+        report.stopped = true;
+        Future<?> writer = report.writer;
+        if (writer != null) {
+            writer.cancel(true);
+        }
+        Closeable body = report.body;
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // The parser fails on its next read either way
+            }
+        }
+    }
+
+    /**
+     * Run an import on the calling thread, which writes the chunks while a parser thread reads the body
+     * @param report        Report of the import
+     * @param body          Request body, encoded in UTF-8
+     * @param format        Format of the body, NDJSON or CSV
+     * @throws IOException  Throws if the body cannot be read
+     * @throws SQLException Throws if a chunk cannot be written
+     * @throws InterruptedException Throws if the calling thread is interrupted
+     */
+    private void run(Report report, InputStream body, InventoryStreamWriter.Format format)
+            throws IOException, SQLException, InterruptedException {
+        try {
+            write(report, new ImportReader(body, format, maxRecordChars));
+            report.finish(null);
+        } catch (IOException | SQLException | InterruptedException | RuntimeException e) {
+            report.finish(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Start the parser of an import and write the chunks it hands over until the body ends
+     * @param report        Report of the import
+     * @param reader        Reader of the body
+     * @throws IOException  Throws if the body cannot be read
+     * @throws SQLException Throws if a chunk cannot be written
+     * @throws InterruptedException Throws if the calling thread is interrupted
+     */
+    private void write(Report report, ImportReader reader) throws IOException, SQLException, InterruptedException {
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(queueChunks);
+        running.put(report.id, report);
+        try {
+            parsers.execute(() -> parse(reader, report, queue));
+        } catch (RejectedExecutionException e) {
+            running.remove(report.id);
+            reader.close();
+            throw e;
+        }
+        try {
+            while (true) {
+                Chunk chunk = queue.take();
+                if (chunk.failure instanceof IOException) {
+                    throw (IOException) chunk.failure;
+                }
+                if (chunk.failure != null) {
+                    throw (RuntimeException) chunk.failure;
+                }
+                if (chunk.items.isEmpty()) {
+                    break;
+                }
+                JSONObject result = dataAccess.importItems(report.username, chunk.items);
+                report.imported.addAndGet(result.getInt("inserted"));
+                JSONArray errors = result.getJSONArray("errors");
+                for (int i = 0; i < errors.length(); i++) {
+                    JSONObject error = errors.getJSONObject(i);
+                    report.reject(chunk.lines[error.getInt("index")], error.getString("error"));
+                }
+            }
+        } finally {
+            report.stopped = true;
+            running.remove(report.id);
+        }
+    }
+
+    /**
+     * Read the body into chunks until it ends, the import stops or reading fails, which is handed to the writer
+     * @param reader    Reader of the body
+     * @param report    Report receiving the record counts and rejected records
+     * @param queue     Queue of chunks waiting to be written
+     */
+    private void parse(ImportReader reader, Report report, BlockingQueue<Chunk> queue) {
+        try (ImportReader r = reader) {
+            Chunk chunk = new Chunk(chunkSize);
+            while (!report.stopped && r.next()) {
+                report.records.incrementAndGet();
+                if (r.getItem() == null) {
+                    report.reject(r.getLine(), r.getError());
+                    continue;
+                }
+                chunk.add(r.getItem(), r.getLine());
+                if (chunk.items.size() == chunkSize) {
+                    if (!put(queue, chunk, report)) {
+                        return;
+                    }
+                    chunk = new Chunk(chunkSize);
+                }
+            }
+            if (!chunk.items.isEmpty() && !put(queue, chunk, report)) {
+                return;
+            }
+            put(queue, new Chunk(0), report);
+        } catch (IOException | RuntimeException e) {
+            Chunk failed = new Chunk(0);
+            failed.failure = e;
+            put(queue, failed, report);
+        }
+    }
+
+    /**
+     * Hand a chunk to the writer, waiting while the queue is full
+     * @param queue     Queue of chunks waiting to be written
+     * @param chunk     Chunk to hand over
+     * @param report    Report of the import, whose stopped flag ends the wait
+     * @return          False if the import stopped before the chunk was taken
+     */
+    private static boolean put(BlockingQueue<Chunk> queue, Chunk chunk, Report report) {
+        try {
+            while (!report.stopped) {
+                if (queue.offer(chunk, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Get the reports of a user's running imports
+     * @param username  User whose imports are listed
+     * @return          JSON Array of reports, oldest first
+     */
+    public JSONArray getRunning(String username) {
+        List<Report> reports = new ArrayList<>();
+        for (Report report : running.values()) {
+            if (report.username.equals(username)) {
+                reports.add(report);
+            }
+        }
+        reports.sort((a, b) -> Long.compare(a.id, b.id));
+        JSONArray array = new JSONArray();
+        for (Report report : reports) {
+            array.put(report.toJSON());
+        }
+        return array;
+    }
+
+    /**
+     * Stop accepting imports and cancel the running ones
+     */
+    public void close() {
+        for (Report report : running.values()) {
+            cancel(report);
+        }
+        writers.shutdown();
+        parsers.shutdown();
+    }
+
+    /**
+     * Items of consecutive valid records with the line each started on. An empty chunk marks the end of the body.
+     */
+    private static class Chunk {
+        private final List<ItemRequest> items;
+        private final int[] lines;
+        private Exception failure;
+
+        private Chunk(int size) {
+            items = new ArrayList<>(size);
+            lines = new int[size];
+        }
+
+        private void add(ItemRequest item, int line) {
+            lines[items.size()] = line;
+            items.add(item);
+        }
+    }
+
+    /**
+     * Progress and outcome of one import, updated by its parser and writer threads while it runs
+     */
+    public static class Report {
+        private final long id;
+        private final String username;
+        private final long started = System.currentTimeMillis();
+        private final int maxErrors;
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong imported = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final JSONArray errors = new JSONArray();
+        private volatile boolean stopped;
+        private volatile Closeable body;
+        private volatile Future<?> writer;
+        private volatile String state = "running";
+        private volatile String failure;
+        private volatile long finished;
+
+        private Report(long id, String username, int maxErrors) {
+            this.id = id;
+            this.username = username;
+            this.maxErrors = maxErrors;
+        }
+
+        /**
+         * Count a rejected record, listing it while there is room
+         * @param line  Line the record started on
+         * @param error Reason the record was rejected
+         */
+        private void reject(int line, String error) {
+            rejected.incrementAndGet();
+            synchronized (errors) {
+                if (errors.length() < maxErrors) {
+                    errors.put(new JSONObject().put("line", line).put("error", error));
+                }
+            }
+        }
+
+        /**
+         * Mark the import as complete or failed
+         * @param e Exception that ended the import, null if it completed
+         */
+        private void finish(Exception e) {
+            finished = System.currentTimeMillis();
+            if (e == null) {
+                state = "complete";
+            } else {
+                state = "failed";
+                failure = e instanceof InterruptedException ? "Import timed out" : e.getMessage();
+            }
+        }
+
+        /**
+         * @return Items written so far
+         */
+        public long getImported() {
+            return imported.get();
+        }
+
+        /**
+         * @return Records rejected so far
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * Get a snapshot of the report
+         * @return JSON Object {"id":Long, "state":"running"|"complete"|"failed", "records":Long, "imported":Long,
+         *         "rejected":Long, "elapsedMs":Long, "errors":[{"line":Int, "error":String}], "error":String}
+         */
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("state", state);
+            json.put("records", records.get());
+            json.put("imported", imported.get());
+            json.put("rejected", rejected.get());
+            json.put("elapsedMs", (finished != 0 ? finished : System.currentTimeMillis()) - started);
+            synchronized (errors) {
+                json.put("errors", new JSONArray(errors.toList()));
+            }
+            if (failure != null) {
+                json.put("error", failure);
+            }
+            return json;
+        }
+    }
+}
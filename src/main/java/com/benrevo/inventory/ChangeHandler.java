@@ -0,0 +1,37 @@
+package com.benrevo.inventory;
+
+/**
+ * Callback receiving the changes to an inventory after a version, as they are read from the database.
+ *
+ * @param <E> Checked exception the handler may throw, e.g. IOException when writing to a response
+ * @author John Hurst
+ */
+public interface ChangeHandler<E extends Exception> {
+
+    /**
+     * Called once before any change
+     * @param version   Version the changes lead up to, to be passed as "since" on the next sync
+     * @param reset     True if the changes since the requested version are not available and every item follows
+     *                  instead, so the receiver must replace its copy rather than apply the changes to it
+     * @throws E        Throws if the handler fails
+     */
+    void start(long version, boolean reset) throws E;
+
+    /**
+     * An item was added or changed
+     * @param id        Id of the item
+     * @param name      Name of the item
+     * @param amount    Amount of the item
+     * @param version   Version of the change
+     * @throws E        Throws if the handler fails
+     */
+    void changed(int id, String name, int amount, long version) throws E;
+
+    /**
+     * An item was deleted. Deletions are reported after all changed items.
+     * @param id        Id of the deleted item
+     * @param version   Version of the deletion
+     * @throws E        Throws if the handler fails
+     */
+    void deleted(int id, long version) throws E;
+}
@@ -0,0 +1,80 @@
+package com.benrevo.inventory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes inventory changes to an output stream as they arrive, in the shape
+ * {"version":Long, "changed":[{"id":Int, "name":String, "amount":Int, "version":Long}],
+ * "deleted":[{"id":Int, "version":Long}]}, with "reset":true after the version when the changes could not be read
+ * and every item is listed instead.
+ *
+ * @author John Hurst
+ */
+public class ChangeStreamWriter implements ChangeHandler<IOException> {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonGenerator json;
+    private boolean inDeleted;
+
+    /**
+     * Create a writer
+     * @param out           Stream to write to, flushed but not closed by {@link #finish()}
+     * @throws IOException  Throws if the stream cannot be written
+     */
+    public ChangeStreamWriter(OutputStream out) throws IOException {
+        json = JSON_FACTORY.createGenerator(out);
+        json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    @Override
+    public void start(long version, boolean reset) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("version", version);
+        if (reset) {
+            json.writeBooleanField("reset", true);
+        }
+        json.writeArrayFieldStart("changed");
+    }
+
+    @Override
+    public void changed(int id, String name, int amount, long version) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("id", id);
+        json.writeStringField("name", name);
+        json.writeNumberField("amount", amount);
+        json.writeNumberField("version", version);
+        json.writeEndObject();
+    }
+
+    @Override
+    public void deleted(int id, long version) throws IOException {
+        if (!inDeleted) {
+            json.writeEndArray();
+            json.writeArrayFieldStart("deleted");
+            inDeleted = true;
+        }
+        json.writeStartObject();
+        json.writeNumberField("id", id);
+        json.writeNumberField("version", version);
+        json.writeEndObject();
+    }
+
+    /**
+     * Close the arrays and the object and flush the output
+     * @throws IOException Throws if the stream cannot be written
+     */
+    public void finish() throws IOException {
+        json.writeEndArray();
+        if (!inDeleted) {
+            json.writeArrayFieldStart("deleted");
+            json.writeEndArray();
+        }
+        json.writeEndObject();
+        json.flush();
+    }
+}
@@ -0,0 +1,130 @@
+package com.benrevo.inventory;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker that stops sending requests to the database after consecutive failures.
+ *
+ * Closed, every request is allowed. After failureThreshold consecutive failures the breaker opens and refuses
+ * requests for openMs. It then half-opens and lets one probe request through per openMs; a success closes it again
+ * and a failure reopens it. A success only resets the failure count if no failure was recorded while it ran, so a
+ * fast success cannot hide failures of slower requests that were running at the same time.
+ *
+ * @author John Hurst
+ */
+public class CircuitBreaker {
+
+    /**
+     * States of the breaker
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private volatile State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long nextProbeAt;
+
+    private final AtomicLong failures = new AtomicLong();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * Create a closed breaker
+     * @param failureThreshold  Consecutive failures that open the breaker
+     * @param openMs            Time in milliseconds the breaker stays open before letting a probe through
+     */
+    public CircuitBreaker(int failureThreshold, long openMs) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+    }
+
+    /**
+     * Check whether a request may go to the database
+     * @return True if the breaker is closed or a probe is due
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (state == State.CLOSED || now - nextProbeAt >= 0) {
+                if (state != State.CLOSED) {
+                    state = State.HALF_OPEN;
+                    nextProbeAt = now + openNanos;
+                }
+                return true;
+            }
+        }
+        refused.increment();
+        return false;
+    }
+
+    /**
+     * @return Number of failures recorded so far, to pass to {@link #recordSuccess(long)}
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Record a successful request, closing the breaker unless another failure was recorded while it ran
+     * @param failureCount Result of {@link #getFailureCount()} taken when the request started
+     */
+    public void recordSuccess(long failureCount) {
+        if (failures.get() != failureCount) {
+            return;
+        }
+        synchronized (this) {
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * Record a failed request, opening the breaker at the threshold or if the request was a probe
+     */
+    public void recordFailure() {
+        failures.incrementAndGet();
+        synchronized (this) {
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                state = State.OPEN;
+                nextProbeAt = System.nanoTime() + openNanos;
+                opened.increment();
+                System.err.println("Database circuit breaker opened after " + consecutiveFailures + " failures");
+            }
+        }
+    }
+
+    /**
+     * @return Current state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Get a snapshot of the breaker statistics
+     * @return JSON Object with the state and lifetime counters
+     */
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("state", state.name());
+        stats.put("consecutiveFailures", consecutiveFailures);
+        stats.put("failures", failures.get());
+        stats.put("opened", opened.sum());
+        stats.put("refused", refused.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,147 @@
+package com.benrevo.inventory;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit on the number of database requests admitted at once, queued or running.
+ *
+ * The limit follows observed latency. Completed requests are grouped into windows of about limit samples, and each
+ * window is judged by its median latency; the lowest median of a window that was not overloaded becomes the
+ * baseline. A window is overloaded if its median is more than tolerance times the baseline, or if a tenth of its
+ * requests were dropped after timing out, and then the limit shrinks by 10%. Otherwise, if at least half the limit
+ * was in use, it grows by one. Growing queues delay every request and so show up in the median long before requests
+ * time out, while a few slow requests in a window of fast ones do not move it. The limit therefore sheds load while
+ * the requests that are admitted still finish quickly.
+ *
+ * If the limit reaches its minimum and latency is still above tolerance, the database itself has become slower, so
+ * the baseline is raised to the new median instead.
+ *
+ * @author John Hurst
+ */
+public class ConcurrencyLimiter {
+
+    private static final int MIN_WINDOW = 10;
+    private static final double DECREASE = 0.9;
+    private static final int DROPPED_SHARE = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    private double estimate;
+    private long baselineNanos = Long.MAX_VALUE;
+    private long[] windowLatencies;
+    private int windowSamples;
+    private int windowPeak;
+    private int windowDropped;
+
+    /**
+     * Create a limiter starting at its maximum
+     * @param minLimit  Lowest limit, normally the number of database connections
+     * @param maxLimit  Highest limit, normally the connections plus the queue capacity
+     * @param tolerance Latency, as a multiple of the baseline, above which the limit shrinks
+     */
+    public ConcurrencyLimiter(int minLimit, int maxLimit, double tolerance) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = tolerance;
+        this.estimate = this.maxLimit;
+        this.limit = this.maxLimit;
+        this.windowLatencies = new long[Math.max(MIN_WINDOW, this.maxLimit)];
+    }
+
+    /**
+     * Admit a request if the limit allows it. An admitted request must be released exactly once.
+     * @return True if the request was admitted
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back an admitted request that was turned away before it ran, without taking its latency into account
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Release an admitted request and adjust the limit to its latency
+     * @param latencyNanos  Time from admission to completion
+     * @param dropped       True if the request timed out or was cancelled
+     */
+    public void release(long latencyNanos, boolean dropped) {
+        int active = inFlight.getAndDecrement();
+        update(latencyNanos, dropped, active);
+    }
+
+    private synchronized void update(long latencyNanos, boolean dropped, int active) {
+        windowLatencies[windowSamples++] = latencyNanos;
+        windowPeak = Math.max(windowPeak, active);
+        if (dropped) {
+            windowDropped++;
+        }
+        if (windowSamples < Math.max(MIN_WINDOW, limit)) {
+            return;
+        }
+        Arrays.sort(windowLatencies, 0, windowSamples);
+        long median = windowLatencies[windowSamples / 2];
+        boolean overloaded = windowDropped * DROPPED_SHARE >= windowSamples ||
+                (baselineNanos != Long.MAX_VALUE && median > tolerance * baselineNanos);
+        if (baselineNanos == Long.MAX_VALUE || (overloaded && limit == minLimit)) {
+            baselineNanos = median;
+        } else if (!overloaded) {
+            baselineNanos = Math.min(baselineNanos, median);
+        }
+        if (overloaded) {
+            estimate = Math.max(minLimit, estimate * DECREASE);
+        } else if (windowPeak * 2 >= limit) {
+            estimate = Math.min(maxLimit, estimate + 1);
+        }
+        limit = (int) estimate;
+        windowSamples = 0;
+        windowPeak = 0;
+        windowDropped = 0;
+    }
+
+    /**
+     * @return Current limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return Requests admitted and not yet released
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get a snapshot of the limiter state
+     * @return JSON Object with the limit, its bounds, the requests in flight and the baseline latency
+     */
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("limit", limit);
+        stats.put("minLimit", minLimit);
+        stats.put("maxLimit", maxLimit);
+        stats.put("inFlight", inFlight.get());
+        stats.put("baselineMs", baselineNanos == Long.MAX_VALUE ? 0 : baselineNanos / 1e6);
+        return stats;
+    }
+}
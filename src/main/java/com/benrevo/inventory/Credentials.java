@@ -0,0 +1,49 @@
+package com.benrevo.inventory;
+
+import java.io.IOException;
+
+/**
+ * Body of login and register requests.
+ *
+ * @author John Hurst
+ */
+public class Credentials {
+    private String username;
+    private String password;
+
+    /**
+     * Read credentials from the current object
+     * @param reader        Reader positioned on the object
+     * @return              Credentials with both fields set
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     * @throws IllegalArgumentException Throws if a field is missing
+     */
+    public static Credentials read(RequestReader reader) throws IOException {
+        Credentials credentials = new Credentials();
+        String field;
+        while ((field = reader.nextField()) != null) {
+            switch (field) {
+                case "username":
+                    credentials.username = reader.stringValue();
+                    break;
+                case "password":
+                    credentials.password = reader.stringValue();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        if (credentials.username == null || credentials.password == null) {
+            throw new IllegalArgumentException("Expected {\"username\":String, \"password\":String}");
+        }
+        return credentials;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+}
@@ -1,82 +1,609 @@
 package com.benrevo.inventory;
 
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.backoff.ExponentialRandomBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Class for ease of access ot the data layer. Provides CRUD for inventory, and Create and Read for users.
  *
+ * Connections are taken from a pool for the duration of a single call, so concurrent requests run in parallel
+ * instead of sharing one connection. The pool is configured from optional fields on the db line of the protected
+ * file: poolMin, poolMax, borrowTimeout (ms), validationQuery, validationInterval (ms) and leakTimeout (seconds).
+ * Prepared statements are cached per connection (see {@link LruStatementCache}), bounded pool-wide by
+ * statementCacheSize. Statements and result sets are always closed, which hands statements back to the cache.
+ * Inventory reads use a cursor of fetchSize rows, so large inventories can be streamed with flat memory use.
+ * Bulk writes are sent to the database in batches of batchSize rows, and unless rewriteBatches is false the driver
+ * is asked to rewrite batches into multi-row statements where it supports that. Imports use the PostgreSQL COPY
+ * protocol instead unless bulkCopy is false. A queryTimeout (seconds) cancels statements that run longer, so a stuck
+ * query cannot hold a connection indefinitely. Borrowing a connection is retried up to connectRetries times (default
+ * 2) on transient connection errors, with randomised exponential backoff starting at connectBackoffMs (default 50);
+ * statements themselves are never retried, since they may not be idempotent.
+ *
+ * Every public method is timed into {@link Metrics#DAO_CALLS}, and every statement execution into
+ * {@link Metrics#QUERIES} by the {@link QueryMetrics} interceptor, which also logs statements slower than
+ * slowQueryMs (default 500).
+ *
+ * Committed inventory changes are published to registered {@link InventoryListener}s, and inventory reads are served
+ * from an {@link InventoryCache} when one is set. Searches run against an {@link InventorySearchIndex}.
+ *
+ * Each user's row in the users table carries counters of the user's inventory: item count, total units and items at
+ * or below the low-stock threshold. Every write adjusts them in its own transaction, from the amounts it writes and the
+ * amounts the affected rows had before, and {@link #reconcileSummaries()} corrects any drift against the rows.
+ *
+ * Usernames are resolved to user ids once per call, through an in-process cache when it is enabled, and inventory
+ * statements then filter on the integer userid. The indexes those statements rely on are created by
+ * {@link #migrateSchema()}.
+ *
+ * Users can be spread over several databases, one pool each, by giving the protected file one db line per shard.
+ * Every user-scoped call runs on the shard {@link ShardRouter} picks from the username, so a user's rows never span
+ * shards and transactions stay local to one database. Calls that cover all users, such as migrations and summary
+ * reconciliation, visit every shard in turn. Users are moved after adding shards by {@link ShardRebalancer}.
+ *
+ * A db line may list read replicas under "replicas". Reads of users, inventories, summaries, versions and changes then
+ * go to a healthy replica of the user's shard (see {@link ReplicaSet}), chosen by replicaBalance ("least-loaded" or
+ * "round-robin"), while writes stay on the primary. A user's reads go to the primary for readYourWritesMs (default
+ * 2000) after each of the user's writes, so a client sees its own writes even on a lagging replica; replicas lagging
+ * more than maxReplicaLagMs (default 1000) are skipped. Replica lag is measured every replicaCheckMs (default 1000)
+ * with replicaLagQuery, by default {@link ReplicaSet#POSTGRES_LAG_QUERY} on PostgreSQL.
+ *
+ * As the {@link AuditSink} of an {@link AuditJournal}, it stores audit events in the audit_log table of each user's
+ * shard, one batch insert per shard. Rows are keyed by an id the database generates, which history is paged by, and
+ * an event already stored under its journal instance and sequence number is skipped, so replays do not duplicate it.
+ *
  * @author John Hurst
  */
-public class DataAccess {
-    private Connection conn;
+public class DataAccess implements InventoryStore, AuditSink {
+    private final DataSource[] shards;
+    private final ReplicaSet[] replicas;
+    private final ScheduledExecutorService replicaChecker;
+    private final long readYourWritesNanos;
+    private final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+    private final int fetchSize;
+    private final int batchSize;
+    private final boolean bulkCopy;
+    private final RetryTemplate connectRetry;
+    private final String amountsSql;
+    private final String itemsSql;
+    private final List<InventoryListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile InventoryCache cache;
+    private volatile InventorySearchIndex searchIndex;
+    private final Map<String, Integer> userIds = new ConcurrentHashMap<>();
+    private volatile int userIdCacheSize;
+    private volatile int lowStockThreshold = 5;
 
     /**
-     * Initiate connection to database
+     * Initiate the connection pool from the protected file
      */
     public DataAccess() {
-        setConnection();
-        activatePersistence();
+        this(loadConfigs());
     }
 
     /**
-     * Check if connection is valid
-     * @return boolean indicating valid connection
-     * @throws SQLException Throws if conn is not a SQL connection
+     * Initiate the connection pool of an unsharded database from a db configuration
+     * @param config JSON Object holding the connection string under "key" and optional pool settings
      */
-    private boolean isValid() throws SQLException {
-        return conn.isValid(10);
+    public DataAccess(JSONObject config) {
+        this(Collections.singletonList(config));
+    }
+
+    /**
+     * Initiate one connection pool per shard and per read replica. Pool settings are taken from each shard's
+     * configuration and also apply to its replicas, the other settings from the first one.
+     * @param configs JSON Objects holding the connection string under "key", optional replica connection strings under
+     *                "replicas" and optional settings, in shard order
+     */
+    public DataAccess(List<JSONObject> configs) {
+        JSONObject config = configs.get(0);
+        shards = new DataSource[configs.size()];
+        replicas = new ReplicaSet[configs.size()];
+        boolean anyReplicas = false;
+        for (int shard = 0; shard < shards.length; shard++) {
+            String name = shards.length == 1 ? "inventory" : "inventory-" + shard;
+            shards[shard] = new DataSource(poolProperties(configs.get(shard), name));
+            replicas[shard] = replicaSet(configs.get(shard), name, config);
+            anyReplicas |= replicas[shard] != null;
+        }
+        readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(config.optLong("readYourWritesMs", 2000));
+        if (anyReplicas) {
+            long checkMs = config.optLong("replicaCheckMs", 1000);
+            replicaChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replica-check");
+                t.setDaemon(true);
+                return t;
+            });
+            replicaChecker.scheduleWithFixedDelay(this::checkReplicas, checkMs, checkMs, TimeUnit.MILLISECONDS);
+        } else {
+            replicaChecker = null;
+        }
+        fetchSize = config.optInt("fetchSize", 500);
+        batchSize = config.optInt("batchSize", 100);
+        bulkCopy = config.optBoolean("bulkCopy", true);
+        connectRetry = connectRetry(config.optInt("connectRetries", 2), config.optLong("connectBackoffMs", 50));
+        StringBuilder in = new StringBuilder("?");
+        for (int i = 1; i < batchSize; i++) {
+            in.append(", ?");
+        }
+        amountsSql = "SELECT id, amount FROM inventory WHERE userid = ? AND id IN (" + in + ")";
+        itemsSql = "SELECT id, productname, amount, version FROM inventory WHERE userid = ? AND id IN (" + in + ")";
     }
 
     /**
-     * Set the database connection to a predefined connection string
+     * Read the db configuration of every shard, falling back to an empty one so that the failure surfaces on first use
+     * @return JSON Objects holding the db configuration of each shard
      */
-    private void setConnection() {
+    private static List<JSONObject> loadConfigs() {
         try {
-            String connString = KeyAccess.dbConnectionString();
-            conn = DriverManager.getConnection(connString);
-        } catch (SQLException | IOException e) {
+            return KeyAccess.dbConfigs();
+        } catch (IOException e) {
             e.printStackTrace();
+            return Collections.singletonList(new JSONObject());
+        }
+    }
+
+    /**
+     * Build the read replicas of a shard
+     * @param config    JSON Object of the shard, listing replica connection strings under "replicas"
+     * @param name      Name of the shard's pool, from which the replica pools are named
+     * @param settings  JSON Object holding the replica settings
+     * @return          Replicas of the shard, or null if it has none
+     */
+    private static ReplicaSet replicaSet(JSONObject config, String name, JSONObject settings) {
+        JSONArray urls = config.optJSONArray("replicas");
+        if (urls == null || urls.length() == 0) {
+            return null;
+        }
+        DataSource[] dataSources = new DataSource[urls.length()];
+        for (int i = 0; i < dataSources.length; i++) {
+            JSONObject replicaConfig = new JSONObject(config, JSONObject.getNames(config))
+                    .put("key", urls.getString(i));
+            dataSources[i] = new DataSource(poolProperties(replicaConfig, name + "-replica-" + i));
+        }
+        String defaultLagQuery = urls.getString(0).startsWith("jdbc:postgresql:") ?
+                ReplicaSet.POSTGRES_LAG_QUERY : null;
+        return new ReplicaSet(dataSources, !"round-robin".equals(settings.optString("replicaBalance")),
+                settings.optLong("maxReplicaLagMs", 1000), settings.optString("replicaLagQuery", defaultLagQuery));
+    }
+
+    /**
+     * Build the pool settings
+     * @param config JSON Object holding the connection string and optional pool settings
+     * @param name   Name of the pool
+     * @return       Pool properties
+     */
+    private static PoolProperties poolProperties(JSONObject config, String name) {
+        int poolMin = config.optInt("poolMin", 2);
+        int poolMax = config.optInt("poolMax", 20);
+        int leakTimeout = config.optInt("leakTimeout", 60);
+
+        PoolProperties p = new PoolProperties();
+        p.setName(name);
+        p.setUrl(config.optString("key", null));
+        p.setInitialSize(poolMin);
+        p.setMinIdle(poolMin);
+        p.setMaxIdle(poolMax);
+        p.setMaxActive(poolMax);
+        p.setMaxWait(config.optInt("borrowTimeout", 5000));
+        p.setFairQueue(true);
+
+        // Validation on borrow, at most once per validationInterval for a given connection
+        p.setTestOnBorrow(true);
+        p.setTestWhileIdle(true);
+        p.setValidationQuery(config.optString("validationQuery", "SELECT 1"));
+        p.setValidationQueryTimeout(5);
+        p.setValidationInterval(config.optLong("validationInterval", 3000));
+        p.setTimeBetweenEvictionRunsMillis(5000);
+
+        // Leak detection: warn on connections held longer than leakTimeout, reclaim them at twice that
+        p.setLogAbandoned(true);
+        p.setSuspectTimeout(leakTimeout);
+        p.setRemoveAbandoned(true);
+        p.setRemoveAbandonedTimeout(leakTimeout * 2);
+
+        p.setDefaultAutoCommit(true);
+        if (config.optBoolean("rewriteBatches", true)) {
+            p.setConnectionProperties(batchRewriteProperty(p.getUrl()));
         }
+        String interceptors = "ConnectionState;ResetAbandonedTimer;" + LruStatementCache.class.getName() +
+                "(prepared=true,callable=false,max=" + config.optInt("statementCacheSize", 200) + ");" +
+                QueryMetrics.class.getName() + "(slowQueryMs=" + config.optInt("slowQueryMs", 500) + ")";
+        int queryTimeout = config.optInt("queryTimeout", 0);
+        if (queryTimeout > 0) {
+            interceptors += ";QueryTimeoutInterceptor(queryTimeout=" + queryTimeout + ")";
+        }
+        p.setJdbcInterceptors(interceptors);
+        return p;
+    }
+
+    /**
+     * Get the driver property that lets the driver collapse batched statements into multi-row statements
+     * @param url   Connection string
+     * @return      Connection property for the driver, or null if the driver has none
+     */
+    private static String batchRewriteProperty(String url) {
+        if (url == null) {
+            return null;
+        } else if (url.startsWith("jdbc:postgresql:")) {
+            return "reWriteBatchedInserts=true";
+        } else if (url.startsWith("jdbc:mysql:")) {
+            return "rewriteBatchedStatements=true";
+        }
+        return null;
     }
 
     /**
-     * Start a connection checker
+     * Build the retry of connection borrowing: only transient connection errors are retried, so an exhausted pool
+     * fails at once instead of adding load
+     * @param retries   Number of retries after the first attempt
+     * @param backoffMs Initial backoff in milliseconds, doubled with random jitter on every retry
+     * @return          Retry template
      */
-    private void activatePersistence() {
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
+    private static RetryTemplate connectRetry(int retries, long backoffMs) {
+        RetryTemplate template = new RetryTemplate();
+        template.setRetryPolicy(new SimpleRetryPolicy(retries + 1) {
             @Override
-            public void run() {
+            public boolean canRetry(RetryContext context) {
+                Throwable last = context.getLastThrowable();
+                return (last == null || DatabaseFailures.isTransientConnectionError(last)) && super.canRetry(context);
+            }
+        });
+        ExponentialRandomBackOffPolicy backOff = new ExponentialRandomBackOffPolicy();
+        backOff.setInitialInterval(Math.max(1, backoffMs));
+        backOff.setMultiplier(2);
+        backOff.setMaxInterval(Math.max(1, backoffMs) * 10);
+        template.setBackOffPolicy(backOff);
+        return template;
+    }
+
+    /**
+     * Borrow a connection from the pool of a shard, retrying transient connection errors. Callers must close it to
+     * hand it back.
+     * @param shard         Index of the shard
+     * @return              Pooled connection
+     * @throws SQLException Throws if no connection could be obtained within the borrow timeout and retries
+     */
+    Connection getConnection(int shard) throws SQLException {
+        DataSource dataSource = shards[shard];
+        return connectRetry.execute(context -> dataSource.getConnection());
+    }
+
+    /**
+     * Borrow a connection from the pool of the shard holding a user
+     * @param username      User whose data the connection is used for
+     * @return              Pooled connection
+     * @throws SQLException Throws if no connection could be obtained within the borrow timeout and retries
+     */
+    private Connection getConnection(String username) throws SQLException {
+        return getConnection(shardOf(username));
+    }
+
+    /**
+     * Borrow a connection for reading a user's data: from a healthy replica of the user's shard, unless the user wrote
+     * within the read-your-writes window, and from the primary otherwise
+     * @param username      User whose data the connection is used for
+     * @return              Pooled connection
+     * @throws SQLException Throws if no connection could be obtained within the borrow timeout and retries
+     */
+    private Connection getReadConnection(String username) throws SQLException {
+        int shard = shardOf(username);
+        ReplicaSet replicaSet = replicas[shard];
+        if (replicaSet == null) {
+            return getConnection(shard);
+        }
+        if (wroteRecently(username)) {
+            Metrics.READS.increment("read-your-writes");
+            return getConnection(shard);
+        }
+        Connection conn = replicaSet.getConnection();
+        if (conn != null) {
+            Metrics.READS.increment("replica");
+            return conn;
+        }
+        Metrics.READS.increment("fallback");
+        return getConnection(shard);
+    }
+
+    /**
+     * @param username  Username
+     * @return          True if the user's reads may be served by a replica
+     */
+    private boolean readsFromReplica(String username) {
+        return replicas[shardOf(username)] != null && !wroteRecently(username);
+    }
+
+    /**
+     * Start the read-your-writes window of a user, after a write has committed or failed
+     * @param username User who wrote
+     */
+    private void wrote(String username) {
+        if (replicaChecker != null) {
+            recentWrites.put(username, System.nanoTime() + readYourWritesNanos);
+        }
+    }
+
+    /**
+     * @param username  Username
+     * @return          True if the user's read-your-writes window is open
+     */
+    private boolean wroteRecently(String username) {
+        Long until = recentWrites.get(username);
+        if (until == null) {
+            return false;
+        }
+        if (until - System.nanoTime() > 0) {
+            return true;
+        }
+        recentWrites.remove(username, until);
+        return false;
+    }
+
+    /**
+     * Measure replica lag and drop closed read-your-writes windows, from the scheduler, which must not be killed by
+     * an exception
+     */
+    private void checkReplicas() {
+        for (ReplicaSet replicaSet : replicas) {
+            if (replicaSet != null) {
                 try {
-                    if (!isValid()) {
-                        setConnection();
-                    }
-                } catch (Exception e) {
+                    replicaSet.check();
+                } catch (RuntimeException e) {
                     e.printStackTrace();
-                    setConnection();
                 }
             }
-        }, 5000, 5000);
+        }
+        long now = System.nanoTime();
+        recentWrites.values().removeIf(until -> until - now <= 0);
+    }
+
+    /**
+     * Find the shard holding a user, see {@link ShardRouter}
+     * @param username  Username
+     * @return          Index of the shard
+     */
+    public int shardOf(String username) {
+        return shards.length == 1 ? 0 : ShardRouter.shardOf(username, shards.length);
+    }
+
+    /**
+     * @return Number of database shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Register a listener for committed inventory changes
+     * @param listener Listener to notify
+     */
+    @Override
+    public void addListener(InventoryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Serve inventory reads from a cache, which is also registered as a listener so that changes invalidate it
+     * @param cache Cache to use
+     */
+    @Override
+    public void setInventoryCache(InventoryCache cache) {
+        addListener(cache);
+        this.cache = cache;
+    }
+
+    /**
+     * Keep search indexes of inventories, which is also registered as a listener so that changes update it. Without
+     * one every search reads and indexes the whole inventory.
+     * @param searchIndex Index to use
+     */
+    @Override
+    public void setSearchIndex(InventorySearchIndex searchIndex) {
+        addListener(searchIndex);
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Cache username to id resolutions. Ids never change once a user exists, and users are only removed by
+     * {@link #cleanUsers()}, which clears the cache; a cache shared with another writer of the users table must stay
+     * disabled.
+     * @param maxSize Maximum number of cached usernames, the cache is emptied when it is full; 0 disables it
+     */
+    @Override
+    public void setUserIdCacheSize(int maxSize) {
+        userIdCacheSize = maxSize;
+        userIds.clear();
+    }
+
+    /**
+     * Set the amount at or below which an item counts as low on stock in inventory summaries. Counters kept under
+     * another threshold are only corrected by {@link #reconcileSummaries()}.
+     * @param threshold Low-stock threshold
+     */
+    @Override
+    public void setLowStockThreshold(int threshold) {
+        lowStockThreshold = threshold;
+    }
+
+    /**
+     * Apply pending schema migrations to every shard, see {@link SchemaMigrator}
+     * @return              Number of migrations applied, summed over the shards
+     * @throws SQLException Throws if a migration fails or if connection is invalid
+     * @throws IOException  Throws if a migration script cannot be read
+     */
+    @Override
+    public int migrateSchema() throws SQLException, IOException {
+        int applied = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            try (Connection conn = getConnection(shard)) {
+                applied += SchemaMigrator.migrate(conn);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Deliver an event to all listeners, isolating them from each other's failures
+     * @param event Event to deliver
+     */
+    private void publish(Consumer<InventoryListener> event) {
+        for (InventoryListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Get the maximum number of connections the pools hand out at once
+     * @return Maximum number of active connections, summed over the shards and their replicas
+     */
+    @Override
+    public int getMaxConnections() {
+        int max = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            max += shards[shard].getMaxActive();
+            if (replicas[shard] != null) {
+                max += replicas[shard].getMaxActive();
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Get a snapshot of the connection pool statistics. With several shards the counters are summed over the shards
+     * and "shards" lists the statistics of each. The statistics of a shard with read replicas list them under
+     * "replicas"; their counters are not included in the shard's.
+     * @return JSON Object with pool sizes and lifetime counters
+     */
+    @Override
+    public JSONObject getPoolStats() {
+        if (shards.length == 1) {
+            return shardStats(0);
+        }
+        JSONObject stats = new JSONObject();
+        JSONArray perShard = new JSONArray();
+        for (int shard = 0; shard < shards.length; shard++) {
+            JSONObject shardStats = shardStats(shard);
+            for (String key : JSONObject.getNames(shardStats)) {
+                if (shardStats.get(key) instanceof Number) {
+                    stats.put(key, stats.optLong(key) + shardStats.getLong(key));
+                }
+            }
+            perShard.put(shardStats);
+        }
+        stats.put("shards", perShard);
+        return stats;
+    }
+
+    /**
+     * Get a snapshot of the statistics of a shard's primary pool and its replicas
+     * @param shard Index of the shard
+     * @return      JSON Object with pool sizes and lifetime counters
+     */
+    private JSONObject shardStats(int shard) {
+        JSONObject stats = poolStats(shards[shard]);
+        if (replicas[shard] != null) {
+            stats.put("replicas", replicas[shard].getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Get a snapshot of the statistics of one pool
+     * @param dataSource    Pool to report
+     * @return              JSON Object with pool sizes and lifetime counters
+     */
+    static JSONObject poolStats(DataSource dataSource) {
+        JSONObject stats = new JSONObject();
+        stats.put("size", dataSource.getSize());
+        stats.put("active", dataSource.getActive());
+        stats.put("idle", dataSource.getIdle());
+        stats.put("waiting", dataSource.getWaitCount());
+        stats.put("maxActive", dataSource.getMaxActive());
+        stats.put("borrowed", dataSource.getBorrowedCount());
+        stats.put("returned", dataSource.getReturnedCount());
+        stats.put("created", dataSource.getCreatedCount());
+        stats.put("released", dataSource.getReleasedCount());
+        stats.put("reconnected", dataSource.getReconnectedCount());
+        stats.put("abandoned", dataSource.getRemoveAbandonedCount());
+        stats.put("statements", LruStatementCache.getStats(dataSource.getPoolProperties().getName()));
+        return stats;
+    }
+
+    /**
+     * Close the connection pools
+     */
+    @Override
+    public void close() {
+        if (replicaChecker != null) {
+            replicaChecker.shutdownNow();
+        }
+        for (DataSource dataSource : shards) {
+            dataSource.close();
+        }
+        for (ReplicaSet replicaSet : replicas) {
+            if (replicaSet != null) {
+                replicaSet.close();
+            }
+        }
     }
 
     /**
      * Register user with Postgres instance
      * @param username Requested username
      * @param password Requested password
+     * @return Id of the new user
      * @throws SQLException Throws if username already exists, SQL is malformed, or the connection is invalid
      */
-    public void addUser(String username, String password) throws SQLException {
-        String sql = "INSERT INTO users VALUES (?, ?)";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setString(1, username);
-        ps.setString(2, password);
-        ps.executeUpdate();
+    @Override
+    public int addUser(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            String sql = "INSERT INTO users (username, password) VALUES (?, ?)";
+            try (Connection conn = getConnection(username);
+                 PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                ps.setString(1, username);
+                ps.setString(2, password);
+                ps.executeUpdate();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    if (rs.next()) {
+                        int id = rs.getInt("id");
+                        cacheUserId(username, id);
+                        return id;
+                    }
+                    return 0;
+                }
+            }
+        } finally {
+            wrote(username);
+            Metrics.DAO_CALLS.recordSince("addUser", start);
+        }
     }
 
     /**
@@ -85,91 +612,748 @@ public class DataAccess {
      * @return              JSON Object representing the requested user
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
+    @Override
     public JSONObject getUser(String username) throws SQLException {
-        String sql = "SELECT username, password FROM users WHERE username = ?";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setString(1, username);
-        ResultSet rs = ps.executeQuery();
-        JSONObject user = new JSONObject();
-        if (rs.next()) {
-            user.put("username", rs.getString("username"));
-            user.put("password", rs.getString("password"));
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT username, password FROM users WHERE username = ?";
+            try (Connection conn = getReadConnection(username);
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, username);
+                try (ResultSet rs = ps.executeQuery()) {
+                    JSONObject user = new JSONObject();
+                    if (rs.next()) {
+                        user.put("username", rs.getString("username"));
+                        user.put("password", rs.getString("password"));
+                    }
+                    return user;
+                }
+            }
+        } finally {
+            Metrics.DAO_CALLS.recordSince("getUser", start);
         }
-        return user;
     }
 
     /**
-     * Retrieve login info for user
+     * Check login info for user. A check that fails on a replica is repeated on the primary, so that a user who has
+     * just registered through another instance can log in before the replica has caught up.
      * @param username Username of requester
      * @param password Password of requester
-     * @return True if username matches with password
+     * @return Id of the user if username matches with password, 0 otherwise
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
-    public boolean login(String username, String password) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM users WHERE username = ? AND password = ?";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setString(1, username);
-        ps.setString(2, password);
-        ResultSet rs = ps.executeQuery();
-        return rs.next() && rs.getInt(1) == 1;
+    @Override
+    public int authenticate(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            boolean replica = readsFromReplica(username);
+            int id;
+            try (Connection conn = getReadConnection(username)) {
+                id = authenticate(conn, username, password);
+            }
+            if (id == 0 && replica) {
+                try (Connection conn = getConnection(username)) {
+                    id = authenticate(conn, username, password);
+                }
+            }
+            return id;
+        } finally {
+            Metrics.DAO_CALLS.recordSince("authenticate", start);
+        }
     }
 
     /**
-     * Retrieve inventory for user
-     * @param username Username of requester
-     * @return JSONArray representing inventory
+     * Check login info for user on one connection
+     * @param conn          Connection to use
+     * @param username      Username of requester
+     * @param password      Password of requester
+     * @return              Id of the user if username matches with password, 0 otherwise
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private int authenticate(Connection conn, String username, String password) throws SQLException {
+        String sql = "SELECT id FROM users WHERE username = ? AND password = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, username);
+            ps.setString(2, password);
+            try (ResultSet rs = ps.executeQuery()) {
+                int id = rs.next() ? rs.getInt(1) : 0;
+                cacheUserId(username, id);
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Read inventory for user through a cursor, handing each row to the handler as it arrives. A cached inventory is
+     * served from memory; otherwise the rows read are cached once the whole inventory has been handled.
+     * @param username      Username of requester
+     * @param handler       Handler receiving the rows
+     * @param <E>           Exception thrown by the handler
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     * @throws E            Throws if the handler fails
+     */
+    @Override
+    public <E extends Exception> void streamInventory(String username, ItemHandler<E> handler)
+            throws SQLException, E {
+        long start = System.nanoTime();
+        int rows = 0;
+        try {
+            InventoryCache cache = this.cache;
+            if (cache != null) {
+                List<InventoryItem> cached = cache.get(username);
+                if (cached != null) {
+                    for (InventoryItem item : cached) {
+                        handler.item(item.getId(), item.getName(), item.getAmount(), item.getVersion());
+                        rows++;
+                    }
+                    return;
+                }
+            }
+            Object load = cache == null ? null : cache.startLoad(username);
+            List<InventoryItem> loaded = cache == null ? null : new ArrayList<>();
+            boolean complete = false;
+            String sql = "SELECT id, productname, amount, version FROM inventory WHERE userid = ?";
+            try (Connection conn = getReadConnection(username)) {
+                int userId = getUserId(conn, username);
+                // Drivers such as Postgres only honour the fetch size inside a transaction
+                conn.setAutoCommit(false);
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    ps.setFetchSize(fetchSize);
+                    ps.setInt(1, userId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            int id = rs.getInt(1);
+                            String name = rs.getString(2);
+                            int amount = rs.getInt(3);
+                            long version = rs.getLong(4);
+                            handler.item(id, name, amount, version);
+                            rows++;
+                            if (loaded != null && loaded.size() == cache.getMaxItems()) {
+                                loaded = null;
+                            } else if (loaded != null) {
+                                loaded.add(new InventoryItem(id, name, amount, version));
+                            }
+                        }
+                    }
+                    complete = true;
+                } finally {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            } finally {
+                if (cache != null) {
+                    cache.finishLoad(username, load, complete ? loaded : null);
+                }
+            }
+        } finally {
+            Metrics.ROWS.add("streamInventory", rows);
+            Metrics.DAO_CALLS.recordSince("streamInventory", start);
+        }
+    }
+
+    /**
+     * Read one page of inventory for user, ordered by id. Uses keyset pagination, so the cost of a page does not
+     * depend on how far into the inventory it starts. Pages of a cached inventory are served from memory.
+     * @param username      Username of requester
+     * @param afterId       Only items with a larger id are returned, 0 for the first page
+     * @param limit         Maximum number of items to return
+     * @param handler       Handler receiving the rows
+     * @param <E>           Exception thrown by the handler
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     * @throws E            Throws if the handler fails
+     */
+    @Override
+    public <E extends Exception> void streamInventoryPage(String username, int afterId, int limit,
+                                                          ItemHandler<E> handler) throws SQLException, E {
+        long start = System.nanoTime();
+        int rows = 0;
+        try {
+            InventoryCache cache = this.cache;
+            List<InventoryItem> cached = cache == null ? null : cache.getPage(username, afterId, limit);
+            if (cached != null) {
+                for (InventoryItem item : cached) {
+                    handler.item(item.getId(), item.getName(), item.getAmount(), item.getVersion());
+                    rows++;
+                }
+                return;
+            }
+            String sql = "SELECT id, productname, amount, version FROM inventory WHERE userid = ? AND id > ? " +
+                    "ORDER BY id LIMIT ?";
+            try (Connection conn = getReadConnection(username);
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, getUserId(conn, username));
+                ps.setInt(2, afterId);
+                ps.setInt(3, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        handler.item(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getLong(4));
+                        rows++;
+                    }
+                }
+            }
+        } finally {
+            Metrics.ROWS.add("streamInventoryPage", rows);
+            Metrics.DAO_CALLS.recordSince("streamInventoryPage", start);
+        }
+    }
+
+    /**
+     * Search a user's inventory by name and amount. The search runs in memory against the user's search index, which
+     * is built from the inventory on first use.
+     * @param username      Owner of the inventory
+     * @param query         Search criteria
+     * @return              Matching items, see {@link InventorySearchIndex.UserIndex#search}
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Override
+    public List<InventoryItem> searchInventory(String username, InventorySearchIndex.Query query)
+            throws SQLException {
+        long start = System.nanoTime();
+        List<InventoryItem> found = Collections.emptyList();
+        try {
+            InventorySearchIndex searchIndex = this.searchIndex;
+            InventorySearchIndex.UserIndex index = searchIndex == null ? null : searchIndex.get(username);
+            if (index == null) {
+                Object load = searchIndex == null ? null : searchIndex.startLoad(username);
+                List<InventoryItem> items = new ArrayList<>();
+                streamInventory(username, (id, name, amount, version) ->
+                        items.add(new InventoryItem(id, name, amount, version)));
+                index = searchIndex == null ? new InventorySearchIndex.UserIndex(items) :
+                        searchIndex.finishLoad(username, load, items);
+            }
+            found = index.search(query);
+            return found;
+        } finally {
+            Metrics.ROWS.add("searchInventory", found.size());
+            Metrics.DAO_CALLS.recordSince("searchInventory", start);
+        }
+    }
+
+    /**
+     * Get the summary of a user's inventory from its counters, without reading the inventory
+     * @param username      Owner of the inventory
+     * @return              JSON Object {"items":Long, "units":Long, "lowStock":Long, "lowStockThreshold":Int}, all
+     *                      counters 0 if the user does not exist
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
-    public JSONArray getInventory(String username) throws SQLException {
-        String sql = "SELECT id, productname, amount FROM inventory WHERE userid IN " +
-                "(SELECT id FROM users WHERE username = ?)";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setString(1, username);
-        ResultSet rs = ps.executeQuery();
-        JSONArray array = new JSONArray();
-        while (rs.next()) {
-            JSONObject tempObj = new JSONObject();
-            tempObj.put("id", rs.getInt("id"));
-            tempObj.put("name", rs.getString("productname"));
-            tempObj.put("amount", rs.getInt("amount"));
-            array.put(tempObj);
+    @Override
+    public JSONObject getInventorySummary(String username) throws SQLException {
+        long start = System.nanoTime();
+        String sql = "SELECT item_count, total_units, low_stock FROM users WHERE id = ?";
+        try (Connection conn = getReadConnection(username);
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, getUserId(conn, username));
+            JSONObject summary = new JSONObject();
+            try (ResultSet rs = ps.executeQuery()) {
+                boolean found = rs.next();
+                summary.put("items", found ? rs.getLong(1) : 0);
+                summary.put("units", found ? rs.getLong(2) : 0);
+                summary.put("lowStock", found ? rs.getLong(3) : 0);
+            }
+            summary.put("lowStockThreshold", lowStockThreshold);
+            return summary;
+        } finally {
+            Metrics.DAO_CALLS.recordSince("getInventorySummary", start);
         }
-        return array;
     }
 
     /**
-     * Update inventory items
-     * @param items JSON Array containing items to update
+     * Compare every user's summary counters with a GROUP BY over the inventory and correct those that drifted, for
+     * instance after the low-stock threshold changed. A user is corrected under the lock of its users row, which
+     * writes to the inventory also take, so a write committing meanwhile is not overwritten.
+     * @return              Number of users whose counters were corrected
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
-    public void updateItem(JSONArray items) throws SQLException {
-        String sql = "UPDATE inventory SET productname = ?, amount = ? WHERE id = ?";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        int count = 1;
-        for (int i = 0; i < items.length(); i++) {
-            JSONObject item = items.getJSONObject(i);
-            ps.setString(1, item.getString("name"));
-            ps.setInt(2, item.getInt("amount"));
-            ps.setInt(3, item.getInt("id"));
-            ps.addBatch();
-            count++;
-            if (count % 10 == 0) {
-                ps.executeBatch();
+    @Override
+    public int reconcileSummaries() throws SQLException {
+        long start = System.nanoTime();
+        int threshold = lowStockThreshold;
+        String compare = "SELECT u.id, u.item_count, u.total_units, u.low_stock, COUNT(i.id), " +
+                "COALESCE(SUM(i.amount), 0), COALESCE(SUM(CASE WHEN i.amount <= ? THEN 1 ELSE 0 END), 0) " +
+                "FROM users u LEFT JOIN inventory i ON i.userid = u.id " +
+                "GROUP BY u.id, u.item_count, u.total_units, u.low_stock";
+        int corrected = 0;
+        try {
+            for (int shard = 0; shard < shards.length; shard++) {
+                corrected += reconcileSummaries(shard, compare, threshold);
             }
+            return corrected;
+        } finally {
+            Metrics.DAO_CALLS.recordSince("reconcileSummaries", start);
         }
-        ps.executeBatch();
     }
 
     /**
-     * Delete inventory items
-     * @param id id of item to delete
+     * Compare and correct the summary counters of the users of one shard
+     * @param shard         Index of the shard
+     * @param compare       Query comparing the counters with the inventory
+     * @param threshold     Low-stock threshold
+     * @return              Number of users whose counters were corrected
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
-    public void deleteItem(int id) throws SQLException {
-        String sql = "DELETE FROM inventory WHERE id = ?";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setInt(1, id);
-        ps.executeUpdate();
+    private int reconcileSummaries(int shard, String compare, int threshold) throws SQLException {
+        try (Connection conn = getConnection(shard)) {
+            List<Integer> drifted = new ArrayList<>();
+            try (PreparedStatement ps = conn.prepareStatement(compare)) {
+                ps.setInt(1, threshold);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (rs.getLong(2) != rs.getLong(5) || rs.getLong(3) != rs.getLong(6)
+                                || rs.getLong(4) != rs.getLong(7)) {
+                            drifted.add(rs.getInt(1));
+                        }
+                    }
+                }
+            }
+            for (int userId : drifted) {
+                reconcileSummary(conn, userId, threshold);
+            }
+            return drifted.size();
+        }
+    }
+
+    /**
+     * Recompute one user's summary counters from the inventory in a transaction holding the user's row lock
+     * @param conn          Connection to use
+     * @param userId        Id of the user
+     * @param threshold     Low-stock threshold
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private void reconcileSummary(Connection conn, int userId, int threshold) throws SQLException {
+        String lock = "SELECT id FROM users WHERE id = ? FOR UPDATE";
+        String count = "SELECT COUNT(*), COALESCE(SUM(amount), 0), " +
+                "COALESCE(SUM(CASE WHEN amount <= ? THEN 1 ELSE 0 END), 0) FROM inventory WHERE userid = ?";
+        String update = "UPDATE users SET item_count = ?, total_units = ?, low_stock = ? WHERE id = ?";
+        conn.setAutoCommit(false);
+        try (PreparedStatement lk = conn.prepareStatement(lock);
+             PreparedStatement ct = conn.prepareStatement(count);
+             PreparedStatement up = conn.prepareStatement(update)) {
+            lk.setInt(1, userId);
+            try (ResultSet rs = lk.executeQuery()) {
+                if (!rs.next()) {
+                    conn.rollback();
+                    return;
+                }
+            }
+            ct.setInt(1, threshold);
+            ct.setInt(2, userId);
+            try (ResultSet rs = ct.executeQuery()) {
+                rs.next();
+                up.setLong(1, rs.getLong(1));
+                up.setLong(2, rs.getLong(2));
+                up.setLong(3, rs.getLong(3));
+            }
+            up.setInt(4, userId);
+            up.executeUpdate();
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Get the change version of a user's inventory. Every write to the inventory increases it, so it serves as an
+     * ETag of the inventory and as the "since" version of {@link #streamChanges}.
+     * @param username      Owner of the inventory
+     * @return              Current version, 0 if the user does not exist or never changed the inventory
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Override
+    public long getInventoryVersion(String username) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = getReadConnection(username)) {
+            return readVersion(conn, getUserId(conn, username));
+        } finally {
+            Metrics.DAO_CALLS.recordSince("getInventoryVersion", start);
+        }
+    }
+
+    /**
+     * Read the changes to a user's inventory after a version: items added or changed since, then tombstones of items
+     * deleted since. The current version is read first and bounds both queries, so a write committing meanwhile is
+     * left for the next sync instead of being half reported. Changes from before the user's resync version, such as a
+     * move to another shard, cannot be read; a sync from there gets every item and is flagged as a reset.
+     * @param username      Owner of the inventory
+     * @param since         Version the client has already seen, or a negative number for every item and no
+     *                      tombstones
+     * @param handler       Handler receiving the version and the changes
+     * @param <E>           Exception thrown by the handler
+     * @return              Version the changes lead up to
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     * @throws E            Throws if the handler fails
+     */
+    @Override
+    public <E extends Exception> long streamChanges(String username, long since, ChangeHandler<E> handler)
+            throws SQLException, E {
+        long start = System.nanoTime();
+        int rows = 0;
+        String changed = "SELECT id, productname, amount, version FROM inventory " +
+                "WHERE userid = ? AND version > ? AND version <= ? ORDER BY version";
+        String deleted = "SELECT id, version FROM inventory_tombstones " +
+                "WHERE userid = ? AND version > ? AND version <= ? ORDER BY version";
+        try (Connection conn = getReadConnection(username)) {
+            int userId = getUserId(conn, username);
+            long version = 0;
+            long resyncVersion = 0;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT version, resync_version FROM users WHERE id = ?")) {
+                ps.setInt(1, userId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        version = rs.getLong(1);
+                        resyncVersion = rs.getLong(2);
+                    }
+                }
+            }
+            boolean reset = since >= 0 && since < resyncVersion;
+            if (reset) {
+                since = -1;
+            }
+            handler.start(version, reset);
+            // Drivers such as Postgres only honour the fetch size inside a transaction
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = conn.prepareStatement(changed)) {
+                    ps.setFetchSize(fetchSize);
+                    ps.setInt(1, userId);
+                    ps.setLong(2, since);
+                    ps.setLong(3, version);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            handler.changed(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getLong(4));
+                            rows++;
+                        }
+                    }
+                }
+                if (since >= 0) {
+                    try (PreparedStatement ps = conn.prepareStatement(deleted)) {
+                        ps.setFetchSize(fetchSize);
+                        ps.setInt(1, userId);
+                        ps.setLong(2, since);
+                        ps.setLong(3, version);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                handler.deleted(rs.getInt(1), rs.getLong(2));
+                                rows++;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            return version;
+        } finally {
+            Metrics.ROWS.add("streamChanges", rows);
+            Metrics.DAO_CALLS.recordSince("streamChanges", start);
+        }
+    }
+
+    /**
+     * Update inventory items of a user in one transaction. Rows are sent in batches of batchSize as they are read from
+     * the iterator, and an item is only updated if it belongs to the user. If any batch fails, or the iterator
+     * throws, no item is updated.
+     *
+     * An item that carries a version is only updated if it still has that version, i.e. nobody changed it since the
+     * client read it; otherwise it is left alone and listed as a conflict with its current values, so the client can
+     * merge and retry just those items. The check is part of the UPDATE statement, so no lock is held between the
+     * client's read and its update. Items without a version are overwritten as before.
+     * @param items         Items to update, read one at a time
+     * @param username      User that the inventory items must belong to
+     * @return              JSON Object {"counts":[Int], "version":Long, "conflicts":[{"id":Int, "name":String,
+     *                      "amount":Int, "version":Long}]}: the update count of each item in order, 1 if updated, 0
+     *                      if it does not exist, belongs to another user or conflicts, or Statement.SUCCESS_NO_INFO if
+     *                      the driver does not report counts; the version of the updated items; and the current
+     *                      values of the conflicting items
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     * @throws IllegalArgumentException Throws if an item lacks its id, name or amount
+     */
+    @Override
+    public JSONObject updateItem(Iterator<ItemRequest> items, String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            String sql = "UPDATE inventory SET productname = ?, amount = ?, version = ? " +
+                    "WHERE id = ? AND userid = ? AND version = COALESCE(?, version)";
+            int[] counts = new int[batchSize];
+            int total = 0;
+            long version;
+            List<InventoryItem> updated = new ArrayList<>();
+            List<Long> expected = new ArrayList<>();
+            JSONArray conflicts = new JSONArray();
+            try (Connection conn = getConnection(username)) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    int userId = getUserId(conn, username);
+                    version = nextVersion(conn, userId);
+                    SummaryDelta summary = new SummaryDelta(lowStockThreshold);
+                    int batched = 0;
+                    while (items.hasNext()) {
+                        ItemRequest item = items.next();
+                        if (!item.isValidUpdate()) {
+                            throw new IllegalArgumentException(
+                                    "Expected {\"id\":Int, \"name\":String, \"amount\":Int}");
+                        }
+                        ps.setString(1, item.getName());
+                        ps.setInt(2, item.getAmount());
+                        ps.setLong(3, version);
+                        ps.setInt(4, item.getId());
+                        ps.setInt(5, userId);
+                        if (item.getVersion() != null) {
+                            ps.setLong(6, item.getVersion());
+                        } else {
+                            ps.setNull(6, Types.BIGINT);
+                        }
+                        ps.addBatch();
+                        updated.add(new InventoryItem(item.getId(), item.getName(), item.getAmount(), version));
+                        expected.add(item.getVersion());
+                        if (++batched == batchSize) {
+                            Metrics.BATCH_SIZES.record("updateItem", batched);
+                            counts = append(counts, total, executeUpdateBatch(conn, ps, userId,
+                                    updated.subList(total, total + batched), expected.subList(total, total + batched),
+                                    summary, conflicts));
+                            total += batched;
+                            batched = 0;
+                        }
+                    }
+                    if (batched > 0) {
+                        Metrics.BATCH_SIZES.record("updateItem", batched);
+                        counts = append(counts, total, executeUpdateBatch(conn, ps, userId,
+                                updated.subList(total, total + batched), expected.subList(total, total + batched),
+                                summary, conflicts));
+                        total += batched;
+                    }
+                    applySummary(conn, userId, summary);
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            counts = Arrays.copyOf(counts, total);
+            for (int i = total - 1; i >= 0; i--) {
+                if (counts[i] == 0) {
+                    updated.remove(i);
+                }
+            }
+            if (!updated.isEmpty()) {
+                publish(listener -> listener.itemsUpdated(username, updated));
+            }
+            return new JSONObject().put("counts", counts).put("version", version).put("conflicts", conflicts);
+        } finally {
+            wrote(username);
+            Metrics.DAO_CALLS.recordSince("updateItem", start);
+        }
+    }
+
+    /**
+     * Execute a batch of item updates, collecting their effect on the user's summary and the items whose version
+     * did not match
+     * @param conn          Connection with an open transaction
+     * @param ps            Update statement holding the batch
+     * @param userId        Id of the owning user
+     * @param batch         New state of the batched items, in order
+     * @param expected      Version each batched item must have, or null, in order
+     * @param summary       Receives the changes to the summary
+     * @param conflicts     Receives the current values of items that exist but had another version
+     * @return              Update counts of the batch
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private int[] executeUpdateBatch(Connection conn, PreparedStatement ps, int userId, List<InventoryItem> batch,
+                                     List<Long> expected, SummaryDelta summary, JSONArray conflicts)
+            throws SQLException {
+        List<Integer> ids = new ArrayList<>(batch.size());
+        for (InventoryItem item : batch) {
+            ids.add(item.getId());
+        }
+        Map<Integer, Integer> amounts = readAmounts(conn, userId, ids);
+        int[] counts = ps.executeBatch();
+        List<Integer> conflicting = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            InventoryItem item = batch.get(i);
+            Integer old = amounts.get(item.getId());
+            if (counts[i] != 0 && old != null) {
+                summary.change(old, item.getAmount());
+                amounts.put(item.getId(), item.getAmount());
+            } else if (counts[i] == 0 && old != null && expected.get(i) != null) {
+                conflicting.add(item.getId());
+            }
+        }
+        if (!conflicting.isEmpty()) {
+            // The user's row lock taken by nextVersion keeps these values current until the transaction ends
+            Map<Integer, JSONObject> current = readItems(conn, userId, conflicting);
+            for (Integer id : conflicting) {
+                conflicts.put(current.get(id));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Append batch update counts, growing the array as needed
+     * @param counts    Counts collected so far
+     * @param length    Number of counts collected so far
+     * @param batch     Counts to append
+     * @return          Array holding all counts
+     */
+    private static int[] append(int[] counts, int length, int[] batch) {
+        if (length + batch.length > counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, length + batch.length));
+        }
+        System.arraycopy(batch, 0, counts, length, batch.length);
+        return counts;
+    }
+
+    /**
+     * Add deltas to the amounts of a user's items in one transaction. Items that do not belong to the user are
+     * left alone.
+     * @param username      User that the inventory items must belong to
+     * @param deltas        Delta to add per item id
+     * @return              Number of items updated
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Override
+    public int adjustItems(String username, Map<Integer, Long> deltas) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            String sql = "UPDATE inventory SET amount = amount + ?, version = ? WHERE id = ? AND userid = ?";
+            Map<Integer, Long> applied = new LinkedHashMap<>();
+            long version;
+            try (Connection conn = getConnection(username)) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    int userId = getUserId(conn, username);
+                    version = nextVersion(conn, userId);
+                    SummaryDelta summary = new SummaryDelta(lowStockThreshold);
+                    List<Map.Entry<Integer, Long>> batch = new ArrayList<>(Math.min(deltas.size(), batchSize));
+                    for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+                        ps.setLong(1, delta.getValue());
+                        ps.setLong(2, version);
+                        ps.setInt(3, delta.getKey());
+                        ps.setInt(4, userId);
+                        ps.addBatch();
+                        batch.add(delta);
+                        if (batch.size() == batchSize) {
+                            Metrics.BATCH_SIZES.record("adjustItems", batch.size());
+                            executeAdjustBatch(conn, ps, userId, batch, applied, summary);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        Metrics.BATCH_SIZES.record("adjustItems", batch.size());
+                        executeAdjustBatch(conn, ps, userId, batch, applied, summary);
+                    }
+                    applySummary(conn, userId, summary);
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            if (!applied.isEmpty()) {
+                publish(listener -> listener.itemsAdjusted(username, applied, version));
+            }
+            return applied.size();
+        } finally {
+            wrote(username);
+            Metrics.DAO_CALLS.recordSince("adjustItems", start);
+        }
+    }
+
+    /**
+     * Execute a batch of deltas and collect the deltas that changed a row, counting rows whose count the driver did
+     * not report as changed, with their effect on the user's summary, then clear the batch
+     * @param conn          Connection with an open transaction
+     * @param ps            Update statement holding the batch
+     * @param userId        Id of the owning user
+     * @param batch         Deltas of the batch, in order
+     * @param applied       Receives the deltas that changed a row
+     * @param summary       Receives the changes to the summary
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private void executeAdjustBatch(Connection conn, PreparedStatement ps, int userId,
+                                    List<Map.Entry<Integer, Long>> batch, Map<Integer, Long> applied,
+                                    SummaryDelta summary) throws SQLException {
+        List<Integer> ids = new ArrayList<>(batch.size());
+        for (Map.Entry<Integer, Long> delta : batch) {
+            ids.add(delta.getKey());
+        }
+        Map<Integer, Integer> amounts = readAmounts(conn, userId, ids);
+        int[] counts = ps.executeBatch();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.SUCCESS_NO_INFO || counts[i] > 0) {
+                Map.Entry<Integer, Long> delta = batch.get(i);
+                applied.put(delta.getKey(), delta.getValue());
+                Integer old = amounts.get(delta.getKey());
+                if (old != null) {
+                    int amount = (int) (old + delta.getValue());
+                    summary.change(old, amount);
+                    amounts.put(delta.getKey(), amount);
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Delete an inventory item of a user, leaving a tombstone so that the deletion shows up in
+     * {@link #streamChanges}
+     * @param id            id of item to delete
+     * @param username      User that the item must belong to
+     * @return              True if the item was deleted, false if it does not exist or belongs to another user
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Override
+    public boolean deleteItem(int id, String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            String sql = "DELETE FROM inventory WHERE id = ? AND userid = ?";
+            String tombstone = "INSERT INTO inventory_tombstones (id, userid, version) VALUES (?, ?, ?)";
+            boolean deleted;
+            try (Connection conn = getConnection(username)) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement ps = conn.prepareStatement(sql);
+                     PreparedStatement ts = conn.prepareStatement(tombstone)) {
+                    int userId = getUserId(conn, username);
+                    long version = nextVersion(conn, userId);
+                    Integer amount = readAmounts(conn, userId, Collections.singletonList(id)).get(id);
+                    ps.setInt(1, id);
+                    ps.setInt(2, userId);
+                    deleted = ps.executeUpdate() > 0;
+                    if (deleted) {
+                        ts.setInt(1, id);
+                        ts.setInt(2, userId);
+                        ts.setLong(3, version);
+                        ts.executeUpdate();
+                        SummaryDelta summary = new SummaryDelta(lowStockThreshold);
+                        summary.change(amount, null);
+                        applySummary(conn, userId, summary);
+                        conn.commit();
+                    } else {
+                        // Nothing changed, so do not spend a version
+                        conn.rollback();
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            if (deleted) {
+                publish(listener -> listener.itemDeleted(username, id));
+            }
+            return deleted;
+        } finally {
+            wrote(username);
+            Metrics.DAO_CALLS.recordSince("deleteItem", start);
+        }
     }
 
     /**
@@ -179,25 +1363,624 @@ public class DataAccess {
      * @param username      User that inventory item corresponds to
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
+    @Override
     public Integer addItem(String name, int amount, String username) throws SQLException {
-        String sql = "INSERT INTO inventory (productname, amount, userid) " +
-                "SELECT ?, ?, id FROM users WHERE username = ?";
-        PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-        ps.setString(1, name);
-        ps.setInt(2, amount);
-        ps.setString(3, username);
-        ps.executeUpdate();
-        ResultSet rs = ps.getGeneratedKeys();
-        if (rs.next()) {
-            return rs.getInt(1);
+        long start = System.nanoTime();
+        try {
+            String sql = "INSERT INTO inventory (productname, amount, userid, version) VALUES (?, ?, ?, ?)";
+            int id = 0;
+            long version;
+            try (Connection conn = getConnection(username)) {
+                int userId = getUserId(conn, username);
+                if (userId == 0) {
+                    return 0;
+                }
+                conn.setAutoCommit(false);
+                try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    version = nextVersion(conn, userId);
+                    ps.setString(1, name);
+                    ps.setInt(2, amount);
+                    ps.setInt(3, userId);
+                    ps.setLong(4, version);
+                    ps.executeUpdate();
+                    try (ResultSet rs = ps.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            id = rs.getInt("id");
+                        }
+                    }
+                    SummaryDelta summary = new SummaryDelta(lowStockThreshold);
+                    summary.change(null, amount);
+                    applySummary(conn, userId, summary);
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            if (id != 0) {
+                List<InventoryItem> added = Collections.singletonList(new InventoryItem(id, name, amount, version));
+                publish(listener -> listener.itemsAdded(username, added));
+            }
+            return id;
+        } finally {
+            wrote(username);
+            Metrics.DAO_CALLS.recordSince("addItem", start);
+        }
+    }
+
+    /**
+     * Add several items into inventory table in one transaction. The user is resolved once and the rows are inserted
+     * in batches as they are read from the iterator; if a batch fails its rows are retried one by one so that only
+     * the offending items are rejected.
+     * @param items         Items to add, read one at a time
+     * @param username      User that inventory items correspond to
+     * @return              JSON Object with "ids", the new id of each item in order or null if it failed, and
+     *                      "errors", a list of {"index":Int, "error":String}
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Override
+    public JSONObject addItems(Iterator<ItemRequest> items, String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            List<Integer> ids = new ArrayList<>();
+            List<ItemRequest> accepted = new ArrayList<>();
+            JSONArray errors = new JSONArray();
+            long version;
+            String sql = "INSERT INTO inventory (productname, amount, userid, version) VALUES (?, ?, ?, ?)";
+            try (Connection conn = getConnection(username)) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    int userId = getUserId(conn, username);
+                    version = userId == 0 ? 0 : nextVersion(conn, userId);
+                    List<Integer> chunk = new ArrayList<>(batchSize);
+                    List<ItemRequest> chunkItems = new ArrayList<>(batchSize);
+                    for (int index = 0; items.hasNext(); index++) {
+                        ItemRequest item = items.next();
+                        ids.add(null);
+                        accepted.add(null);
+                        if (!item.isValidNewItem()) {
+                            errors.put(error(index, "Expected {\"name\":String, \"amount\":Int}"));
+                        } else if (userId == 0) {
+                            errors.put(error(index, "Unknown user"));
+                        } else {
+                            accepted.set(index, item);
+                            chunk.add(index);
+                            chunkItems.add(item);
+                            if (chunk.size() == batchSize) {
+                                insertChunk(conn, ps, chunk, chunkItems, userId, version, ids, errors);
+                                chunk.clear();
+                                chunkItems.clear();
+                            }
+                        }
+                    }
+                    if (!chunk.isEmpty()) {
+                        insertChunk(conn, ps, chunk, chunkItems, userId, version, ids, errors);
+                    }
+                    SummaryDelta summary = new SummaryDelta(lowStockThreshold);
+                    for (int index = 0; index < ids.size(); index++) {
+                        if (ids.get(index) != null) {
+                            summary.change(null, accepted.get(index).getAmount());
+                        }
+                    }
+                    applySummary(conn, userId, summary);
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            JSONObject result = new JSONObject();
+            JSONArray idArray = new JSONArray();
+            List<InventoryItem> added = new ArrayList<>();
+            for (int index = 0; index < ids.size(); index++) {
+                Integer id = ids.get(index);
+                idArray.put(id == null ? JSONObject.NULL : id);
+                if (id != null) {
+                    ItemRequest item = accepted.get(index);
+                    added.add(new InventoryItem(id, item.getName(), item.getAmount(), version));
+                }
+            }
+            if (!added.isEmpty()) {
+                publish(listener -> listener.itemsAdded(username, added));
+            }
+            result.put("ids", idArray);
+            result.put("errors", errors);
+            return result;
+        } finally {
+            wrote(username);
+            Metrics.DAO_CALLS.recordSince("addItems", start);
+        }
+    }
+
+    /**
+     * Import a chunk of items into inventory table in one transaction. On PostgreSQL the rows are streamed with COPY,
+     * which is several times faster than batched inserts but rejects the whole chunk if any row fails; in that case,
+     * and on other databases, the chunk is inserted in batches that fall back to one row at a time, so only the
+     * offending items are rejected. The caller keeps chunks bounded, so memory use does not depend on the import size.
+     * @param username      User that inventory items correspond to
+     * @param items         Valid new items to add
+     * @return              JSON Object with "inserted", the number of rows added, and "errors", a list of
+     *                      {"index":Int, "error":String} by position in the chunk
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Override
+    public JSONObject importItems(String username, List<ItemRequest> items) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            JSONArray errors = new JSONArray();
+            List<Integer> ids = new ArrayList<>(Collections.nCopies(items.size(), null));
+            boolean copied = false;
+            int inserted = 0;
+            long version = 0;
+            String sql = "INSERT INTO inventory (productname, amount, userid, version) VALUES (?, ?, ?, ?)";
+            try (Connection conn = getConnection(username)) {
+                int userId = getUserId(conn, username);
+                if (userId == 0) {
+                    for (int index = 0; index < items.size(); index++) {
+                        errors.put(error(index, "Unknown user"));
+                    }
+                    return new JSONObject().put("inserted", 0).put("errors", errors);
+                }
+                conn.setAutoCommit(false);
+                try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    version = nextVersion(conn, userId);
+                    copied = copyItems(conn, items, userId, version);
+                    if (!copied) {
+                        List<Integer> chunk = new ArrayList<>(batchSize);
+                        for (int from = 0; from < items.size(); from += batchSize) {
+                            int to = Math.min(from + batchSize, items.size());
+                            chunk.clear();
+                            for (int index = from; index < to; index++) {
+                                chunk.add(index);
+                            }
+                            insertChunk(conn, ps, chunk, items.subList(from, to), userId, version, ids, errors);
+                        }
+                    }
+                    SummaryDelta summary = new SummaryDelta(lowStockThreshold);
+                    for (int index = 0; index < items.size(); index++) {
+                        if (copied || ids.get(index) != null) {
+                            summary.change(null, items.get(index).getAmount());
+                            inserted++;
+                        }
+                    }
+                    applySummary(conn, userId, summary);
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            if (copied) {
+                if (inserted > 0) {
+                    publish(listener -> listener.itemsImported(username));
+                }
+            } else {
+                List<InventoryItem> added = new ArrayList<>(inserted);
+                for (int index = 0; index < items.size(); index++) {
+                    Integer id = ids.get(index);
+                    if (id != null) {
+                        ItemRequest item = items.get(index);
+                        added.add(new InventoryItem(id, item.getName(), item.getAmount(), version));
+                    }
+                }
+                if (!added.isEmpty()) {
+                    publish(listener -> listener.itemsAdded(username, added));
+                }
+            }
+            return new JSONObject().put("inserted", inserted).put("errors", errors);
+        } finally {
+            wrote(username);
+            Metrics.DAO_CALLS.recordSince("importItems", start);
+        }
+    }
+
+    /**
+     * Stream items into the inventory table with the PostgreSQL COPY protocol, behind a savepoint. Rows are written
+     * to the copy stream as CSV one at a time. COPY runs outside the statement interceptors, so it is timed here.
+     * @param conn          Connection with an open transaction
+     * @param items         Items to insert
+     * @param userId        Id of the owning user
+     * @param version       Change version of the rows
+     * @return              True if every item was copied, false if COPY is turned off, not supported by the
+     *                      database, or failed, in which case nothing was inserted
+     * @throws SQLException Throws if a savepoint cannot be set or rolled back
+     */
+    private boolean copyItems(Connection conn, List<ItemRequest> items, int userId, long version)
+            throws SQLException {
+        if (!bulkCopy || items.isEmpty() || !conn.isWrapperFor(PGConnection.class)) {
+            return false;
+        }
+        String sql = "COPY inventory (productname, amount, userid, version) FROM STDIN WITH (FORMAT csv)";
+        String suffix = "," + userId + "," + version + "\n";
+        Savepoint savepoint = conn.setSavepoint();
+        long start = System.nanoTime();
+        CopyIn copy = null;
+        try {
+            copy = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+            StringBuilder row = new StringBuilder(64);
+            for (ItemRequest item : items) {
+                row.setLength(0);
+                row.append('"').append(item.getName().replace("\"", "\"\"")).append("\",")
+                        .append(item.getAmount()).append(suffix);
+                byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+                copy.writeToCopy(bytes, 0, bytes.length);
+            }
+            copy.endCopy();
+            copy = null;
+            Metrics.BATCH_SIZES.record("importItems", items.size());
+            conn.releaseSavepoint(savepoint);
+            return true;
+        } catch (SQLException e) {
+            if (copy != null && copy.isActive()) {
+                copy.cancelCopy();
+            }
+            conn.rollback(savepoint);
+            return false;
+        } finally {
+            Metrics.QUERIES.recordSince(sql, start);
+        }
+    }
+
+    /**
+     * Build a per-item error
+     * @param index Index of the item in the request
+     * @param error Reason the item was rejected
+     * @return      JSON Object describing the error
+     */
+    private static JSONObject error(int index, String error) {
+        return new JSONObject().put("index", index).put("error", error);
+    }
+
+    /**
+     * Insert a chunk of items as one batch behind a savepoint, falling back to one row at a time if it fails
+     * @param conn          Connection with an open transaction
+     * @param ps            Insert statement
+     * @param chunk         Request indexes of the items
+     * @param chunkItems    Items to insert
+     * @param userId        Id of the owning user
+     * @param version       Change version of the rows
+     * @param ids           Receives the generated id of each item by request index
+     * @param errors        Receives an error for each rejected item
+     * @throws SQLException Throws if a savepoint cannot be set or rolled back
+     */
+    private void insertChunk(Connection conn, PreparedStatement ps, List<Integer> chunk, List<ItemRequest> chunkItems,
+                             int userId, long version, List<Integer> ids, JSONArray errors) throws SQLException {
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            for (ItemRequest item : chunkItems) {
+                ps.setString(1, item.getName());
+                ps.setInt(2, item.getAmount());
+                ps.setInt(3, userId);
+                ps.setLong(4, version);
+                ps.addBatch();
+            }
+            Metrics.BATCH_SIZES.record("addItems", chunkItems.size());
+            ps.executeBatch();
+            if (readBatchKeys(ps, chunk, ids)) {
+                conn.releaseSavepoint(savepoint);
+                return;
+            }
+            // The driver does not return one key per batched row, redo the chunk row by row
+            conn.rollback(savepoint);
+        } catch (SQLException e) {
+            ps.clearBatch();
+            conn.rollback(savepoint);
+        }
+        insertOneByOne(conn, ps, chunk, chunkItems, userId, version, ids, errors);
+    }
+
+    /**
+     * Read the generated keys of an executed batch
+     * @param ps            Statement whose batch was executed
+     * @param chunk         Request indexes of the batched rows, in order
+     * @param ids           Receives the generated id of each item
+     * @return              False if the driver did not return exactly one key per row
+     * @throws SQLException Throws if the keys cannot be read
+     */
+    private boolean readBatchKeys(PreparedStatement ps, List<Integer> chunk, List<Integer> ids) throws SQLException {
+        List<Integer> keys = new ArrayList<>(chunk.size());
+        try (ResultSet rs = ps.getGeneratedKeys()) {
+            while (rs.next()) {
+                keys.add(rs.getInt("id"));
+            }
+        }
+        if (keys.size() != chunk.size()) {
+            return false;
+        }
+        for (int k = 0; k < chunk.size(); k++) {
+            ids.set(chunk.get(k), keys.get(k));
+        }
+        return true;
+    }
+
+    /**
+     * Insert rows individually, each behind its own savepoint, recording the rows that fail
+     * @param conn          Connection with an open transaction
+     * @param ps            Insert statement
+     * @param chunk         Request indexes of the items
+     * @param chunkItems    Items to insert
+     * @param userId        Id of the owning user
+     * @param version       Change version of the rows
+     * @param ids           Receives the generated id of each inserted item
+     * @param errors        Receives an error for each rejected item
+     * @throws SQLException Throws if a savepoint cannot be set or rolled back
+     */
+    private void insertOneByOne(Connection conn, PreparedStatement ps, List<Integer> chunk,
+                                List<ItemRequest> chunkItems, int userId, long version, List<Integer> ids,
+                                JSONArray errors)
+            throws SQLException {
+        for (int k = 0; k < chunk.size(); k++) {
+            ItemRequest item = chunkItems.get(k);
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+                ps.setString(1, item.getName());
+                ps.setInt(2, item.getAmount());
+                ps.setInt(3, userId);
+                ps.setLong(4, version);
+                ps.executeUpdate();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    ids.set(chunk.get(k), rs.next() ? rs.getInt("id") : null);
+                }
+                conn.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                conn.rollback(savepoint);
+                ids.set(chunk.get(k), null);
+                errors.put(error(chunk.get(k), e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Resolve a username to its id, from the cache if possible. Unknown usernames are not cached, so a user
+     * registered later is found.
+     * @param conn          Connection to use
+     * @param username      Username to resolve
+     * @return              Id of the user, 0 if there is no such user
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private int getUserId(Connection conn, String username) throws SQLException {
+        Integer cached = userIds.get(username);
+        if (cached != null) {
+            return cached;
+        }
+        String sql = "SELECT id FROM users WHERE username = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                int id = rs.next() ? rs.getInt(1) : 0;
+                cacheUserId(username, id);
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Take the next change version of a user's inventory. The increment locks the user's row until the transaction
+     * ends, so versions of one user become visible in the order they were taken.
+     * @param conn          Connection with an open transaction
+     * @param userId        Id of the user
+     * @return              New version, 0 if there is no such user
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private static long nextVersion(Connection conn, int userId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE users SET version = version + 1 WHERE id = ?")) {
+            ps.setInt(1, userId);
+            if (ps.executeUpdate() == 0) {
+                return 0;
+            }
+        }
+        return readVersion(conn, userId);
+    }
+
+    /**
+     * Read the current change version of a user's inventory
+     * @param conn          Connection to use
+     * @param userId        Id of the user
+     * @return              Version, 0 if there is no such user
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private static long readVersion(Connection conn, int userId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT version FROM users WHERE id = ?")) {
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Read the current amounts of a user's items
+     * @param conn          Connection to use
+     * @param userId        Id of the owning user
+     * @param ids           Ids of the items, at most batchSize
+     * @return              Amount per id of the items that exist
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private Map<Integer, Integer> readAmounts(Connection conn, int userId, List<Integer> ids) throws SQLException {
+        Map<Integer, Integer> amounts = new HashMap<>();
+        if (ids.isEmpty()) {
+            return amounts;
+        }
+        // One statement text for every batch: unused placeholders repeat the last id
+        try (PreparedStatement ps = conn.prepareStatement(amountsSql)) {
+            ps.setInt(1, userId);
+            for (int i = 0; i < batchSize; i++) {
+                ps.setInt(i + 2, ids.get(Math.min(i, ids.size() - 1)));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    amounts.put(rs.getInt(1), rs.getInt(2));
+                }
+            }
+        }
+        return amounts;
+    }
+
+    /**
+     * Read the current values of a user's items
+     * @param conn          Connection to use
+     * @param userId        Id of the owning user
+     * @param ids           Ids of the items, at most batchSize
+     * @return              JSON Object {"id":Int, "name":String, "amount":Int, "version":Long} per id of the items
+     *                      that exist
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private Map<Integer, JSONObject> readItems(Connection conn, int userId, List<Integer> ids) throws SQLException {
+        Map<Integer, JSONObject> items = new HashMap<>();
+        // One statement text for every batch: unused placeholders repeat the last id
+        try (PreparedStatement ps = conn.prepareStatement(itemsSql)) {
+            ps.setInt(1, userId);
+            for (int i = 0; i < batchSize; i++) {
+                ps.setInt(i + 2, ids.get(Math.min(i, ids.size() - 1)));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    items.put(rs.getInt(1), new JSONObject().put("id", rs.getInt(1)).put("name", rs.getString(2))
+                            .put("amount", rs.getInt(3)).put("version", rs.getLong(4)));
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Add the changes collected during a write to the user's summary counters
+     * @param conn          Connection with an open transaction
+     * @param userId        Id of the user
+     * @param summary       Changes to add
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private static void applySummary(Connection conn, int userId, SummaryDelta summary) throws SQLException {
+        if (summary.items == 0 && summary.units == 0 && summary.lowStock == 0) {
+            return;
+        }
+        String sql = "UPDATE users SET item_count = item_count + ?, total_units = total_units + ?, " +
+                "low_stock = low_stock + ? WHERE id = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, summary.items);
+            ps.setLong(2, summary.units);
+            ps.setLong(3, summary.lowStock);
+            ps.setInt(4, userId);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Remember the id of a user if the cache is enabled
+     * @param username  Username
+     * @param id        Id of the user, 0 to remember nothing
+     */
+    private void cacheUserId(String username, int id) {
+        int maxSize = userIdCacheSize;
+        if (maxSize <= 0 || id == 0) {
+            return;
+        }
+        if (userIds.size() >= maxSize) {
+            userIds.clear();
+        }
+        userIds.put(username, id);
+    }
+
+    /**
+     * Insert a batch of audit events, in one transaction per shard, skipping events that are already stored
+     * @param events        Events in journal order
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Override
+    public void writeAuditEvents(List<AuditEvent> events) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Map<Integer, List<AuditEvent>> byShard = new LinkedHashMap<>();
+            for (AuditEvent event : events) {
+                byShard.computeIfAbsent(shardOf(event.getUsername()), k -> new ArrayList<>()).add(event);
+            }
+            String sql = "INSERT INTO audit_log (instance, seq, username, action, item_id, productname, amount, " +
+                    "delta, changed_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT DO NOTHING";
+            for (Map.Entry<Integer, List<AuditEvent>> shard : byShard.entrySet()) {
+                try (Connection conn = getConnection(shard.getKey())) {
+                    conn.setAutoCommit(false);
+                    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                        int batched = 0;
+                        for (AuditEvent event : shard.getValue()) {
+                            ps.setString(1, event.getInstance());
+                            ps.setLong(2, event.getSeq());
+                            ps.setString(3, event.getUsername());
+                            ps.setString(4, event.getAction());
+                            ps.setObject(5, event.getItemId(), Types.INTEGER);
+                            ps.setString(6, event.getName());
+                            ps.setObject(7, event.getAmount(), Types.INTEGER);
+                            ps.setObject(8, event.getDelta(), Types.BIGINT);
+                            ps.setLong(9, event.getTime());
+                            ps.addBatch();
+                            if (++batched == batchSize) {
+                                Metrics.BATCH_SIZES.record("writeAuditEvents", batched);
+                                ps.executeBatch();
+                                batched = 0;
+                            }
+                        }
+                        if (batched > 0) {
+                            Metrics.BATCH_SIZES.record("writeAuditEvents", batched);
+                            ps.executeBatch();
+                        }
+                        conn.commit();
+                    } catch (SQLException | RuntimeException e) {
+                        conn.rollback();
+                        throw e;
+                    } finally {
+                        conn.setAutoCommit(true);
+                    }
+                }
+            }
+        } finally {
+            Metrics.DAO_CALLS.recordSince("writeAuditEvents", start);
+        }
+    }
+
+    /**
+     * Read a user's most recent audit events, newest first by row id, which the database assigns in the order the
+     * events were stored whichever instance journaled them
+     * @param username      User whose changes are read
+     * @param before        Only events with a smaller row id are read
+     * @param limit         Maximum number of events to read
+     * @return              Events by descending row id, which is their position
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    @Override
+    public List<AuditEvent> readAuditEvents(String username, long before, int limit) throws SQLException {
+        long start = System.nanoTime();
+        List<AuditEvent> events = new ArrayList<>();
+        String sql = "SELECT id, instance, seq, changed_at, action, item_id, productname, amount, delta " +
+                "FROM audit_log WHERE username = ? AND id < ? ORDER BY id DESC LIMIT ?";
+        try (Connection conn = getReadConnection(username);
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, username);
+            ps.setLong(2, before);
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    events.add(new AuditEvent(rs.getString(2), rs.getLong(3), rs.getLong(1), rs.getLong(4), username,
+                            rs.getString(5), (Integer) rs.getObject(6), rs.getString(7), (Integer) rs.getObject(8),
+                            rs.getObject(9) == null ? null : rs.getLong(9)));
+                }
+            }
+            return events;
+        } finally {
+            Metrics.ROWS.add("readAuditEvents", events.size());
+            Metrics.DAO_CALLS.recordSince("readAuditEvents", start);
         }
-        return 0;
     }
 
     /**
      * Cleans entire database and resets id sequences
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
+    @Override
     public void cleanDatabase() throws SQLException {
         cleanInventory();
         cleanUsers();
@@ -207,33 +1990,87 @@ public class DataAccess {
      * Cleans inventory table and resets id sequence
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
+    @Override
     public void cleanInventory() throws SQLException {
-        boolean autoCommit = conn.getAutoCommit();
-        conn.setAutoCommit(false);
-        String deleteInventory = "DELETE FROM inventory";
-        String alterSeq = "ALTER SEQUENCE inventory_id_seq RESTART WITH 1";
-        PreparedStatement ps = conn.prepareStatement(deleteInventory);
-        ps.execute();
-        ps = conn.prepareStatement(alterSeq);
-        ps.execute();
-        conn.commit();
-        conn.setAutoCommit(autoCommit);
+        cleanTable("DELETE FROM inventory", "DELETE FROM inventory_tombstones",
+                "UPDATE users SET item_count = 0, total_units = 0, low_stock = 0",
+                "ALTER SEQUENCE inventory_id_seq RESTART WITH 1");
+        publish(InventoryListener::inventoryCleared);
     }
 
     /**
      * Cleans users table and resets id sequence
      * @throws SQLException Throws if SQL is malformed or if connection is invalid
      */
+    @Override
     public void cleanUsers() throws SQLException {
-        boolean autoCommit = conn.getAutoCommit();
-        conn.setAutoCommit(false);
-        String deleteUsers = "DELETE FROM users";
-        String alterSeq = "ALTER SEQUENCE users_id_seq RESTART WITH 1";
-        PreparedStatement ps = conn.prepareStatement(deleteUsers);
-        ps.execute();
-        ps = conn.prepareStatement(alterSeq);
-        ps.execute();
-        conn.commit();
-        conn.setAutoCommit(autoCommit);
+        cleanTable("DELETE FROM users", "ALTER SEQUENCE users_id_seq RESTART WITH 1");
+        userIds.clear();
+    }
+
+    /**
+     * Run deletes and a sequence reset on every shard, in one transaction per shard
+     * @param statements    Statements clearing the tables, resetting counters and resetting the id sequence
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private void cleanTable(String... statements) throws SQLException {
+        for (int shard = 0; shard < shards.length; shard++) {
+            cleanTable(shard, statements);
+        }
+    }
+
+    /**
+     * Run deletes and a sequence reset in one transaction on one shard
+     * @param shard         Index of the shard
+     * @param statements    Statements to run
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private void cleanTable(int shard, String... statements) throws SQLException {
+        try (Connection conn = getConnection(shard)) {
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                for (String statement : statements) {
+                    st.execute(statement);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Changes to one user's summary counters, collected during a write transaction
+     */
+    private static class SummaryDelta {
+        private final int threshold;
+        private long items;
+        private long units;
+        private long lowStock;
+
+        private SummaryDelta(int threshold) {
+            this.threshold = threshold;
+        }
+
+        /**
+         * Count an item changing its amount
+         * @param oldAmount Amount before the change, null if the item was added
+         * @param newAmount Amount after the change, null if the item was deleted
+         */
+        private void change(Integer oldAmount, Integer newAmount) {
+            if (oldAmount != null) {
+                items--;
+                units -= oldAmount;
+                lowStock -= oldAmount <= threshold ? 1 : 0;
+            }
+            if (newAmount != null) {
+                items++;
+                units += newAmount;
+                lowStock += newAmount <= threshold ? 1 : 0;
+            }
+        }
     }
 }
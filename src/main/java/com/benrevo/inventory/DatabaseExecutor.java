@@ -0,0 +1,258 @@
+package com.benrevo.inventory;
+
+import org.json.JSONObject;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor for work that holds a database connection, so request threads return to the container while
+ * queries run.
+ *
+ * The number of threads matches the connection pool, so a running task never waits for a connection, and the queue
+ * in front of them is bounded: once it is full, requests are answered immediately with a fallback response instead
+ * of piling up. A request that is not answered within its timeout gets the same fallback and its task is cancelled,
+ * interrupting it if it is already running. A task that writes to the servlet response itself passes a timeout hook,
+ * such as {@link GuardedResponse#revoke()}, which runs before the fallback is written.
+ *
+ * Optionally a {@link ConcurrencyLimiter} admits fewer requests than the queue holds when latency rises, and a
+ * {@link CircuitBreaker} refuses requests while the database is failing. Requests turned away by either are shed:
+ * they get the fallback response at once, without being queued. Requests whose duration depends on the size of their
+ * response rather than on load, such as streamed listings, can be submitted outside the limiter, so they neither
+ * count against it nor feed it their latency.
+ *
+ * @author John Hurst
+ */
+public class DatabaseExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMs;
+    private final ConcurrencyLimiter limiter;
+    private final CircuitBreaker breaker;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+
+    /**
+     * Start the executor threads
+     * @param threads       Number of threads, normally the size of the connection pool
+     * @param queueCapacity Number of tasks that may wait for a thread
+     * @param timeoutMs     Default time in milliseconds a request may take, including the time it waits in the queue
+     */
+    public DatabaseExecutor(int threads, int queueCapacity, long timeoutMs) {
+        this(threads, queueCapacity, timeoutMs, null, null);
+    }
+
+    /**
+     * Start the executor threads behind admission control
+     * @param threads       Number of threads, normally the size of the connection pool
+     * @param queueCapacity Number of tasks that may wait for a thread
+     * @param timeoutMs     Default time in milliseconds a request may take, including the time it waits in the queue
+     * @param limiter       Limit on admitted requests, or null for none besides the queue capacity
+     * @param breaker       Circuit breaker, or null for none
+     */
+    public DatabaseExecutor(int threads, int queueCapacity, long timeoutMs, ConcurrencyLimiter limiter,
+                            CircuitBreaker breaker) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "db-worker-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.timeoutMs = timeoutMs;
+        this.limiter = limiter;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Run a task with the default timeout
+     * @param task          Task producing the response
+     * @param unavailable   Response used if the queue is full or the request times out
+     * @param <T>           Type of the response
+     * @return              Result completed with the task's response, or with the fallback
+     * @see #submit(Callable, Object, long)
+     */
+    public <T> DeferredResult<T> submit(Callable<T> task, T unavailable) {
+        return submit(task, unavailable, timeoutMs);
+    }
+
+    /**
+     * Run a task on the executor. Exceptions thrown by the task complete the result as an error and are not counted
+     * by the circuit breaker; tasks that handle database errors themselves report them to {@link #recordFailure}.
+     * @param task          Task producing the response
+     * @param unavailable   Response used if the queue is full or the request times out
+     * @param timeoutMs     Time in milliseconds the request may take, including the time it waits in the queue
+     * @param <T>           Type of the response
+     * @return              Result completed with the task's response, or with the fallback
+     */
+    public <T> DeferredResult<T> submit(Callable<T> task, T unavailable, long timeoutMs) {
+        return submit(task, unavailable, timeoutMs, true);
+    }
+
+    /**
+     * Run a task on the executor, optionally outside the concurrency limiter. The limiter is asked first, so a
+     * request it sheds does not use up the circuit breaker's half-open probe.
+     * @param task          Task producing the response
+     * @param unavailable   Response used if the queue is full or the request times out
+     * @param timeoutMs     Time in milliseconds the request may take, including the time it waits in the queue
+     * @param limited       False to bypass the concurrency limiter, for requests whose latency says little about load
+     * @param <T>           Type of the response
+     * @return              Result completed with the task's response, or with the fallback
+     * @see #submit(Callable, Object, long)
+     */
+    public <T> DeferredResult<T> submit(Callable<T> task, T unavailable, long timeoutMs, boolean limited) {
+        return submit(task, unavailable, timeoutMs, limited, null);
+    }
+
+    /**
+     * Run a task on the executor with a hook for its timeout
+     * @param task          Task producing the response
+     * @param unavailable   Response used if the queue is full or the request times out
+     * @param timeoutMs     Time in milliseconds the request may take, including the time it waits in the queue
+     * @param limited       False to bypass the concurrency limiter, for requests whose latency says little about load
+     * @param onTimeout     Run on timeout after the task is cancelled and before the fallback is written, or null
+     * @param <T>           Type of the response
+     * @return              Result completed with the task's response, or with the fallback
+     * @see #submit(Callable, Object, long, boolean)
+     */
+    public <T> DeferredResult<T> submit(Callable<T> task, T unavailable, long timeoutMs, boolean limited,
+                                        Runnable onTimeout) {
+        DeferredResult<T> result = new DeferredResult<>(timeoutMs, unavailable);
+        ConcurrencyLimiter limiter = limited ? this.limiter : null;
+        if (limiter != null && !limiter.tryAcquire()) {
+            shed.increment();
+            result.setResult(unavailable);
+            return result;
+        }
+        if (breaker != null && !breaker.allowRequest()) {
+            if (limiter != null) {
+                limiter.cancel();
+            }
+            shed.increment();
+            result.setResult(unavailable);
+            return result;
+        }
+        long queuedAt = System.nanoTime();
+        long failureCount = breaker == null ? 0 : breaker.getFailureCount();
+        AtomicBoolean released = new AtomicBoolean();
+        Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                dequeued.increment();
+                queueWaitNanos.add(System.nanoTime() - queuedAt);
+                try {
+                    if (result.isSetOrExpired()) {
+                        return;
+                    }
+                    result.setResult(task.call());
+                    completed.increment();
+                    if (breaker != null) {
+                        breaker.recordSuccess(failureCount);
+                    }
+                } catch (Exception e) {
+                    failed.increment();
+                    result.setErrorResult(e);
+                } finally {
+                    release(limiter, released, queuedAt, false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            release(limiter, released, queuedAt, true);
+            result.setResult(unavailable);
+            return result;
+        }
+        submitted.increment();
+        maxQueued.accumulateAndGet(executor.getQueue().size(), Math::max);
+        result.onTimeout(() -> {
+            timedOut.increment();
+            release(limiter, released, queuedAt, true);
+            future.cancel(true);
+            if (onTimeout != null) {
+                onTimeout.run();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Give an admitted request back to the limiter, once, whether it completed or timed out
+     * @param limiter   Limiter that admitted the request, or null if it bypassed the limiter
+     * @param released  Flag of the request, set by the first release
+     * @param queuedAt  Time the request was admitted, from System.nanoTime()
+     * @param dropped   True if the request did not complete
+     */
+    private static void release(ConcurrencyLimiter limiter, AtomicBoolean released, long queuedAt,
+                                boolean dropped) {
+        if (limiter != null && released.compareAndSet(false, true)) {
+            limiter.release(System.nanoTime() - queuedAt, dropped);
+        }
+    }
+
+    /**
+     * Report an error a task ran into. Errors showing the database is unavailable count towards opening the circuit
+     * breaker, see {@link DatabaseFailures#isDatabaseUnavailable}.
+     * @param e Error thrown by the database layer
+     */
+    public void recordFailure(Throwable e) {
+        if (breaker != null && DatabaseFailures.isDatabaseUnavailable(e)) {
+            breaker.recordFailure();
+        }
+    }
+
+    /**
+     * Get a snapshot of the executor statistics
+     * @return JSON Object with thread and queue sizes and lifetime counters
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long started = dequeued.sum();
+        stats.put("threads", executor.getMaximumPoolSize());
+        stats.put("active", executor.getActiveCount());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("maxQueued", maxQueued.get());
+        stats.put("queueCapacity", executor.getQueue().size() + executor.getQueue().remainingCapacity());
+        stats.put("submitted", submitted.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("timedOut", timedOut.sum());
+        stats.put("shed", shed.sum());
+        stats.put("avgQueueWaitMs", started == 0 ? 0 : queueWaitNanos.sum() / started / 1e6);
+        if (limiter != null) {
+            stats.put("admission", limiter.getStats());
+        }
+        if (breaker != null) {
+            stats.put("circuit", breaker.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Stop accepting tasks and wait for the running and queued ones to finish
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.benrevo.inventory;
+
+import org.apache.tomcat.jdbc.pool.PoolExhaustedException;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Classifies database errors by whether they say something about the health of the database, as opposed to errors
+ * caused by a single request such as constraint violations. The SQL states are the standard classes that PostgreSQL
+ * and MySQL report.
+ *
+ * @author John Hurst
+ */
+public final class DatabaseFailures {
+
+    private DatabaseFailures() {
+    }
+
+    /**
+     * Check whether an error is a failure to reach the database that may succeed on a new attempt
+     * @param e     Error, or an exception caused by it
+     * @return      True for transient and recoverable connection errors and SQL state class 08 (connection exception)
+     */
+    public static boolean isTransientConnectionError(Throwable e) {
+        SQLException sql = find(e);
+        if (sql == null) {
+            return false;
+        }
+        return sql instanceof SQLTransientConnectionException || sql instanceof SQLRecoverableException ||
+                state(sql).startsWith("08");
+    }
+
+    /**
+     * Check whether an error shows the database is unavailable or overloaded
+     * @param e     Error, or an exception caused by it
+     * @return      True for connection errors, timeouts, an exhausted connection pool, SQL state class 53
+     *              (insufficient resources) and 57 (operator intervention, which includes cancelled statements)
+     */
+    public static boolean isDatabaseUnavailable(Throwable e) {
+        SQLException sql = find(e);
+        if (sql == null) {
+            return false;
+        }
+        String state = state(sql);
+        return isTransientConnectionError(sql) || sql instanceof SQLTimeoutException ||
+                sql instanceof PoolExhaustedException || state.startsWith("53") || state.startsWith("57");
+    }
+
+    private static SQLException find(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                return (SQLException) t;
+            }
+        }
+        return null;
+    }
+
+    private static String state(SQLException e) {
+        return e.getSQLState() == null ? "" : e.getSQLState();
+    }
+}
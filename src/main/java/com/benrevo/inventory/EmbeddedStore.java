@@ -0,0 +1,1603 @@
+package com.benrevo.inventory;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Store keeping users and inventories in process memory, made durable by a {@link WriteAheadLog} and periodic
+ * snapshots, for deployments where one instance owns its data and a database round trip per request is the cost to
+ * avoid.
+ *
+ * Each user's items are held in parallel primitive arrays sorted by id, with the names alongside, so an inventory
+ * costs a few arrays instead of an object per item and lookups by id are binary searches. A write locks its user,
+ * works out its changes, appends them to the log as one record and applies them; it then waits for the log's group
+ * commit outside the lock, so writers of different users, and later writers of the same user, share disk syncs. A
+ * write is therefore visible to reads shortly before it is durable, and a crash in between loses a write that no
+ * client was told had succeeded. Reads copy what they need under the user's lock and hand it over outside it.
+ *
+ * A snapshot of every user is written in the background and on close; recovery loads the newest intact snapshot and
+ * replays the log from the position it was taken at. Writes that the snapshot already contains are recognised by
+ * their version and skipped. A snapshot is only kept once the log is durable up to the writes it copied. The two
+ * newest snapshots are kept, and log segments older than both are deleted. The directory is locked while the store
+ * is open, so a second process cannot write to it.
+ *
+ * Failures are reported as SQLExceptions with the SQL states {@link DataAccess} reports for the same conditions, so
+ * the endpoints answer the same: 23505 for a taken username, 22001 for a name that is too long and 22003 for an
+ * amount out of range. A log that cannot be synced fails the store: the write that was applied but not made durable
+ * must not be served, so every later read and write fails with 58030 and no snapshot is written until the store is
+ * reopened and has recovered what the log holds.
+ *
+ * @author John Hurst
+ */
+public class EmbeddedStore implements InventoryStore {
+
+    private static final int SNAPSHOT_MAGIC = 0x494e5653;
+    private static final int SNAPSHOT_FORMAT = 1;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String LOCK_FILE = "store.lock";
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private static final byte ADD_USER = 1;
+    private static final byte WRITE = 2;
+    private static final byte CLEAR_INVENTORY = 3;
+    private static final byte CLEAR_USERS = 4;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final File dir;
+    private final int threads;
+    private final FileChannel lockChannel;
+    private final WriteAheadLog wal;
+    private final ScheduledExecutorService snapshotter;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUserId = new AtomicInteger(1);
+    private final AtomicInteger nextItemId = new AtomicInteger(1);
+    private final AtomicInteger active = new AtomicInteger();
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final ReentrantLock addLock = new ReentrantLock();
+    private final Object snapshotLock = new Object();
+    private final List<InventoryListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile InventorySearchIndex searchIndex;
+    private volatile int lowStockThreshold = 5;
+    private volatile long snapshotPosition = -1;
+    private volatile IOException failure;
+
+    /**
+     * Open the store in a directory, recovering the state left there by an earlier process
+     * @param dir                       Directory of the log segments and snapshots, created if missing
+     * @param segmentBytes              Size of a log segment, which bounds the size of one write
+     * @param commitDelayMicros         Time the log waits before each sync so that more writes share it, 0 for none
+     * @param snapshotIntervalSeconds   Time between background snapshots, 0 to only write one on close
+     * @param threads                   Number of requests served at once, which sizes the executor running them
+     * @throws IOException              Throws if the directory cannot be used, is locked by another open store, or
+     *                                  recovery finds the log incomplete
+     */
+    public EmbeddedStore(File dir, int segmentBytes, long commitDelayMicros, long snapshotIntervalSeconds,
+                         int threads) throws IOException {
+        this.dir = dir;
+        this.threads = threads;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        lockChannel = lock(dir);
+        try {
+            long from = loadSnapshot();
+            wal = new WriteAheadLog(dir, segmentBytes, commitDelayMicros);
+            wal.open(from, this::replay);
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "store-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        if (snapshotIntervalSeconds > 0) {
+            snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalSeconds,
+                    snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Lock the directory for this process. The lock is held as long as the returned channel is open, and is dropped
+     * by the operating system if the process dies.
+     * @param dir           Directory of the store
+     * @return              Open channel of the lock file
+     * @throws IOException  Throws if the lock file cannot be opened or another store holds the lock
+     */
+    private static FileChannel lock(File dir) throws IOException {
+        FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another store in this process
+            lock = null;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Store directory " + dir + " is in use by another process");
+        }
+        return channel;
+    }
+
+    @Override
+    public void addListener(InventoryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Inventories are read from memory already, so no cache is put in front of them
+     * @param cache Ignored
+     */
+    @Override
+    public void setInventoryCache(InventoryCache cache) {
+    }
+
+    /**
+     * Keep search indexes of inventories, which is also registered as a listener so that changes update it. Without
+     * one every search indexes the whole inventory.
+     * @param searchIndex Index to use
+     */
+    @Override
+    public void setSearchIndex(InventorySearchIndex searchIndex) {
+        addListener(searchIndex);
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Users are looked up by username in memory, so there are no ids to cache
+     * @param maxSize Ignored
+     */
+    @Override
+    public void setUserIdCacheSize(int maxSize) {
+    }
+
+    /**
+     * Set the amount at or below which an item counts as low on stock in inventory summaries, recounting every user
+     * if it changed
+     * @param threshold Low-stock threshold
+     */
+    @Override
+    public void setLowStockThreshold(int threshold) {
+        if (threshold != lowStockThreshold) {
+            lowStockThreshold = threshold;
+            reconcileSummaries();
+        }
+    }
+
+    /**
+     * The storage format is versioned by the snapshots and log records themselves
+     * @return 0
+     */
+    @Override
+    public int migrateSchema() {
+        return 0;
+    }
+
+    /**
+     * @return Number of requests served at once, as configured
+     */
+    @Override
+    public int getMaxConnections() {
+        return threads;
+    }
+
+    /**
+     * Get a snapshot of the store's statistics
+     * @return JSON Object {"active":Int, writes in progress, "waiting":Int, writes waiting for the log sync,
+     *         "users":Int, "items":Long, "snapshotPosition":Long and "log", see {@link WriteAheadLog#getStats()}}
+     */
+    @Override
+    public JSONObject getPoolStats() {
+        JSONObject log = wal.getStats();
+        long items = 0;
+        for (User user : users.values()) {
+            synchronized (user) {
+                items += user.size;
+            }
+        }
+        JSONObject stats = new JSONObject();
+        stats.put("active", active.get());
+        stats.put("waiting", log.getInt("waiting"));
+        stats.put("users", users.size());
+        stats.put("items", items);
+        stats.put("snapshotPosition", snapshotPosition);
+        stats.put("log", log);
+        return stats;
+    }
+
+    /**
+     * Stop the background snapshots, write a final snapshot unless the store failed, close the log and unlock the
+     * directory
+     */
+    @Override
+    public void close() {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshotQuietly();
+        wal.close();
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Register a user
+     * @param username      Requested username
+     * @param password      Requested password
+     * @return              Id of the new user
+     * @throws SQLException Throws if username already exists or the log fails
+     */
+    @Override
+    public int addUser(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        active.incrementAndGet();
+        try {
+            checkHealthy();
+            long position;
+            int id;
+            stateLock.readLock().lock();
+            try {
+                addLock.lock();
+                try {
+                    if (users.containsKey(username)) {
+                        throw new SQLException("Username " + username + " already exists", "23505");
+                    }
+                    id = nextUserId.getAndIncrement();
+                    position = append(new Record(ADD_USER).putInt(id).putString(username).putString(password));
+                    users.put(username, new User(id, username, password));
+                } finally {
+                    addLock.unlock();
+                }
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            sync(position);
+            return id;
+        } finally {
+            active.decrementAndGet();
+            Metrics.DAO_CALLS.recordSince("addUser", start);
+        }
+    }
+
+    /**
+     * Get a user
+     * @param username      Username of user to be retrieved
+     * @return              JSON Object {"username":String, "password":String}, empty if there is no such user
+     * @throws SQLException Throws if the store failed
+     */
+    @Override
+    public JSONObject getUser(String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            checkHealthy();
+            User user = users.get(username);
+            JSONObject json = new JSONObject();
+            if (user != null) {
+                json.put("username", user.username);
+                json.put("password", user.password);
+            }
+            return json;
+        } finally {
+            Metrics.DAO_CALLS.recordSince("getUser", start);
+        }
+    }
+
+    /**
+     * Check login info for user
+     * @param username      Username of requester
+     * @param password      Password of requester
+     * @return              Id of the user if username matches with password, 0 otherwise
+     * @throws SQLException Throws if the store failed
+     */
+    @Override
+    public int authenticate(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            checkHealthy();
+            User user = users.get(username);
+            return user != null && user.password.equals(password) ? user.id : 0;
+        } finally {
+            Metrics.DAO_CALLS.recordSince("authenticate", start);
+        }
+    }
+
+    /**
+     * Read inventory for user in id order, handing each item to the handler
+     * @param username      Username of requester
+     * @param handler       Handler receiving the items
+     * @param <E>           Exception thrown by the handler
+     * @throws SQLException Throws if the store failed
+     * @throws E            Throws if the handler fails
+     */
+    @Override
+    public <E extends Exception> void streamInventory(String username, ItemHandler<E> handler)
+            throws SQLException, E {
+        streamInventoryPage("streamInventory", username, 0, Integer.MAX_VALUE, handler);
+    }
+
+    /**
+     * Read one page of inventory for user, ordered by id
+     * @param username      Username of requester
+     * @param afterId       Only items with a larger id are returned, 0 for the first page
+     * @param limit         Maximum number of items to return
+     * @param handler       Handler receiving the items
+     * @param <E>           Exception thrown by the handler
+     * @throws SQLException Throws if the store failed
+     * @throws E            Throws if the handler fails
+     */
+    @Override
+    public <E extends Exception> void streamInventoryPage(String username, int afterId, int limit,
+                                                          ItemHandler<E> handler) throws SQLException, E {
+        streamInventoryPage("streamInventoryPage", username, afterId, limit, handler);
+    }
+
+    /**
+     * Copy a range of a user's items under its lock, then hand them to the handler
+     * @param call          Name the call is timed under
+     * @param username      Username of requester
+     * @param afterId       Only items with a larger id are returned
+     * @param limit         Maximum number of items to return
+     * @param handler       Handler receiving the items
+     * @param <E>           Exception thrown by the handler
+     * @throws SQLException Throws if the store failed
+     * @throws E            Throws if the handler fails
+     */
+    private <E extends Exception> void streamInventoryPage(String call, String username, int afterId, int limit,
+                                                           ItemHandler<E> handler) throws SQLException, E {
+        long start = System.nanoTime();
+        int rows = 0;
+        try {
+            checkHealthy();
+            User user = users.get(username);
+            if (user == null) {
+                return;
+            }
+            int[] ids;
+            String[] names;
+            int[] amounts;
+            long[] versions;
+            synchronized (user) {
+                int from = user.index(afterId);
+                from = from < 0 ? -from - 1 : from + 1;
+                int to = (int) Math.min((long) from + limit, user.size);
+                ids = Arrays.copyOfRange(user.ids, from, to);
+                names = Arrays.copyOfRange(user.names, from, to);
+                amounts = Arrays.copyOfRange(user.amounts, from, to);
+                versions = Arrays.copyOfRange(user.versions, from, to);
+            }
+            for (int i = 0; i < ids.length; i++) {
+                handler.item(ids[i], names[i], amounts[i], versions[i]);
+                rows++;
+            }
+        } finally {
+            Metrics.ROWS.add(call, rows);
+            Metrics.DAO_CALLS.recordSince(call, start);
+        }
+    }
+
+    /**
+     * Search a user's inventory by name and amount against the user's search index, which is built from the
+     * inventory on first use
+     * @param username      Owner of the inventory
+     * @param query         Search criteria
+     * @return              Matching items, see {@link InventorySearchIndex.UserIndex#search}
+     * @throws SQLException Throws if the store failed
+     */
+    @Override
+    public List<InventoryItem> searchInventory(String username, InventorySearchIndex.Query query)
+            throws SQLException {
+        long start = System.nanoTime();
+        List<InventoryItem> found = Collections.emptyList();
+        try {
+            checkHealthy();
+            InventorySearchIndex searchIndex = this.searchIndex;
+            InventorySearchIndex.UserIndex index = searchIndex == null ? null : searchIndex.get(username);
+            if (index == null) {
+                Object load = searchIndex == null ? null : searchIndex.startLoad(username);
+                List<InventoryItem> items = new ArrayList<>();
+                streamInventory(username, (id, name, amount, version) ->
+                        items.add(new InventoryItem(id, name, amount, version)));
+                index = searchIndex == null ? new InventorySearchIndex.UserIndex(items) :
+                        searchIndex.finishLoad(username, load, items);
+            }
+            found = index.search(query);
+            return found;
+        } finally {
+            Metrics.ROWS.add("searchInventory", found.size());
+            Metrics.DAO_CALLS.recordSince("searchInventory", start);
+        }
+    }
+
+    /**
+     * Get the summary of a user's inventory from its counters
+     * @param username      Owner of the inventory
+     * @return              JSON Object {"items":Long, "units":Long, "lowStock":Long, "lowStockThreshold":Int}, all
+     *                      counters 0 if the user does not exist
+     * @throws SQLException Throws if the store failed
+     */
+    @Override
+    public JSONObject getInventorySummary(String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            checkHealthy();
+            User user = users.get(username);
+            JSONObject summary = new JSONObject();
+            if (user == null) {
+                summary.put("items", 0L).put("units", 0L).put("lowStock", 0L);
+            } else {
+                synchronized (user) {
+                    summary.put("items", (long) user.size).put("units", user.units).put("lowStock", user.lowStock);
+                }
+            }
+            summary.put("lowStockThreshold", lowStockThreshold);
+            return summary;
+        } finally {
+            Metrics.DAO_CALLS.recordSince("getInventorySummary", start);
+        }
+    }
+
+    /**
+     * Recount every user's summary counters from the inventory and correct those that differ, which only happens
+     * when the low-stock threshold changed
+     * @return Number of users whose counters were corrected
+     */
+    @Override
+    public int reconcileSummaries() {
+        long start = System.nanoTime();
+        int corrected = 0;
+        try {
+            int threshold = lowStockThreshold;
+            for (User user : users.values()) {
+                synchronized (user) {
+                    long units = user.units;
+                    long lowStock = user.lowStock;
+                    user.recount(threshold);
+                    if (units != user.units || lowStock != user.lowStock) {
+                        corrected++;
+                    }
+                }
+            }
+            return corrected;
+        } finally {
+            Metrics.DAO_CALLS.recordSince("reconcileSummaries", start);
+        }
+    }
+
+    /**
+     * Get the change version of a user's inventory
+     * @param username      Owner of the inventory
+     * @return              Current version, 0 if the user does not exist or never changed the inventory
+     * @throws SQLException Throws if the store failed
+     */
+    @Override
+    public long getInventoryVersion(String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            checkHealthy();
+            User user = users.get(username);
+            if (user == null) {
+                return 0;
+            }
+            synchronized (user) {
+                return user.version;
+            }
+        } finally {
+            Metrics.DAO_CALLS.recordSince("getInventoryVersion", start);
+        }
+    }
+
+    /**
+     * Read the changes to a user's inventory after a version: items added or changed since in version order, then
+     * items deleted since. The changes are copied under the user's lock, so they are consistent with the version
+     * returned.
+     * @param username      Owner of the inventory
+     * @param since         Version the client has already seen, or a negative number for every item and no deletions
+     * @param handler       Handler receiving the version and the changes
+     * @param <E>           Exception thrown by the handler
+     * @return              Version the changes lead up to
+     * @throws SQLException Throws if the store failed
+     * @throws E            Throws if the handler fails
+     */
+    @Override
+    public <E extends Exception> long streamChanges(String username, long since, ChangeHandler<E> handler)
+            throws SQLException, E {
+        long start = System.nanoTime();
+        int rows = 0;
+        try {
+            checkHealthy();
+            User user = users.get(username);
+            long version = 0;
+            Integer[] order = new Integer[0];
+            int[] ids = new int[0];
+            String[] names = new String[0];
+            int[] amounts = new int[0];
+            long[] versions = new long[0];
+            int[] deletedIds = new int[0];
+            long[] deletedVersions = new long[0];
+            if (user != null) {
+                synchronized (user) {
+                    version = user.version;
+                    int changed = 0;
+                    for (int i = 0; i < user.size; i++) {
+                        if (user.versions[i] > since) {
+                            changed++;
+                        }
+                    }
+                    ids = new int[changed];
+                    names = new String[changed];
+                    amounts = new int[changed];
+                    versions = new long[changed];
+                    for (int i = 0, k = 0; i < user.size; i++) {
+                        if (user.versions[i] > since) {
+                            ids[k] = user.ids[i];
+                            names[k] = user.names[i];
+                            amounts[k] = user.amounts[i];
+                            versions[k++] = user.versions[i];
+                        }
+                    }
+                    if (since >= 0) {
+                        int from = Arrays.binarySearch(user.tombstoneVersions, 0, user.tombstones, since + 1);
+                        from = from < 0 ? -from - 1 : from;
+                        // Tombstones of one version are adjacent; step back to the first of them
+                        while (from > 0 && user.tombstoneVersions[from - 1] > since) {
+                            from--;
+                        }
+                        deletedIds = Arrays.copyOfRange(user.tombstoneIds, from, user.tombstones);
+                        deletedVersions = Arrays.copyOfRange(user.tombstoneVersions, from, user.tombstones);
+                    }
+                }
+                order = new Integer[ids.length];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                // Items are held by id, which orders the changes of one version
+                long[] byVersion = versions;
+                Arrays.sort(order, (a, b) -> Long.compare(byVersion[a], byVersion[b]));
+            }
+            handler.start(version, false);
+            for (int i : order) {
+                handler.changed(ids[i], names[i], amounts[i], versions[i]);
+                rows++;
+            }
+            for (int i = 0; i < deletedIds.length; i++) {
+                handler.deleted(deletedIds[i], deletedVersions[i]);
+                rows++;
+            }
+            return version;
+        } finally {
+            Metrics.ROWS.add("streamChanges", rows);
+            Metrics.DAO_CALLS.recordSince("streamChanges", start);
+        }
+    }
+
+    /**
+     * Update inventory items of a user at once. The items are read before anything is changed, so an invalid item
+     * or a failing iterator leaves the inventory as it was. An item that carries a version is only updated if it
+     * still has that version; otherwise it is listed as a conflict with its current values.
+     * @param items         Items to update, read one at a time
+     * @param username      User that the inventory items must belong to
+     * @return              JSON Object {"counts":[Int], "version":Long, "conflicts":[{"id":Int, "name":String,
+     *                      "amount":Int, "version":Long}]}: 1 for each updated item, 0 for an item that does not
+     *                      exist, belongs to another user or conflicts; the version of the updated items, or the
+     *                      current version if none was updated; and the current values of the conflicting items
+     * @throws SQLException Throws if a name is too long or the log fails
+     * @throws IllegalArgumentException Throws if an item lacks its id, name or amount
+     */
+    @Override
+    public JSONObject updateItem(Iterator<ItemRequest> items, String username) throws SQLException {
+        long start = System.nanoTime();
+        active.incrementAndGet();
+        try {
+            checkHealthy();
+            List<ItemRequest> requests = new ArrayList<>();
+            while (items.hasNext()) {
+                ItemRequest item = items.next();
+                if (!item.isValidUpdate()) {
+                    throw new IllegalArgumentException("Expected {\"id\":Int, \"name\":String, \"amount\":Int}");
+                }
+                checkName(item.getName());
+                requests.add(item);
+            }
+            int[] counts = new int[requests.size()];
+            JSONArray conflicts = new JSONArray();
+            List<InventoryItem> updated = new ArrayList<>();
+            long version = 0;
+            long position = -1;
+            stateLock.readLock().lock();
+            try {
+                User user = users.get(username);
+                if (user == null) {
+                    return new JSONObject().put("counts", counts).put("version", version).put("conflicts", conflicts);
+                }
+                synchronized (user) {
+                    version = user.version + 1;
+                    Map<Integer, Change> pending = new LinkedHashMap<>();
+                    for (int i = 0; i < requests.size(); i++) {
+                        ItemRequest item = requests.get(i);
+                        int id = item.getId();
+                        Change current = pending.get(id);
+                        int index = user.index(id);
+                        if (current == null && index < 0) {
+                            continue;
+                        }
+                        long currentVersion = current != null ? version : user.versions[index];
+                        if (item.getVersion() != null && item.getVersion() != currentVersion) {
+                            conflicts.put(new JSONObject().put("id", id)
+                                    .put("name", current != null ? current.name : user.names[index])
+                                    .put("amount", current != null ? current.amount : user.amounts[index])
+                                    .put("version", currentVersion));
+                            continue;
+                        }
+                        pending.put(id, Change.put(id, item.getName(), item.getAmount()));
+                        updated.add(new InventoryItem(id, item.getName(), item.getAmount(), version));
+                        counts[i] = 1;
+                    }
+                    if (pending.isEmpty()) {
+                        version = user.version;
+                    } else {
+                        position = write(user, version, new ArrayList<>(pending.values()));
+                    }
+                }
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            if (position >= 0) {
+                sync(position);
+                publish(listener -> listener.itemsUpdated(username, updated));
+            }
+            return new JSONObject().put("counts", counts).put("version", version).put("conflicts", conflicts);
+        } finally {
+            active.decrementAndGet();
+            Metrics.DAO_CALLS.recordSince("updateItem", start);
+        }
+    }
+
+    /**
+     * Add deltas to the amounts of a user's items at once. Items that do not belong to the user are left alone.
+     * @param username      User that the inventory items must belong to
+     * @param deltas        Delta to add per item id
+     * @return              Number of items updated
+     * @throws SQLException Throws if an amount leaves the integer range, in which case nothing is changed, or the
+     *                      log fails
+     */
+    @Override
+    public int adjustItems(String username, Map<Integer, Long> deltas) throws SQLException {
+        long start = System.nanoTime();
+        active.incrementAndGet();
+        try {
+            checkHealthy();
+            Map<Integer, Long> applied = new LinkedHashMap<>();
+            long version = 0;
+            long position = -1;
+            stateLock.readLock().lock();
+            try {
+                User user = users.get(username);
+                if (user == null) {
+                    return 0;
+                }
+                synchronized (user) {
+                    version = user.version + 1;
+                    List<Change> changes = new ArrayList<>();
+                    for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+                        int index = user.index(delta.getKey());
+                        if (index < 0) {
+                            continue;
+                        }
+                        long amount = user.amounts[index] + delta.getValue();
+                        if (amount < Integer.MIN_VALUE || amount > Integer.MAX_VALUE) {
+                            throw new SQLException("Amount of item " + delta.getKey() + " out of range", "22003");
+                        }
+                        changes.add(Change.put(delta.getKey(), user.names[index], (int) amount));
+                        applied.put(delta.getKey(), delta.getValue());
+                    }
+                    if (!changes.isEmpty()) {
+                        position = write(user, version, changes);
+                    }
+                }
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            if (position >= 0) {
+                long adjusted = version;
+                sync(position);
+                publish(listener -> listener.itemsAdjusted(username, applied, adjusted));
+            }
+            return applied.size();
+        } finally {
+            active.decrementAndGet();
+            Metrics.DAO_CALLS.recordSince("adjustItems", start);
+        }
+    }
+
+    /**
+     * Delete an inventory item of a user, leaving a tombstone for {@link #streamChanges}
+     * @param id            id of item to delete
+     * @param username      User that the item must belong to
+     * @return              True if the item was deleted, false if it does not exist or belongs to another user
+     * @throws SQLException Throws if the log fails
+     */
+    @Override
+    public boolean deleteItem(int id, String username) throws SQLException {
+        long start = System.nanoTime();
+        active.incrementAndGet();
+        try {
+            checkHealthy();
+            long position;
+            stateLock.readLock().lock();
+            try {
+                User user = users.get(username);
+                if (user == null) {
+                    return false;
+                }
+                synchronized (user) {
+                    if (user.index(id) < 0) {
+                        return false;
+                    }
+                    position = write(user, user.version + 1, Collections.singletonList(Change.delete(id)));
+                }
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            sync(position);
+            publish(listener -> listener.itemDeleted(username, id));
+            return true;
+        } finally {
+            active.decrementAndGet();
+            Metrics.DAO_CALLS.recordSince("deleteItem", start);
+        }
+    }
+
+    /**
+     * Add an item to a user's inventory
+     * @param name          Name of inventory item
+     * @param amount        Amount of inventory item
+     * @param username      User that inventory item corresponds to
+     * @return              Id of the new item, 0 if there is no such user
+     * @throws SQLException Throws if the name is too long or the log fails
+     */
+    @Override
+    public Integer addItem(String name, int amount, String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            checkName(name);
+            List<ItemRequest> items = Collections.singletonList(ItemRequest.newItem(name, amount));
+            Integer[] ids = insert("addItem", username, items);
+            return ids == null || ids[0] == null ? 0 : ids[0];
+        } finally {
+            Metrics.DAO_CALLS.recordSince("addItem", start);
+        }
+    }
+
+    /**
+     * Add several items to a user's inventory at once. Items without a name or amount, or with a name that is too
+     * long, are rejected; the others are added.
+     * @param items         Items to add, read one at a time
+     * @param username      User that inventory items correspond to
+     * @return              JSON Object with "ids", the new id of each item in order or null if it failed, and
+     *                      "errors", a list of {"index":Int, "error":String}
+     * @throws SQLException Throws if the log fails
+     */
+    @Override
+    public JSONObject addItems(Iterator<ItemRequest> items, String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            List<ItemRequest> accepted = new ArrayList<>();
+            JSONArray errors = new JSONArray();
+            while (items.hasNext()) {
+                ItemRequest item = items.next();
+                if (!item.isValidNewItem()) {
+                    errors.put(error(accepted.size(), "Expected {\"name\":String, \"amount\":Int}"));
+                    item = null;
+                } else if (item.getName().length() > MAX_NAME_LENGTH) {
+                    errors.put(error(accepted.size(), nameTooLong()));
+                    item = null;
+                }
+                accepted.add(item);
+            }
+            Integer[] ids = insert("addItems", username, accepted);
+            JSONArray idArray = new JSONArray();
+            for (int index = 0; index < accepted.size(); index++) {
+                if (ids == null && accepted.get(index) != null) {
+                    errors.put(error(index, "Unknown user"));
+                }
+                idArray.put(ids == null || ids[index] == null ? JSONObject.NULL : ids[index]);
+            }
+            return new JSONObject().put("ids", idArray).put("errors", sortByIndex(errors));
+        } finally {
+            Metrics.DAO_CALLS.recordSince("addItems", start);
+        }
+    }
+
+    /**
+     * Import a chunk of valid new items at once
+     * @param username      User that inventory items correspond to
+     * @param items         Valid new items to add
+     * @return              JSON Object with "inserted", the number of items added, and "errors", a list of
+     *                      {"index":Int, "error":String} by position in the chunk
+     * @throws SQLException Throws if the log fails
+     */
+    @Override
+    public JSONObject importItems(String username, List<ItemRequest> items) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            JSONArray errors = new JSONArray();
+            List<ItemRequest> accepted = new ArrayList<>(items);
+            for (int index = 0; index < items.size(); index++) {
+                if (items.get(index).getName().length() > MAX_NAME_LENGTH) {
+                    errors.put(error(index, nameTooLong()));
+                    accepted.set(index, null);
+                }
+            }
+            Integer[] ids = insert("importItems", username, accepted);
+            int inserted = 0;
+            if (ids == null) {
+                errors = new JSONArray();
+                for (int index = 0; index < items.size(); index++) {
+                    errors.put(error(index, "Unknown user"));
+                }
+            } else {
+                for (Integer id : ids) {
+                    inserted += id != null ? 1 : 0;
+                }
+            }
+            return new JSONObject().put("inserted", inserted).put("errors", errors);
+        } finally {
+            Metrics.DAO_CALLS.recordSince("importItems", start);
+        }
+    }
+
+    /**
+     * Add items to a user's inventory as one write and publish them
+     * @param call          Name of the calling method, for the batch size metric
+     * @param username      User that inventory items correspond to
+     * @param items         Items to add, null for items to skip
+     * @return              New id of each item in order, null for skipped items; null if there is no such user
+     * @throws SQLException Throws if the log fails
+     */
+    private Integer[] insert(String call, String username, List<ItemRequest> items) throws SQLException {
+        active.incrementAndGet();
+        try {
+            checkHealthy();
+            Integer[] ids = new Integer[items.size()];
+            List<InventoryItem> added = new ArrayList<>(items.size());
+            long position = -1;
+            stateLock.readLock().lock();
+            try {
+                User user = users.get(username);
+                if (user == null) {
+                    return null;
+                }
+                synchronized (user) {
+                    long version = user.version + 1;
+                    List<Change> changes = new ArrayList<>(items.size());
+                    for (int index = 0; index < items.size(); index++) {
+                        ItemRequest item = items.get(index);
+                        if (item != null) {
+                            ids[index] = nextItemId.getAndIncrement();
+                            changes.add(Change.put(ids[index], item.getName(), item.getAmount()));
+                            added.add(new InventoryItem(ids[index], item.getName(), item.getAmount(), version));
+                        }
+                    }
+                    if (!changes.isEmpty()) {
+                        Metrics.BATCH_SIZES.record(call, changes.size());
+                        position = write(user, version, changes);
+                    }
+                }
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            if (position >= 0) {
+                sync(position);
+                publish(listener -> listener.itemsAdded(username, added));
+            }
+            return ids;
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Remove all users and inventories
+     * @throws SQLException Throws if the log fails
+     */
+    @Override
+    public void cleanDatabase() throws SQLException {
+        cleanInventory();
+        cleanUsers();
+    }
+
+    /**
+     * Remove all inventories and restart item ids at 1. Versions are kept, so clients syncing changes see the
+     * inventory emptied through a version they have not seen.
+     * @throws SQLException Throws if the log fails
+     */
+    @Override
+    public void cleanInventory() throws SQLException {
+        clean(CLEAR_INVENTORY);
+        publish(InventoryListener::inventoryCleared);
+    }
+
+    /**
+     * Remove all users and restart user ids at 1
+     * @throws SQLException Throws if the log fails
+     */
+    @Override
+    public void cleanUsers() throws SQLException {
+        clean(CLEAR_USERS);
+    }
+
+    /**
+     * Log and apply a clear while no other write runs
+     * @param op            CLEAR_INVENTORY or CLEAR_USERS
+     * @throws SQLException Throws if the log fails
+     */
+    private void clean(byte op) throws SQLException {
+        stateLock.writeLock().lock();
+        try {
+            checkHealthy();
+            long position = append(new Record(op));
+            apply(op);
+            sync(position);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Log one write to a user's inventory and apply it. Called with the user's lock held.
+     * @param user          Owner of the inventory
+     * @param version       New version of the inventory
+     * @param changes       Items to put or delete
+     * @return              Log position to sync before the write is acknowledged
+     * @throws SQLException Throws if the log fails
+     */
+    private long write(User user, long version, List<Change> changes) throws SQLException {
+        Record record = new Record(WRITE).putString(user.username).putLong(version).putInt(changes.size());
+        for (Change change : changes) {
+            record.putByte(change.deleted ? DELETE : PUT).putInt(change.id);
+            if (!change.deleted) {
+                record.putString(change.name).putInt(change.amount);
+            }
+        }
+        long position = append(record);
+        apply(user, version, changes);
+        return position;
+    }
+
+    /**
+     * Apply one write to a user's inventory, both when writing and when replaying the log
+     * @param user      Owner of the inventory
+     * @param version   New version of the inventory
+     * @param changes   Items to put or delete
+     */
+    private void apply(User user, long version, List<Change> changes) {
+        int threshold = lowStockThreshold;
+        for (Change change : changes) {
+            if (change.deleted) {
+                user.delete(change.id, version, threshold);
+            } else {
+                user.put(change.id, change.name, change.amount, version, threshold);
+            }
+        }
+        user.version = version;
+    }
+
+    /**
+     * Apply a clear, both when writing and when replaying the log
+     * @param op CLEAR_INVENTORY or CLEAR_USERS
+     */
+    private void apply(byte op) {
+        if (op == CLEAR_INVENTORY) {
+            for (User user : users.values()) {
+                synchronized (user) {
+                    user.clear();
+                }
+            }
+            nextItemId.set(1);
+        } else {
+            users.clear();
+            nextUserId.set(1);
+        }
+    }
+
+    /**
+     * Apply one log record during recovery
+     * @param payload       Record read from the log
+     * @throws IOException  Throws if the record is malformed or refers to an unknown user
+     */
+    private void replay(byte[] payload) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        try {
+            byte op = in.get();
+            switch (op) {
+                case ADD_USER: {
+                    int id = in.getInt();
+                    String username = getString(in);
+                    String password = getString(in);
+                    if (!users.containsKey(username)) {
+                        users.put(username, new User(id, username, password));
+                    }
+                    nextUserId.accumulateAndGet(id + 1, Math::max);
+                    break;
+                }
+                case WRITE: {
+                    String username = getString(in);
+                    long version = in.getLong();
+                    int count = in.getInt();
+                    List<Change> changes = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        byte kind = in.get();
+                        int id = in.getInt();
+                        changes.add(kind == DELETE ? Change.delete(id) : Change.put(id, getString(in), in.getInt()));
+                        nextItemId.accumulateAndGet(id + 1, Math::max);
+                    }
+                    User user = users.get(username);
+                    if (user == null) {
+                        throw new IOException("Log record for unknown user " + username);
+                    }
+                    if (version > user.version) {
+                        apply(user, version, changes);
+                    }
+                    break;
+                }
+                case CLEAR_INVENTORY:
+                case CLEAR_USERS:
+                    apply(op);
+                    break;
+                default:
+                    throw new IOException("Unknown log record type " + op);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated log record", e);
+        }
+    }
+
+    /**
+     * Append a record to the log
+     * @param record        Record to append
+     * @return              Position to sync
+     * @throws SQLException Throws if the log fails
+     */
+    private long append(Record record) throws SQLException {
+        try {
+            return wal.append(record.toByteArray());
+        } catch (IOException e) {
+            throw new SQLException("Cannot write the log: " + e.getMessage(), "58030", e);
+        }
+    }
+
+    /**
+     * Wait until the log is durable up to a position
+     * @param position      Position returned by {@link #append}
+     * @throws SQLException Throws if the log fails
+     */
+    private void sync(long position) throws SQLException {
+        try {
+            wal.sync(position);
+        } catch (InterruptedIOException e) {
+            // The write may still become durable; only this caller stops waiting for it
+            throw new SQLException("Cannot sync the log: " + e.getMessage(), "58030", e);
+        } catch (IOException e) {
+            fail(e);
+            throw new SQLException("Cannot sync the log: " + e.getMessage(), "58030", e);
+        }
+    }
+
+    /**
+     * Fail the store after the log could not be synced, so that writes applied in memory but never made durable are
+     * not served
+     * @param e Failure of the log
+     */
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            System.err.println("Embedded store failed, restart to recover from the log: " + e);
+        }
+    }
+
+    /**
+     * @throws SQLException Throws if the store failed
+     */
+    private void checkHealthy() throws SQLException {
+        IOException e = failure;
+        if (e != null) {
+            throw new SQLException("Store failed: " + e.getMessage(), "58030", e);
+        }
+    }
+
+    /**
+     * Deliver an event to all listeners, isolating them from each other's failures
+     * @param event Event to deliver
+     */
+    private void publish(Consumer<InventoryListener> event) {
+        for (InventoryListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reject a name the JDBC schema would not hold either
+     * @param name          Name of an item
+     * @throws SQLException Throws if the name is too long
+     */
+    private static void checkName(String name) throws SQLException {
+        if (name.length() > MAX_NAME_LENGTH) {
+            throw new SQLException(nameTooLong(), "22001");
+        }
+    }
+
+    private static String nameTooLong() {
+        return "Name is longer than " + MAX_NAME_LENGTH + " characters";
+    }
+
+    /**
+     * Build a per-item error
+     * @param index Index of the item in the request
+     * @param error Reason the item was rejected
+     * @return      JSON Object describing the error
+     */
+    private static JSONObject error(int index, String error) {
+        return new JSONObject().put("index", index).put("error", error);
+    }
+
+    /**
+     * @param errors    Per-item errors
+     * @return          The errors ordered by item index
+     */
+    private static JSONArray sortByIndex(JSONArray errors) {
+        List<JSONObject> sorted = new ArrayList<>();
+        for (int i = 0; i < errors.length(); i++) {
+            sorted.add(errors.getJSONObject(i));
+        }
+        sorted.sort((a, b) -> Integer.compare(a.getInt("index"), b.getInt("index")));
+        return new JSONArray(sorted);
+    }
+
+    /**
+     * Write a snapshot from the scheduler or on close, which must not fail
+     */
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write a snapshot of every user, then drop snapshots and log segments that are no longer needed. Writes go on
+     * meanwhile; each user is copied under its lock, and the snapshot records the log position from which writes
+     * must be replayed on top of it.
+     * @throws IOException Throws if the snapshot cannot be written
+     */
+    void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            stateLock.readLock().lock();
+            try {
+                if (failure != null) {
+                    throw new IOException("Store failed, not writing a snapshot", failure);
+                }
+                long position;
+                List<User> all;
+                int userId;
+                addLock.lock();
+                try {
+                    position = wal.position();
+                    all = new ArrayList<>(users.values());
+                    userId = nextUserId.get();
+                } finally {
+                    addLock.unlock();
+                }
+                if (position == snapshotPosition) {
+                    return;
+                }
+                File tmp = new File(dir, SNAPSHOT_PREFIX + "tmp");
+                CRC32 crc = new CRC32();
+                try (FileOutputStream file = new FileOutputStream(tmp)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                            new CheckedOutputStream(file, crc), 1 << 16));
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.writeInt(SNAPSHOT_FORMAT);
+                    out.writeLong(position);
+                    out.writeInt(userId);
+                    out.writeInt(all.size());
+                    for (User user : all) {
+                        writeUser(out, user);
+                    }
+                    // Read last, so it is above every item id copied
+                    out.writeInt(nextItemId.get());
+                    out.flush();
+                    new DataOutputStream(file).writeLong(crc.getValue());
+                    file.getFD().sync();
+                }
+                // Writes copied into the snapshot must be durable in the log first, or one whose sync fails would
+                // come back from the snapshot
+                try {
+                    wal.sync(wal.position());
+                } catch (IOException e) {
+                    if (!(e instanceof InterruptedIOException)) {
+                        fail(e);
+                    }
+                    Files.delete(tmp.toPath());
+                    throw e;
+                }
+                File target = snapshotFile(position);
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                snapshotPosition = position;
+                List<Long> kept = snapshotPositions();
+                for (int i = 2; i < kept.size(); i++) {
+                    if (!snapshotFile(kept.get(i)).delete()) {
+                        System.err.println("Cannot delete " + snapshotFile(kept.get(i)));
+                    }
+                }
+                // Keep the log the older kept snapshot needs, in case the newer one turns out unreadable
+                wal.truncateBefore(kept.get(Math.min(1, kept.size() - 1)));
+            } finally {
+                stateLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Copy a user under its lock into a snapshot
+     * @param out           Snapshot stream
+     * @param user          User to write
+     * @throws IOException  Throws if the snapshot cannot be written
+     */
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        int size;
+        int[] ids;
+        String[] names;
+        int[] amounts;
+        long[] versions;
+        int tombstones;
+        int[] tombstoneIds;
+        long[] tombstoneVersions;
+        long version;
+        synchronized (user) {
+            version = user.version;
+            size = user.size;
+            ids = Arrays.copyOf(user.ids, size);
+            names = Arrays.copyOf(user.names, size);
+            amounts = Arrays.copyOf(user.amounts, size);
+            versions = Arrays.copyOf(user.versions, size);
+            tombstones = user.tombstones;
+            tombstoneIds = Arrays.copyOf(user.tombstoneIds, tombstones);
+            tombstoneVersions = Arrays.copyOf(user.tombstoneVersions, tombstones);
+        }
+        out.writeInt(user.id);
+        writeString(out, user.username);
+        writeString(out, user.password);
+        out.writeLong(version);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(ids[i]);
+            writeString(out, names[i]);
+            out.writeInt(amounts[i]);
+            out.writeLong(versions[i]);
+        }
+        out.writeInt(tombstones);
+        for (int i = 0; i < tombstones; i++) {
+            out.writeInt(tombstoneIds[i]);
+            out.writeLong(tombstoneVersions[i]);
+        }
+    }
+
+    /**
+     * Load the newest snapshot that is intact, skipping any that fail their checksum
+     * @return              Log position to replay from, 0 if there is no snapshot
+     * @throws IOException  Throws if a snapshot file cannot be read
+     */
+    private long loadSnapshot() throws IOException {
+        for (long position : snapshotPositions()) {
+            byte[] data = Files.readAllBytes(snapshotFile(position).toPath());
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, Math.max(0, data.length - 8));
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (data.length < 8 || in.getLong(data.length - 8) != crc.getValue()
+                    || in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_FORMAT) {
+                System.err.println("Skipping damaged snapshot " + snapshotFile(position));
+                continue;
+            }
+            in.getLong();
+            nextUserId.set(in.getInt());
+            int count = in.getInt();
+            for (int u = 0; u < count; u++) {
+                User user = new User(in.getInt(), getString(in), getString(in));
+                user.version = in.getLong();
+                int size = in.getInt();
+                for (int i = 0; i < size; i++) {
+                    user.put(in.getInt(), getString(in), in.getInt(), in.getLong(), lowStockThreshold);
+                }
+                int tombstones = in.getInt();
+                for (int i = 0; i < tombstones; i++) {
+                    user.tombstone(in.getInt(), in.getLong());
+                }
+                users.put(user.username, user);
+            }
+            nextItemId.set(in.getInt());
+            snapshotPosition = position;
+            return position;
+        }
+        return 0;
+    }
+
+    /**
+     * @return Log positions of the snapshots in the directory, newest first
+     */
+    private List<Long> snapshotPositions() {
+        List<Long> positions = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)) {
+                    try {
+                        positions.add(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(),
+                                name.length() - SNAPSHOT_SUFFIX.length()), 16));
+                    } catch (NumberFormatException e) {
+                        // Not a snapshot
+                    }
+                }
+            }
+        }
+        positions.sort(Collections.reverseOrder());
+        return positions;
+    }
+
+    private File snapshotFile(long position) {
+        return new File(dir, String.format("%s%016x%s", SNAPSHOT_PREFIX, position, SNAPSHOT_SUFFIX));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A user with its inventory held in parallel arrays sorted by id, its tombstones in version order and its summary
+     * counters. Guarded by its own monitor.
+     */
+    private static final class User {
+        private final int id;
+        private final String username;
+        private final String password;
+        private long version;
+        private int size;
+        private int[] ids = new int[4];
+        private String[] names = new String[4];
+        private int[] amounts = new int[4];
+        private long[] versions = new long[4];
+        private int tombstones;
+        private int[] tombstoneIds = new int[0];
+        private long[] tombstoneVersions = new long[0];
+        private long units;
+        private long lowStock;
+
+        private User(int id, String username, String password) {
+            this.id = id;
+            this.username = username;
+            this.password = password;
+        }
+
+        /**
+         * @param id    Id of an item
+         * @return      Index of the item, or (-(insertion point) - 1) if the user has no such item
+         */
+        private int index(int id) {
+            return Arrays.binarySearch(ids, 0, size, id);
+        }
+
+        private void put(int id, String name, int amount, long version, int threshold) {
+            int index = index(id);
+            if (index >= 0) {
+                count(amounts[index], -1, threshold);
+            } else {
+                index = -index - 1;
+                if (size == ids.length) {
+                    int capacity = size * 2;
+                    ids = Arrays.copyOf(ids, capacity);
+                    names = Arrays.copyOf(names, capacity);
+                    amounts = Arrays.copyOf(amounts, capacity);
+                    versions = Arrays.copyOf(versions, capacity);
+                }
+                // New ids are the largest so far, so this only shifts when an older id is put back
+                System.arraycopy(ids, index, ids, index + 1, size - index);
+                System.arraycopy(names, index, names, index + 1, size - index);
+                System.arraycopy(amounts, index, amounts, index + 1, size - index);
+                System.arraycopy(versions, index, versions, index + 1, size - index);
+                size++;
+                ids[index] = id;
+            }
+            names[index] = name;
+            amounts[index] = amount;
+            versions[index] = version;
+            count(amount, 1, threshold);
+        }
+
+        private void delete(int id, long version, int threshold) {
+            int index = index(id);
+            if (index < 0) {
+                return;
+            }
+            count(amounts[index], -1, threshold);
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            System.arraycopy(names, index + 1, names, index, size - index - 1);
+            System.arraycopy(amounts, index + 1, amounts, index, size - index - 1);
+            System.arraycopy(versions, index + 1, versions, index, size - index - 1);
+            size--;
+            names[size] = null;
+            tombstone(id, version);
+        }
+
+        private void tombstone(int id, long version) {
+            if (tombstones == tombstoneIds.length) {
+                int capacity = Math.max(4, tombstones * 2);
+                tombstoneIds = Arrays.copyOf(tombstoneIds, capacity);
+                tombstoneVersions = Arrays.copyOf(tombstoneVersions, capacity);
+            }
+            tombstoneIds[tombstones] = id;
+            tombstoneVersions[tombstones++] = version;
+        }
+
+        private void count(int amount, int sign, int threshold) {
+            units += sign * (long) amount;
+            lowStock += amount <= threshold ? sign : 0;
+        }
+
+        private void recount(int threshold) {
+            units = 0;
+            lowStock = 0;
+            for (int i = 0; i < size; i++) {
+                count(amounts[i], 1, threshold);
+            }
+        }
+
+        private void clear() {
+            size = 0;
+            ids = new int[4];
+            names = new String[4];
+            amounts = new int[4];
+            versions = new long[4];
+            tombstones = 0;
+            tombstoneIds = new int[0];
+            tombstoneVersions = new long[0];
+            units = 0;
+            lowStock = 0;
+        }
+    }
+
+    /**
+     * An item put or deleted by a write
+     */
+    private static final class Change {
+        private final int id;
+        private final String name;
+        private final int amount;
+        private final boolean deleted;
+
+        private Change(int id, String name, int amount, boolean deleted) {
+            this.id = id;
+            this.name = name;
+            this.amount = amount;
+            this.deleted = deleted;
+        }
+
+        private static Change put(int id, String name, int amount) {
+            return new Change(id, name, amount, false);
+        }
+
+        private static Change delete(int id) {
+            return new Change(id, null, 0, true);
+        }
+    }
+
+    /**
+     * Builder of a log record
+     */
+    private static final class Record {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private Record(byte op) {
+            putByte(op);
+        }
+
+        private Record putByte(byte value) {
+            bytes.write(value);
+            return this;
+        }
+
+        private Record putInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        private Record putLong(long value) {
+            try {
+                out.writeLong(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        private Record putString(String value) {
+            try {
+                writeString(out, value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
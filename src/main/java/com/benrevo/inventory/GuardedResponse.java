@@ -0,0 +1,308 @@
+package com.benrevo.inventory;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Response handed to a task on the {@link DatabaseExecutor} that writes to the servlet response itself.
+ *
+ * Once a request is answered without the task, e.g. with 503 after a timeout, the container completes and recycles
+ * the response, possibly for another request, while the task may still be running. {@link #revoke()} is called
+ * before that happens: it waits for a write in progress to finish, and afterwards every status, header and body write
+ * of the task fails with an IOException or IllegalStateException instead of reaching the servlet response.
+ *
+ * @author John Hurst
+ */
+public class GuardedResponse extends HttpServletResponseWrapper {
+
+    private final Object lock = new Object();
+    private volatile boolean revoked;
+    private ServletOutputStream out;
+    private PrintWriter writer;
+
+    /**
+     * @param response Response of the request
+     */
+    public GuardedResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Stop the task from touching the response, waiting for a write in progress to finish
+     */
+    public void revoke() {
+        revoked = true;
+        synchronized (lock) {
+            // Entered once the write holding the lock is done
+        }
+    }
+
+    /**
+     * @return True once the response has been taken away from the task
+     */
+    public boolean isRevoked() {
+        return revoked;
+    }
+
+    /**
+     * @return True if the response has been committed, or taken away from the task
+     */
+    @Override
+    public boolean isCommitted() {
+        synchronized (lock) {
+            return revoked || super.isCommitted();
+        }
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        synchronized (lock) {
+            check();
+            super.setStatus(sc);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        synchronized (lock) {
+            check();
+            super.setStatus(sc, sm);
+        }
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            super.sendError(sc);
+        }
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            super.sendError(sc, msg);
+        }
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            super.sendRedirect(location);
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        synchronized (lock) {
+            check();
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        synchronized (lock) {
+            check();
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        synchronized (lock) {
+            check();
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        synchronized (lock) {
+            check();
+            super.addIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        synchronized (lock) {
+            check();
+            super.setDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        synchronized (lock) {
+            check();
+            super.addDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public void setContentType(String type) {
+        synchronized (lock) {
+            check();
+            super.setContentType(type);
+        }
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        synchronized (lock) {
+            check();
+            super.setCharacterEncoding(charset);
+        }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        synchronized (lock) {
+            check();
+            super.setContentLength(len);
+        }
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        synchronized (lock) {
+            check();
+            super.setContentLengthLong(len);
+        }
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        synchronized (lock) {
+            check();
+            super.setBufferSize(size);
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        synchronized (lock) {
+            check();
+            super.resetBuffer();
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized (lock) {
+            check();
+            super.reset();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            if (out == null) {
+                out = new GuardedOutputStream(super.getOutputStream());
+            }
+            return out;
+        }
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(new GuardedOutputStream(super.getOutputStream()),
+                        getCharacterEncoding()));
+            }
+            return writer;
+        }
+    }
+
+    /**
+     * @throws IllegalStateException Throws if the response has been revoked
+     */
+    private void check() {
+        if (revoked) {
+            throw new IllegalStateException("Response was completed without the task");
+        }
+    }
+
+    /**
+     * @throws IOException Throws if the response has been revoked
+     */
+    private void checkOpen() throws IOException {
+        if (revoked) {
+            throw new IOException("Response was completed without the task");
+        }
+    }
+
+    /**
+     * Body stream writing to the servlet response only while the response is not revoked
+     */
+    private class GuardedOutputStream extends ServletOutputStream {
+        private final ServletOutputStream delegate;
+
+        GuardedOutputStream(ServletOutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (lock) {
+                checkOpen();
+                delegate.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (lock) {
+                checkOpen();
+                delegate.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (lock) {
+                checkOpen();
+                delegate.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (lock) {
+                checkOpen();
+                delegate.close();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return !revoked && delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            delegate.setWriteListener(listener);
+        }
+    }
+}
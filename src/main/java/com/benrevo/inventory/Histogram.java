@@ -0,0 +1,146 @@
+package com.benrevo.inventory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values, such as latencies in nanoseconds or batch sizes.
+ *
+ * Buckets are log-linear: every power of two is split into 16 equal buckets, so a quantile is reported within 1/16
+ * (6.25%) of the recorded value, from single units up to 2^40 (about 18 minutes in nanoseconds); larger values fall in
+ * the last bucket. Recording is one atomic increment plus striped sum and max updates, so it is cheap enough to run
+ * on every request and every query.
+ *
+ * @author John Hurst
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value
+     * @param value Value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Record the time elapsed since a start time
+     * @param startNanos Start time from System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return Number of recorded values
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return Sum of recorded values
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return Largest recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value below which a fraction of the recorded values fall
+     * @param quantile  Fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return          Upper bound of the bucket holding the quantile, capped at the largest recorded value, or 0 if
+     *                  nothing was recorded
+     */
+    public long valueAt(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Add all values recorded by another histogram
+     * @param other Histogram to merge into this one
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        sum.add(other.getSum());
+        max.accumulateAndGet(other.getMax(), Math::max);
+    }
+
+    /**
+     * Find the bucket of a value
+     * @param value Non-negative value
+     * @return      Bucket index
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb > MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = msb - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Get the largest value that falls in a bucket
+     * @param bucket    Bucket index
+     * @return          Upper bound of the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,293 @@
+package com.benrevo.inventory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull reader for bulk import bodies in NDJSON or CSV. Records are read one at a time from the stream, so memory use
+ * is bounded by the longest record, not by the size of the body.
+ *
+ * NDJSON bodies hold one {"name":String, "amount":Int} object per line. CSV bodies start with a header line naming a
+ * "name" and an "amount" column in any order; other columns, such as the "id" column of a CSV export, are ignored, so
+ * an exported inventory can be imported as it is. CSV fields may be quoted, with "" for a quote inside a quoted field,
+ * and a quoted field may span lines. Blank lines are skipped in both formats.
+ *
+ * A record that cannot be parsed, or that is longer than the record limit, is rejected with an error and reading
+ * continues with the next record; only a body that cannot be read at all, or a CSV body without a usable header,
+ * fails the import.
+ *
+ * @author John Hurst
+ */
+public class ImportReader implements Closeable {
+
+    private static final String EXPECTED_ITEM = "Expected {\"name\":String, \"amount\":Int}";
+
+    private final Reader in;
+    private final InventoryStreamWriter.Format format;
+    private final int maxRecordChars;
+    private final StringBuilder record = new StringBuilder();
+    private final StringBuilder field = new StringBuilder();
+    private final List<String> fields = new ArrayList<>();
+    private int nameColumn = -1;
+    private int amountColumn = -1;
+    private int line = 1;
+    private int recordLine;
+    private int recordChars;
+    private boolean tooLong;
+    private ItemRequest item;
+    private String error;
+
+    /**
+     * Start reading a body
+     * @param in                Request body, encoded in UTF-8
+     * @param format            Format of the body, NDJSON or CSV
+     * @param maxRecordChars    Maximum length of one record in characters
+     * @throws IOException      Throws if the body cannot be read
+     * @throws IllegalArgumentException Throws if the format is not NDJSON or CSV, or the CSV header does not name
+     *                                  the name and amount columns
+     */
+    public ImportReader(InputStream in, InventoryStreamWriter.Format format, int maxRecordChars) throws IOException {
+        if (format != InventoryStreamWriter.Format.NDJSON && format != InventoryStreamWriter.Format.CSV) {
+            throw new IllegalArgumentException("Expected format=ndjson or format=csv");
+        }
+        this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+        this.format = format;
+        this.maxRecordChars = maxRecordChars;
+        if (format == InventoryStreamWriter.Format.CSV) {
+            readHeader();
+        }
+    }
+
+    /**
+     * Advance to the next record
+     * @return              True if positioned on a record, false at the end of the body
+     * @throws IOException  Throws if the body cannot be read
+     */
+    public boolean next() throws IOException {
+        item = null;
+        error = null;
+        while (true) {
+            if (format == InventoryStreamWriter.Format.CSV) {
+                if (!readCsvRecord()) {
+                    return false;
+                }
+                if (fields.isEmpty() && !tooLong) {
+                    continue;
+                }
+            } else {
+                if (!readLine()) {
+                    return false;
+                }
+                if (isBlank(record) && !tooLong) {
+                    continue;
+                }
+            }
+            if (tooLong) {
+                error = "Record exceeds " + maxRecordChars + " characters";
+            } else if (format == InventoryStreamWriter.Format.CSV) {
+                parseCsvItem();
+            } else {
+                parseJsonItem();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return Line of the body on which the current record starts, counting from 1 with the CSV header as line 1
+     */
+    public int getLine() {
+        return recordLine;
+    }
+
+    /**
+     * @return Item of the current record, null if the record was rejected
+     */
+    public ItemRequest getItem() {
+        return item;
+    }
+
+    /**
+     * @return Reason the current record was rejected, null if it holds a valid item
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Read the CSV header and locate the name and amount columns
+     * @throws IOException  Throws if the body cannot be read
+     */
+    private void readHeader() throws IOException {
+        do {
+            if (!readCsvRecord()) {
+                throw new IllegalArgumentException("Expected a CSV header naming the name and amount columns");
+            }
+            if (tooLong) {
+                throw new IllegalArgumentException("CSV header exceeds " + maxRecordChars + " characters");
+            }
+        } while (fields.isEmpty());
+        for (int i = 0; i < fields.size(); i++) {
+            String name = fields.get(i).trim();
+            if (i == 0 && name.startsWith("\uFEFF")) {
+                name = name.substring(1);
+            }
+            if (name.equalsIgnoreCase("name")) {
+                nameColumn = i;
+            } else if (name.equalsIgnoreCase("amount")) {
+                amountColumn = i;
+            }
+        }
+        if (nameColumn < 0 || amountColumn < 0) {
+            throw new IllegalArgumentException("Expected a CSV header naming the name and amount columns");
+        }
+    }
+
+    /**
+     * Parse the current line as a JSON item
+     */
+    private void parseJsonItem() {
+        try (RequestReader reader = new RequestReader(record.toString())) {
+            ItemRequest parsed = ItemRequest.read(reader);
+            if (parsed.isValidNewItem()) {
+                item = parsed;
+            } else {
+                error = EXPECTED_ITEM;
+            }
+        } catch (IOException e) {
+            error = "Malformed JSON: " + e.getMessage().split("\n", 2)[0];
+        }
+    }
+
+    /**
+     * Parse the fields of the current CSV record as an item
+     */
+    private void parseCsvItem() {
+        if (fields.size() <= Math.max(nameColumn, amountColumn)) {
+            error = "Expected " + (Math.max(nameColumn, amountColumn) + 1) + " columns, found " + fields.size();
+            return;
+        }
+        String amount = fields.get(amountColumn).trim();
+        try {
+            item = ItemRequest.newItem(fields.get(nameColumn), Integer.parseInt(amount));
+        } catch (NumberFormatException e) {
+            error = "Expected an integer amount, found \"" + amount + "\"";
+        }
+    }
+
+    /**
+     * Read one line into the record buffer, keeping at most the record limit and dropping a trailing CR
+     * @return              False at the end of the body
+     * @throws IOException  Throws if the body cannot be read
+     */
+    private boolean readLine() throws IOException {
+        record.setLength(0);
+        tooLong = false;
+        recordChars = 0;
+        recordLine = line;
+        int c = in.read();
+        if (c < 0) {
+            return false;
+        }
+        while (c >= 0 && c != '\n') {
+            append(record, (char) c);
+            c = in.read();
+        }
+        line++;
+        int last = record.length() - 1;
+        if (last >= 0 && record.charAt(last) == '\r') {
+            record.setLength(last);
+        }
+        return true;
+    }
+
+    /**
+     * Read one CSV record into the field list. Quoted fields may contain separators and line breaks. A record longer
+     * than the limit is read to its end and flagged.
+     * @return              False at the end of the body
+     * @throws IOException  Throws if the body cannot be read
+     */
+    private boolean readCsvRecord() throws IOException {
+        fields.clear();
+        field.setLength(0);
+        tooLong = false;
+        recordChars = 0;
+        recordLine = line;
+        int c = in.read();
+        if (c < 0) {
+            return false;
+        }
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        while (c >= 0) {
+            if (quoted) {
+                if (c == '"') {
+                    c = in.read();
+                    if (c != '"') {
+                        quoted = false;
+                        continue;
+                    }
+                }
+                if (c == '\n') {
+                    line++;
+                }
+                append(field, (char) c);
+            } else if (c == '"' && field.length() == 0 && !wasQuoted) {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                if (++recordChars > maxRecordChars) {
+                    tooLong = true;
+                } else {
+                    fields.add(field.toString());
+                }
+                field.setLength(0);
+                wasQuoted = false;
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                append(field, (char) c);
+            }
+            c = in.read();
+        }
+        line++;
+        if (!fields.isEmpty() || field.length() > 0 || wasQuoted) {
+            fields.add(field.toString());
+        }
+        return true;
+    }
+
+    /**
+     * Append a character unless the record has reached the record limit, in which case the record is flagged
+     * @param buffer    Buffer to append to
+     * @param c         Character to append
+     */
+    private void append(StringBuilder buffer, char c) {
+        if (++recordChars > maxRecordChars) {
+            tooLong = true;
+            return;
+        }
+        buffer.append(c);
+    }
+
+    private static boolean isBlank(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isWhitespace(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+package com.benrevo.inventory;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of whole user inventories, sorted by id, kept in front of {@link InventoryStore} reads.
+ *
+ * The cache holds at most maxUsers inventories, evicting the least recently used one, and drops an inventory once it
+ * is older than the ttl. Inventories larger than maxItems are not cached, so they keep streaming from the database.
+ * Any change to a user's inventory invalidates it. A load that overlaps such a change is discarded instead of being
+ * cached: loads register a token that invalidation removes, and a result is only stored if its token survived.
+ *
+ * @author John Hurst
+ */
+public class InventoryCache implements InventoryListener {
+
+    private static final Comparator<InventoryItem> BY_ID = Comparator.comparingInt(InventoryItem::getId);
+
+    private final int maxItems;
+    private final long ttlNanos;
+    private final Map<String, CachedInventory> entries;
+    private final Map<String, Object> loads = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Create an empty cache
+     * @param maxUsers      Maximum number of cached inventories
+     * @param maxItems      Maximum number of items of a cached inventory
+     * @param ttlSeconds    Time in seconds an inventory stays cached
+     */
+    public InventoryCache(int maxUsers, int maxItems, long ttlSeconds) {
+        this.maxItems = maxItems;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.entries = new LinkedHashMap<String, CachedInventory>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedInventory> eldest) {
+                if (size() > maxUsers) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return Maximum number of items of a cached inventory
+     */
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    /**
+     * Get a user's cached inventory
+     * @param username  Owner of the inventory
+     * @return          Items sorted by id, or null if the inventory is not cached
+     */
+    public List<InventoryItem> get(String username) {
+        CachedInventory entry;
+        synchronized (entries) {
+            entry = entries.get(username);
+            if (entry != null && System.nanoTime() - entry.loadedAt > ttlNanos) {
+                entries.remove(username);
+                expirations.increment();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.items;
+    }
+
+    /**
+     * Get one page of a user's cached inventory
+     * @param username  Owner of the inventory
+     * @param afterId   Only items with a larger id are returned
+     * @param limit     Maximum number of items to return
+     * @return          Items sorted by id, or null if the inventory is not cached
+     */
+    public List<InventoryItem> getPage(String username, int afterId, int limit) {
+        List<InventoryItem> items = get(username);
+        if (items == null) {
+            return null;
+        }
+        int from = Collections.binarySearch(items, new InventoryItem(afterId, null, 0), BY_ID);
+        from = from >= 0 ? from + 1 : -from - 1;
+        return items.subList(from, Math.min(items.size(), from + Math.max(limit, 0)));
+    }
+
+    /**
+     * Announce that a user's inventory is about to be read from the database
+     * @param username  Owner of the inventory
+     * @return          Token to hand to {@link #finishLoad}
+     */
+    public Object startLoad(String username) {
+        Object token = new Object();
+        loads.put(username, token);
+        return token;
+    }
+
+    /**
+     * Cache an inventory read from the database, unless it was changed since the load started
+     * @param username  Owner of the inventory
+     * @param token     Token returned by {@link #startLoad}
+     * @param items     Complete inventory, or null if the read failed or the inventory was too large
+     */
+    public void finishLoad(String username, Object token, List<InventoryItem> items) {
+        if (!loads.remove(username, token) || items == null || items.size() > maxItems) {
+            return;
+        }
+        List<InventoryItem> sorted = new ArrayList<>(items);
+        sorted.sort(BY_ID);
+        synchronized (entries) {
+            entries.put(username, new CachedInventory(Collections.unmodifiableList(sorted), System.nanoTime()));
+        }
+    }
+
+    /**
+     * Drop a user's inventory and discard loads of it that are in progress
+     * @param username Owner of the inventory
+     */
+    public void invalidate(String username) {
+        loads.remove(username);
+        synchronized (entries) {
+            entries.remove(username);
+        }
+        invalidations.increment();
+    }
+
+    /**
+     * Drop all inventories and discard all loads in progress
+     */
+    public void clear() {
+        loads.clear();
+        synchronized (entries) {
+            entries.clear();
+        }
+        invalidations.increment();
+    }
+
+    @Override
+    public void itemsAdded(String username, List<InventoryItem> items) {
+        invalidate(username);
+    }
+
+    @Override
+    public void itemsImported(String username) {
+        invalidate(username);
+    }
+
+    @Override
+    public void itemsUpdated(String username, List<InventoryItem> items) {
+        invalidate(username);
+    }
+
+    @Override
+    public void itemsAdjusted(String username, Map<Integer, Long> deltas, long version) {
+        invalidate(username);
+    }
+
+    @Override
+    public void itemDeleted(String username, int id) {
+        invalidate(username);
+    }
+
+    @Override
+    public void inventoryCleared() {
+        clear();
+    }
+
+    /**
+     * Get a snapshot of the cache statistics
+     * @return JSON Object with the cache size and lifetime counters
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        synchronized (entries) {
+            stats.put("size", entries.size());
+        }
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("expirations", expirations.sum());
+        stats.put("invalidations", invalidations.sum());
+        stats.put("hitRatio", lookups == 0 ? 0 : (double) hitCount / lookups);
+        return stats;
+    }
+
+    /**
+     * Cached inventory and the time it was read
+     */
+    private static class CachedInventory {
+        private final List<InventoryItem> items;
+        private final long loadedAt;
+
+        private CachedInventory(List<InventoryItem> items, long loadedAt) {
+            this.items = items;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.benrevo.inventory;
+
+/**
+ * Immutable inventory row.
+ *
+ * @author John Hurst
+ */
+public class InventoryItem {
+    private final int id;
+    private final String name;
+    private final int amount;
+    private final long version;
+
+    public InventoryItem(int id, String name, int amount) {
+        this(id, name, amount, 0);
+    }
+
+    public InventoryItem(int id, String name, int amount, long version) {
+        this.id = id;
+        this.name = name;
+        this.amount = amount;
+        this.version = version;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,61 @@
+package com.benrevo.inventory;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives inventory changes made through an {@link InventoryStore}. Events are delivered on the writing thread after
+ * the change has been committed, and only for rows that were actually changed. Listeners must be fast and must not
+ * throw; an exception is logged and does not affect other listeners.
+ *
+ * @author John Hurst
+ */
+public interface InventoryListener {
+
+    /**
+     * Items were added
+     * @param username  Owner of the items
+     * @param items     Added items, with their new ids
+     */
+    default void itemsAdded(String username, List<InventoryItem> items) {
+    }
+
+    /**
+     * Items were added by a bulk import that does not report their ids, so listeners holding a copy of the user's
+     * inventory must drop it
+     * @param username  Owner of the items
+     */
+    default void itemsImported(String username) {
+    }
+
+    /**
+     * Items were replaced
+     * @param username  Owner of the items
+     * @param items     New state of the items
+     */
+    default void itemsUpdated(String username, List<InventoryItem> items) {
+    }
+
+    /**
+     * Deltas were added to the amounts of items
+     * @param username  Owner of the items
+     * @param deltas    Delta added per item id
+     * @param version   New version of the adjusted items
+     */
+    default void itemsAdjusted(String username, Map<Integer, Long> deltas, long version) {
+    }
+
+    /**
+     * An item was deleted
+     * @param username  Owner of the item
+     * @param id        Id of the deleted item
+     */
+    default void itemDeleted(String username, int id) {
+    }
+
+    /**
+     * The inventory of all users was removed
+     */
+    default void inventoryCleared() {
+    }
+}
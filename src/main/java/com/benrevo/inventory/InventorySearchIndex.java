@@ -0,0 +1,541 @@
+package com.benrevo.inventory;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * In-memory search indexes of user inventories, built on first search and kept up to date by inventory changes.
+ *
+ * A user's index keeps the items sorted by lower-cased name, for prefix search, and by amount, for amount ranges such
+ * as low stock. Substring search looks up the rarest bigram or trigram of the query in an n-gram index and checks only
+ * the items it lists, keeping the first ones by name; single characters, and queries whose rarest n-gram is common,
+ * walk the names in order instead and stop at the limit. Postings of renamed or deleted items are left in place, since
+ * every candidate is checked against its current name anyway, and are rebuilt once they make up a third of the index.
+ *
+ * Indexes are kept for at most maxItems items in total, evicting the least recently searched users, and are dropped
+ * after the ttl so that changes made by other instances are picked up. As in {@link InventoryCache}, a build that
+ * overlaps a change of the inventory is used for the search that asked for it but is not kept.
+ *
+ * @author John Hurst
+ */
+public class InventorySearchIndex implements InventoryListener {
+
+    private final long maxItems;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, UserIndex> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Object> loads = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Create an empty index
+     * @param maxItems      Maximum number of items indexed over all users, 0 to keep no index between searches
+     * @param ttlSeconds    Time in seconds a user's index is kept
+     */
+    public InventorySearchIndex(long maxItems, long ttlSeconds) {
+        this.maxItems = maxItems;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Get a user's index
+     * @param username  Owner of the inventory
+     * @return          Index of the inventory, or null if it has to be built
+     */
+    public UserIndex get(String username) {
+        UserIndex index;
+        synchronized (entries) {
+            index = entries.get(username);
+            if (index != null && System.nanoTime() - index.builtAt > ttlNanos) {
+                entries.remove(username);
+                expirations.increment();
+                index = null;
+            }
+        }
+        if (index != null) {
+            hits.increment();
+        }
+        return index;
+    }
+
+    /**
+     * Announce that a user's inventory is about to be read to build its index
+     * @param username  Owner of the inventory
+     * @return          Token to hand to {@link #finishLoad}
+     */
+    public Object startLoad(String username) {
+        Object token = new Object();
+        loads.put(username, token);
+        return token;
+    }
+
+    /**
+     * Build the index of an inventory read from the database, and keep it unless the inventory was changed since the
+     * load started or it does not fit
+     * @param username  Owner of the inventory
+     * @param token     Token returned by {@link #startLoad}
+     * @param items     Complete inventory
+     * @return          Index of the inventory, kept or not
+     */
+    public UserIndex finishLoad(String username, Object token, Collection<InventoryItem> items) {
+        UserIndex index = new UserIndex(items);
+        builds.increment();
+        if (!loads.remove(username, token) || items.size() > maxItems) {
+            return index;
+        }
+        synchronized (entries) {
+            entries.remove(username);
+            long total = items.size();
+            for (UserIndex entry : entries.values()) {
+                total += entry.size();
+            }
+            Iterator<UserIndex> eldest = entries.values().iterator();
+            while (total > maxItems && eldest.hasNext()) {
+                total -= eldest.next().size();
+                eldest.remove();
+                evictions.increment();
+            }
+            entries.put(username, index);
+        }
+        return index;
+    }
+
+    /**
+     * Drop a user's index and discard builds of it that are in progress
+     * @param username Owner of the inventory
+     */
+    public void invalidate(String username) {
+        loads.remove(username);
+        synchronized (entries) {
+            entries.remove(username);
+        }
+    }
+
+    /**
+     * Drop all indexes and discard all builds in progress
+     */
+    public void clear() {
+        loads.clear();
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Find the index an event applies to, discarding builds of it that are in progress
+     * @param username  Owner of the changed inventory
+     * @return          Kept index of the inventory, or null if there is none
+     */
+    private UserIndex changed(String username) {
+        loads.remove(username);
+        synchronized (entries) {
+            return entries.get(username);
+        }
+    }
+
+    @Override
+    public void itemsAdded(String username, List<InventoryItem> items) {
+        UserIndex index = changed(username);
+        if (index != null) {
+            index.putAll(items);
+        }
+    }
+
+    @Override
+    public void itemsImported(String username) {
+        invalidate(username);
+    }
+
+    @Override
+    public void itemsUpdated(String username, List<InventoryItem> items) {
+        UserIndex index = changed(username);
+        if (index != null) {
+            index.putAll(items);
+        }
+    }
+
+    @Override
+    public void itemsAdjusted(String username, Map<Integer, Long> deltas, long version) {
+        UserIndex index = changed(username);
+        if (index != null) {
+            index.adjust(deltas, version);
+        }
+    }
+
+    @Override
+    public void itemDeleted(String username, int id) {
+        UserIndex index = changed(username);
+        if (index != null) {
+            index.remove(id);
+        }
+    }
+
+    @Override
+    public void inventoryCleared() {
+        clear();
+    }
+
+    /**
+     * Get a snapshot of the index statistics
+     * @return JSON Object with the number of indexed users and items and lifetime counters
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        synchronized (entries) {
+            long items = 0;
+            for (UserIndex entry : entries.values()) {
+                items += entry.size();
+            }
+            stats.put("users", entries.size());
+            stats.put("items", items);
+        }
+        stats.put("maxItems", maxItems);
+        stats.put("hits", hits.sum());
+        stats.put("builds", builds.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("expirations", expirations.sum());
+        return stats;
+    }
+
+    /**
+     * Search criteria
+     */
+    public static class Query {
+        private final String text;
+        private final boolean substring;
+        private final int minAmount;
+        private final int maxAmount;
+        private final int limit;
+
+        /**
+         * Create a query
+         * @param text      Text the name must start with or contain, ignoring case; null or empty matches any name
+         * @param substring True to match the text anywhere in the name, false to match a prefix
+         * @param minAmount Smallest amount to return, null for no bound
+         * @param maxAmount Largest amount to return, null for no bound
+         * @param limit     Maximum number of items to return
+         */
+        public Query(String text, boolean substring, Integer minAmount, Integer maxAmount, int limit) {
+            this.text = text == null ? "" : text.toLowerCase(Locale.ROOT);
+            this.substring = substring;
+            this.minAmount = minAmount == null ? Integer.MIN_VALUE : minAmount;
+            this.maxAmount = maxAmount == null ? Integer.MAX_VALUE : maxAmount;
+            this.limit = limit;
+        }
+
+        private boolean inRange(Entry entry) {
+            return entry.amount >= minAmount && entry.amount <= maxAmount;
+        }
+    }
+
+    /**
+     * Search index of one user's inventory. All methods are thread safe.
+     */
+    public static class UserIndex {
+        private static final int MIN_GRAM = 2;
+        private static final int MAX_GRAM = 3;
+        private static final int MIN_COMPACT_POSTINGS = 1024;
+        private static final int SCAN_FRACTION = 16;
+        private static final Comparator<Entry> BY_NAME =
+                Comparator.comparing((Entry e) -> e.key).thenComparingInt(e -> e.id);
+        private static final Comparator<Entry> BY_AMOUNT =
+                Comparator.comparingInt((Entry e) -> e.amount).thenComparingInt(e -> e.id);
+
+        private final long builtAt = System.nanoTime();
+        private final Map<Integer, Entry> items = new HashMap<>();
+        private final NavigableSet<Entry> byName = new TreeSet<>(BY_NAME);
+        private final NavigableSet<Entry> byAmount = new TreeSet<>(BY_AMOUNT);
+        private final Map<String, Postings> grams = new HashMap<>();
+        private long postings;
+        private long stalePostings;
+        private boolean renamed;
+
+        /**
+         * Index an inventory
+         * @param items Items of the inventory
+         */
+        public UserIndex(Collection<InventoryItem> items) {
+            putAll(items);
+        }
+
+        /**
+         * @return Number of indexed items
+         */
+        public synchronized int size() {
+            return items.size();
+        }
+
+        /**
+         * Find items matching a query. Name queries are ordered by name, then id; amount-only queries by amount,
+         * then id.
+         * @param query Search criteria
+         * @return      At most query.limit matching items
+         */
+        public synchronized List<InventoryItem> search(Query query) {
+            List<InventoryItem> result = new ArrayList<>(Math.min(query.limit, 64));
+            if (query.limit <= 0 || query.minAmount > query.maxAmount) {
+                return result;
+            }
+            if (query.text.isEmpty()) {
+                Entry from = new Entry(Integer.MIN_VALUE, null, null, query.minAmount, 0);
+                Entry to = new Entry(Integer.MAX_VALUE, null, null, query.maxAmount, 0);
+                return collect(byAmount.subSet(from, true, to, true), null, query, result);
+            }
+            if (!query.substring) {
+                Entry from = new Entry(Integer.MIN_VALUE, null, query.text, 0, 0);
+                return collect(byName.tailSet(from, true), entry -> entry.key.startsWith(query.text), query, result);
+            }
+            Postings rarest = null;
+            if (query.text.length() >= MIN_GRAM) {
+                rarest = rarestGram(query.text);
+                if (rarest == null) {
+                    return result;
+                }
+            }
+            if (rarest == null || rarest.size > items.size() / SCAN_FRACTION) {
+                // Short or common text: many names match, so walking the names in order fills the page soonest
+                for (Entry entry : byName) {
+                    if (entry.key.contains(query.text) && query.inRange(entry)) {
+                        result.add(entry.item());
+                        if (result.size() == query.limit) {
+                            break;
+                        }
+                    }
+                }
+                return result;
+            }
+            // Keep the first matches by name in a heap whose head is the last of them
+            PriorityQueue<Entry> first = new PriorityQueue<>(query.limit + 1, BY_NAME.reversed());
+            Set<Integer> seen = renamed ? new HashSet<>() : null;
+            for (int i = 0; i < rarest.size; i++) {
+                Entry entry = items.get(rarest.ids[i]);
+                if (entry == null || !entry.key.contains(query.text) || !query.inRange(entry)
+                        || (seen != null && !seen.add(entry.id))) {
+                    continue;
+                }
+                if (first.size() < query.limit) {
+                    first.add(entry);
+                } else if (BY_NAME.compare(entry, first.peek()) < 0) {
+                    first.poll();
+                    first.add(entry);
+                }
+            }
+            Entry[] sorted = first.toArray(new Entry[0]);
+            Arrays.sort(sorted, BY_NAME);
+            for (Entry entry : sorted) {
+                result.add(entry.item());
+            }
+            return result;
+        }
+
+        /**
+         * Add entries in order to a result until the limit is reached
+         * @param entries   Entries in result order
+         * @param until     Condition an entry must meet for the walk to continue, null to walk all entries
+         * @param query     Query whose amount range and limit apply
+         * @param result    Receives the items
+         * @return          The result
+         */
+        private static List<InventoryItem> collect(Iterable<Entry> entries, Predicate<Entry> until, Query query,
+                                                   List<InventoryItem> result) {
+            for (Entry entry : entries) {
+                if (until != null && !until.test(entry)) {
+                    break;
+                }
+                if (query.inRange(entry)) {
+                    result.add(entry.item());
+                    if (result.size() == query.limit) {
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Find the n-gram of a text with the fewest postings: the text itself if it is a bigram, otherwise the rarest
+         * of its trigrams
+         * @param text  Lower-cased text of at least two characters
+         * @return      Postings of the rarest n-gram, or null if one of them occurs in no name
+         */
+        private Postings rarestGram(String text) {
+            int length = Math.min(text.length(), MAX_GRAM);
+            Postings rarest = null;
+            for (int i = 0; i + length <= text.length(); i++) {
+                Postings p = grams.get(text.substring(i, i + length));
+                if (p == null) {
+                    return null;
+                }
+                if (rarest == null || p.size < rarest.size) {
+                    rarest = p;
+                }
+            }
+            return rarest;
+        }
+
+        /**
+         * Add or replace items
+         * @param added New state of the items
+         */
+        public synchronized void putAll(Collection<InventoryItem> added) {
+            for (InventoryItem item : added) {
+                String name = item.getName() == null ? "" : item.getName();
+                Entry entry = new Entry(item.getId(), name, name.toLowerCase(Locale.ROOT), item.getAmount(),
+                        item.getVersion());
+                Entry old = replace(entry);
+                if (old == null) {
+                    addGrams(entry);
+                } else if (!old.key.equals(entry.key)) {
+                    // The old postings stay behind and may repeat the new ones until the next compaction
+                    stalePostings += gramCount(old.key);
+                    renamed = true;
+                    addGrams(entry);
+                }
+            }
+            compactIfStale();
+        }
+
+        /**
+         * Add deltas to the amounts of items; ids that are not indexed are ignored
+         * @param deltas    Delta per item id
+         * @param version   New version of the adjusted items
+         */
+        public synchronized void adjust(Map<Integer, Long> deltas, long version) {
+            for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+                Entry old = items.get(delta.getKey());
+                if (old != null) {
+                    replace(new Entry(old.id, old.name, old.key, (int) (old.amount + delta.getValue()), version));
+                }
+            }
+        }
+
+        /**
+         * Remove an item
+         * @param id Id of the item
+         */
+        public synchronized void remove(int id) {
+            Entry old = items.remove(id);
+            if (old != null) {
+                byName.remove(old);
+                byAmount.remove(old);
+                stalePostings += gramCount(old.key);
+                compactIfStale();
+            }
+        }
+
+        /**
+         * Put an entry in place of the entry with its id
+         * @param entry New entry
+         * @return      Replaced entry, or null if the id was not indexed
+         */
+        private Entry replace(Entry entry) {
+            Entry old = items.put(entry.id, entry);
+            if (old != null) {
+                byName.remove(old);
+                byAmount.remove(old);
+            }
+            byName.add(entry);
+            byAmount.add(entry);
+            return old;
+        }
+
+        private void addGrams(Entry entry) {
+            for (int length = MIN_GRAM; length <= MAX_GRAM; length++) {
+                for (int i = 0; i + length <= entry.key.length(); i++) {
+                    if (grams.computeIfAbsent(entry.key.substring(i, i + length), g -> new Postings()).add(entry.id)) {
+                        postings++;
+                    }
+                }
+            }
+        }
+
+        private static int gramCount(String key) {
+            return Math.max(0, key.length() - MIN_GRAM + 1) + Math.max(0, key.length() - MAX_GRAM + 1);
+        }
+
+        /**
+         * Rebuild the n-gram index once stale postings make up a third of it
+         */
+        private void compactIfStale() {
+            if (stalePostings < MIN_COMPACT_POSTINGS || stalePostings * 3 < postings) {
+                return;
+            }
+            grams.clear();
+            postings = 0;
+            stalePostings = 0;
+            renamed = false;
+            for (Entry entry : items.values()) {
+                addGrams(entry);
+            }
+        }
+    }
+
+    /**
+     * Indexed item with its lower-cased name
+     */
+    private static class Entry {
+        private final int id;
+        private final String name;
+        private final String key;
+        private final int amount;
+        private final long version;
+
+        private Entry(int id, String name, String key, int amount, long version) {
+            this.id = id;
+            this.name = name;
+            this.key = key;
+            this.amount = amount;
+            this.version = version;
+        }
+
+        private InventoryItem item() {
+            return new InventoryItem(id, name, amount, version);
+        }
+    }
+
+    /**
+     * Growable list of the ids of items whose names contain an n-gram, possibly with stale or repeated ids
+     */
+    private static class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        /**
+         * Append an id unless it was the last one added, as happens when a name repeats an n-gram
+         * @param id    Item id
+         * @return      True if the id was appended
+         */
+        private boolean add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return false;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+            return true;
+        }
+    }
+}
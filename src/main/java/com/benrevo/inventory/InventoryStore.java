@@ -0,0 +1,280 @@
+package com.benrevo.inventory;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of users and their inventories behind the REST endpoints. {@link DataAccess} keeps them in a database over
+ * JDBC; {@link EmbeddedStore} keeps them in process, made durable by a write-ahead log.
+ *
+ * Implementations report failures as SQLExceptions with the SQL states the endpoints map to responses, e.g. 23505
+ * for a username that is already taken. Writes are published to the registered {@link InventoryListener}s once they
+ * are durable, and each write to a user's inventory increases the user's change version.
+ *
+ * @author John Hurst
+ */
+public interface InventoryStore {
+
+    /**
+     * Register a listener for committed inventory changes
+     * @param listener Listener to notify
+     */
+    void addListener(InventoryListener listener);
+
+    /**
+     * Serve inventory reads from a cache, which is also registered as a listener so that changes invalidate it
+     * @param cache Cache to use
+     */
+    void setInventoryCache(InventoryCache cache);
+
+    /**
+     * Keep search indexes of inventories, which is also registered as a listener so that changes update it
+     * @param searchIndex Index to use
+     */
+    void setSearchIndex(InventorySearchIndex searchIndex);
+
+    /**
+     * Cache username to id resolutions, where the store resolves them
+     * @param maxSize Maximum number of cached usernames; 0 disables the cache
+     */
+    void setUserIdCacheSize(int maxSize);
+
+    /**
+     * Set the amount at or below which an item counts as low on stock in inventory summaries
+     * @param threshold Low-stock threshold
+     */
+    void setLowStockThreshold(int threshold);
+
+    /**
+     * Bring the storage format up to date
+     * @return              Number of migrations applied
+     * @throws SQLException Throws if a migration fails
+     * @throws IOException  Throws if a migration script cannot be read
+     */
+    int migrateSchema() throws SQLException, IOException;
+
+    /**
+     * @return Number of calls the store serves at once, which sizes the executor running them
+     */
+    int getMaxConnections();
+
+    /**
+     * Get a snapshot of the store's statistics
+     * @return JSON Object with at least "active":Int, calls in progress, and "waiting":Int, calls waiting to start
+     */
+    JSONObject getPoolStats();
+
+    /**
+     * Release the store's resources
+     */
+    void close();
+
+    /**
+     * Register a user
+     * @param username      Requested username
+     * @param password      Requested password
+     * @return              Id of the new user
+     * @throws SQLException Throws if username already exists or the store fails
+     */
+    int addUser(String username, String password) throws SQLException;
+
+    /**
+     * Get a user
+     * @param username      Username of user to be retrieved
+     * @return              JSON Object {"username":String, "password":String}, empty if there is no such user
+     * @throws SQLException Throws if the store fails
+     */
+    JSONObject getUser(String username) throws SQLException;
+
+    /**
+     * Check login info for user
+     * @param username      Username of requester
+     * @param password      Password of requester
+     * @return              True if username matches with password
+     * @throws SQLException Throws if the store fails
+     */
+    default boolean login(String username, String password) throws SQLException {
+        return authenticate(username, password) != 0;
+    }
+
+    /**
+     * Check login info for user
+     * @param username      Username of requester
+     * @param password      Password of requester
+     * @return              Id of the user if username matches with password, 0 otherwise
+     * @throws SQLException Throws if the store fails
+     */
+    int authenticate(String username, String password) throws SQLException;
+
+    /**
+     * Retrieve inventory for user
+     * @param username      Username of requester
+     * @return              JSONArray of {"id":Int, "name":String, "amount":Int, "version":Long}
+     * @throws SQLException Throws if the store fails
+     */
+    default JSONArray getInventory(String username) throws SQLException {
+        JSONArray array = new JSONArray();
+        streamInventory(username, (id, name, amount, version) -> {
+            JSONObject tempObj = new JSONObject();
+            tempObj.put("id", id);
+            tempObj.put("name", name);
+            tempObj.put("amount", amount);
+            tempObj.put("version", version);
+            array.put(tempObj);
+        });
+        return array;
+    }
+
+    /**
+     * Read inventory for user, handing each item to the handler
+     * @param username      Username of requester
+     * @param handler       Handler receiving the items
+     * @param <E>           Exception thrown by the handler
+     * @throws SQLException Throws if the store fails
+     * @throws E            Throws if the handler fails
+     */
+    <E extends Exception> void streamInventory(String username, ItemHandler<E> handler) throws SQLException, E;
+
+    /**
+     * Read one page of inventory for user, ordered by id
+     * @param username      Username of requester
+     * @param afterId       Only items with a larger id are returned, 0 for the first page
+     * @param limit         Maximum number of items to return
+     * @param handler       Handler receiving the items
+     * @param <E>           Exception thrown by the handler
+     * @throws SQLException Throws if the store fails
+     * @throws E            Throws if the handler fails
+     */
+    <E extends Exception> void streamInventoryPage(String username, int afterId, int limit, ItemHandler<E> handler)
+            throws SQLException, E;
+
+    /**
+     * Search a user's inventory by name and amount
+     * @param username      Owner of the inventory
+     * @param query         Search criteria
+     * @return              Matching items, see {@link InventorySearchIndex.UserIndex#search}
+     * @throws SQLException Throws if the store fails
+     */
+    List<InventoryItem> searchInventory(String username, InventorySearchIndex.Query query) throws SQLException;
+
+    /**
+     * Get the summary of a user's inventory from its counters
+     * @param username      Owner of the inventory
+     * @return              JSON Object {"items":Long, "units":Long, "lowStock":Long, "lowStockThreshold":Int}, all
+     *                      counters 0 if the user does not exist
+     * @throws SQLException Throws if the store fails
+     */
+    JSONObject getInventorySummary(String username) throws SQLException;
+
+    /**
+     * Correct summary counters that drifted from the inventory
+     * @return              Number of users whose counters were corrected
+     * @throws SQLException Throws if the store fails
+     */
+    int reconcileSummaries() throws SQLException;
+
+    /**
+     * Get the change version of a user's inventory
+     * @param username      Owner of the inventory
+     * @return              Current version, 0 if the user does not exist or never changed the inventory
+     * @throws SQLException Throws if the store fails
+     */
+    long getInventoryVersion(String username) throws SQLException;
+
+    /**
+     * Read the changes to a user's inventory after a version: items added or changed since in version order, then
+     * items deleted since
+     * @param username      Owner of the inventory
+     * @param since         Version the client has already seen, or a negative number for every item and no deletions
+     * @param handler       Handler receiving the version and the changes
+     * @param <E>           Exception thrown by the handler
+     * @return              Version the changes lead up to
+     * @throws SQLException Throws if the store fails
+     * @throws E            Throws if the handler fails
+     */
+    <E extends Exception> long streamChanges(String username, long since, ChangeHandler<E> handler)
+            throws SQLException, E;
+
+    /**
+     * Update inventory items of a user at once, optionally conditional on the version each item was read at
+     * @param items         Items to update, read one at a time
+     * @param username      User that the inventory items must belong to
+     * @return              JSON Object {"counts":[Int], "version":Long, "conflicts":[{"id":Int, "name":String,
+     *                      "amount":Int, "version":Long}]}
+     * @throws SQLException Throws if the store fails
+     * @throws IllegalArgumentException Throws if an item lacks its id, name or amount
+     */
+    JSONObject updateItem(Iterator<ItemRequest> items, String username) throws SQLException;
+
+    /**
+     * Add deltas to the amounts of a user's items at once. Items that do not belong to the user are left alone.
+     * @param username      User that the inventory items must belong to
+     * @param deltas        Delta to add per item id
+     * @return              Number of items updated
+     * @throws SQLException Throws if the store fails
+     */
+    int adjustItems(String username, Map<Integer, Long> deltas) throws SQLException;
+
+    /**
+     * Delete an inventory item of a user, leaving a tombstone for {@link #streamChanges}
+     * @param id            id of item to delete
+     * @param username      User that the item must belong to
+     * @return              True if the item was deleted, false if it does not exist or belongs to another user
+     * @throws SQLException Throws if the store fails
+     */
+    boolean deleteItem(int id, String username) throws SQLException;
+
+    /**
+     * Add an item to a user's inventory
+     * @param name          Name of inventory item
+     * @param amount        Amount of inventory item
+     * @param username      User that inventory item corresponds to
+     * @return              Id of the new item, 0 if there is no such user
+     * @throws SQLException Throws if the store fails
+     */
+    Integer addItem(String name, int amount, String username) throws SQLException;
+
+    /**
+     * Add several items to a user's inventory at once
+     * @param items         Items to add, read one at a time
+     * @param username      User that inventory items correspond to
+     * @return              JSON Object with "ids", the new id of each item in order or null if it failed, and
+     *                      "errors", a list of {"index":Int, "error":String}
+     * @throws SQLException Throws if the store fails
+     */
+    JSONObject addItems(Iterator<ItemRequest> items, String username) throws SQLException;
+
+    /**
+     * Import a chunk of valid new items at once
+     * @param username      User that inventory items correspond to
+     * @param items         Valid new items to add
+     * @return              JSON Object with "inserted", the number of items added, and "errors", a list of
+     *                      {"index":Int, "error":String} by position in the chunk
+     * @throws SQLException Throws if the store fails
+     */
+    JSONObject importItems(String username, List<ItemRequest> items) throws SQLException;
+
+    /**
+     * Remove all users and inventories
+     * @throws SQLException Throws if the store fails
+     */
+    void cleanDatabase() throws SQLException;
+
+    /**
+     * Remove all inventories and restart item ids at 1
+     * @throws SQLException Throws if the store fails
+     */
+    void cleanInventory() throws SQLException;
+
+    /**
+     * Remove all users and restart user ids at 1
+     * @throws SQLException Throws if the store fails
+     */
+    void cleanUsers() throws SQLException;
+}
@@ -0,0 +1,175 @@
+package com.benrevo.inventory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes inventory items to an output stream as they arrive, so a response never holds the whole inventory in memory.
+ *
+ * JSON output has the shape {"auth":String, "data":[{"id":Int, "name":String, "amount":Int, "version":Long}],
+ * "next":String}, with "auth" omitted when there is no token to return and "next" only present for paginated output.
+ * NDJSON writes one item object per line and CSV writes an "id,name,amount,version" header followed by one line per
+ * item. The version of an item is the one to send back with a conditional update of it.
+ *
+ * @author John Hurst
+ */
+public class InventoryStreamWriter implements ItemHandler<IOException> {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Supported output formats
+     */
+    public enum Format {
+        JSON("application/json"),
+        NDJSON("application/x-ndjson"),
+        CSV("text/csv");
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Pick a format from an explicit format parameter, falling back to the Accept header and then JSON
+         * @param format    Value of the format request parameter, may be null
+         * @param accept    Value of the Accept header, may be null
+         * @return          Format to write
+         */
+        public static Format of(String format, String accept) {
+            if (format != null) {
+                return valueOf(format.toUpperCase());
+            }
+            if (accept != null) {
+                for (Format f : values()) {
+                    if (f != JSON && accept.contains(f.contentType)) {
+                        return f;
+                    }
+                }
+            }
+            return JSON;
+        }
+    }
+
+    private final Format format;
+    private final JsonGenerator json;
+    private final Writer csv;
+
+    /**
+     * Start writing a response
+     * @param format        Output format
+     * @param out           Stream to write to
+     * @param auth          Token to include in JSON output, may be null
+     * @throws IOException  Throws if the stream cannot be written
+     */
+    public InventoryStreamWriter(Format format, OutputStream out, String auth) throws IOException {
+        this.format = format;
+        if (format == Format.CSV) {
+            json = null;
+            csv = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            csv.write("id,name,amount,version\n");
+        } else {
+            json = JSON_FACTORY.createGenerator(out);
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            csv = null;
+            if (format == Format.NDJSON) {
+                json.setRootValueSeparator(null);
+            } else {
+                json.writeStartObject();
+                if (auth != null) {
+                    json.writeStringField("auth", auth);
+                }
+                json.writeArrayFieldStart("data");
+            }
+        }
+    }
+
+    @Override
+    public void item(int id, String name, int amount, long version) throws IOException {
+        if (format == Format.CSV) {
+            csv.write(Integer.toString(id));
+            csv.write(',');
+            writeCsvField(name);
+            csv.write(',');
+            csv.write(Integer.toString(amount));
+            csv.write(',');
+            csv.write(Long.toString(version));
+            csv.write('\n');
+            return;
+        }
+        json.writeStartObject();
+        json.writeNumberField("id", id);
+        json.writeStringField("name", name);
+        json.writeNumberField("amount", amount);
+        json.writeNumberField("version", version);
+        json.writeEndObject();
+        if (format == Format.NDJSON) {
+            json.writeRaw('\n');
+        }
+    }
+
+    /**
+     * Complete the document and flush it. Not called when reading fails, so a truncated response stays invalid
+     * instead of looking like a complete, shorter inventory.
+     * @throws IOException Throws if the stream cannot be written
+     */
+    public void finish() throws IOException {
+        finish(null);
+    }
+
+    /**
+     * Complete a paginated document and flush it
+     * @param next          Cursor of the next page, written into JSON output when not null
+     * @throws IOException  Throws if the stream cannot be written
+     * @see #finish()
+     */
+    public void finish(String next) throws IOException {
+        if (format == Format.CSV) {
+            csv.flush();
+            return;
+        }
+        if (format == Format.JSON) {
+            json.writeEndArray();
+            if (next != null) {
+                json.writeStringField("next", next);
+            }
+            json.writeEndObject();
+        }
+        json.flush();
+    }
+
+    /**
+     * Write a CSV field, quoting it if it contains a separator, quote or line break
+     * @param value         Field value
+     * @throws IOException  Throws if the stream cannot be written
+     */
+    private void writeCsvField(String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            csv.write(value);
+            return;
+        }
+        csv.write('"');
+        csv.write(value.replace("\"", "\"\""));
+        csv.write('"');
+    }
+}
@@ -0,0 +1,21 @@
+package com.benrevo.inventory;
+
+/**
+ * Callback receiving inventory rows one at a time as they are read from the database.
+ *
+ * @param <E> Checked exception the handler may throw, e.g. IOException when writing to a response
+ * @author John Hurst
+ */
+@FunctionalInterface
+public interface ItemHandler<E extends Exception> {
+
+    /**
+     * Handle one inventory item
+     * @param id        Id of the item
+     * @param name      Name of the item
+     * @param amount    Amount of the item
+     * @param version   Version of the inventory at which the item was last written
+     * @throws E        Throws if the handler fails
+     */
+    void item(int id, String name, int amount, long version) throws E;
+}
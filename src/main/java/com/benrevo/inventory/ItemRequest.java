@@ -0,0 +1,112 @@
+package com.benrevo.inventory;
+
+import java.io.IOException;
+
+/**
+ * Body of single-item requests, and element of the data array of bulk requests. Fields that are absent or have the
+ * wrong type are null; each endpoint checks the fields it needs.
+ *
+ * @author John Hurst
+ */
+public class ItemRequest {
+    private String username;
+    private Integer id;
+    private String name;
+    private Integer amount;
+    private Long delta;
+    private Long version;
+
+    /**
+     * Read an item from the current object
+     * @param reader        Reader positioned on the object
+     * @return              Item with the fields that were present
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     */
+    public static ItemRequest read(RequestReader reader) throws IOException {
+        ItemRequest item = new ItemRequest();
+        if (!reader.isObject()) {
+            reader.skipValue();
+            return item;
+        }
+        String field;
+        while ((field = reader.nextField()) != null) {
+            switch (field) {
+                case "username":
+                    item.username = reader.stringValue();
+                    break;
+                case "id":
+                    item.id = reader.intValue();
+                    break;
+                case "name":
+                    item.name = reader.stringValue();
+                    break;
+                case "amount":
+                    item.amount = reader.intValue();
+                    break;
+                case "delta":
+                    item.delta = reader.longValue();
+                    break;
+                case "version":
+                    item.version = reader.longValue();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Create a new item from fields read from another format, such as a CSV record
+     * @param name      Name of the item
+     * @param amount    Amount of the item
+     * @return          Item with only the name and amount set
+     */
+    public static ItemRequest newItem(String name, int amount) {
+        ItemRequest item = new ItemRequest();
+        item.name = name;
+        item.amount = amount;
+        return item;
+    }
+
+    /**
+     * @return True if the item has the name and amount needed to add it
+     */
+    public boolean isValidNewItem() {
+        return name != null && amount != null;
+    }
+
+    /**
+     * @return True if the item has the id, name and amount needed to update it
+     */
+    public boolean isValidUpdate() {
+        return id != null && isValidNewItem();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Integer getAmount() {
+        return amount;
+    }
+
+    public Long getDelta() {
+        return delta;
+    }
+
+    /**
+     * @return Version of the item the client last read, which an update must still find, or null to update blindly
+     */
+    public Long getVersion() {
+        return version;
+    }
+}
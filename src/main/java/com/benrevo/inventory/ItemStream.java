@@ -0,0 +1,112 @@
+package com.benrevo.inventory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily reads the items of the "data" array of a bulk request, one element at a time, so a large body is never
+ * materialized. Other top-level fields may come before or after the array; a "username" field is checked against the
+ * authenticated user, after the last item if need be, and a mismatch fails the iteration so the caller's
+ * transaction is rolled back.
+ *
+ * Read errors are thrown as UncheckedIOException from hasNext and next.
+ *
+ * @author John Hurst
+ */
+public class ItemStream implements Iterator<ItemRequest> {
+
+    private static final String DATA = "data";
+    private static final String USERNAME = "username";
+
+    private final RequestReader reader;
+    private final String username;
+    private ItemRequest next;
+    private boolean inArray;
+    private boolean done;
+
+    /**
+     * Start reading a bulk request
+     * @param reader        Reader positioned at the start of the body
+     * @param username      Authenticated user
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     * @throws UserMismatchException Throws if the body names another user before the array
+     * @throws IllegalArgumentException Throws if the body has no data array
+     */
+    public ItemStream(RequestReader reader, String username) throws IOException {
+        this.reader = reader;
+        this.username = username;
+        String field;
+        while ((field = reader.nextField()) != null) {
+            if (DATA.equals(field) && reader.isArray()) {
+                inArray = true;
+                return;
+            }
+            readOtherField(field);
+        }
+        throw new IllegalArgumentException("Expected a data array");
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        try {
+            if (inArray && reader.nextElement()) {
+                next = ItemRequest.read(reader);
+                return true;
+            }
+            inArray = false;
+            String field;
+            while ((field = reader.nextField()) != null) {
+                readOtherField(field);
+            }
+            done = true;
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public ItemRequest next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ItemRequest item = next;
+        next = null;
+        return item;
+    }
+
+    /**
+     * Handle a top-level field other than the data array
+     * @param field         Name of the field
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     */
+    private void readOtherField(String field) throws IOException {
+        if (USERNAME.equals(field)) {
+            String bodyUser = reader.stringValue();
+            if (bodyUser != null && !bodyUser.equals(username)) {
+                throw new UserMismatchException();
+            }
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    /**
+     * Thrown when the body names a user other than the authenticated one
+     */
+    public static class UserMismatchException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public UserMismatchException() {
+            super("Request body names another user");
+        }
+    }
+}
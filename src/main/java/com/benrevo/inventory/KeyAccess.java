@@ -4,6 +4,9 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -13,8 +16,12 @@ public class KeyAccess {
 
     private static final String PROTECTED_FILE_PATH = "./protected";
 
+    private static final String PROTECTED_FILE_PROPERTY = "inventory.protected";
+
     private static final char DB_CONNECTION = 1;
 
+    private static final char TOKEN_SECRET = 2;
+
     /**
      * Method to access the db's connection string from a private file.
      *
@@ -22,7 +29,61 @@ public class KeyAccess {
      * @throws IOException          Throws if protected file cannot be opened or accessed
      */
     static String dbConnectionString() throws IOException {
-        return lineScanner(DB_CONNECTION).getString("key");
+        return dbConfig().getString("key");
+    }
+
+    /**
+     * Method to access the full db line from the private file. Besides the connection string under "key", the
+     * line may carry optional connection pool settings (see {@link DataAccess}).
+     *
+     * @return                      JSONObject containing the db configuration
+     * @throws IOException          Throws if protected file cannot be opened or accessed
+     */
+    static JSONObject dbConfig() throws IOException {
+        return lineScanner(DB_CONNECTION);
+    }
+
+    /**
+     * Method to access the db lines of all shards from the private file. A single db line describes an unsharded
+     * database; with several lines, each names its position with a "shard" field from 0 to the number of lines - 1,
+     * and carries its own connection string and pool settings.
+     *
+     * @return                      JSONObjects containing the db configuration of each shard, in shard order
+     * @throws IOException          Throws if protected file cannot be opened or accessed, has no db line, or the
+     *                              shard numbers of the db lines are not 0 to n - 1
+     */
+    static List<JSONObject> dbConfigs() throws IOException {
+        List<JSONObject> lines = findLines(DB_CONNECTION);
+        if (lines.isEmpty()) {
+            IOException e = new IOException("Error retrieving credentials");
+            e.printStackTrace();
+            throw e;
+        }
+        if (lines.size() == 1) {
+            return lines;
+        }
+        JSONObject[] shards = new JSONObject[lines.size()];
+        for (JSONObject line : lines) {
+            int shard = line.optInt("shard", -1);
+            if (shard < 0 || shard >= shards.length || shards[shard] != null) {
+                throw new IOException("Expected db lines with the shards 0 to " + (shards.length - 1) +
+                        ", found shard " + line.opt("shard"));
+            }
+            shards[shard] = line;
+        }
+        return Arrays.asList(shards);
+    }
+
+    /**
+     * Method to access the token signing configuration from the private file. The line is optional; when it is
+     * missing an empty object is returned and a random signing key is used.
+     *
+     * @return                      JSONObject containing the base64 signing secret under "key" and optional "ttl"
+     * @throws IOException          Throws if protected file cannot be opened or accessed
+     */
+    static JSONObject tokenConfig() throws IOException {
+        JSONObject config = findLine(TOKEN_SECRET);
+        return config == null ? new JSONObject() : config;
     }
 
     /**
@@ -33,6 +94,23 @@ public class KeyAccess {
      * @throws IOException  Throws if file is inaccessible for any reason
      */
     private static JSONObject lineScanner(char type) throws IOException {
+        JSONObject rObj = findLine(type);
+        if (rObj == null) {
+            IOException e = new IOException("Error retrieving credentials");
+            e.printStackTrace();
+            throw e;
+        }
+        return rObj;
+    }
+
+    /**
+     * Helper method for finding a line in the protected file of a certain type
+     *
+     * @param type          Type of information to retrieve
+     * @return              JSONObject containing desired information, or null if there is no such line
+     * @throws IOException  Throws if file is inaccessible for any reason
+     */
+    private static JSONObject findLine(char type) throws IOException {
         Scanner input = null;
         try {
             input = openFile();
@@ -43,7 +121,7 @@ public class KeyAccess {
                     return rObj;
                 }
             }
-            throw new IOException("Error retrieving credentials");
+            return null;
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
@@ -55,13 +133,41 @@ public class KeyAccess {
     }
 
     /**
-     * Helper method returning a scanner to the protected file
+     * Helper method for finding all lines in the protected file of a certain type
+     *
+     * @param type          Type of information to retrieve
+     * @return              JSONObjects containing desired information, in file order
+     * @throws IOException  Throws if file is inaccessible for any reason
+     */
+    private static List<JSONObject> findLines(char type) throws IOException {
+        List<JSONObject> lines = new ArrayList<>();
+        try (Scanner input = openFile()) {
+            while (input.hasNextLine()) {
+                String line = input.nextLine();
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JSONObject rObj = new JSONObject(line);
+                if (rObj.getInt("type") == type) {
+                    lines.add(rObj);
+                }
+            }
+            return lines;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Helper method returning a scanner to the protected file, ./protected unless the inventory.protected system
+     * property names another one
      *
      * @return              A Scanner with the protected file as input
      * @throws IOException  Throws if the file cannot be opened.
      */
     private static Scanner openFile() throws IOException {
-        File file = new File(PROTECTED_FILE_PATH);
+        File file = new File(System.getProperty(PROTECTED_FILE_PROPERTY, PROTECTED_FILE_PATH));
         return new Scanner(file);
     }
 }
@@ -0,0 +1,167 @@
+package com.benrevo.inventory;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.apache.tomcat.jdbc.pool.interceptor.StatementCache;
+import org.json.JSONObject;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool interceptor caching prepared statements per pooled connection, keyed by SQL text.
+ *
+ * Builds on the tomcat-jdbc statement cache, which stops caching once its pool-wide "max" is reached. This cache
+ * instead evicts the least recently returned statement of the requesting connection to make room, and keeps
+ * hit/miss/eviction counters per pool.
+ *
+ * @author John Hurst
+ */
+public class LruStatementCache extends StatementCache {
+
+    private static final String LRU_ATTR = LruStatementCache.class.getName() + ".lru";
+
+    private static final Map<String, Counters> COUNTERS = new ConcurrentHashMap<>();
+
+    private PooledConnection pooledConnection;
+    private Counters counters;
+
+    /**
+     * Get the cache counters of a pool
+     * @param poolName  Name of the connection pool
+     * @return          JSON Object with hits, misses and evictions
+     */
+    public static JSONObject getStats(String poolName) {
+        Counters c = COUNTERS.computeIfAbsent(poolName, k -> new Counters());
+        long hits = c.hits.sum();
+        long misses = c.misses.sum();
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", c.evictions.sum());
+        stats.put("hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return stats;
+    }
+
+    @Override
+    public void reset(ConnectionPool parent, PooledConnection con) {
+        super.reset(parent, con);
+        if (parent == null || con == null) {
+            pooledConnection = null;
+            counters = null;
+            return;
+        }
+        pooledConnection = con;
+        counters = COUNTERS.computeIfAbsent(parent.getName(), k -> new Counters());
+        if (!con.getAttributes().containsKey(LRU_ATTR)) {
+            con.getAttributes().put(LRU_ATTR, new LinkedHashSet<Object>());
+        }
+    }
+
+    @Override
+    public void disconnected(ConnectionPool parent, PooledConnection con, boolean finalizing) {
+        Object lru = con.getAttributes().get(LRU_ATTR);
+        if (lru != null) {
+            synchronized (lru) {
+                ((LinkedHashSet<?>) lru).clear();
+            }
+        }
+        super.disconnected(parent, con, finalizing);
+    }
+
+    @Override
+    public CachedStatement isCached(Method method, Object[] args) {
+        CachedStatement cached = super.isCached(method, args);
+        if (counters != null) {
+            if (cached != null) {
+                counters.hits.increment();
+            } else {
+                counters.misses.increment();
+            }
+        }
+        // The new statement is only cached on close if there is room by then, so make room now
+        if (cached == null && getCacheSize() != null && getCacheSize().get() >= getMaxCacheSize()) {
+            evictEldest();
+        }
+        return cached;
+    }
+
+    @Override
+    public boolean cacheStatement(CachedStatement proxy) {
+        boolean cached = super.cacheStatement(proxy);
+        LinkedHashSet<Object> lru = lru();
+        if (cached && lru != null && proxy.getCacheKey() != null) {
+            synchronized (lru) {
+                lru.remove(proxy.getCacheKey());
+                lru.add(proxy.getCacheKey());
+            }
+        }
+        return cached;
+    }
+
+    @Override
+    public boolean removeStatement(CachedStatement proxy) {
+        LinkedHashSet<Object> lru = lru();
+        if (lru != null && proxy.getCacheKey() != null) {
+            synchronized (lru) {
+                lru.remove(proxy.getCacheKey());
+            }
+        }
+        return super.removeStatement(proxy);
+    }
+
+    /**
+     * Close the least recently returned statement of this connection
+     */
+    @SuppressWarnings("unchecked")
+    private void evictEldest() {
+        LinkedHashSet<Object> lru = lru();
+        if (lru == null) {
+            return;
+        }
+        Object eldest;
+        synchronized (lru) {
+            Iterator<Object> it = lru.iterator();
+            if (!it.hasNext()) {
+                return;
+            }
+            eldest = it.next();
+        }
+        Map<Object, CachedStatement> cache =
+                (Map<Object, CachedStatement>) pooledConnection.getAttributes().get(STATEMENT_CACHE_ATTR);
+        CachedStatement statement = cache == null ? null : cache.get(eldest);
+        if (statement != null && removeStatement(statement)) {
+            closeStatement(statement);
+            if (counters != null) {
+                counters.evictions.increment();
+            }
+        } else {
+            synchronized (lru) {
+                lru.remove(eldest);
+            }
+        }
+    }
+
+    /**
+     * Get the recency order of the cached statements of the current connection, eldest first
+     * @return Cache keys in the order they were returned to the cache
+     */
+    @SuppressWarnings("unchecked")
+    private LinkedHashSet<Object> lru() {
+        return pooledConnection == null ? null :
+                (LinkedHashSet<Object>) pooledConnection.getAttributes().get(LRU_ATTR);
+    }
+
+    /**
+     * Cache counters shared by all connections of a pool
+     */
+    private static class Counters {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+    }
+}
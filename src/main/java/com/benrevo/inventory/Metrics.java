@@ -0,0 +1,284 @@
+package com.benrevo.inventory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics, written out in the Prometheus text exposition format by {@link #scrape()}.
+ *
+ * Each family has one label; a series is created the first time a label value is used, after which recording only
+ * touches lock-free counters. Label values must come from a small fixed set, such as endpoint paths, method names or
+ * SQL text, never from request data.
+ *
+ * @author John Hurst
+ */
+public final class Metrics {
+
+    private static final Map<String, Family<?>> FAMILIES = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentSkipListMap<>();
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public static final Summary HTTP_REQUESTS = new Summary("inventory_http_request_seconds",
+            "Time from receiving a request to completing its response", "endpoint", NANOS_PER_SECOND);
+
+    public static final Summary DAO_CALLS = new Summary("inventory_dao_call_seconds",
+            "Time spent in DataAccess methods, including connection borrowing and cache hits", "method",
+            NANOS_PER_SECOND);
+
+    public static final Summary QUERIES = new Summary("inventory_sql_seconds",
+            "Time spent executing SQL statements", "statement", NANOS_PER_SECOND);
+
+    public static final Summary BATCH_SIZES = new Summary("inventory_batch_rows",
+            "Rows per JDBC batch", "method", 1);
+
+    public static final Counter ROWS = new Counter("inventory_rows_returned_total",
+            "Inventory rows returned", "method");
+
+    public static final Counter SLOW_QUERIES = new Counter("inventory_sql_slow_total",
+            "SQL statements slower than the slow query threshold", "statement");
+
+    public static final Counter READS = new Counter("inventory_reads_total",
+            "Reads of shards with replicas by where they ran: replica, read-your-writes (primary, after a recent " +
+            "write of the user) or fallback (primary, no healthy replica)", "route");
+
+    public static final Counter AUDIT_EVENTS = new Counter("inventory_audit_events_total",
+            "Audit journal events by outcome: written to the sink, spilled to the spill file or dropped", "outcome");
+
+    public static final Counter STOCK_DELTAS_DROPPED = new Counter("inventory_stock_deltas_dropped_total",
+            "Buffered stock deltas dropped because they could not be written before shutdown", "reason");
+
+    public static final Counter ERRORS = new Counter("inventory_errors_total",
+            "Errors by exception type", "type");
+
+    public static final Counter DB_UNAVAILABLE = new Counter("inventory_db_unavailable_total",
+            "Requests answered with 503 because the database was unavailable, by exception type", "type");
+
+    private Metrics() {
+    }
+
+    /**
+     * Count an error by its exception type
+     * @param e Exception that occurred
+     */
+    public static void error(Throwable e) {
+        ERRORS.increment(e.getClass().getSimpleName());
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name
+     * @param name      Metric name
+     * @param help      Description of the metric
+     * @param value     Supplier of the current value, called on every scrape
+     */
+    public static void gauge(String name, String help, Supplier<Number> value) {
+        GAUGES.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format
+     * @return Metrics text
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family<?> family : FAMILIES.values()) {
+            family.write(out);
+        }
+        for (Map.Entry<String, Gauge> gauge : GAUGES.entrySet()) {
+            header(out, gauge.getKey(), gauge.getValue().help, "gauge");
+            Number value;
+            try {
+                value = gauge.getValue().value.get();
+            } catch (RuntimeException e) {
+                continue;
+            }
+            out.append(gauge.getKey()).append(' ').append(value).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void label(StringBuilder out, String name, String value) {
+        out.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Metric family with one series per label value
+     * @param <T> Type of a series
+     */
+    private abstract static class Family<T> {
+        final String name;
+        final String help;
+        final String labelName;
+        private final Map<String, T> series = new ConcurrentHashMap<>();
+        private final Function<String, T> factory;
+
+        Family(String name, String help, String labelName, Function<String, T> factory) {
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+            this.factory = factory;
+            FAMILIES.put(name, this);
+        }
+
+        T series(String label) {
+            T s = series.get(label);
+            return s != null ? s : series.computeIfAbsent(label, factory);
+        }
+
+        void write(StringBuilder out) {
+            if (series.isEmpty()) {
+                return;
+            }
+            header(out, name, help, type());
+            for (Map.Entry<String, T> s : new ConcurrentSkipListMap<>(series).entrySet()) {
+                write(out, s.getKey(), s.getValue());
+            }
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder out, String label, T series);
+    }
+
+    /**
+     * Distribution of values reported with quantiles, count and sum
+     */
+    public static final class Summary extends Family<Histogram> {
+        private final double unit;
+
+        private Summary(String name, String help, String labelName, double unit) {
+            super(name, help, labelName, k -> new Histogram());
+            this.unit = unit;
+        }
+
+        /**
+         * Get the histogram of a label value, e.g. to read its quantiles
+         * @param label Label value
+         * @return      Histogram of the series
+         */
+        public Histogram get(String label) {
+            return series(label);
+        }
+
+        /**
+         * Record a value
+         * @param label Label value
+         * @param value Value, in nanoseconds for latencies
+         */
+        public void record(String label, long value) {
+            series(label).record(value);
+        }
+
+        /**
+         * Record the time elapsed since a start time
+         * @param label         Label value
+         * @param startNanos    Start time from System.nanoTime()
+         */
+        public void recordSince(String label, long startNanos) {
+            series(label).recordSince(startNanos);
+        }
+
+        @Override
+        String type() {
+            return "summary";
+        }
+
+        @Override
+        void write(StringBuilder out, String label, Histogram histogram) {
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{');
+                label(out, labelName, label);
+                out.append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.valueAt(quantile) / unit).append('\n');
+            }
+            out.append(name).append("_sum{");
+            label(out, labelName, label);
+            out.append("} ").append(histogram.getSum() / unit).append('\n');
+            out.append(name).append("_count{");
+            label(out, labelName, label);
+            out.append("} ").append(histogram.getCount()).append('\n');
+        }
+    }
+
+    /**
+     * Monotonic counter
+     */
+    public static final class Counter extends Family<LongAdder> {
+
+        private Counter(String name, String help, String labelName) {
+            super(name, help, labelName, k -> new LongAdder());
+        }
+
+        /**
+         * Add one
+         * @param label Label value
+         */
+        public void increment(String label) {
+            series(label).increment();
+        }
+
+        /**
+         * Add a number
+         * @param label Label value
+         * @param n     Amount to add
+         */
+        public void add(String label, long n) {
+            series(label).add(n);
+        }
+
+        /**
+         * Get the current count
+         * @param label Label value
+         * @return      Count of the series
+         */
+        public long get(String label) {
+            return series(label).sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder out, String label, LongAdder counter) {
+            out.append(name).append('{');
+            label(out, labelName, label);
+            out.append("} ").append(counter.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Value read on every scrape
+     */
+    private static final class Gauge {
+        private final String help;
+        private final Supplier<Number> value;
+
+        private Gauge(String help, Supplier<Number> value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.benrevo.inventory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque keyset pagination cursor. Encodes the id of the last item of a page; the next page starts after it.
+ *
+ * @author John Hurst
+ */
+public final class PageCursor {
+
+    private static final String PREFIX = "i:";
+
+    private PageCursor() {
+    }
+
+    /**
+     * Encode the position after an item
+     * @param lastId    Id of the last item returned
+     * @return          Opaque cursor
+     */
+    public static String encode(int lastId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((PREFIX + lastId).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Decode a cursor
+     * @param cursor    Cursor from a previous page, or null for the first page
+     * @return          Id after which the page starts, 0 for the first page
+     * @throws IllegalArgumentException Throws if the cursor is malformed
+     */
+    public static int decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+        if (!value.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        return Integer.parseInt(value.substring(PREFIX.length()));
+    }
+}
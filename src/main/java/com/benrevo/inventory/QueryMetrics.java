@@ -0,0 +1,99 @@
+package com.benrevo.inventory;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.apache.tomcat.jdbc.pool.interceptor.AbstractCreateStatementInterceptor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool interceptor timing every statement execution into {@link Metrics#QUERIES}, labelled by SQL text, and logging
+ * executions slower than the "slowQueryMs" threshold.
+ *
+ * Tomcat's own query reports measure in milliseconds, which puts most queries of this application at 0; this one
+ * measures in nanoseconds. It is placed after the statement cache, so a cached statement keeps its timing proxy.
+ *
+ * @author John Hurst
+ */
+public class QueryMetrics extends AbstractCreateStatementInterceptor {
+
+    private long slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Override
+    public void setProperties(Map<String, PoolProperties.InterceptorProperty> properties) {
+        super.setProperties(properties);
+        PoolProperties.InterceptorProperty threshold = properties.get("slowQueryMs");
+        if (threshold != null) {
+            slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(threshold.getValue()));
+        }
+    }
+
+    @Override
+    public Object createStatement(Object proxy, Method method, Object[] args, Object statement, long time) {
+        String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+        return Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(), new Class<?>[]{method.getReturnType()},
+                new TimedStatement(statement, sql));
+    }
+
+    @Override
+    public void closeInvoked() {
+    }
+
+    @Override
+    public void reset(ConnectionPool parent, PooledConnection con) {
+    }
+
+    /**
+     * Record one execution
+     * @param sql       SQL text of the statement
+     * @param nanos     Execution time
+     */
+    private void record(String sql, long nanos) {
+        Metrics.QUERIES.record(sql, nanos);
+        if (nanos >= slowQueryNanos) {
+            Metrics.SLOW_QUERIES.increment(sql);
+            System.err.println("Slow query (" + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms): " + sql);
+        }
+    }
+
+    /**
+     * Statement proxy timing execute calls and passing everything else through
+     */
+    private class TimedStatement implements InvocationHandler {
+        private final Object delegate;
+        private final String sql;
+
+        private TimedStatement(Object delegate, String sql) {
+            this.delegate = delegate;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!isExecute(method, false)) {
+                return call(method, args);
+            }
+            String text = sql != null ? sql : args != null && args.length > 0 ? String.valueOf(args[0]) : "batch";
+            long start = System.nanoTime();
+            try {
+                return call(method, args);
+            } finally {
+                record(text, System.nanoTime() - start);
+            }
+        }
+
+        private Object call(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.benrevo.inventory;
+
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read replicas of one database, each with its own connection pool, that take reads off the primary.
+ *
+ * Reads go to a healthy replica, either the one with the fewest connections in use or the next one in turn. A replica
+ * is unhealthy while its replication lag exceeds the lag limit or it cannot be reached; {@link #check()} measures the
+ * lag of every replica and marks it healthy or not, and a replica whose pool cannot hand out a connection is marked
+ * unhealthy at once, until the next check finds it usable again. When no replica is healthy
+ * {@link #getConnection()} returns null and the caller reads from the primary.
+ *
+ * @author John Hurst
+ */
+public class ReplicaSet {
+
+    /**
+     * Lag of a PostgreSQL standby in milliseconds: 0 once it has replayed all the WAL it received, otherwise the age
+     * of the last transaction it replayed. Uses the function names of PostgreSQL 10 and later.
+     */
+    static final String POSTGRES_LAG_QUERY = "SELECT CASE WHEN NOT pg_is_in_recovery() " +
+            "OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+            "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 END";
+
+    private final Replica[] replicas;
+    private final boolean leastLoaded;
+    private final long maxLagMs;
+    private final String lagQuery;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Create a replica set. Every replica starts healthy.
+     * @param dataSources   Pools of the replicas
+     * @param leastLoaded   True to read from the replica with the fewest connections in use, false for round-robin
+     * @param maxLagMs      Replication lag in milliseconds above which a replica is not read from
+     * @param lagQuery      Query returning the replication lag in milliseconds, or null to only check that a
+     *                      replica answers its validation query
+     */
+    public ReplicaSet(DataSource[] dataSources, boolean leastLoaded, long maxLagMs, String lagQuery) {
+        replicas = new Replica[dataSources.length];
+        for (int i = 0; i < dataSources.length; i++) {
+            replicas[i] = new Replica(dataSources[i]);
+        }
+        this.leastLoaded = leastLoaded;
+        this.maxLagMs = maxLagMs;
+        this.lagQuery = lagQuery;
+    }
+
+    /**
+     * Borrow a connection from a healthy replica, trying the others if its pool fails
+     * @return Pooled connection, or null if no healthy replica could hand one out
+     */
+    public Connection getConnection() {
+        Replica replica;
+        while ((replica = pick()) != null) {
+            try {
+                Connection conn = replica.dataSource.getConnection();
+                replica.reads.incrementAndGet();
+                return conn;
+            } catch (SQLException e) {
+                replica.fail(e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Choose the replica to read from, starting the scan at the next replica in turn so that ties rotate
+     * @return Healthy replica, or null if there is none
+     */
+    private Replica pick() {
+        int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+        Replica best = null;
+        for (int i = 0; i < replicas.length; i++) {
+            Replica replica = replicas[(start + i) % replicas.length];
+            if (!replica.healthy) {
+                continue;
+            }
+            if (!leastLoaded) {
+                return replica;
+            }
+            if (best == null || replica.dataSource.getActive() < best.dataSource.getActive()) {
+                best = replica;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Measure the lag of every replica and mark it healthy if it answered within the lag limit
+     */
+    public void check() {
+        for (Replica replica : replicas) {
+            String sql = lagQuery != null ? lagQuery : replica.dataSource.getPoolProperties().getValidationQuery();
+            try (Connection conn = replica.dataSource.getConnection();
+                 Statement st = conn.createStatement()) {
+                st.setQueryTimeout(5);
+                try (ResultSet rs = st.executeQuery(sql)) {
+                    long lagMs = lagQuery != null && rs.next() ? rs.getLong(1) : 0;
+                    replica.lagMs = lagMs;
+                    if (lagMs > maxLagMs) {
+                        replica.fail("Replication lag of " + lagMs + " ms exceeds " + maxLagMs + " ms");
+                    } else {
+                        replica.error = null;
+                        replica.healthy = true;
+                    }
+                }
+            } catch (SQLException e) {
+                replica.fail(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Maximum number of connections the replica pools hand out at once
+     */
+    public int getMaxActive() {
+        int max = 0;
+        for (Replica replica : replicas) {
+            max += replica.dataSource.getMaxActive();
+        }
+        return max;
+    }
+
+    /**
+     * Get a snapshot of the replicas
+     * @return JSON Array of the pool statistics of each replica, with "healthy":Boolean, "lagMs":Long, "reads":Long,
+     *         "failures":Long and the "error":String that last made it unhealthy
+     */
+    public JSONArray getStats() {
+        JSONArray stats = new JSONArray();
+        for (Replica replica : replicas) {
+            JSONObject replicaStats = DataAccess.poolStats(replica.dataSource);
+            replicaStats.put("healthy", replica.healthy);
+            replicaStats.put("lagMs", replica.lagMs);
+            replicaStats.put("reads", replica.reads.get());
+            replicaStats.put("failures", replica.failures.get());
+            if (replica.error != null) {
+                replicaStats.put("error", replica.error);
+            }
+            stats.put(replicaStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Close the replica pools
+     */
+    public void close() {
+        for (Replica replica : replicas) {
+            replica.dataSource.close();
+        }
+    }
+
+    /**
+     * Pool and health of one replica
+     */
+    private static class Replica {
+        private final DataSource dataSource;
+        private final AtomicLong reads = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private volatile boolean healthy = true;
+        private volatile long lagMs;
+        private volatile String error;
+
+        private Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        /**
+         * Stop reading from the replica until a check finds it usable
+         * @param error Reason the replica is unusable
+         */
+        private void fail(String error) {
+            this.error = error;
+            if (healthy) {
+                healthy = false;
+                failures.incrementAndGet();
+                System.err.println("Replica " + dataSource.getPoolProperties().getName() + " unhealthy: " + error);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.benrevo.inventory;
+
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Times every request into {@link Metrics#HTTP_REQUESTS}, labelled by the matched request mapping.
+ *
+ * Asynchronous requests pass through the interceptor twice, once when the handler returns and once when the result
+ * is dispatched. The start time is kept in a request attribute on the first pass and the request is recorded when it
+ * completes, so the time includes the wait for the database executor.
+ *
+ * @author John Hurst
+ */
+public class RequestMetrics extends HandlerInterceptorAdapter {
+
+    private static final String START_ATTR = RequestMetrics.class.getName() + ".start";
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getAttribute(START_ATTR) == null) {
+            request.setAttribute(START_ATTR, System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        Object start = request.getAttribute(START_ATTR);
+        if (start == null) {
+            return;
+        }
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        String endpoint = request.getMethod() + " " + (pattern != null ? pattern : "unmapped");
+        Metrics.HTTP_REQUESTS.recordSince(endpoint, (Long) start);
+        if (ex != null) {
+            Metrics.error(ex);
+        }
+    }
+}
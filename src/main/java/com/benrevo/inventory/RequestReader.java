@@ -0,0 +1,200 @@
+package com.benrevo.inventory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pull reader for JSON request bodies. Fields are read straight from the request stream into small request objects,
+ * without building a document tree or copying the body, and reading fails once the body exceeds a size limit.
+ *
+ * Value accessors return null when the value has another type, skipping over it, so request objects can report
+ * missing or mistyped fields the same way.
+ *
+ * @author John Hurst
+ */
+public class RequestReader implements Closeable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonParser parser;
+
+    /**
+     * Start reading a body, which must be a JSON object
+     * @param in            Request body
+     * @param maxBytes      Maximum size of the body in bytes
+     * @throws IOException  Throws if the body is not a JSON object or cannot be read
+     */
+    public RequestReader(InputStream in, long maxBytes) throws IOException {
+        parser = JSON_FACTORY.createParser(new LimitedInputStream(in, maxBytes));
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a JSON object");
+        }
+    }
+
+    /**
+     * Start reading a document already held in memory, such as one line of an NDJSON body
+     * @param json          Document, which must be a JSON object
+     * @throws IOException  Throws if the document is not a JSON object
+     */
+    public RequestReader(String json) throws IOException {
+        parser = JSON_FACTORY.createParser(json);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a JSON object");
+        }
+    }
+
+    /**
+     * Advance to the value of the next field of the current object
+     * @return              Name of the field, or null at the end of the object
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     */
+    public String nextField() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_OBJECT) {
+            return null;
+        }
+        if (token != JsonToken.FIELD_NAME) {
+            throw new JsonParseException(parser, "Expected a field name");
+        }
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        return name;
+    }
+
+    /**
+     * Advance to the next element of the current array
+     * @return              True if positioned on an element, false at the end of the array
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     */
+    public boolean nextElement() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            throw new JsonParseException(parser, "Unexpected end of body");
+        }
+        return token != JsonToken.END_ARRAY;
+    }
+
+    /**
+     * @return True if the current value is an object
+     */
+    public boolean isObject() {
+        return parser.getCurrentToken() == JsonToken.START_OBJECT;
+    }
+
+    /**
+     * @return True if the current value is an array
+     */
+    public boolean isArray() {
+        return parser.getCurrentToken() == JsonToken.START_ARRAY;
+    }
+
+    /**
+     * Read the current value as a string
+     * @return              The string, or null if the value is not a string
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     */
+    public String stringValue() throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        skipValue();
+        return null;
+    }
+
+    /**
+     * Read the current value as an int
+     * @return              The number, or null if the value is not an integer in int range
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     */
+    public Integer intValue() throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT
+                && parser.getNumberType() == JsonParser.NumberType.INT) {
+            return parser.getIntValue();
+        }
+        skipValue();
+        return null;
+    }
+
+    /**
+     * Read the current value as a long
+     * @return              The number, or null if the value is not an integer in long range
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     */
+    public Long longValue() throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT
+                && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+            return parser.getLongValue();
+        }
+        skipValue();
+        return null;
+    }
+
+    /**
+     * Skip the current value, including everything nested in it
+     * @throws IOException  Throws if the body is malformed or cannot be read
+     */
+    public void skipValue() throws IOException {
+        parser.skipChildren();
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    /**
+     * Thrown when a body exceeds its size limit
+     */
+    public static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(long maxBytes) {
+            super("Request body exceeds " + maxBytes + " bytes");
+        }
+    }
+
+    /**
+     * Input stream failing once more than a given number of bytes have been read
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long read;
+
+        private LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws TooLargeException {
+            read += n;
+            if (read > maxBytes) {
+                throw new TooLargeException(maxBytes);
+            }
+        }
+    }
+}
@@ -1,25 +1,61 @@
 package com.benrevo.inventory;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.crypto.Data;
-import java.net.URLDecoder;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.SQLException;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Class to manage the REST api
+ *
+ * Endpoints that use the database run on a {@link DatabaseExecutor} and complete their DeferredResult from there, so
+ * slow queries do not hold container threads. They answer 503 with a Retry-After header when the executor's queue
+ * or adaptive concurrency limit is full, the circuit breaker is open, the request times out, or the database is
+ * unreachable. Listings, change streams and searches take as long as their data does, so they bypass the concurrency
+ * limit rather than teaching it that the database is slow. Imports run on the {@link BulkImporter}'s own threads.
+ *
+ * Request bodies are read on the container thread before the task is submitted, so tasks never touch the request.
+ * Tasks that stream their response write it through a {@link GuardedResponse}, which a timeout revokes before the
+ * 503 is sent, so a task that outlives its request cannot write into a completed or recycled response.
  * @author John Hurst
  */
 @org.springframework.web.bind.annotation.RestController
 public class RestController {
 
-    private DataAccess dataAccess = new DataAccess();
+    private InventoryStore dataAccess;
+
+    private TokenService tokenService = new TokenService();
+
+    private StockDeltaBuffer stockDeltas;
+
+    private SummaryReconciler summaryReconciler;
+
+    private DatabaseExecutor database;
+
+    private InventoryCache inventoryCache;
+
+    private InventorySearchIndex searchIndex;
+
+    private BulkImporter importer;
+
+    private AuditJournal auditJournal;
     
     private final ResponseEntity SERVER_ERROR = ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
             .body(null);
@@ -27,154 +63,1080 @@ public class RestController {
     private final ResponseEntity UNAUTHORIZED = ResponseEntity.status(HttpStatus.UNAUTHORIZED)
             .body(null);
 
+    private ResponseEntity UNAVAILABLE;
+
     private final ResponseEntity BAD_REQUEST = ResponseEntity.status(HttpStatus.BAD_REQUEST)
             .body("Username is already taken");
 
-    private final String USERNAME = "username";
-    private final String PASSWORD = "password";
+    @Value("${inventory.page.default-size:100}")
+    private int defaultPageSize;
+
+    @Value("${inventory.page.max-size:1000}")
+    private int maxPageSize;
+
+    @Value("${inventory.adjust.flush-interval-ms:200}")
+    private long adjustFlushIntervalMs;
+
+    @Value("${inventory.db.queue-capacity:1000}")
+    private int dbQueueCapacity;
+
+    @Value("${inventory.db.timeout-ms:30000}")
+    private long dbTimeoutMs;
+
+    @Value("${inventory.db.stream-timeout-ms:300000}")
+    private long streamTimeoutMs;
+
+    @Value("${inventory.db.adaptive-limit:true}")
+    private boolean adaptiveLimit;
+
+    @Value("${inventory.db.latency-tolerance:2.0}")
+    private double latencyTolerance;
+
+    @Value("${inventory.db.circuit.failure-threshold:5}")
+    private int circuitFailureThreshold;
+
+    @Value("${inventory.db.circuit.open-ms:5000}")
+    private long circuitOpenMs;
+
+    @Value("${inventory.db.retry-after-seconds:1}")
+    private long retryAfterSeconds;
+
+    @Value("${inventory.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    @Value("${inventory.cache.max-users:10000}")
+    private int cacheMaxUsers;
+
+    @Value("${inventory.cache.max-items:1000}")
+    private int cacheMaxItems;
+
+    @Value("${inventory.cache.ttl-seconds:60}")
+    private long cacheTtlSeconds;
+
+    @Value("${inventory.search.enabled:true}")
+    private boolean searchEnabled;
+
+    @Value("${inventory.search.max-items:1000000}")
+    private long searchMaxItems;
+
+    @Value("${inventory.search.ttl-seconds:300}")
+    private long searchTtlSeconds;
+
+    @Value("${inventory.summary.low-stock-threshold:5}")
+    private int lowStockThreshold;
+
+    @Value("${inventory.summary.reconcile-interval-seconds:3600}")
+    private long summaryReconcileSeconds;
+
+    @Value("${inventory.import.max-concurrent:2}")
+    private int importMaxConcurrent;
+
+    @Value("${inventory.import.chunk-size:5000}")
+    private int importChunkSize;
+
+    @Value("${inventory.import.queue-chunks:4}")
+    private int importQueueChunks;
+
+    @Value("${inventory.import.max-record-chars:8192}")
+    private int importMaxRecordChars;
+
+    @Value("${inventory.import.max-errors:100}")
+    private int importMaxErrors;
+
+    @Value("${inventory.import.timeout-ms:1800000}")
+    private long importTimeoutMs;
+
+    @Value("${inventory.user-cache.max-size:100000}")
+    private int userCacheMaxSize;
+
+    @Value("${inventory.db.migrate:true}")
+    private boolean migrateSchema;
+
+    @Value("${inventory.body.max-bytes:65536}")
+    private long maxBodyBytes;
+
+    @Value("${inventory.body.bulk-max-bytes:16777216}")
+    private long maxBulkBodyBytes;
+
+    @Value("${inventory.store.type:jdbc}")
+    private String storeType;
+
+    @Value("${inventory.store.dir:./data}")
+    private String storeDir;
+
+    @Value("${inventory.store.segment-mb:64}")
+    private int storeSegmentMb;
+
+    @Value("${inventory.store.commit-delay-micros:0}")
+    private long storeCommitDelayMicros;
+
+    @Value("${inventory.store.snapshot-interval-seconds:300}")
+    private long storeSnapshotSeconds;
+
+    @Value("${inventory.store.threads:16}")
+    private int storeThreads;
+
+    @Value("${inventory.audit.sink:table}")
+    private String auditSink;
+
+    @Value("${inventory.audit.dir:./audit}")
+    private String auditDir;
+
+    @Value("${inventory.audit.capacity:65536}")
+    private int auditCapacity;
+
+    @Value("${inventory.audit.batch-size:1000}")
+    private int auditBatchSize;
+
+    @Value("${inventory.audit.linger-ms:50}")
+    private long auditLingerMs;
+
+    @Value("${inventory.audit.overflow:spill}")
+    private String auditOverflow;
+
+    @Value("${inventory.audit.block-ms:1000}")
+    private long auditBlockMs;
+
+    @Value("${inventory.audit.file-max-mb:64}")
+    private long auditFileMaxMb;
+
+    @Value("${inventory.audit.max-files:10}")
+    private int auditMaxFiles;
+
+    /**
+     * Open the store, the database or the embedded one, and apply pending schema migrations if enabled, then start the
+     * inventory and user id caches and the search index if enabled, the database executor, with one thread per pooled
+     * connection behind the admission limit and circuit breaker, and the write-behind buffer for stock adjustments,
+     * the summary reconciler, the bulk importer and the audit journal if enabled. A failed migration is logged and
+     * does not stop the application; an embedded store that cannot be recovered or an audit directory that cannot be
+     * created does.
+     */
+    @PostConstruct
+    public void start() {
+        UNAVAILABLE = ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header("Retry-After", String.valueOf(retryAfterSeconds))
+                .body(null);
+        if ("embedded".equals(storeType)) {
+            try {
+                dataAccess = new EmbeddedStore(new File(storeDir), storeSegmentMb << 20, storeCommitDelayMicros,
+                        storeSnapshotSeconds, storeThreads);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            dataAccess = new DataAccess();
+        }
+        if (migrateSchema) {
+            try {
+                dataAccess.migrateSchema();
+            } catch (SQLException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+        dataAccess.setUserIdCacheSize(userCacheMaxSize);
+        dataAccess.setLowStockThreshold(lowStockThreshold);
+        if (cacheEnabled) {
+            inventoryCache = new InventoryCache(cacheMaxUsers, cacheMaxItems, cacheTtlSeconds);
+            dataAccess.setInventoryCache(inventoryCache);
+        }
+        if (searchEnabled) {
+            searchIndex = new InventorySearchIndex(searchMaxItems, searchTtlSeconds);
+            dataAccess.setSearchIndex(searchIndex);
+        }
+        int threads = dataAccess.getMaxConnections();
+        ConcurrencyLimiter limiter = adaptiveLimit ?
+                new ConcurrencyLimiter(threads, threads + dbQueueCapacity, latencyTolerance) : null;
+        CircuitBreaker breaker = circuitFailureThreshold > 0 ?
+                new CircuitBreaker(circuitFailureThreshold, circuitOpenMs) : null;
+        database = new DatabaseExecutor(threads, dbQueueCapacity, dbTimeoutMs, limiter, breaker);
+        stockDeltas = new StockDeltaBuffer(dataAccess, adjustFlushIntervalMs);
+        if (summaryReconcileSeconds > 0) {
+            summaryReconciler = new SummaryReconciler(dataAccess, summaryReconcileSeconds);
+        }
+        importer = new BulkImporter(dataAccess, importMaxConcurrent, importChunkSize, importQueueChunks,
+                importMaxRecordChars, importMaxErrors);
+        if (!"none".equals(auditSink)) {
+            try {
+                File dir = new File(auditDir);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                // The table lives in the database, so the embedded store journals to files
+                AuditSink sink = "table".equals(auditSink) && dataAccess instanceof DataAccess ?
+                        (DataAccess) dataAccess : new AuditLogFile(dir, auditFileMaxMb << 20, auditMaxFiles);
+                auditJournal = new AuditJournal(sink, auditCapacity, auditBatchSize, auditLingerMs,
+                        AuditJournal.Overflow.of(auditOverflow), auditBlockMs, new File(dir, "audit-spill.ndjson"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            dataAccess.addListener(auditJournal);
+        }
+
+        Metrics.gauge("inventory_pool_active_connections", "Connections in use",
+                () -> dataAccess.getPoolStats().getInt("active"));
+        Metrics.gauge("inventory_pool_waiting_threads", "Threads waiting for a connection",
+                () -> dataAccess.getPoolStats().getInt("waiting"));
+        Metrics.gauge("inventory_executor_queued", "Requests waiting for a database executor thread",
+                () -> database.getStats().getInt("queued"));
+        Metrics.gauge("inventory_executor_active", "Database executor threads running a request",
+                () -> database.getStats().getInt("active"));
+        if (limiter != null) {
+            Metrics.gauge("inventory_db_concurrency_limit", "Database requests admitted at once",
+                    limiter::getLimit);
+        }
+        if (breaker != null) {
+            Metrics.gauge("inventory_db_circuit_open", "1 while the database circuit breaker refuses requests",
+                    () -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1);
+        }
+        if (inventoryCache != null) {
+            Metrics.gauge("inventory_cache_hit_ratio", "Inventory cache hits per lookup",
+                    () -> inventoryCache.getStats().getDouble("hitRatio"));
+        }
+        if (searchIndex != null) {
+            Metrics.gauge("inventory_search_indexed_items", "Inventory items held in search indexes",
+                    () -> searchIndex.getStats().getLong("items"));
+        }
+        if (auditJournal != null) {
+            Metrics.gauge("inventory_audit_queued", "Audit events waiting for the audit writer",
+                    () -> auditJournal.getStats().getInt("queued"));
+        }
+    }
+
+    /**
+     * Stop running imports, finish queued requests, write pending stock adjustments, stop the summary reconciler,
+     * write the queued audit events and close the store on shutdown
+     */
+    @PreDestroy
+    public void shutdown() {
+        importer.close();
+        database.close();
+        stockDeltas.close();
+        if (summaryReconciler != null) {
+            summaryReconciler.close();
+        }
+        if (auditJournal != null) {
+            auditJournal.close();
+        }
+        dataAccess.close();
+    }
+
+    /**
+     * Check that the user's token is valid and, if the body names a user, that it was issued to that user.
+     * Verification happens in memory without touching the database.
+     * @param bodyUser      Username given in the body of the request, may be null
+     * @param token         Token to be verified
+     * @return              Claims of the token, or null if the request is not authorized
+     */
+    private TokenService.Claims checkAuth(String bodyUser, String token) {
+        TokenService.Claims claims = tokenService.verify(token);
+        if (claims == null || (bodyUser != null && !bodyUser.equals(claims.getUsername()))) {
+            return null;
+        }
+        return claims;
+    }
+
+    /**
+     * Start reading a JSON request body
+     * @param request       Request whose body is read
+     * @param maxBytes      Maximum size of the body in bytes
+     * @return              Reader positioned at the start of the body
+     * @throws IOException  Throws if the body is not a JSON object or cannot be read
+     */
+    private RequestReader readBody(HttpServletRequest request, long maxBytes) throws IOException {
+        return new RequestReader(request.getInputStream(), maxBytes);
+    }
+
+    /**
+     * Read the items of a bulk request body
+     * @param request       Request with a {"data":[...]} body
+     * @param username      Authenticated user
+     * @return              Items in request order
+     * @throws IOException  Throws if the body is malformed, too large or cannot be read
+     * @throws ItemStream.UserMismatchException Throws if the body names another user
+     */
+    private List<ItemRequest> readItems(HttpServletRequest request, String username) throws IOException {
+        try (RequestReader reader = readBody(request, maxBulkBodyBytes)) {
+            List<ItemRequest> items = new ArrayList<>();
+            new ItemStream(reader, username).forEachRemaining(items::add);
+            return items;
+        }
+    }
+
+    /**
+     * @param response  Response the request is answered with
+     * @return          Result completed with the response, for requests answered without a task
+     */
+    private static DeferredResult<ResponseEntity> completed(ResponseEntity response) {
+        DeferredResult<ResponseEntity> result = new DeferredResult<>();
+        result.setResult(response);
+        return result;
+    }
+
+    /**
+     * Map a failure of a task that writes its response itself. A response revoked after a timeout was already
+     * answered with 503; one that was committed cannot be changed, so the failure is only logged.
+     * @param e         Exception thrown while handling the request
+     * @param response  Response the task was writing
+     * @return          Response Entity describing the failure, or null if the response cannot take one
+     */
+    private ResponseEntity streamFailure(Exception e, GuardedResponse response) {
+        if (response.isRevoked()) {
+            return null;
+        }
+        if (!response.isCommitted()) {
+            return failure(e);
+        }
+        e.printStackTrace();
+        Metrics.error(e);
+        database.recordFailure(e);
+        return null;
+    }
+
+    /**
+     * Map a failure to a response. Every failure is counted by type; bodies that are too large, malformed or missing
+     * fields are the client's fault and are not logged. Errors showing the database is unavailable are reported to
+     * the circuit breaker, counted rather than logged, since under overload they come with every request, and
+     * answered with 503; the breaker logs when it opens.
+     * @param e     Exception thrown while handling the request
+     * @return      Response Entity describing the failure
+     */
+    private ResponseEntity failure(Exception e) {
+        Throwable cause = e instanceof UncheckedIOException ? e.getCause() : e;
+        Metrics.error(cause);
+        if (cause instanceof RequestReader.TooLargeException) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(cause.getMessage());
+        }
+        if (cause instanceof ItemStream.UserMismatchException) {
+            return UNAUTHORIZED;
+        }
+        if (cause instanceof JsonProcessingException || cause instanceof IllegalArgumentException) {
+            return ResponseEntity.badRequest().body(cause.getMessage());
+        }
+        database.recordFailure(cause);
+        if (DatabaseFailures.isDatabaseUnavailable(cause)) {
+            Metrics.DB_UNAVAILABLE.increment(cause.getClass().getSimpleName());
+            return UNAVAILABLE;
+        }
+        e.printStackTrace();
+        return SERVER_ERROR;
+    }
+
+    /**
+     * Set the ETag of a user's inventory, a weak tag holding its change version, and check it against the client's
+     * If-None-Match header. The version must be read before the inventory, so that a write landing in between makes
+     * the tag stale rather than the body.
+     * @param username      Owner of the inventory
+     * @param ifNoneMatch   If-None-Match header, may be null
+     * @param response      Response the ETag is set on
+     * @return              304 Response Entity if the client's copy is current, otherwise null
+     * @throws SQLException Throws if the store runs into an error
+     */
+    private ResponseEntity notModified(String username, String ifNoneMatch, HttpServletResponse response)
+            throws SQLException {
+        String etag = "W/\"" + dataAccess.getInventoryVersion(username) + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Vary", "Accept");
+        if (ifNoneMatch == null || !etagMatches(ifNoneMatch, etag)) {
+            return null;
+        }
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+    }
+
+    /**
+     * Check an If-None-Match header against an ETag using weak comparison
+     * @param ifNoneMatch   Header value: "*" or a comma separated list of tags
+     * @param etag          Current ETag
+     * @return              True if any listed tag matches
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     /**
-     * Check that the user's hash matches the local one
-     * @param user          Username
-     * @param hash          Hash to be matched against database
-     * @return              Boolean indicating validity of username and hash
-     * @throws SQLException Throws if DataAccess runs into an error
+     * Write one page of the user's inventory. The page is bounded by the maximum page size, so it is collected
+     * first, which allows the next-page cursor to go into the Next-Cursor header before the body is written.
+     * @param username      Username of the requester
+     * @param cursor        Cursor of the page to write, null for the first page
+     * @param limit         Requested page size, capped at the maximum page size
+     * @param format        Output format
+     * @param token         Token to include in JSON output, may be null
+     * @param response      Response the page is written to
+     * @throws SQLException Throws if the store runs into an error
+     * @throws IOException  Throws if the response cannot be written
      */
-    private boolean checkAuth(String user, String hash) throws SQLException {
-        JSONObject userObj = dataAccess.getUser(user);
-        String userHash = Base64.getEncoder().encodeToString(
-                DigestUtils.getSha512Digest().digest(
-                        (user + userObj.getString(PASSWORD)).getBytes()));
-        return hash.equals(userHash);
+    private void writePage(String username, String cursor, Integer limit, InventoryStreamWriter.Format format,
+                           String token, HttpServletResponse response) throws SQLException, IOException {
+        int pageSize = Math.max(1, Math.min(limit == null ? defaultPageSize : limit, maxPageSize));
+        List<InventoryItem> items = new ArrayList<>(pageSize + 1);
+        dataAccess.streamInventoryPage(username, PageCursor.decode(cursor), pageSize + 1,
+                (id, name, amount, version) -> items.add(new InventoryItem(id, name, amount, version)));
+        String next = null;
+        if (items.size() > pageSize) {
+            items.remove(pageSize);
+            next = PageCursor.encode(items.get(pageSize - 1).getId());
+            response.setHeader("Next-Cursor", next);
+        }
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(format.getContentType());
+        response.setCharacterEncoding("UTF-8");
+        InventoryStreamWriter writer = new InventoryStreamWriter(format, response.getOutputStream(), token);
+        for (InventoryItem item : items) {
+            writer.item(item.getId(), item.getName(), item.getAmount(), item.getVersion());
+        }
+        writer.finish(next);
     }
 
     /**
      * Register a new user
-     * @param body  Body object for the request
-     * @return      Response Entity indicating success or failure
+     * @param request   Request with a {"username":String, "password":String} body
+     * @return          Response Entity indicating success or failure
      */
     @CrossOrigin
     @RequestMapping(value = "/register", method = RequestMethod.POST)
-    public ResponseEntity register(@RequestBody String body) {
-        try {
-            JSONObject bodyObj = new JSONObject(URLDecoder.decode(body, "UTF-8"));
-            dataAccess.addUser(bodyObj.getString(USERNAME),
-                    bodyObj.getString(PASSWORD));
-            JSONObject rObj = new JSONObject();
-            rObj.put("auth", Base64.getEncoder().encodeToString(
-                    DigestUtils.getSha512Digest().digest(
-                            (bodyObj.getString(USERNAME) + bodyObj.getString(PASSWORD)).getBytes())));
-            return ResponseEntity.ok(rObj.toString());
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return BAD_REQUEST;
+    public DeferredResult<ResponseEntity> register(HttpServletRequest request) {
+        Credentials credentials;
+        try (RequestReader reader = readBody(request, maxBodyBytes)) {
+            credentials = Credentials.read(reader);
         } catch (Exception e) {
-            e.printStackTrace();
-            return SERVER_ERROR;
+            return completed(failure(e));
         }
+        return database.submit(() -> {
+            try {
+                int userId = dataAccess.addUser(credentials.getUsername(), credentials.getPassword());
+                JSONObject rObj = new JSONObject();
+                rObj.put("auth", tokenService.issue(userId, credentials.getUsername()));
+                return ResponseEntity.ok(rObj.toString());
+            } catch (SQLException e) {
+                if (DatabaseFailures.isDatabaseUnavailable(e)) {
+                    return failure(e);
+                }
+                e.printStackTrace();
+                Metrics.error(e);
+                return BAD_REQUEST;
+            } catch (Exception e) {
+                return failure(e);
+            }
+        }, UNAVAILABLE);
     }
 
     /**
-     * Login with username and password
-     * @param body  Body object for the request
-     * @return      Response Entity indicating success or failure
+     * Login with username and password. The inventory is streamed to the client as it is read, as JSON by default
+     * or as NDJSON/CSV when requested through the format parameter or the Accept header. The token is also returned
+     * in the Authentication response header. With a limit only the first page of the inventory is returned, as in
+     * {@link #listInventory}. The inventory carries an ETag as in {@link #listInventory}; if it matches If-None-Match
+     * the response is 304 without a body, still with the new token in the Authentication header.
+     * @param request       Request with a {"username":String, "password":String} body
+     * @param limit         Optional page size
+     * @param format        Optional output format: json, ndjson or csv
+     * @param accept        Accept header
+     * @param ifNoneMatch   Optional If-None-Match header with the ETag of the client's copy
+     * @param response      Response the inventory is written to
+     * @return              Response Entity indicating failure or no change, or null once the inventory has been
+     *                      written
      */
-    @CrossOrigin
+    @CrossOrigin(exposedHeaders = {"Authentication", "Next-Cursor", "ETag"})
     @RequestMapping(value = "/login", method = RequestMethod.POST)
-    public ResponseEntity login(@RequestBody String body) {
+    public DeferredResult<ResponseEntity> login(HttpServletRequest request,
+                                                @RequestParam(value = "limit", required = false) Integer limit,
+                                                @RequestParam(value = "format", required = false) String format,
+                                                @RequestHeader(value = "Accept", required = false) String accept,
+                                                @RequestHeader(value = "If-None-Match", required = false)
+                                                        String ifNoneMatch,
+                                                HttpServletResponse servletResponse) {
+        InventoryStreamWriter.Format outputFormat;
         try {
-            JSONObject bodyObj = new JSONObject(URLDecoder.decode(body, "UTF-8"));
-            if (dataAccess.login(bodyObj.getString(USERNAME),
-                    bodyObj.getString(PASSWORD))) {
-                JSONArray inventory = dataAccess.getInventory(
-                        bodyObj.getString(USERNAME));
+            outputFormat = InventoryStreamWriter.Format.of(format, accept);
+        } catch (IllegalArgumentException e) {
+            return completed(ResponseEntity.badRequest().body("Unknown format"));
+        }
+        Credentials credentials;
+        try (RequestReader reader = readBody(request, maxBodyBytes)) {
+            credentials = Credentials.read(reader);
+        } catch (Exception e) {
+            return completed(failure(e));
+        }
+        GuardedResponse response = new GuardedResponse(servletResponse);
+        return database.submit(() -> {
+            try {
+                int userId = dataAccess.authenticate(credentials.getUsername(), credentials.getPassword());
+                if (userId != 0) {
+                    String token = tokenService.issue(userId, credentials.getUsername());
+                    response.setHeader("Authentication", token);
+                    ResponseEntity notModified = notModified(credentials.getUsername(), ifNoneMatch, response);
+                    if (notModified != null) {
+                        return notModified;
+                    }
+                    response.setStatus(HttpStatus.OK.value());
+                    response.setContentType(outputFormat.getContentType());
+                    response.setCharacterEncoding("UTF-8");
+                    if (limit != null) {
+                        writePage(credentials.getUsername(), null, limit, outputFormat, token, response);
+                        return null;
+                    }
+                    InventoryStreamWriter writer = new InventoryStreamWriter(outputFormat, response.getOutputStream(),
+                            token);
+                    dataAccess.streamInventory(credentials.getUsername(), writer);
+                    writer.finish();
+                    return null;
+                } else {
+                    return UNAUTHORIZED;
+                }
+            } catch (Exception e) {
+                return streamFailure(e, response);
+            }
+        }, UNAVAILABLE, streamTimeoutMs, false, response::revoke);
+    }
+
+    /**
+     * List the user's inventory one page at a time, ordered by id. Every page carries a weak ETag holding the change
+     * version of the whole inventory, which also serves as the "since" parameter of {@link #inventoryChanges}; if
+     * it matches If-None-Match the response is 304 without a body.
+     * @param auth          Authentication header containing the token issued at login
+     * @param cursor        Cursor returned with the previous page, omitted for the first page
+     * @param limit         Optional page size, capped at the server's maximum page size
+     * @param format        Optional output format: json, ndjson or csv
+     * @param accept        Accept header
+     * @param ifNoneMatch   Optional If-None-Match header with the ETag of the client's copy
+     * @param response      Response the page is written to
+     * @return              Response Entity indicating failure or no change, or null once the page has been written
+     */
+    @CrossOrigin(exposedHeaders = {"Next-Cursor", "ETag"})
+    @RequestMapping(value = "/inventory", method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity> listInventory(@RequestHeader(value = "Authentication") String auth,
+                                                        @RequestParam(value = "cursor", required = false) String cursor,
+                                                        @RequestParam(value = "limit", required = false) Integer limit,
+                                                        @RequestParam(value = "format", required = false) String format,
+                                                        @RequestHeader(value = "Accept", required = false)
+                                                                String accept,
+                                                        @RequestHeader(value = "If-None-Match", required = false)
+                                                                String ifNoneMatch,
+                                                        HttpServletResponse servletResponse) {
+        GuardedResponse response = new GuardedResponse(servletResponse);
+        return database.submit(() -> {
+            try {
+                TokenService.Claims claims = tokenService.verify(auth);
+                if (claims == null) {
+                    return UNAUTHORIZED;
+                }
+                InventoryStreamWriter.Format outputFormat;
+                try {
+                    outputFormat = InventoryStreamWriter.Format.of(format, accept);
+                    PageCursor.decode(cursor);
+                } catch (IllegalArgumentException e) {
+                    return ResponseEntity.badRequest().body("Malformed cursor or unknown format");
+                }
+                ResponseEntity notModified = notModified(claims.getUsername(), ifNoneMatch, response);
+                if (notModified != null) {
+                    return notModified;
+                }
+                writePage(claims.getUsername(), cursor, limit, outputFormat, null, response);
+                return null;
+            } catch (Exception e) {
+                return streamFailure(e, response);
+            }
+        }, UNAVAILABLE, streamTimeoutMs, false, response::revoke);
+    }
+
+    /**
+     * Stream the changes to the user's inventory since a version, as
+     * {"version":Long, "changed":[{"id":Int, "name":String, "amount":Int, "version":Long}],
+     * "deleted":[{"id":Int, "version":Long}]}. The returned version, like the ETag of {@link #listInventory}, is the
+     * "since" of the next sync. Without "since" every item is returned and no deletions.
+     * @param auth      Authentication header containing the token issued at login
+     * @param since     Optional version the client has already seen
+     * @param response  Response the changes are written to
+     * @return          Response Entity indicating failure, or null once the changes have been written
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/inventory/changes", method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity> inventoryChanges(@RequestHeader(value = "Authentication") String auth,
+                                                           @RequestParam(value = "since", required = false) Long since,
+                                                           HttpServletResponse servletResponse) {
+        GuardedResponse response = new GuardedResponse(servletResponse);
+        return database.submit(() -> {
+            try {
+                TokenService.Claims claims = tokenService.verify(auth);
+                if (claims == null) {
+                    return UNAUTHORIZED;
+                }
+                if (since != null && since < 0) {
+                    return ResponseEntity.badRequest().body("Version must not be negative");
+                }
+                response.setStatus(HttpStatus.OK.value());
+                response.setContentType("application/json");
+                response.setCharacterEncoding("UTF-8");
+                ChangeStreamWriter writer = new ChangeStreamWriter(response.getOutputStream());
+                dataAccess.streamChanges(claims.getUsername(), since == null ? -1 : since, writer);
+                writer.finish();
+                return null;
+            } catch (Exception e) {
+                return streamFailure(e, response);
+            }
+        }, UNAVAILABLE, streamTimeoutMs, false, response::revoke);
+    }
+
+    /**
+     * Summarise the user's inventory from counters kept up to date by every write, without reading the inventory
+     * @param auth      Authentication header containing the token issued at login
+     * @return          Response Entity with {"items":Long, "units":Long, "lowStock":Long, "lowStockThreshold":Int}
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/inventory/summary", method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity> inventorySummary(@RequestHeader(value = "Authentication") String auth) {
+        return database.submit(() -> {
+            try {
+                TokenService.Claims claims = tokenService.verify(auth);
+                if (claims == null) {
+                    return UNAUTHORIZED;
+                }
+                return ResponseEntity.ok(dataAccess.getInventorySummary(claims.getUsername()).toString());
+            } catch (Exception e) {
+                return failure(e);
+            }
+        }, UNAVAILABLE);
+    }
+
+    /**
+     * Read the user's history of changes from the audit journal, newest first, as
+     * {"events":[{"instance":String, "seq":Long, "time":Long, "username":String, "action":String, "id":Int,
+     * "name":String, "amount":Int, "delta":Long}], "next":Long}. Fields that do not apply to the action are left out.
+     * "next" is the "before" of the next older page, null on the last page. Changes are journaled asynchronously, so
+     * the newest may be missing for a moment.
+     * @param auth      Authentication header containing the token issued at login
+     * @param before    Optional "next" of the previous page, the position the events must be older than
+     * @param limit     Optional number of events, capped at the server's maximum page size
+     * @return          Response Entity with the events, or 404 if the audit journal is turned off
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/inventory/history", method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity> inventoryHistory(@RequestHeader(value = "Authentication") String auth,
+                                                           @RequestParam(value = "before", required = false)
+                                                                   Long before,
+                                                           @RequestParam(value = "limit", required = false)
+                                                                   Integer limit) {
+        return database.submit(() -> {
+            try {
+                TokenService.Claims claims = tokenService.verify(auth);
+                if (claims == null) {
+                    return UNAUTHORIZED;
+                }
+                if (auditJournal == null) {
+                    return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Audit journal is turned off");
+                }
+                int size = Math.max(1, Math.min(limit == null ? defaultPageSize : limit, maxPageSize));
+                List<AuditEvent> events = auditJournal.history(claims.getUsername(),
+                        before == null ? Long.MAX_VALUE : before, size + 1);
                 JSONObject rObj = new JSONObject();
-                rObj.put("data", inventory);
-                rObj.put("auth", Base64.getEncoder().encodeToString(
-                        DigestUtils.getSha512Digest().digest(
-                                (bodyObj.getString(USERNAME) + bodyObj.getString(PASSWORD)).getBytes())));
+                JSONArray array = new JSONArray();
+                for (int i = 0; i < Math.min(events.size(), size); i++) {
+                    array.put(events.get(i).toJSON());
+                }
+                rObj.put("events", array);
+                rObj.put("next", events.size() > size ? events.get(size - 1).getPosition() : JSONObject.NULL);
                 return ResponseEntity.ok(rObj.toString());
-            } else {
-                return UNAUTHORIZED;
+            } catch (Exception e) {
+                return failure(e);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return SERVER_ERROR;
-        }
+        }, UNAVAILABLE);
+    }
+
+    /**
+     * Search the user's inventory by name and amount, e.g. for items starting with a prefix or running low on stock.
+     * Searches run in memory against a per-user index, so they do not depend on the size of the inventory.
+     * @param auth      Authentication header containing the token issued at login
+     * @param q         Optional text the name must start with, or contain when match is substring; case is ignored
+     * @param match     Optional match mode: prefix (default) or substring
+     * @param minAmount Optional smallest amount
+     * @param maxAmount Optional largest amount
+     * @param limit     Optional number of results, capped at the server's maximum page size
+     * @param format    Optional output format: json, ndjson or csv
+     * @param accept    Accept header
+     * @param response  Response the results are written to
+     * @return          Response Entity indicating failure, or null once the results have been written
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/inventory/search", method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity> searchInventory(@RequestHeader(value = "Authentication") String auth,
+                                                          @RequestParam(value = "q", required = false) String q,
+                                                          @RequestParam(value = "match", required = false) String match,
+                                                          @RequestParam(value = "minAmount", required = false)
+                                                                  Integer minAmount,
+                                                          @RequestParam(value = "maxAmount", required = false)
+                                                                  Integer maxAmount,
+                                                          @RequestParam(value = "limit", required = false)
+                                                                  Integer limit,
+                                                          @RequestParam(value = "format", required = false)
+                                                                  String format,
+                                                          @RequestHeader(value = "Accept", required = false)
+                                                                  String accept,
+                                                          HttpServletResponse servletResponse) {
+        GuardedResponse response = new GuardedResponse(servletResponse);
+        return database.submit(() -> {
+            try {
+                TokenService.Claims claims = tokenService.verify(auth);
+                if (claims == null) {
+                    return UNAUTHORIZED;
+                }
+                InventoryStreamWriter.Format outputFormat;
+                try {
+                    outputFormat = InventoryStreamWriter.Format.of(format, accept);
+                } catch (IllegalArgumentException e) {
+                    return ResponseEntity.badRequest().body("Unknown format");
+                }
+                if (match != null && !match.equals("prefix") && !match.equals("substring")) {
+                    return ResponseEntity.badRequest().body("Expected match=prefix or match=substring");
+                }
+                int size = Math.max(1, Math.min(limit == null ? defaultPageSize : limit, maxPageSize));
+                InventorySearchIndex.Query query = new InventorySearchIndex.Query(q, "substring".equals(match),
+                        minAmount, maxAmount, size);
+                List<InventoryItem> items = dataAccess.searchInventory(claims.getUsername(), query);
+                response.setStatus(HttpStatus.OK.value());
+                response.setContentType(outputFormat.getContentType());
+                response.setCharacterEncoding("UTF-8");
+                InventoryStreamWriter writer = new InventoryStreamWriter(outputFormat, response.getOutputStream(),
+                        null);
+                for (InventoryItem item : items) {
+                    writer.item(item.getId(), item.getName(), item.getAmount(), item.getVersion());
+                }
+                writer.finish();
+                return null;
+            } catch (Exception e) {
+                return streamFailure(e, response);
+            }
+        }, UNAVAILABLE, streamTimeoutMs, false, response::revoke);
     }
 
     /**
      * Add an item to the user's inventory
-     * @param auth  Authentication header containing the hashed username and password
-     * @param body  Body object for the request
-     * @return      Response Entity indicating success or failure
+     * @param auth      Authentication header containing the token issued at login
+     * @param request   Request with a {"name":String, "amount":Int} body
+     * @return          Response Entity indicating success or failure
      */
     @CrossOrigin
     @RequestMapping(value = "/inventory/add", method = RequestMethod.POST)
-    public ResponseEntity addInventory(@RequestHeader(value = "Authentication") String auth,
-                                       @RequestBody String body) {
-        try {
-            JSONObject bodyObj = new JSONObject(URLDecoder.decode(body, "UTF-8"));
-            if (checkAuth(bodyObj.getString(USERNAME), auth)) {
-                int id = dataAccess.addItem(
-                        bodyObj.getString("name"), bodyObj.getInt("amount"), bodyObj.getString(USERNAME));
+    public DeferredResult<ResponseEntity> addInventory(@RequestHeader(value = "Authentication") String auth,
+                                                       HttpServletRequest request) {
+        ItemRequest item;
+        try (RequestReader reader = readBody(request, maxBodyBytes)) {
+            item = ItemRequest.read(reader);
+        } catch (Exception e) {
+            return completed(failure(e));
+        }
+        TokenService.Claims claims = checkAuth(item.getUsername(), auth);
+        if (claims == null) {
+            return completed(UNAUTHORIZED);
+        }
+        if (!item.isValidNewItem()) {
+            return completed(ResponseEntity.badRequest().body("Expected {\"name\":String, \"amount\":Int}"));
+        }
+        return database.submit(() -> {
+            try {
+                int id = dataAccess.addItem(item.getName(), item.getAmount(), claims.getUsername());
                 JSONObject rObj = new JSONObject();
                 rObj.put("id", id);
                 return ResponseEntity.ok(rObj.toString());
-            } else {
-                return UNAUTHORIZED;
+            } catch (Exception e) {
+                return failure(e);
             }
+        }, UNAVAILABLE);
+    }
+
+    /**
+     * Add several items to the user's inventory in one request. Items that cannot be added are reported without
+     * failing the rest of the batch. The body is parsed before the request is queued, so a malformed body is rejected
+     * before anything is inserted.
+     * @param auth      Authentication header containing the token issued at login
+     * @param request   Request with a {"data":[{"name":String, "amount":Int}]} body
+     * @return          Response Entity with the new ids in request order and the per-item errors
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/inventory/add/batch", method = RequestMethod.POST)
+    public DeferredResult<ResponseEntity> addInventoryBatch(@RequestHeader(value = "Authentication") String auth,
+                                                            HttpServletRequest request) {
+        TokenService.Claims claims = tokenService.verify(auth);
+        if (claims == null) {
+            return completed(UNAUTHORIZED);
+        }
+        List<ItemRequest> items;
+        try {
+            items = readItems(request, claims.getUsername());
         } catch (Exception e) {
-            e.printStackTrace();
-            return SERVER_ERROR;
+            return completed(failure(e));
         }
+        return database.submit(() -> {
+            try {
+                JSONObject rObj = dataAccess.addItems(items.iterator(), claims.getUsername());
+                return ResponseEntity.ok(rObj.toString());
+            } catch (Exception e) {
+                return failure(e);
+            }
+        }, UNAVAILABLE);
     }
 
     /**
-     * Update a set of items in the user's inventory
-     * @param auth  Authentication header containing the hashed username and password
-     * @param body  Body object for the request
-     * @return      Response Entity indicating success or failure
+     * Import items into the user's inventory from an NDJSON or CSV body of any size. The body is parsed as it arrives
+     * and written in chunks of one transaction each, with the parser held back while the database catches up.
+     * Records that cannot be parsed or inserted are rejected with their line number without failing the import.
+     * The import runs on the importer's threads rather than the database executor; when it times out it is cancelled
+     * and its body closed.
+     * @param auth          Authentication header containing the token issued at login
+     * @param format        Optional body format: ndjson or csv, otherwise taken from the Content-Type header
+     * @param contentType   Content-Type header
+     * @param request       Request with one {"name":String, "amount":Int} object per line, or a CSV body with a
+     *                      header naming the name and amount columns
+     * @return              Response Entity with the import report; a failed import reports what was written before
+     *                      the failure
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/inventory/import", method = RequestMethod.POST)
+    public DeferredResult<ResponseEntity> importInventory(@RequestHeader(value = "Authentication") String auth,
+                                                          @RequestParam(value = "format", required = false)
+                                                                  String format,
+                                                          @RequestHeader(value = "Content-Type", required = false)
+                                                                  String contentType,
+                                                          HttpServletRequest request) {
+        TokenService.Claims claims = tokenService.verify(auth);
+        if (claims == null) {
+            return completed(UNAUTHORIZED);
+        }
+        InventoryStreamWriter.Format inputFormat;
+        try {
+            inputFormat = InventoryStreamWriter.Format.of(format, contentType);
+        } catch (IllegalArgumentException e) {
+            return completed(ResponseEntity.badRequest().body("Unknown format"));
+        }
+        if (inputFormat == InventoryStreamWriter.Format.JSON) {
+            return completed(ResponseEntity.badRequest().body("Expected format=ndjson or format=csv"));
+        }
+        DeferredResult<ResponseEntity> result = new DeferredResult<>(importTimeoutMs, UNAVAILABLE);
+        BulkImporter.Report report = importer.newReport(claims.getUsername());
+        try {
+            importer.start(report, request.getInputStream(), inputFormat, e -> {
+                if (e == null) {
+                    result.setResult(ResponseEntity.ok(report.toJSON().toString()));
+                } else if (!result.isSetOrExpired()) {
+                    ResponseEntity failed = failure(e);
+                    result.setResult(ResponseEntity.status(failed.getStatusCode()).headers(failed.getHeaders())
+                            .body(report.toJSON().toString()));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Metrics.error(e);
+            return completed(UNAVAILABLE);
+        } catch (IOException e) {
+            return completed(failure(e));
+        }
+        result.onTimeout(() -> importer.cancel(report));
+        return result;
+    }
+
+    /**
+     * Report the progress of the user's running imports
+     * @param auth  Authentication header containing the token issued at login
+     * @return      Response Entity with {"imports":[report]}
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/inventory/import", method = RequestMethod.GET)
+    public ResponseEntity importStatus(@RequestHeader(value = "Authentication") String auth) {
+        TokenService.Claims claims = tokenService.verify(auth);
+        if (claims == null) {
+            return UNAUTHORIZED;
+        }
+        return ResponseEntity.ok(new JSONObject().put("imports", importer.getRunning(claims.getUsername())).toString());
+    }
+
+    /**
+     * Update a set of items in the user's inventory. All items are updated in one transaction; items that do not
+     * belong to the user are left alone and reported with a count of 0. Items sent with the version the client last
+     * read are only updated if nobody changed them since, and are otherwise listed as conflicts with their current
+     * values. The body is parsed before the request is queued, so a malformed body is rejected before anything is
+     * updated.
+     * @param auth      Authentication header containing the token issued at login
+     * @param request   Request with a {"data":[{"id":Int, "name":String, "amount":Int, "version":Long}]} body,
+     *                  version optional
+     * @return          Response Entity with the update count of each item, the new version and the conflicts
      */
     @CrossOrigin
     @RequestMapping(value = "inventory/update", method = RequestMethod.PUT)
-    public ResponseEntity updateInventory(@RequestHeader(value = "Authentication") String auth,
-                                          @RequestBody String body) {
+    public DeferredResult<ResponseEntity> updateInventory(@RequestHeader(value = "Authentication") String auth,
+                                                          HttpServletRequest request) {
+        TokenService.Claims claims = tokenService.verify(auth);
+        if (claims == null) {
+            return completed(UNAUTHORIZED);
+        }
+        List<ItemRequest> items;
         try {
-            JSONObject bodyObj = new JSONObject(URLDecoder.decode(body, "UTF-8"));
-            if (checkAuth(bodyObj.getString(USERNAME), auth)) {
-                dataAccess.updateItem(bodyObj.getJSONArray("data"));
-                return ResponseEntity.noContent().build();
-            } else {
-                return UNAUTHORIZED;
+            items = readItems(request, claims.getUsername());
+        } catch (Exception e) {
+            return completed(failure(e));
+        }
+        return database.submit(() -> {
+            try {
+                JSONObject rObj = dataAccess.updateItem(items.iterator(), claims.getUsername());
+                return ResponseEntity.ok(rObj.toString());
+            } catch (Exception e) {
+                return failure(e);
             }
+        }, UNAVAILABLE);
+    }
+
+    /**
+     * Adjust the amount of an item by a delta. The delta is buffered and coalesced with other adjustments of the
+     * same item, and written to the database within the flush interval.
+     * @param auth      Authentication header containing the token issued at login
+     * @param request   Request with an {"id":Int, "delta":Long} body
+     * @return          Response Entity indicating the adjustment was accepted
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/inventory/adjust", method = RequestMethod.POST)
+    public DeferredResult<ResponseEntity> adjustInventory(@RequestHeader(value = "Authentication") String auth,
+                                                          HttpServletRequest request) {
+        ItemRequest item;
+        try (RequestReader reader = readBody(request, maxBodyBytes)) {
+            item = ItemRequest.read(reader);
         } catch (Exception e) {
-            e.printStackTrace();
-            return SERVER_ERROR;
+            return completed(failure(e));
+        }
+        TokenService.Claims claims = checkAuth(item.getUsername(), auth);
+        if (claims == null) {
+            return completed(UNAUTHORIZED);
+        }
+        if (item.getId() == null || item.getDelta() == null) {
+            return completed(ResponseEntity.badRequest().body("Expected {\"id\":Int, \"delta\":Long}"));
         }
+        return database.submit(() -> {
+            try {
+                stockDeltas.add(claims.getUsername(), item.getId(), item.getDelta());
+                return ResponseEntity.accepted().build();
+            } catch (Exception e) {
+                return failure(e);
+            }
+        }, UNAVAILABLE);
     }
 
     /**
      * Delete an item from the user's inventory
-     * @param auth  Authentication header containing the hashed username and password
-     * @param body  Body object for the request
-     * @return      Response Entity indicating success or failure
+     * @param auth      Authentication header containing the token issued at login
+     * @param request   Request with an {"id":Int} body
+     * @return          Response Entity indicating success, or 404 if the user has no such item
      */
     @CrossOrigin
     @RequestMapping(value = "inventory/delete", method = RequestMethod.DELETE)
-    public ResponseEntity deleteInventory(@RequestHeader(value = "Authentication") String auth,
-                                          @RequestBody String body) {
-        try {
-            JSONObject bodyObj = new JSONObject(URLDecoder.decode(body, "UTF-8"));
-            if (checkAuth(bodyObj.getString(USERNAME), auth)) {
-                dataAccess.deleteItem(bodyObj.getInt("id"));
-                return ResponseEntity.noContent().build();
-            } else {
-                return UNAUTHORIZED;
-            }
+    public DeferredResult<ResponseEntity> deleteInventory(@RequestHeader(value = "Authentication") String auth,
+                                                          HttpServletRequest request) {
+        ItemRequest item;
+        try (RequestReader reader = readBody(request, maxBodyBytes)) {
+            item = ItemRequest.read(reader);
         } catch (Exception e) {
-            e.printStackTrace();
-            return SERVER_ERROR;
+            return completed(failure(e));
+        }
+        TokenService.Claims claims = checkAuth(item.getUsername(), auth);
+        if (claims == null) {
+            return completed(UNAUTHORIZED);
+        }
+        if (item.getId() == null) {
+            return completed(ResponseEntity.badRequest().body("Expected {\"id\":Int}"));
+        }
+        return database.submit(() -> {
+            try {
+                if (dataAccess.deleteItem(item.getId(), claims.getUsername())) {
+                    return ResponseEntity.noContent().build();
+                }
+                return ResponseEntity.notFound().build();
+            } catch (Exception e) {
+                return failure(e);
+            }
+        }, UNAVAILABLE);
+    }
+
+    /**
+     * Revoke the caller's token
+     * @param auth  Authentication header containing the token to revoke
+     * @return      Response Entity indicating success or failure
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/logout", method = RequestMethod.POST)
+    public ResponseEntity logout(@RequestHeader(value = "Authentication") String auth) {
+        if (tokenService.revoke(auth)) {
+            return ResponseEntity.noContent().build();
+        } else {
+            return UNAUTHORIZED;
+        }
+    }
+
+    /**
+     * Report database connection pool statistics
+     * @return Response Entity containing the pool statistics
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/status/pool", method = RequestMethod.GET)
+    public ResponseEntity poolStatus() {
+        return ResponseEntity.ok(dataAccess.getPoolStats().toString());
+    }
+
+    /**
+     * Report database executor statistics
+     * @return Response Entity containing the executor's thread, queue, timeout, admission and circuit statistics
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/status/executor", method = RequestMethod.GET)
+    public ResponseEntity executorStatus() {
+        return ResponseEntity.ok(database.getStats().toString());
+    }
+
+    /**
+     * Report latency histograms, counters and gauges in the Prometheus text format
+     * @return Response Entity containing the metrics
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = "text/plain; version=0.0.4")
+    public ResponseEntity metrics() {
+        return ResponseEntity.ok(Metrics.scrape());
+    }
+
+    /**
+     * Report inventory cache statistics
+     * @return Response Entity containing the cache statistics, or {"enabled":false} if the cache is turned off
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/status/cache", method = RequestMethod.GET)
+    public ResponseEntity cacheStatus() {
+        if (inventoryCache == null) {
+            return ResponseEntity.ok(new JSONObject().put("enabled", false).toString());
+        }
+        return ResponseEntity.ok(inventoryCache.getStats().put("enabled", true).toString());
+    }
+
+    /**
+     * Report audit journal statistics
+     * @return Response Entity containing the journal statistics, or {"enabled":false} if the journal is turned off
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/status/audit", method = RequestMethod.GET)
+    public ResponseEntity auditStatus() {
+        if (auditJournal == null) {
+            return ResponseEntity.ok(new JSONObject().put("enabled", false).toString());
+        }
+        return ResponseEntity.ok(auditJournal.getStats().put("enabled", true).toString());
+    }
+
+    /**
+     * Report search index statistics
+     * @return Response Entity containing the index statistics, or {"enabled":false} if indexes are turned off
+     */
+    @CrossOrigin
+    @RequestMapping(value = "/status/search", method = RequestMethod.GET)
+    public ResponseEntity searchStatus() {
+        if (searchIndex == null) {
+            return ResponseEntity.ok(new JSONObject().put("enabled", false).toString());
         }
+        return ResponseEntity.ok(searchIndex.getStats().put("enabled", true).toString());
     }
 }
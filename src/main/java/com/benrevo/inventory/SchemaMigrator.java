@@ -0,0 +1,127 @@
+package com.benrevo.inventory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Applies versioned schema changes at startup. Migration n is the script at position n of {@link #MIGRATIONS}, read
+ * from db/migration on the classpath; the versions applied so far are recorded in the schema_version table.
+ *
+ * Each migration runs in its own transaction together with the insert of its version row, so a failed migration
+ * leaves no trace and is retried on the next start. If two instances migrate at once, the second fails on the
+ * version row's primary key and rolls back. Scripts only create objects with IF NOT EXISTS, so they are safe to
+ * run against a database that was set up by hand.
+ *
+ * @author John Hurst
+ */
+public class SchemaMigrator {
+
+    private static final String[] MIGRATIONS = {
+            "V1__lookup_indexes.sql",
+            "V2__change_versions.sql",
+            "V3__inventory_summary.sql",
+            "V4__shard_moves.sql",
+            "V5__audit_log.sql",
+            "V6__audit_log_keys.sql"
+    };
+
+    private static final String LOCATION = "/db/migration/";
+
+    private SchemaMigrator() {
+    }
+
+    /**
+     * Apply all migrations that have not been applied yet
+     * @param conn          Connection to migrate through, left in auto-commit mode
+     * @return              Number of migrations applied
+     * @throws SQLException Throws if a migration fails
+     * @throws IOException  Throws if a migration script cannot be read
+     */
+    public static int migrate(Connection conn) throws SQLException, IOException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, " +
+                    "description VARCHAR(255) NOT NULL, applied_at TIMESTAMP NOT NULL)");
+        }
+        int current = currentVersion(conn);
+        int applied = 0;
+        for (int version = current + 1; version <= MIGRATIONS.length; version++) {
+            String script = MIGRATIONS[version - 1];
+            List<String> statements = readScript(script);
+            conn.setAutoCommit(false);
+            try {
+                String sql = "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, ?)";
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    ps.setInt(1, version);
+                    ps.setString(2, script);
+                    ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+                    ps.executeUpdate();
+                }
+                try (Statement st = conn.createStatement()) {
+                    for (String statement : statements) {
+                        st.execute(statement);
+                    }
+                }
+                conn.commit();
+                applied++;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Get the latest applied version
+     * @param conn          Connection to use
+     * @return              Latest applied version, 0 if none
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private static int currentVersion(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Read a migration script and split it into statements on semicolons, dropping comment lines
+     * @param script        File name of the script
+     * @return              Statements of the script
+     * @throws IOException  Throws if the script is missing or cannot be read
+     */
+    private static List<String> readScript(String script) throws IOException {
+        InputStream in = SchemaMigrator.class.getResourceAsStream(LOCATION + script);
+        if (in == null) {
+            throw new IOException("Missing migration " + script);
+        }
+        StringBuilder text = new StringBuilder();
+        try (Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name())) {
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine().trim();
+                if (!line.startsWith("--")) {
+                    text.append(line).append('\n');
+                }
+            }
+        }
+        List<String> statements = new ArrayList<>();
+        for (String statement : text.toString().split(";")) {
+            if (!statement.trim().isEmpty()) {
+                statements.add(statement.trim());
+            }
+        }
+        return statements;
+    }
+}
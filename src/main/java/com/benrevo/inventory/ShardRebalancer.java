@@ -0,0 +1,326 @@
+package com.benrevo.inventory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves users to the shard {@link ShardRouter} assigns them, after a shard was added to the protected file.
+ *
+ * Run it with the application stopped and the new shard's db line in place: users routed to a new shard are not found
+ * there until they are moved, and writes made to the old shard during a move would be lost. Thanks to jump hashing only
+ * the users that belong to the new shard move.
+ *
+ * A user is copied to its new shard in one transaction, together with its inventory and summary counters, and then
+ * deleted from the old shard in a second one, so an interrupted run can simply be started again. Item ids are kept
+ * unless the new shard already uses them, in which case the item gets a new id. Tombstones are not copied; instead the
+ * move counts as a change, and its version becomes the user's resync version, so a client syncing from before the move
+ * receives the whole inventory with "reset":true.
+ *
+ * @author John Hurst
+ */
+public class ShardRebalancer {
+
+    private final DataAccess dataAccess;
+    private final int batchSize;
+    private final String takenSql;
+
+    /**
+     * Create a rebalancer
+     * @param dataAccess    Data layer holding the pools of all shards
+     * @param batchSize     Rows read and written per batch
+     */
+    public ShardRebalancer(DataAccess dataAccess, int batchSize) {
+        this.dataAccess = dataAccess;
+        this.batchSize = batchSize;
+        StringBuilder in = new StringBuilder("?");
+        for (int i = 1; i < batchSize; i++) {
+            in.append(", ?");
+        }
+        takenSql = "SELECT id FROM inventory WHERE id IN (" + in + ") " +
+                "UNION SELECT id FROM inventory_tombstones WHERE id IN (" + in + ")";
+    }
+
+    /**
+     * Apply pending migrations to every shard and move all users that are on the wrong shard
+     * @param args          Optional number of users read and items copied per batch (default 1000)
+     * @throws SQLException Throws if a shard cannot be read or written
+     * @throws IOException  Throws if a migration script cannot be read
+     */
+    public static void main(String[] args) throws SQLException, IOException {
+        DataAccess dataAccess = new DataAccess();
+        try {
+            dataAccess.migrateSchema();
+            int moved = new ShardRebalancer(dataAccess, args.length > 0 ? Integer.parseInt(args[0]) : 1000).rebalance();
+            System.out.println("Moved " + moved + " users across " + dataAccess.getShardCount() + " shards");
+        } finally {
+            dataAccess.close();
+        }
+    }
+
+    /**
+     * Move every user that is stored on another shard than the one it is routed to
+     * @return              Number of users moved
+     * @throws SQLException Throws if a shard cannot be read or written
+     */
+    public int rebalance() throws SQLException {
+        int moved = 0;
+        for (int shard = 0; shard < dataAccess.getShardCount(); shard++) {
+            moved += rebalance(shard);
+        }
+        return moved;
+    }
+
+    /**
+     * Move the misplaced users of one shard, reading its users in pages by id
+     * @param shard         Index of the shard
+     * @return              Number of users moved
+     * @throws SQLException Throws if a shard cannot be read or written
+     */
+    private int rebalance(int shard) throws SQLException {
+        int moved = 0;
+        int afterId = 0;
+        String sql = "SELECT id, username FROM users WHERE id > ? ORDER BY id LIMIT ?";
+        while (true) {
+            List<Integer> ids = new ArrayList<>();
+            List<String> usernames = new ArrayList<>();
+            try (Connection conn = dataAccess.getConnection(shard);
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, afterId);
+                ps.setInt(2, batchSize);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        ids.add(rs.getInt(1));
+                        usernames.add(rs.getString(2));
+                    }
+                }
+            }
+            if (ids.isEmpty()) {
+                return moved;
+            }
+            for (int i = 0; i < ids.size(); i++) {
+                int target = dataAccess.shardOf(usernames.get(i));
+                if (target != shard) {
+                    moveUser(shard, target, ids.get(i), usernames.get(i));
+                    moved++;
+                }
+            }
+            afterId = ids.get(ids.size() - 1);
+        }
+    }
+
+    /**
+     * Copy a user to its shard and then delete it from the shard it was on. A copy left behind by an interrupted
+     * run is recognised by its resync version and not copied again.
+     * @param from          Shard the user is on
+     * @param to            Shard the user belongs on
+     * @param userId        Id of the user on the shard it is on
+     * @param username      Username
+     * @throws SQLException Throws if a shard cannot be read or written, or the user exists on both shards
+     */
+    private void moveUser(int from, int to, int userId, String username) throws SQLException {
+        String lock = "SELECT password, version, item_count, total_units, low_stock FROM users WHERE id = ? FOR UPDATE";
+        try (Connection src = dataAccess.getConnection(from);
+             Connection dst = dataAccess.getConnection(to)) {
+            src.setAutoCommit(false);
+            dst.setAutoCommit(false);
+            try {
+                String password;
+                long version;
+                long[] summary;
+                try (PreparedStatement ps = src.prepareStatement(lock)) {
+                    ps.setInt(1, userId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (!rs.next()) {
+                            src.rollback();
+                            return;
+                        }
+                        password = rs.getString(1);
+                        version = rs.getLong(2) + 1;
+                        summary = new long[]{rs.getLong(3), rs.getLong(4), rs.getLong(5)};
+                    }
+                }
+                Long copied = readResyncVersion(dst, username);
+                if (copied == null) {
+                    copyUser(src, dst, userId, username, password, version, summary);
+                } else if (copied != version) {
+                    throw new SQLException("User " + username + " exists on shards " + from + " and " + to);
+                }
+                dst.commit();
+                try (Statement st = src.createStatement()) {
+                    st.executeUpdate("DELETE FROM inventory WHERE userid = " + userId);
+                    st.executeUpdate("DELETE FROM inventory_tombstones WHERE userid = " + userId);
+                    st.executeUpdate("DELETE FROM users WHERE id = " + userId);
+                }
+                src.commit();
+            } catch (SQLException | RuntimeException e) {
+                dst.rollback();
+                src.rollback();
+                throw e;
+            } finally {
+                src.setAutoCommit(true);
+                dst.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Read the resync version of a user on a shard
+     * @param conn          Connection to the shard
+     * @param username      Username
+     * @return              Resync version, or null if the user is not on the shard
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private static Long readResyncVersion(Connection conn, String username) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT resync_version FROM users WHERE username = ?")) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Insert a user and its inventory into the shard it belongs on. The shard's id sequence is first moved past the
+     * user's largest item id, so that items that need a new id cannot collide with items that keep theirs.
+     * @param src           Connection to the shard the user is on, with an open transaction
+     * @param dst           Connection to the shard the user belongs on, with an open transaction
+     * @param userId        Id of the user on the shard it is on
+     * @param username      Username
+     * @param password      Password hash
+     * @param version       Change version of the move
+     * @param summary       Item count, total units and low-stock count
+     * @throws SQLException Throws if a shard cannot be read or written
+     */
+    private void copyUser(Connection src, Connection dst, int userId, String username, String password, long version,
+                          long[] summary) throws SQLException {
+        String user = "INSERT INTO users (username, password, version, resync_version, item_count, total_units, " +
+                "low_stock) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        int newId;
+        try (PreparedStatement ps = dst.prepareStatement(user, Statement.RETURN_GENERATED_KEYS)) {
+            ps.setString(1, username);
+            ps.setString(2, password);
+            ps.setLong(3, version);
+            ps.setLong(4, version);
+            ps.setLong(5, summary[0]);
+            ps.setLong(6, summary[1]);
+            ps.setLong(7, summary[2]);
+            ps.executeUpdate();
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                rs.next();
+                newId = rs.getInt("id");
+            }
+        }
+        try (PreparedStatement ps = src.prepareStatement("SELECT MAX(id) FROM inventory WHERE userid = ?")) {
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next() && rs.getInt(1) > 0) {
+                    advanceSequence(dst, rs.getInt(1));
+                }
+            }
+        }
+        String items = "SELECT id, productname, amount FROM inventory WHERE userid = ? ORDER BY id";
+        String keep = "INSERT INTO inventory (id, productname, amount, userid, version) VALUES (?, ?, ?, ?, ?)";
+        String renumber = "INSERT INTO inventory (productname, amount, userid, version) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement read = src.prepareStatement(items);
+             PreparedStatement taken = dst.prepareStatement(takenSql);
+             PreparedStatement kept = dst.prepareStatement(keep);
+             PreparedStatement renumbered = dst.prepareStatement(renumber)) {
+            read.setFetchSize(batchSize);
+            read.setInt(1, userId);
+            List<Object[]> batch = new ArrayList<>(batchSize);
+            try (ResultSet rs = read.executeQuery()) {
+                while (rs.next()) {
+                    batch.add(new Object[]{rs.getInt(1), rs.getString(2), rs.getInt(3)});
+                    if (batch.size() == batchSize) {
+                        insertItems(batch, taken, kept, renumbered, newId, version);
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                insertItems(batch, taken, kept, renumbered, newId, version);
+            }
+        }
+    }
+
+    /**
+     * Insert a batch of moved items, keeping the ids that are free on the shard
+     * @param batch         Items as {id, name, amount}
+     * @param taken         Query finding which of up to batchSize ids the shard already uses
+     * @param kept          Insert with an explicit id
+     * @param renumbered    Insert with a generated id
+     * @param userId        Id of the user on the shard the items move to
+     * @param version       Change version of the move
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private void insertItems(List<Object[]> batch, PreparedStatement taken, PreparedStatement kept,
+                             PreparedStatement renumbered, int userId, long version) throws SQLException {
+        for (int i = 0; i < batchSize; i++) {
+            int id = (Integer) batch.get(Math.min(i, batch.size() - 1))[0];
+            taken.setInt(i + 1, id);
+            taken.setInt(batchSize + i + 1, id);
+        }
+        Set<Integer> used = new HashSet<>();
+        try (ResultSet rs = taken.executeQuery()) {
+            while (rs.next()) {
+                used.add(rs.getInt(1));
+            }
+        }
+        boolean anyKept = false;
+        boolean anyRenumbered = false;
+        for (Object[] item : batch) {
+            if (used.contains((Integer) item[0])) {
+                renumbered.setString(1, (String) item[1]);
+                renumbered.setInt(2, (Integer) item[2]);
+                renumbered.setInt(3, userId);
+                renumbered.setLong(4, version);
+                renumbered.addBatch();
+                anyRenumbered = true;
+            } else {
+                kept.setInt(1, (Integer) item[0]);
+                kept.setString(2, (String) item[1]);
+                kept.setInt(3, (Integer) item[2]);
+                kept.setInt(4, userId);
+                kept.setLong(5, version);
+                kept.addBatch();
+                anyKept = true;
+            }
+        }
+        Metrics.BATCH_SIZES.record("moveUser", batch.size());
+        if (anyKept) {
+            kept.executeBatch();
+        }
+        if (anyRenumbered) {
+            renumbered.executeBatch();
+        }
+    }
+
+    /**
+     * Make sure the inventory id sequence of a shard hands out ids above a value
+     * @param conn          Connection to the shard
+     * @param maxId         Largest id that must not be handed out again
+     * @throws SQLException Throws if SQL is malformed or if connection is invalid
+     */
+    private static void advanceSequence(Connection conn, int maxId) throws SQLException {
+        boolean postgres = conn.getMetaData().getDatabaseProductName().equals("PostgreSQL");
+        String next = postgres ? "SELECT nextval('inventory_id_seq')" : "SELECT NEXT VALUE FOR inventory_id_seq";
+        try (Statement st = conn.createStatement()) {
+            long value;
+            try (ResultSet rs = st.executeQuery(next)) {
+                rs.next();
+                value = rs.getLong(1);
+            }
+            if (value <= maxId) {
+                st.execute("ALTER SEQUENCE inventory_id_seq RESTART WITH " + (maxId + 1));
+            }
+        }
+    }
+}
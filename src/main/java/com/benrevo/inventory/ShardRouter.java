@@ -0,0 +1,63 @@
+package com.benrevo.inventory;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps usernames to database shards.
+ *
+ * The username is hashed with 64-bit FNV-1a, which depends only on its UTF-8 bytes and so is stable across processes
+ * and releases, and the hash is mapped to a shard with jump consistent hashing (Lamping and Veach). Growing from n to
+ * n + 1 shards moves only the users that now map to the new shard, about 1 / (n + 1) of them, and never moves a user
+ * between two existing shards, which keeps a rebalance after adding a shard as small as it can be.
+ *
+ * @author John Hurst
+ */
+public final class ShardRouter {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ShardRouter() {
+    }
+
+    /**
+     * Find the shard of a username
+     * @param username  Username to place
+     * @param shards    Number of shards, at least 1
+     * @return          Shard index between 0 and shards - 1
+     */
+    public static int shardOf(String username, int shards) {
+        return jump(hash(username), shards);
+    }
+
+    /**
+     * Hash a username with 64-bit FNV-1a over its UTF-8 bytes
+     * @param username  Username to hash
+     * @return          Hash of the username
+     */
+    static long hash(String username) {
+        long hash = FNV_OFFSET;
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Jump consistent hash of a key
+     * @param key       Key to place
+     * @param buckets   Number of buckets, at least 1
+     * @return          Bucket index between 0 and buckets - 1
+     */
+    static int jump(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
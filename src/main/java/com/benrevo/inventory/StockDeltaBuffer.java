@@ -0,0 +1,202 @@
+package com.benrevo.inventory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind buffer coalescing stock deltas per item before they are written to the database.
+ *
+ * Deltas are added to striped LongAdder counters without locking, so a hot item that receives thousands of
+ * adjustments between two flushes is written as a single amount = amount + ? statement. Every flush swaps in a fresh
+ * epoch of counters and drains the previous one once no adder is still writing to it, so no delta is lost or
+ * applied twice. Deltas whose write fails are carried over to the next flush. On close, writing what is left is
+ * retried a few times with backoff; deltas that still cannot be written are logged and counted as dropped.
+ *
+ * @author John Hurst
+ */
+public class StockDeltaBuffer {
+
+    private static final int CLOSE_ATTEMPTS = 5;
+    private static final long CLOSE_BACKOFF_MS = 100;
+
+    private final InventoryStore dataAccess;
+    private final ScheduledExecutorService flusher;
+    private final Object flushLock = new Object();
+
+    private volatile Epoch current = new Epoch();
+    private volatile boolean closed;
+
+    /**
+     * Start a buffer flushing at a fixed interval
+     * @param dataAccess        Data layer the deltas are written to
+     * @param flushIntervalMs   Maximum time in milliseconds a delta stays in memory
+     */
+    public StockDeltaBuffer(InventoryStore dataAccess, long flushIntervalMs) {
+        this.dataAccess = dataAccess;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stock-delta-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record a stock adjustment
+     * @param username  Owner of the item
+     * @param id        Id of the item
+     * @param delta     Amount to add, negative to remove stock
+     * @throws IllegalStateException Throws if the buffer has been closed
+     */
+    public void add(String username, int id, long delta) {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Stock delta buffer is closed");
+            }
+            Epoch epoch = current;
+            epoch.writers.increment();
+            try {
+                // Recheck after announcing ourselves, a flush waits for announced writers of the epoch it swapped out
+                if (epoch == current) {
+                    epoch.counter(username, id).add(delta);
+                    return;
+                }
+            } finally {
+                epoch.writers.decrement();
+            }
+        }
+    }
+
+    /**
+     * Write all buffered deltas to the database
+     * @return Number of items written
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            Epoch drained = current;
+            current = new Epoch();
+            while (drained.writers.sum() != 0) {
+                Thread.yield();
+            }
+            int written = 0;
+            for (Map.Entry<String, ConcurrentHashMap<Integer, LongAdder>> user : drained.deltas.entrySet()) {
+                Map<Integer, Long> deltas = new HashMap<>();
+                for (Map.Entry<Integer, LongAdder> item : user.getValue().entrySet()) {
+                    long delta = item.getValue().sum();
+                    if (delta != 0) {
+                        deltas.put(item.getKey(), delta);
+                    }
+                }
+                if (deltas.isEmpty()) {
+                    continue;
+                }
+                try {
+                    dataAccess.adjustItems(user.getKey(), deltas);
+                    written += deltas.size();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Metrics.error(e);
+                    for (Map.Entry<Integer, Long> retry : deltas.entrySet()) {
+                        current.counter(user.getKey(), retry.getKey()).add(retry.getValue());
+                    }
+                }
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Flush from the scheduler, which must not be killed by an exception
+     */
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop accepting deltas, stop the scheduler and write everything still buffered, retrying with backoff while the
+     * database fails
+     * @return Number of buffered deltas that could not be written and were dropped
+     */
+    public int close() {
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Repeat until nothing is left, which also picks up adders that passed the closed check during the last swap
+        for (int attempt = 1; ; attempt++) {
+            flush();
+            if (pending() == 0) {
+                return 0;
+            }
+            if (attempt == CLOSE_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            try {
+                Thread.sleep(CLOSE_BACKOFF_MS << (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int dropped = 0;
+        for (Map.Entry<String, ConcurrentHashMap<Integer, LongAdder>> user : current.deltas.entrySet()) {
+            for (Map.Entry<Integer, LongAdder> item : user.getValue().entrySet()) {
+                long delta = item.getValue().sum();
+                if (delta != 0) {
+                    System.err.println("Dropped stock delta on shutdown: user " + user.getKey() + ", item " +
+                            item.getKey() + ", delta " + delta);
+                    dropped++;
+                }
+            }
+        }
+        Metrics.STOCK_DELTAS_DROPPED.add("shutdown", dropped);
+        return dropped;
+    }
+
+    /**
+     * @return Number of items with a buffered delta that has not been written
+     */
+    private int pending() {
+        int pending = 0;
+        for (ConcurrentHashMap<Integer, LongAdder> items : current.deltas.values()) {
+            for (LongAdder counter : items.values()) {
+                if (counter.sum() != 0) {
+                    pending++;
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * One generation of counters, drained as a whole by a flush
+     */
+    private static class Epoch {
+        private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, LongAdder>> deltas =
+                new ConcurrentHashMap<>();
+        private final LongAdder writers = new LongAdder();
+
+        private LongAdder counter(String username, int id) {
+            ConcurrentHashMap<Integer, LongAdder> items = deltas.get(username);
+            if (items == null) {
+                items = deltas.computeIfAbsent(username, k -> new ConcurrentHashMap<>());
+            }
+            LongAdder counter = items.get(id);
+            if (counter == null) {
+                counter = items.computeIfAbsent(id, k -> new LongAdder());
+            }
+            return counter;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.benrevo.inventory;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job correcting the inventory summary counters with {@link InventoryStore#reconcileSummaries()}.
+ *
+ * The first run starts right away, so counters left behind by an earlier process, a changed low-stock threshold or a
+ * writer that bypassed this application are fixed soon after a restart; later runs follow at a fixed delay.
+ *
+ * @author John Hurst
+ */
+public class SummaryReconciler {
+
+    private final InventoryStore dataAccess;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Start reconciling at a fixed interval
+     * @param dataAccess        Data layer whose counters are reconciled
+     * @param intervalSeconds   Time in seconds between the end of one run and the start of the next
+     */
+    public SummaryReconciler(InventoryStore dataAccess, long intervalSeconds) {
+        this.dataAccess = dataAccess;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "summary-reconciler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::reconcileQuietly, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reconcile from the scheduler, which must not be killed by an exception
+     */
+    private void reconcileQuietly() {
+        try {
+            int corrected = dataAccess.reconcileSummaries();
+            if (corrected > 0) {
+                System.err.println("Corrected inventory summaries of " + corrected + " users");
+            }
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop the scheduler, letting a run in progress finish
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.benrevo.inventory;
+
+import org.json.JSONObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Issues and verifies stateless, HMAC-SHA256 signed authentication tokens.
+ *
+ * A token is "payload.signature", both base64url encoded. The payload carries the signing key id, user id, expiry,
+ * a random token id and the username, so verification needs no database access. Verification accepts the current
+ * and the previous signing key, so tokens survive one key rotation.
+ *
+ * @author John Hurst
+ */
+public class TokenService {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final long DEFAULT_TTL_SECONDS = 12 * 60 * 60;
+
+    private static final int PURGE_INTERVAL = 1024;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlMillis;
+
+    private final Map<Integer, SigningKey> keys = new ConcurrentHashMap<>();
+    private volatile SigningKey currentKey;
+
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    private final AtomicInteger revocations = new AtomicInteger();
+
+    /**
+     * Create a token service from the protected file, using a random signing key if none is configured
+     */
+    public TokenService() {
+        this(loadConfig());
+    }
+
+    /**
+     * Create a token service from a token configuration
+     * @param config JSON Object with an optional base64 signing secret under "key" and ttl in seconds under "ttl"
+     */
+    public TokenService(JSONObject config) {
+        this(config.has("key") ? Base64.getDecoder().decode(config.getString("key")) : null,
+                config.optLong("ttl", DEFAULT_TTL_SECONDS));
+    }
+
+    /**
+     * Create a token service
+     * @param secret        Signing secret, or null for a random one
+     * @param ttlSeconds    Lifetime of issued tokens in seconds
+     */
+    public TokenService(byte[] secret, long ttlSeconds) {
+        this.ttlMillis = ttlSeconds * 1000;
+        rotateKey(secret != null ? secret : randomSecret());
+    }
+
+    /**
+     * Read the token configuration, falling back to an empty one
+     * @return JSON Object holding the token configuration
+     */
+    private static JSONObject loadConfig() {
+        try {
+            return KeyAccess.tokenConfig();
+        } catch (IOException e) {
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Generate a random signing secret
+     * @return 32 random bytes
+     */
+    private byte[] randomSecret() {
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        return secret;
+    }
+
+    /**
+     * Start signing with a new key. Tokens signed with the key being replaced stay valid; older keys are dropped.
+     * @param secret New signing secret
+     */
+    public synchronized void rotateKey(byte[] secret) {
+        SigningKey previous = currentKey;
+        SigningKey next = new SigningKey(previous == null ? 1 : previous.id + 1, secret);
+        keys.put(next.id, next);
+        currentKey = next;
+        if (previous != null) {
+            keys.remove(previous.id - 1);
+        }
+    }
+
+    /**
+     * Issue a token for a user
+     * @param userId    Id of the user
+     * @param username  Username of the user
+     * @return          Signed token
+     */
+    public String issue(int userId, String username) {
+        SigningKey key = currentKey;
+        byte[] tokenId = new byte[9];
+        random.nextBytes(tokenId);
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        String payload = ENCODER.encodeToString((key.id + ":" + userId + ":" + expiresAt + ":" +
+                ENCODER.encodeToString(tokenId) + ":" + username).getBytes(StandardCharsets.UTF_8));
+        return payload + "." + ENCODER.encodeToString(key.sign(payload));
+    }
+
+    /**
+     * Verify a token's signature, expiry and revocation status
+     * @param token Token presented by the client
+     * @return      Claims carried by the token, or null if the token is not valid
+     */
+    public Claims verify(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        if (dot <= 0 || dot == token.length() - 1) {
+            return null;
+        }
+        try {
+            String payload = token.substring(0, dot);
+            String[] fields = new String(DECODER.decode(payload), StandardCharsets.UTF_8).split(":", 5);
+            if (fields.length != 5) {
+                return null;
+            }
+            SigningKey key = keys.get(Integer.parseInt(fields[0]));
+            if (key == null || !MessageDigest.isEqual(key.sign(payload), DECODER.decode(token.substring(dot + 1)))) {
+                return null;
+            }
+            Claims claims = new Claims(Integer.parseInt(fields[1]), fields[4], Long.parseLong(fields[2]), fields[3]);
+            if (claims.expiresAt <= System.currentTimeMillis() || revoked.containsKey(claims.tokenId)) {
+                return null;
+            }
+            return claims;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Revoke a token until it expires
+     * @param token Token to revoke
+     * @return      True if the token was valid and is now revoked
+     */
+    public boolean revoke(String token) {
+        Claims claims = verify(token);
+        if (claims == null) {
+            return false;
+        }
+        revoked.put(claims.tokenId, claims.expiresAt);
+        if (revocations.incrementAndGet() % PURGE_INTERVAL == 0) {
+            long now = System.currentTimeMillis();
+            revoked.values().removeIf(expiresAt -> expiresAt <= now);
+        }
+        return true;
+    }
+
+    /**
+     * Claims carried by a verified token
+     */
+    public static class Claims {
+        private final int userId;
+        private final String username;
+        private final long expiresAt;
+        private final String tokenId;
+
+        private Claims(int userId, String username, long expiresAt, String tokenId) {
+            this.userId = userId;
+            this.username = username;
+            this.expiresAt = expiresAt;
+            this.tokenId = tokenId;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * Signing key with one reusable MAC instance per thread
+     */
+    private static class SigningKey {
+        private final int id;
+        private final ThreadLocal<Mac> mac;
+
+        private SigningKey(int id, byte[] secret) {
+            this.id = id;
+            SecretKeySpec spec = new SecretKeySpec(secret, ALGORITHM);
+            this.mac = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac m = Mac.getInstance(ALGORITHM);
+                    m.init(spec);
+                    return m;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        private byte[] sign(String payload) {
+            return mac.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package com.benrevo.inventory;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records in memory-mapped segment files, synced to disk with group commit.
+ *
+ * Records are copied into the mapped segment under a lock, which costs a memory copy, and become durable when a
+ * background thread forces the segment to disk. Writers wait for that with {@link #sync(long)}; every force covers
+ * all records appended before it, so writers arriving while one force runs share the next one, and the number of
+ * forces per second stays bounded by the disk however many writers there are.
+ *
+ * Each record is stored as its length, the CRC32 of its payload and the payload. A segment that cannot hold the next
+ * record is forced and closed, and the next segment is started; the unused end of a segment stays zero. On
+ * {@link #open} the log is read from a position up to the first record that is incomplete or fails its checksum,
+ * which is where a crash interrupted a write that was never acknowledged; the rest of that segment is zeroed and
+ * appending continues there.
+ *
+ * Positions are the segment number in the upper 32 bits and the offset in the segment in the lower 32 bits, so they
+ * grow with every record.
+ *
+ * @author John Hurst
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long commitDelayNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+    private Segment current;
+    private long written;
+    private long durable;
+    private IOException failure;
+    private boolean closed;
+    private Thread flusher;
+    private long records;
+    private long bytes;
+    private long syncs;
+    private int waiting;
+
+    /**
+     * Create a log in a directory. Nothing is read or written before {@link #open}.
+     * @param dir               Directory of the segment files
+     * @param segmentBytes      Size of a segment file, which bounds the size of one record
+     * @param commitDelayMicros Time the sync thread waits before forcing, so that more writers join the group; 0 to
+     *                          force as soon as a record is appended
+     */
+    public WriteAheadLog(File dir, int segmentBytes, long commitDelayMicros) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.commitDelayNanos = TimeUnit.MICROSECONDS.toNanos(commitDelayMicros);
+    }
+
+    /**
+     * Replay the records from a position to the end of the log, then open the log for appending after the last
+     * complete record and start the sync thread
+     * @param from          Position to replay from, 0 for the start of the log
+     * @param handler       Handler receiving the payload of each record in order
+     * @return              Number of records replayed
+     * @throws IOException  Throws if a segment cannot be read or written, the handler fails, or segments before the
+     *                      position are missing
+     */
+    public long open(long from, RecordHandler handler) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        List<Long> numbers = segmentNumbers();
+        long first = segment(from);
+        if (!numbers.isEmpty() && numbers.get(0) > first) {
+            throw new IOException("Log segment " + first + " is missing from " + dir);
+        }
+        long replayed = 0;
+        Segment last = null;
+        int end = 0;
+        for (long number : numbers) {
+            if (number < first) {
+                continue;
+            }
+            if (last != null) {
+                if (end < 0) {
+                    // A torn record ended the log in an earlier segment; later segments were never acknowledged
+                    System.err.println("Dropping log segment " + number + " after a torn record");
+                    if (!file(number).delete()) {
+                        throw new IOException("Cannot delete " + file(number));
+                    }
+                    continue;
+                }
+                last.close();
+            }
+            last = Segment.map(file(number), number, segmentBytes);
+            int offset = number == first ? offset(from) : 0;
+            while (true) {
+                int length = offset + HEADER_BYTES <= last.buffer.capacity() ? last.buffer.getInt(offset) : 0;
+                if (length == 0) {
+                    end = offset;
+                    break;
+                }
+                if (length < 0 || offset + HEADER_BYTES + length > last.buffer.capacity()) {
+                    end = -offset - 1;
+                    break;
+                }
+                byte[] payload = new byte[length];
+                last.buffer.position(offset + HEADER_BYTES);
+                last.buffer.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != last.buffer.getInt(offset + 4)) {
+                    end = -offset - 1;
+                    break;
+                }
+                handler.record(payload);
+                replayed++;
+                offset += HEADER_BYTES + length;
+            }
+        }
+        if (last == null) {
+            last = Segment.map(file(first), first, segmentBytes);
+            end = 0;
+        }
+        int tail = end < 0 ? -end - 1 : end;
+        for (int i = tail; i < last.buffer.capacity(); i++) {
+            last.buffer.put(i, (byte) 0);
+        }
+        last.buffer.position(tail);
+        last.buffer.force();
+        syncDirectory();
+        current = last;
+        written = position(last.number, tail);
+        durable = written;
+        flusher = new Thread(this::flushLoop, "wal-sync");
+        flusher.setDaemon(true);
+        flusher.start();
+        return replayed;
+    }
+
+    /**
+     * Append a record. It is not durable until {@link #sync(long)} returns for the returned position.
+     * @param payload       Record to append
+     * @return              Position after the record
+     * @throws IOException  Throws if the record is larger than a segment, a new segment cannot be started, or an
+     *                      earlier sync failed
+     */
+    public long append(byte[] payload) throws IOException {
+        lock.lock();
+        try {
+            check();
+            int size = HEADER_BYTES + payload.length;
+            if (size > segmentBytes) {
+                throw new IOException("Record of " + payload.length + " bytes exceeds the log segment size");
+            }
+            if (current.buffer.position() + size > current.buffer.capacity()) {
+                roll();
+            }
+            crc.reset();
+            crc.update(payload);
+            current.buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            written = position(current.number, current.buffer.position());
+            records++;
+            bytes += size;
+            pending.signal();
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the records up to a position are on disk
+     * @param position      Position returned by {@link #append}
+     * @throws IOException  Throws if forcing the log failed, the log was closed, or the thread was interrupted
+     */
+    public void sync(long position) throws IOException {
+        lock.lock();
+        try {
+            waiting++;
+            while (durable < position) {
+                check();
+                synced.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the log sync");
+        } finally {
+            waiting--;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Position after the last appended record
+     */
+    public long position() {
+        lock.lock();
+        try {
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the segments that hold only records before a position, once a snapshot covers them
+     * @param position Position from which the log is still needed
+     */
+    public void truncateBefore(long position) {
+        for (long number : segmentNumbers()) {
+            if (number < segment(position) && !file(number).delete()) {
+                System.err.println("Cannot delete " + file(number));
+            }
+        }
+    }
+
+    /**
+     * Get a snapshot of the log's statistics
+     * @return JSON Object {"segments":Int, "records":Long, "bytes":Long, "syncs":Long, "recordsPerSync":Number,
+     *         "waiting":Int}
+     */
+    public JSONObject getStats() {
+        lock.lock();
+        try {
+            JSONObject stats = new JSONObject();
+            stats.put("segments", segmentNumbers().size());
+            stats.put("records", records);
+            stats.put("bytes", bytes);
+            stats.put("syncs", syncs);
+            stats.put("recordsPerSync", syncs == 0 ? 0 : (double) records / syncs);
+            stats.put("waiting", waiting);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sync the appended records and stop the sync thread. Writers still waiting are failed.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (flusher != null) {
+                flusher.join(TimeUnit.SECONDS.toMillis(10));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (current != null) {
+                current.buffer.force();
+                current.close();
+            }
+            synced.signalAll();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Force appended records to disk in groups until the log is closed
+     */
+    private void flushLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                while (durable == written && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (durable == written) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (commitDelayNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(commitDelayNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Segment segment;
+            long target;
+            lock.lock();
+            try {
+                segment = current;
+                target = written;
+            } finally {
+                lock.unlock();
+            }
+            IOException failed = null;
+            try {
+                // Appends continue meanwhile; records after the target are covered by the next force
+                segment.buffer.force();
+            } catch (RuntimeException e) {
+                failed = new IOException("Log sync failed", e);
+            }
+            lock.lock();
+            try {
+                if (failed != null) {
+                    failure = failed;
+                } else {
+                    durable = Math.max(durable, target);
+                    syncs++;
+                }
+                synced.signalAll();
+                if (failed != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Force and close the current segment and start the next one. Called with the lock held.
+     * @throws IOException Throws if the segment cannot be forced or the next one cannot be created
+     */
+    private void roll() throws IOException {
+        current.buffer.force();
+        current.close();
+        durable = Math.max(durable, written);
+        synced.signalAll();
+        current = Segment.map(file(current.number + 1), current.number + 1, segmentBytes);
+        syncDirectory();
+        written = position(current.number, 0);
+    }
+
+    /**
+     * Fail if the log is closed or broken. Called with the lock held.
+     * @throws IOException Throws if the log cannot take or sync records
+     */
+    private void check() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Log is closed");
+        }
+    }
+
+    /**
+     * Make a new segment file's directory entry durable, where the platform allows it
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on every platform; the segment contents are forced either way
+        }
+    }
+
+    /**
+     * @return Numbers of the segment files, ascending
+     */
+    private List<Long> segmentNumbers() {
+        List<Long> numbers = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a segment
+                    }
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private File file(long number) {
+        return new File(dir, String.format("%s%010d%s", PREFIX, number, SUFFIX));
+    }
+
+    static long position(long segment, int offset) {
+        return segment << 32 | offset;
+    }
+
+    static long segment(long position) {
+        return position >>> 32;
+    }
+
+    static int offset(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Receives replayed records
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+
+        /**
+         * Handle one record
+         * @param payload       Payload of the record
+         * @throws IOException  Throws if the record cannot be applied
+         */
+        void record(byte[] payload) throws IOException;
+    }
+
+    /**
+     * One mapped segment file
+     */
+    private static final class Segment {
+        private final long number;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long number, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Map a segment file, creating it zero-filled if it does not exist
+         * @param file          Segment file
+         * @param number        Number of the segment
+         * @param segmentBytes  Size of a new segment
+         * @return              Mapped segment positioned at its start
+         * @throws IOException  Throws if the file cannot be created or mapped
+         */
+        private static Segment map(File file, long number, int segmentBytes) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                long size = channel.size() > 0 ? channel.size() : segmentBytes;
+                return new Segment(number, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,5 @@
+-- Usernames are unique and resolved to ids on every request
+CREATE UNIQUE INDEX IF NOT EXISTS users_username_key ON users (username);
+
+-- A user's items in id order, used by inventory reads, keyset pages and ownership checks
+CREATE INDEX IF NOT EXISTS inventory_userid_id ON inventory (userid, id);
@@ -0,0 +1,16 @@
+-- Change version of each user's inventory, bumped by every write transaction while it holds the user's row lock,
+-- so versions of one user are assigned in commit order
+ALTER TABLE users ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0;
+
+-- Version of the write that last added or changed an item
+ALTER TABLE inventory ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0;
+
+-- Deleted items, so that clients syncing changes learn about deletions
+CREATE TABLE IF NOT EXISTS inventory_tombstones (
+    id INTEGER PRIMARY KEY,
+    userid INTEGER NOT NULL,
+    version BIGINT NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS inventory_userid_version ON inventory (userid, version);
+CREATE INDEX IF NOT EXISTS inventory_tombstones_userid_version ON inventory_tombstones (userid, version);
@@ -0,0 +1,5 @@
+-- Summary counters of each user's inventory, adjusted by every write and corrected by the summary reconciler, which
+-- also fills them in for inventories that existed before this migration
+ALTER TABLE users ADD COLUMN IF NOT EXISTS item_count BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE users ADD COLUMN IF NOT EXISTS total_units BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE users ADD COLUMN IF NOT EXISTS low_stock BIGINT NOT NULL DEFAULT 0;
@@ -0,0 +1,3 @@
+-- Oldest version changes can be read from. A user moved to another shard keeps its version but not its tombstones,
+-- so clients syncing from before the move get the whole inventory again
+ALTER TABLE users ADD COLUMN IF NOT EXISTS resync_version BIGINT NOT NULL DEFAULT 0;
@@ -0,0 +1,14 @@
+-- Journal of inventory changes, written in batches by the audit journal after the changes commit. seq increases in
+-- the order an application instance journaled the changes; changed_at is in milliseconds since the epoch
+CREATE TABLE IF NOT EXISTS audit_log (
+    seq BIGINT NOT NULL,
+    username VARCHAR(255) NOT NULL,
+    action VARCHAR(16) NOT NULL,
+    item_id INTEGER,
+    productname VARCHAR(255),
+    amount INTEGER,
+    delta BIGINT,
+    changed_at BIGINT NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS audit_log_username_seq ON audit_log (username, seq);
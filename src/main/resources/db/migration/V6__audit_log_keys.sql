@@ -0,0 +1,15 @@
+-- Key the audit log. id is generated by the database and orders the rows in the order they were stored, whichever
+-- instance journaled them, so history is paged by it. An event is identified by the journal instance and its
+-- sequence number, so a batch replayed after a failure is not stored twice; rows from before this migration have no
+-- instance, and their duplicates are removed here
+ALTER TABLE audit_log ADD COLUMN IF NOT EXISTS id BIGINT GENERATED BY DEFAULT AS IDENTITY;
+ALTER TABLE audit_log ADD COLUMN IF NOT EXISTS instance VARCHAR(36);
+
+DELETE FROM audit_log WHERE id NOT IN (
+    SELECT MIN(id) FROM audit_log GROUP BY seq, username, action, item_id, changed_at
+);
+
+ALTER TABLE audit_log ADD PRIMARY KEY (id);
+CREATE UNIQUE INDEX IF NOT EXISTS audit_log_instance_seq ON audit_log (instance, seq);
+CREATE INDEX IF NOT EXISTS audit_log_username_id ON audit_log (username, id);
+DROP INDEX IF EXISTS audit_log_username_seq;
@@ -0,0 +1,227 @@
+import com.benrevo.inventory.AuditEvent;
+import com.benrevo.inventory.AuditJournal;
+import com.benrevo.inventory.AuditLogFile;
+import com.benrevo.inventory.AuditSink;
+import com.benrevo.inventory.InventoryItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author John Hurst
+ */
+public class AuditJournalTest {
+
+    private File dir;
+
+    /**
+     * Sink keeping the events in memory, optionally failing or blocked until released
+     */
+    private static class MemorySink implements AuditSink {
+        final List<AuditEvent> events = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean failing;
+        volatile CountDownLatch blocked;
+
+        @Override
+        public void writeAuditEvents(List<AuditEvent> batch) throws IOException {
+            CountDownLatch latch = blocked;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (failing) {
+                throw new IOException("Sink down");
+            }
+            events.addAll(batch);
+            batches.add(batch.size());
+        }
+
+        @Override
+        public List<AuditEvent> readAuditEvents(String username, long before, int limit) {
+            return new ArrayList<>();
+        }
+    }
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("audit-test").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static List<InventoryItem> items(int count) {
+        List<InventoryItem> items = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            items.add(new InventoryItem(i, "item" + i, i));
+        }
+        return items;
+    }
+
+    private static void waitFor(long expected, AuditJournal journal, String stat) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (journal.getStats().getLong(stat) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void writesBatchesAndFlushesOnClose() throws Exception {
+        MemorySink sink = new MemorySink();
+        AuditJournal journal = new AuditJournal(sink, 1000, 100, 1000, AuditJournal.Overflow.BLOCK, 1000,
+                new File(dir, "spill.ndjson"));
+        journal.itemsAdded("alice", items(250));
+        journal.itemsAdjusted("alice", Collections.singletonMap(3, -2L), 2);
+        journal.itemDeleted("bob", 7);
+        journal.close();
+
+        assert sink.events.size() == 252;
+        for (int size : sink.batches) {
+            assert size <= 100;
+        }
+        assert sink.batches.size() < 252;
+        for (int i = 1; i < sink.events.size(); i++) {
+            assert sink.events.get(i).getSeq() > sink.events.get(i - 1).getSeq();
+        }
+        AuditEvent adjust = sink.events.get(250);
+        assert adjust.getAction().equals("adjust");
+        assert adjust.getItemId() == 3;
+        assert adjust.getDelta() == -2L;
+        assert adjust.getName() == null;
+        assert sink.events.get(251).getUsername().equals("bob");
+        assert journal.getStats().getLong("dropped") == 0;
+        assert !new File(dir, "spill.ndjson").exists();
+    }
+
+    @Test
+    public void dropsWhenFull() throws Exception {
+        MemorySink sink = new MemorySink();
+        sink.blocked = new CountDownLatch(1);
+        AuditJournal journal = new AuditJournal(sink, 10, 5, 0, AuditJournal.Overflow.DROP, 0,
+                new File(dir, "spill.ndjson"));
+        journal.itemsAdded("alice", items(1));
+        // The writer holds the first event in the blocked sink, so the queue fills up
+        Thread.sleep(100);
+        journal.itemsAdded("alice", items(30));
+        assert journal.getStats().getLong("dropped") == 20;
+        sink.blocked.countDown();
+        journal.close();
+        assert sink.events.size() == 11;
+        assert journal.getStats().getLong("written") == 11;
+    }
+
+    @Test
+    public void blocksOncePerChange() throws Exception {
+        MemorySink sink = new MemorySink();
+        sink.blocked = new CountDownLatch(1);
+        AuditJournal journal = new AuditJournal(sink, 10, 5, 0, AuditJournal.Overflow.BLOCK, 200,
+                new File(dir, "spill.ndjson"));
+        journal.itemsAdded("alice", items(1));
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        journal.itemsAdded("alice", items(30));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 20 events find the queue full; together they wait one block-ms rather than one each
+        assert elapsedMs >= 150 && elapsedMs < 1000 : elapsedMs;
+        assert journal.getStats().getLong("dropped") == 20;
+        sink.blocked.countDown();
+        journal.close();
+        assert sink.events.size() == 11;
+    }
+
+    @Test
+    public void spillsAndReplays() throws Exception {
+        MemorySink sink = new MemorySink();
+        sink.blocked = new CountDownLatch(1);
+        File spill = new File(dir, "spill.ndjson");
+        AuditJournal journal = new AuditJournal(sink, 10, 5, 0, AuditJournal.Overflow.SPILL, 0, spill);
+        journal.itemsAdded("alice", items(1));
+        Thread.sleep(100);
+        journal.itemsUpdated("alice", items(30));
+        assert journal.getStats().getLong("spilled") == 20;
+        assert spill.length() > 0;
+        sink.blocked.countDown();
+        waitFor(31, journal, "written");
+        journal.close();
+
+        assert journal.getStats().getLong("dropped") == 0;
+        assert sink.events.size() == 31;
+        List<Integer> ids = new ArrayList<>();
+        for (AuditEvent event : sink.events) {
+            if (event.getAction().equals("update")) {
+                ids.add(event.getItemId());
+            }
+        }
+        Collections.sort(ids);
+        assert ids.size() == 30;
+        assert ids.get(0) == 1 && ids.get(29) == 30;
+        assert !spill.exists();
+    }
+
+    @Test
+    public void spillsFailedBatchesUntilTheSinkRecovers() throws Exception {
+        MemorySink sink = new MemorySink();
+        sink.failing = true;
+        File spill = new File(dir, "spill.ndjson");
+        AuditJournal journal = new AuditJournal(sink, 100, 10, 0, AuditJournal.Overflow.BLOCK, 1000, spill);
+        journal.itemsAdded("alice", items(5));
+        waitFor(5, journal, "spilled");
+        assert journal.getStats().getLong("failures") >= 1;
+        assert sink.events.isEmpty();
+        journal.close();
+
+        // A new journal over the same spill file writes the events once the sink works
+        sink.failing = false;
+        AuditJournal restarted = new AuditJournal(sink, 100, 10, 0, AuditJournal.Overflow.BLOCK, 1000, spill);
+        waitFor(5, restarted, "written");
+        restarted.close();
+        assert sink.events.size() == 5;
+        assert sink.events.get(0).getName().equals("item1");
+    }
+
+    @Test
+    public void readsHistoryFromRollingFiles() throws Exception {
+        AuditLogFile files = new AuditLogFile(dir, 200, 3);
+        long seq = 0;
+        for (int i = 0; i < 10; i++) {
+            files.writeAuditEvents(Arrays.asList(
+                    new AuditEvent(++seq, 1000L + seq, "alice", "add", i, "item" + i, i, null),
+                    new AuditEvent(++seq, 1000L + seq, "bob", "delete", i, null, null, null)));
+        }
+        String[] names = dir.list();
+        assert names != null && names.length == 3;
+
+        List<AuditEvent> history = files.readAuditEvents("alice", Long.MAX_VALUE, 2);
+        assert history.size() == 2;
+        assert history.get(0).getItemId() == 9;
+        assert history.get(1).getItemId() == 8;
+        List<AuditEvent> older = files.readAuditEvents("alice", history.get(1).getSeq(), 2);
+        assert older.get(0).getItemId() == 7;
+        assert files.readAuditEvents("carol", Long.MAX_VALUE, 10).isEmpty();
+        AuditEvent bob = files.readAuditEvents("bob", Long.MAX_VALUE, 1).get(0);
+        assert bob.getAction().equals("delete");
+        assert bob.getAmount() == null;
+    }
+}
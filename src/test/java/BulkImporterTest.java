@@ -0,0 +1,140 @@
+import com.benrevo.inventory.BulkImporter;
+import com.benrevo.inventory.DataAccess;
+import com.benrevo.inventory.InventoryStreamWriter;
+import com.benrevo.inventory.ItemRequest;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author John Hurst
+ */
+public class BulkImporterTest {
+
+    /**
+     * Data layer counting the items imported
+     */
+    private static class CountingDataAccess extends DataAccess {
+        private final AtomicInteger imported = new AtomicInteger();
+
+        CountingDataAccess() {
+            super(new JSONObject());
+        }
+
+        @Override
+        public JSONObject importItems(String username, List<ItemRequest> items) {
+            imported.addAndGet(items.size());
+            return new JSONObject().put("inserted", items.size()).put("errors", new JSONArray());
+        }
+    }
+
+    /**
+     * Body sending a few records and then stalling, like a client that stopped sending, until it is closed
+     */
+    private static class StalledBody extends InputStream {
+        private final byte[] head = "{\"name\":\"a\",\"amount\":1}\n{\"name\":\"b\",\"amount\":2}\n"
+                .getBytes(StandardCharsets.UTF_8);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final CountDownLatch stalled = new CountDownLatch(1);
+        private int pos;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos < head.length) {
+                int n = Math.min(len, head.length - pos);
+                System.arraycopy(head, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            stalled.countDown();
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            throw new IOException("Stream closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    @Test
+    public void importsBody() throws Exception {
+        CountingDataAccess dataAccess = new CountingDataAccess();
+        BulkImporter importer = new BulkImporter(dataAccess, 1, 1, 2, 1000, 10);
+        BulkImporter.Report report = importer.newReport("alice");
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        importer.start(report, new ByteArrayInputStream("name,amount\na,1\nb,x\nc,3\n"
+                .getBytes(StandardCharsets.UTF_8)), InventoryStreamWriter.Format.CSV, e -> {
+                    failure.set(e);
+                    done.countDown();
+                });
+        assert done.await(10, TimeUnit.SECONDS);
+        importer.close();
+
+        assert failure.get() == null;
+        assert dataAccess.imported.get() == 2;
+        assert report.getImported() == 2;
+        assert report.getRejected() == 1;
+        assert report.toJSON().getString("state").equals("complete");
+    }
+
+    @Test
+    public void cancelStopsParserReadingTheBody() throws Exception {
+        CountingDataAccess dataAccess = new CountingDataAccess();
+        BulkImporter importer = new BulkImporter(dataAccess, 1, 1, 2, 1000, 10);
+        StalledBody body = new StalledBody();
+        BulkImporter.Report report = importer.newReport("alice");
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        importer.start(report, body, InventoryStreamWriter.Format.NDJSON, e -> {
+            failure.set(e);
+            done.countDown();
+        });
+        assert body.stalled.await(10, TimeUnit.SECONDS);
+
+        importer.cancel(report);
+        assert done.await(10, TimeUnit.SECONDS);
+        assert failure.get() instanceof InterruptedException;
+        assert report.toJSON().getString("state").equals("failed");
+        assert importer.getRunning("alice").length() == 0;
+
+        // The parser thread is free again, so the next import is not refused
+        BulkImporter.Report next = importer.newReport("alice");
+        CountDownLatch nextDone = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                importer.start(next, new ByteArrayInputStream(new byte[0]),
+                        InventoryStreamWriter.Format.NDJSON, e -> nextDone.countDown());
+                break;
+            } catch (RejectedExecutionException e) {
+                assert System.currentTimeMillis() < deadline;
+                Thread.sleep(10);
+            }
+        }
+        assert nextDone.await(10, TimeUnit.SECONDS);
+        importer.close();
+    }
+}
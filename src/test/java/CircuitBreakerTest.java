@@ -0,0 +1,70 @@
+import com.benrevo.inventory.CircuitBreaker;
+import com.benrevo.inventory.DatabaseFailures;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * @author John Hurst
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess(breaker.getFailureCount());
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assert breaker.allowRequest();
+
+        breaker.recordFailure();
+        assert breaker.getState() == CircuitBreaker.State.OPEN;
+        assert !breaker.allowRequest();
+        assert breaker.getStats().getLong("refused") == 1;
+    }
+
+    @Test
+    public void probesAfterOpenTime() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.recordFailure();
+        assert !breaker.allowRequest();
+        Thread.sleep(60);
+
+        assert breaker.allowRequest();
+        assert breaker.getState() == CircuitBreaker.State.HALF_OPEN;
+        assert !breaker.allowRequest();
+        breaker.recordFailure();
+        assert breaker.getState() == CircuitBreaker.State.OPEN;
+        Thread.sleep(60);
+
+        long failures = breaker.getFailureCount();
+        assert breaker.allowRequest();
+        breaker.recordSuccess(failures);
+        assert breaker.getState() == CircuitBreaker.State.CLOSED;
+        assert breaker.allowRequest();
+    }
+
+    @Test
+    public void ignoresSuccessOverlappingFailure() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+        long failures = breaker.getFailureCount();
+        breaker.recordFailure();
+        breaker.recordSuccess(failures);
+        breaker.recordFailure();
+        assert breaker.getState() == CircuitBreaker.State.OPEN;
+    }
+
+    @Test
+    public void classifiesDatabaseFailures() {
+        assert DatabaseFailures.isTransientConnectionError(new SQLException("refused", "08001"));
+        assert DatabaseFailures.isTransientConnectionError(new RuntimeException(new SQLTransientConnectionException()));
+        assert DatabaseFailures.isDatabaseUnavailable(new SQLException("canceled", "57014"));
+        assert !DatabaseFailures.isTransientConnectionError(new SQLException("canceled", "57014"));
+        assert !DatabaseFailures.isDatabaseUnavailable(new SQLIntegrityConstraintViolationException("dup", "23505"));
+        assert !DatabaseFailures.isDatabaseUnavailable(new IllegalStateException());
+    }
+}
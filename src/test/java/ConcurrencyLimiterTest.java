@@ -0,0 +1,93 @@
+import com.benrevo.inventory.ConcurrencyLimiter;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author John Hurst
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Admit and release requests one at a time
+     * @param limiter   Limiter
+     * @param count     Number of requests
+     * @param latency   Latency of every request
+     */
+    private static void run(ConcurrencyLimiter limiter, int count, long latency) {
+        for (int i = 0; i < count; i++) {
+            assert limiter.tryAcquire();
+            limiter.release(latency, false);
+        }
+    }
+
+    @Test
+    public void refusesAboveLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 2, 2);
+        assert limiter.tryAcquire();
+        assert limiter.tryAcquire();
+        assert !limiter.tryAcquire();
+        limiter.release(MS, false);
+        assert limiter.tryAcquire();
+        assert limiter.getInFlight() == 2;
+    }
+
+    @Test
+    public void shrinksWhenLatencyRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 100, 2);
+        run(limiter, 100, MS);
+        assert limiter.getLimit() == 100;
+
+        run(limiter, 2000, 10 * MS);
+        assert limiter.getLimit() == 10;
+    }
+
+    @Test
+    public void ignoresOccasionalSlowRequests() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 100, 2);
+        // One request in ten takes seconds, as streams and large batches do, and one in a hundred is dropped
+        for (int i = 0; i < 5000; i++) {
+            assert limiter.tryAcquire();
+            limiter.release(i % 10 == 0 ? 5000 * MS : MS + i % 3 * MS / 2, i % 100 == 50);
+        }
+        assert limiter.getLimit() == 100;
+
+        // Once most requests slow down the median follows and the limit shrinks
+        for (int i = 0; i < 2000; i++) {
+            assert limiter.tryAcquire();
+            limiter.release(i % 10 == 0 ? MS : 10 * MS, false);
+        }
+        assert limiter.getLimit() == 10;
+    }
+
+    @Test
+    public void shrinksWhenRequestsAreDropped() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 100, 2);
+        for (int i = 0; i < 100; i++) {
+            assert limiter.tryAcquire();
+            limiter.release(MS, true);
+        }
+        assert limiter.getLimit() == 90;
+    }
+
+    @Test
+    public void growsBackUnderLoad() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 100, 2);
+        run(limiter, 100, MS);
+        run(limiter, 2000, 10 * MS);
+        assert limiter.getLimit() == 10;
+
+        // At the minimum the slower latency becomes the new baseline; growing needs half the limit in flight
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 10; i++) {
+                limiter.tryAcquire();
+            }
+            for (int i = 0; i < 10; i++) {
+                limiter.release(10 * MS, false);
+            }
+        }
+        assert limiter.getLimit() > 10;
+    }
+}
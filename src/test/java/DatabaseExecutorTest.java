@@ -0,0 +1,135 @@
+import com.benrevo.inventory.CircuitBreaker;
+import com.benrevo.inventory.ConcurrencyLimiter;
+import com.benrevo.inventory.DatabaseExecutor;
+import org.junit.Test;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author John Hurst
+ */
+public class DatabaseExecutorTest {
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        DatabaseExecutor executor = new DatabaseExecutor(1, 1, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        DeferredResult<String> first = executor.submit(() -> {
+            running.countDown();
+            release.await();
+            return "first";
+        }, "unavailable");
+        running.await();
+        DeferredResult<String> second = executor.submit(() -> "second", "unavailable");
+        DeferredResult<String> third = executor.submit(() -> "third", "unavailable");
+
+        assert "unavailable".equals(third.getResult());
+        assert executor.getStats().getInt("queued") == 1;
+        assert executor.getStats().getLong("rejected") == 1;
+
+        release.countDown();
+        executor.close();
+        assert "first".equals(first.getResult());
+        assert "second".equals(second.getResult());
+        assert executor.getStats().getLong("completed") == 2;
+    }
+
+    @Test
+    public void reportsTaskFailures() throws Exception {
+        DatabaseExecutor executor = new DatabaseExecutor(2, 10, 10000);
+        DeferredResult<String> result = executor.submit(() -> {
+            throw new IllegalStateException("boom");
+        }, "unavailable");
+        executor.close();
+        assert result.getResult() instanceof IllegalStateException;
+        assert executor.getStats().getLong("failed") == 1;
+    }
+
+    @Test
+    public void shedsAboveConcurrencyLimit() throws Exception {
+        DatabaseExecutor executor = new DatabaseExecutor(1, 10, 10000, new ConcurrencyLimiter(1, 1, 2), null);
+        CountDownLatch release = new CountDownLatch(1);
+        DeferredResult<String> first = executor.submit(() -> {
+            release.await();
+            return "first";
+        }, "unavailable");
+        DeferredResult<String> second = executor.submit(() -> "second", "unavailable");
+
+        assert "unavailable".equals(second.getResult());
+        assert executor.getStats().getLong("shed") == 1;
+        release.countDown();
+        executor.close();
+        assert "first".equals(first.getResult());
+        assert executor.getStats().getJSONObject("admission").getInt("inFlight") == 0;
+    }
+
+    @Test
+    public void shedsWhileCircuitIsOpen() throws Exception {
+        DatabaseExecutor executor = new DatabaseExecutor(1, 10, 10000, null, new CircuitBreaker(2, 60000));
+        CountDownLatch failed = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            executor.submit(() -> {
+                executor.recordFailure(new SQLException("refused", "08001"));
+                failed.countDown();
+                return "failed";
+            }, "unavailable");
+        }
+        failed.await();
+
+        DeferredResult<String> refused = executor.submit(() -> "ok", "unavailable");
+        assert "unavailable".equals(refused.getResult());
+        assert executor.getStats().getLong("shed") == 1;
+        assert executor.getStats().getJSONObject("circuit").getString("state").equals("OPEN");
+        executor.close();
+    }
+
+    @Test
+    public void keepsProbeForAdmittedRequests() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 2);
+        DatabaseExecutor executor = new DatabaseExecutor(2, 10, 10000, limiter, new CircuitBreaker(1, 50));
+        CountDownLatch release = new CountDownLatch(1);
+        DeferredResult<String> first = executor.submit(() -> {
+            release.await();
+            return "first";
+        }, "unavailable");
+
+        // Outside the limiter, so it runs although the limit is reached
+        DeferredResult<String> failing = executor.submit(() -> {
+            executor.recordFailure(new SQLException("refused", "08001"));
+            return "failed";
+        }, "unavailable", 10000, false);
+        while (!failing.hasResult()) {
+            Thread.sleep(1);
+        }
+        assert "failed".equals(failing.getResult());
+        assert executor.getStats().getJSONObject("circuit").getString("state").equals("OPEN");
+
+        // The probe is due, but the limiter sheds this request before the breaker is asked
+        Thread.sleep(100);
+        assert "unavailable".equals(executor.submit(() -> "shed", "unavailable").getResult());
+
+        release.countDown();
+        while (limiter.getInFlight() > 0) {
+            Thread.sleep(1);
+        }
+        assert "first".equals(first.getResult());
+        DeferredResult<String> probe = executor.submit(() -> "probe", "unavailable");
+        executor.close();
+        assert "probe".equals(probe.getResult());
+        assert executor.getStats().getJSONObject("circuit").getString("state").equals("CLOSED");
+    }
+
+    @Test
+    public void ignoresRequestFailures() throws Exception {
+        DatabaseExecutor executor = new DatabaseExecutor(1, 10, 10000, null, new CircuitBreaker(1, 60000));
+        executor.submit(() -> {
+            executor.recordFailure(new SQLException("duplicate", "23505"));
+            return "failed";
+        }, "unavailable");
+        executor.close();
+        assert executor.getStats().getJSONObject("circuit").getString("state").equals("CLOSED");
+    }
+}
@@ -0,0 +1,248 @@
+import com.benrevo.inventory.ChangeHandler;
+import com.benrevo.inventory.EmbeddedStore;
+import com.benrevo.inventory.ItemRequest;
+import com.benrevo.inventory.RequestReader;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author John Hurst
+ */
+public class EmbeddedStoreTest {
+
+    private File dir;
+    private final List<File> dirs = new ArrayList<>();
+    private final List<EmbeddedStore> opened = new ArrayList<>();
+
+    @Before
+    public void createDir() throws IOException {
+        dir = newDir();
+    }
+
+    @After
+    public void close() {
+        for (EmbeddedStore store : opened) {
+            store.close();
+        }
+        for (File d : dirs) {
+            File[] files = d.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            d.delete();
+        }
+    }
+
+    private File newDir() throws IOException {
+        File d = Files.createTempDirectory("store-test").toFile();
+        dirs.add(d);
+        return d;
+    }
+
+    private EmbeddedStore open() throws IOException {
+        return open(dir);
+    }
+
+    private EmbeddedStore open(File d) throws IOException {
+        EmbeddedStore store = new EmbeddedStore(d, 4096, 0, 0, 4);
+        opened.add(store);
+        return store;
+    }
+
+    private void close(EmbeddedStore store) {
+        store.close();
+        opened.remove(store);
+    }
+
+    /**
+     * Copy the files of an open store, which is what a crash would leave behind: every acknowledged write is in the
+     * log, but the store never wrote its closing snapshot
+     * @param from  Directory of an open store
+     * @return      Directory holding the copy
+     */
+    private File crash(File from) throws IOException {
+        File to = newDir();
+        File[] files = from.listFiles();
+        assert files != null;
+        for (File file : files) {
+            Files.copy(file.toPath(), new File(to, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return to;
+    }
+
+    private static ItemRequest update(int id, String name, int amount, Long version) throws IOException {
+        JSONObject body = new JSONObject().put("id", id).put("name", name).put("amount", amount);
+        if (version != null) {
+            body.put("version", version);
+        }
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        try (RequestReader reader = new RequestReader(new ByteArrayInputStream(bytes), Long.MAX_VALUE)) {
+            return ItemRequest.read(reader);
+        }
+    }
+
+    @Test
+    public void usersAndItems() throws Exception {
+        EmbeddedStore store = open();
+        assert store.addUser("alice", "pw") == 1;
+        try {
+            store.addUser("alice", "other");
+            assert false;
+        } catch (SQLException e) {
+            assert e.getSQLState().equals("23505");
+        }
+        assert store.authenticate("alice", "pw") == 1;
+        assert store.authenticate("alice", "wrong") == 0;
+        assert store.getUser("alice").getString("password").equals("pw");
+        assert store.getUser("bob").length() == 0;
+
+        int first = store.addItem("apple", 10, "alice");
+        assert first == 1;
+        assert store.addItem("pear", 1, "bob") == 0;
+        JSONObject added = store.addItems(Arrays.asList(ItemRequest.newItem("banana", 3), new ItemRequest(),
+                ItemRequest.newItem("cherry", 7)).iterator(), "alice");
+        assert added.getJSONArray("ids").getInt(0) == 2;
+        assert added.getJSONArray("ids").isNull(1);
+        assert added.getJSONArray("errors").getJSONObject(0).getInt("index") == 1;
+
+        JSONArray inventory = store.getInventory("alice");
+        assert inventory.length() == 3;
+        assert inventory.getJSONObject(2).getString("name").equals("cherry");
+        assert inventory.getJSONObject(0).getLong("version") == 1;
+        assert inventory.getJSONObject(2).getLong("version") == 2;
+
+        assert store.adjustItems("alice", Collections.singletonMap(first, -8L)) == 1;
+        assert store.getInventory("alice").getJSONObject(0).getLong("version") == 3;
+        JSONObject summary = store.getInventorySummary("alice");
+        assert summary.getLong("items") == 3;
+        assert summary.getLong("units") == 12;
+        assert summary.getLong("lowStock") == 2;
+
+        assert store.deleteItem(first, "alice");
+        assert !store.deleteItem(first, "alice");
+        List<Integer> page = new ArrayList<>();
+        store.streamInventoryPage("alice", 2, 10, (id, name, amount, version) -> page.add(id));
+        assert page.equals(Collections.singletonList(3));
+
+        store.cleanDatabase();
+        assert store.authenticate("alice", "pw") == 0;
+        assert store.addUser("carol", "pw") == 1;
+        assert store.addItem("fig", 1, "carol") == 1;
+    }
+
+    @Test
+    public void rejectsStaleUpdates() throws Exception {
+        EmbeddedStore store = open();
+        store.addUser("alice", "pw");
+        int id = store.addItem("apple", 10, "alice");
+        long version = store.getInventoryVersion("alice");
+
+        JSONObject result = store.updateItem(Collections.singletonList(update(id, "apple", 9, version)).iterator(),
+                "alice");
+        assert ((int[]) result.get("counts"))[0] == 1;
+        assert result.getLong("version") == version + 1;
+
+        result = store.updateItem(Collections.singletonList(update(id, "apple", 8, version)).iterator(), "alice");
+        assert ((int[]) result.get("counts"))[0] == 0;
+        JSONObject conflict = result.getJSONArray("conflicts").getJSONObject(0);
+        assert conflict.getInt("amount") == 9;
+        assert conflict.getLong("version") == version + 1;
+
+        result = store.updateItem(Collections.singletonList(update(id, "apple", 8, null)).iterator(), "alice");
+        assert ((int[]) result.get("counts"))[0] == 1;
+    }
+
+    @Test
+    public void streamsChanges() throws Exception {
+        EmbeddedStore store = open();
+        store.addUser("alice", "pw");
+        int apple = store.addItem("apple", 1, "alice");
+        int pear = store.addItem("pear", 2, "alice");
+        long since = store.getInventoryVersion("alice");
+        store.updateItem(Collections.singletonList(update(apple, "apple", 5, null)).iterator(), "alice");
+        store.deleteItem(pear, "alice");
+
+        List<String> events = new ArrayList<>();
+        long version = store.streamChanges("alice", since, new ChangeHandler<RuntimeException>() {
+            @Override
+            public void start(long version, boolean reset) {
+                events.add("start " + version);
+            }
+
+            @Override
+            public void changed(int id, String name, int amount, long version) {
+                events.add("changed " + id + " " + amount);
+            }
+
+            @Override
+            public void deleted(int id, long version) {
+                events.add("deleted " + id);
+            }
+        });
+        assert version == since + 2;
+        assert events.equals(Arrays.asList("start " + version, "changed " + apple + " 5", "deleted " + pear));
+    }
+
+    @Test
+    public void recoversFromLogAndSnapshot() throws Exception {
+        EmbeddedStore store = open();
+        store.addUser("alice", "pw");
+        for (int i = 0; i < 200; i++) {
+            store.addItem("item" + i, i, "alice");
+        }
+        store.deleteItem(1, "alice");
+        long version = store.getInventoryVersion("alice");
+
+        // Only the log holds the data
+        File crashed = crash(dir);
+        EmbeddedStore recovered = open(crashed);
+        assert recovered.authenticate("alice", "pw") == 1;
+        assert recovered.getInventory("alice").length() == 199;
+        assert recovered.getInventoryVersion("alice") == version;
+        assert recovered.getInventorySummary("alice").getLong("items") == 199;
+        assert recovered.addItem("new", 1, "alice") == 201;
+        close(recovered);
+
+        // The closing snapshot holds the data, the log the write after it
+        EmbeddedStore fromSnapshot = open(crashed);
+        fromSnapshot.addItem("after", 2, "alice");
+        EmbeddedStore again = open(crash(crashed));
+        JSONArray inventory = again.getInventory("alice");
+        assert inventory.length() == 201;
+        assert inventory.getJSONObject(200).getString("name").equals("after");
+        assert again.reconcileSummaries() == 0;
+    }
+
+    @Test
+    public void locksDirectory() throws Exception {
+        EmbeddedStore store = open();
+        store.addUser("alice", "pw");
+        try {
+            open();
+            assert false;
+        } catch (IOException e) {
+            assert e.getMessage().contains("in use");
+        }
+        close(store);
+
+        EmbeddedStore reopened = open();
+        assert reopened.authenticate("alice", "pw") == 1;
+    }
+}
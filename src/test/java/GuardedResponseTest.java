@@ -0,0 +1,97 @@
+import com.benrevo.inventory.GuardedResponse;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author John Hurst
+ */
+public class GuardedResponseTest {
+
+    @Test
+    public void passesWritesUntilRevoked() throws Exception {
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        GuardedResponse response = new GuardedResponse(servletResponse);
+        response.setStatus(200);
+        response.setHeader("ETag", "W/\"1\"");
+        response.getOutputStream().write("ok".getBytes(StandardCharsets.UTF_8));
+        assert !response.isCommitted();
+
+        response.revoke();
+        assert response.isRevoked();
+        assert response.isCommitted();
+        try {
+            response.setStatus(500);
+            assert false;
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            response.getOutputStream().write('x');
+            assert false;
+        } catch (IOException e) {
+            // Expected
+        }
+        assert servletResponse.getStatus() == 200;
+        assert servletResponse.getContentAsString().equals("ok");
+    }
+
+    @Test
+    public void revokeWaitsForWriteInProgress() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        StringBuilder written = new StringBuilder();
+        ServletOutputStream slow = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writing.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.append((char) b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+        };
+        GuardedResponse response = new GuardedResponse(new HttpServletResponseWrapper(new MockHttpServletResponse()) {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return slow;
+            }
+        });
+        ServletOutputStream out = response.getOutputStream();
+        Thread writer = new Thread(() -> {
+            try {
+                out.write('a');
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+        writing.await();
+
+        Thread revoker = new Thread(response::revoke);
+        revoker.start();
+        revoker.join(100);
+        assert revoker.isAlive();
+        finish.countDown();
+        revoker.join();
+        writer.join();
+        assert written.toString().equals("a");
+    }
+}
@@ -0,0 +1,60 @@
+import com.benrevo.inventory.Histogram;
+import com.benrevo.inventory.Metrics;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author John Hurst
+ */
+public class HistogramTest {
+
+    @Test
+    public void quantilesWithinBucketError() {
+        Histogram histogram = new Histogram();
+        for (long v = 1; v <= 100000; v++) {
+            histogram.record(v);
+        }
+        assert histogram.getCount() == 100000;
+        assert histogram.getMax() == 100000;
+        assert histogram.getSum() == 100000L * 100001 / 2;
+        for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long exact = (long) (q * 100000);
+            long reported = histogram.valueAt(q);
+            assert reported >= exact && reported <= exact * 17 / 16 : q + " " + reported;
+        }
+        assert histogram.valueAt(1.0) == 100000;
+        assert new Histogram().valueAt(0.5) == 0;
+    }
+
+    @Test
+    public void recordsConcurrently() throws Exception {
+        Histogram histogram = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert histogram.getCount() == 800000;
+        assert histogram.getMax() == 99999;
+    }
+
+    @Test
+    public void scrapesPrometheusText() {
+        Metrics.HTTP_REQUESTS.record("POST /login", 2000000);
+        Metrics.ERRORS.increment("Quoted\"Type");
+        String text = Metrics.scrape();
+        assert text.contains("# TYPE inventory_http_request_seconds summary\n");
+        assert text.contains("inventory_http_request_seconds_count{endpoint=\"POST /login\"} 1\n");
+        assert text.contains("inventory_errors_total{type=\"Quoted\\\"Type\"} 1\n");
+    }
+}
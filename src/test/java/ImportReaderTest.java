@@ -0,0 +1,77 @@
+import com.benrevo.inventory.ImportReader;
+import com.benrevo.inventory.InventoryStreamWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author John Hurst
+ */
+public class ImportReaderTest {
+
+    private static ImportReader reader(String body, InventoryStreamWriter.Format format) throws IOException {
+        return new ImportReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), format, 64);
+    }
+
+    @Test
+    public void readsNdjsonAndRejectsBadLines() throws Exception {
+        ImportReader r = reader("{\"name\":\"apple\",\"amount\":3}\r\n\n{\"name\":\"pear\"}\nnot json\n" +
+                "{\"amount\":1,\"name\":\"fig\"}", InventoryStreamWriter.Format.NDJSON);
+        assert r.next();
+        assert r.getItem().getName().equals("apple") && r.getItem().getAmount() == 3;
+        assert r.getLine() == 1;
+        assert r.next();
+        assert r.getItem() == null && r.getError() != null;
+        assert r.getLine() == 3;
+        assert r.next();
+        assert r.getError().startsWith("Malformed JSON");
+        assert r.next();
+        assert r.getItem().getName().equals("fig");
+        assert r.getLine() == 5;
+        assert !r.next();
+    }
+
+    @Test
+    public void readsExportedCsv() throws Exception {
+        ImportReader r = reader("id,name,amount\n1,plain,2\n2,\"a, \"\"quoted\"\"\nname\",7\n\n3,bad,x\n4,short\n",
+                InventoryStreamWriter.Format.CSV);
+        assert r.next();
+        assert r.getItem().getName().equals("plain") && r.getItem().getAmount() == 2;
+        assert r.next();
+        assert r.getItem().getName().equals("a, \"quoted\"\nname");
+        assert r.getItem().getAmount() == 7;
+        assert r.getLine() == 3;
+        assert r.next();
+        assert r.getItem() == null && r.getError().contains("integer");
+        assert r.getLine() == 6;
+        assert r.next();
+        assert r.getItem() == null && r.getError().contains("columns");
+        assert !r.next();
+    }
+
+    @Test
+    public void rejectsLongRecordAndContinues() throws Exception {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            name.append('x');
+        }
+        ImportReader r = reader("amount,name\n1," + name + "\n2,ok\n", InventoryStreamWriter.Format.CSV);
+        assert r.next();
+        assert r.getItem() == null && r.getError().contains("64");
+        assert r.next();
+        assert r.getItem().getName().equals("ok") && r.getItem().getAmount() == 2;
+        assert !r.next();
+    }
+
+    @Test
+    public void requiresCsvHeader() throws Exception {
+        try {
+            reader("id,title\n1,apple\n", InventoryStreamWriter.Format.CSV);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
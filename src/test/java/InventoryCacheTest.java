@@ -0,0 +1,74 @@
+import com.benrevo.inventory.InventoryCache;
+import com.benrevo.inventory.InventoryItem;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author John Hurst
+ */
+public class InventoryCacheTest {
+
+    private static List<InventoryItem> items(int... ids) {
+        InventoryItem[] items = new InventoryItem[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            items[i] = new InventoryItem(ids[i], "item" + ids[i], ids[i]);
+        }
+        return Arrays.asList(items);
+    }
+
+    private static void load(InventoryCache cache, String username, List<InventoryItem> items) {
+        cache.finishLoad(username, cache.startLoad(username), items);
+    }
+
+    @Test
+    public void servesSortedPages() {
+        InventoryCache cache = new InventoryCache(10, 100, 60);
+        assert cache.get("a") == null;
+        load(cache, "a", items(3, 1, 2));
+
+        assert cache.get("a").get(0).getId() == 1;
+        assert cache.getPage("a", 1, 1).get(0).getId() == 2;
+        assert cache.getPage("a", 3, 10).isEmpty();
+        assert cache.getStats().getLong("hits") == 3;
+        assert cache.getStats().getLong("misses") == 1;
+    }
+
+    @Test
+    public void discardsLoadOverlappingChange() {
+        InventoryCache cache = new InventoryCache(10, 100, 60);
+        Object token = cache.startLoad("a");
+        cache.itemDeleted("a", 1);
+        cache.finishLoad("a", token, items(1));
+        assert cache.get("a") == null;
+
+        load(cache, "a", items(1));
+        cache.itemsAdded("a", items(2));
+        assert cache.get("a") == null;
+    }
+
+    @Test
+    public void evictsAndSkipsLargeInventories() {
+        InventoryCache cache = new InventoryCache(2, 2, 60);
+        load(cache, "a", items(1));
+        load(cache, "b", items(1));
+        cache.get("a");
+        load(cache, "c", items(1));
+        load(cache, "d", items(1, 2, 3));
+
+        assert cache.get("b") == null;
+        assert cache.get("a") != null;
+        assert cache.get("d") == null;
+        assert cache.getStats().getLong("evictions") == 1;
+    }
+
+    @Test
+    public void expires() {
+        InventoryCache cache = new InventoryCache(10, 100, 0);
+        load(cache, "a", Collections.emptyList());
+        assert cache.get("a") == null;
+        assert cache.getStats().getLong("expirations") == 1;
+    }
+}
@@ -0,0 +1,101 @@
+import com.benrevo.inventory.InventoryItem;
+import com.benrevo.inventory.InventorySearchIndex;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author John Hurst
+ */
+public class InventorySearchIndexTest {
+
+    private static List<InventoryItem> items(String... names) {
+        List<InventoryItem> items = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            items.add(new InventoryItem(i + 1, names[i], i + 1));
+        }
+        return items;
+    }
+
+    private static List<Integer> ids(List<InventoryItem> items) {
+        List<Integer> ids = new ArrayList<>();
+        for (InventoryItem item : items) {
+            ids.add(item.getId());
+        }
+        return ids;
+    }
+
+    private static InventorySearchIndex.Query prefix(String text) {
+        return new InventorySearchIndex.Query(text, false, null, null, 100);
+    }
+
+    private static InventorySearchIndex.Query substring(String text) {
+        return new InventorySearchIndex.Query(text, true, null, null, 100);
+    }
+
+    @Test
+    public void matchesPrefixesAndSubstrings() {
+        InventorySearchIndex.UserIndex index = new InventorySearchIndex.UserIndex(
+                items("Apples", "Pineapple", "apricots", "Grapes"));
+
+        assert ids(index.search(prefix("ap"))).equals(Arrays.asList(1, 3));
+        assert ids(index.search(substring("APPLE"))).equals(Arrays.asList(1, 2));
+        assert ids(index.search(substring("pp"))).equals(Arrays.asList(1, 2));
+        assert index.search(substring("kiwi")).isEmpty();
+        assert ids(index.search(new InventorySearchIndex.Query("ap", false, null, null, 1))).equals(
+                Collections.singletonList(1));
+    }
+
+    @Test
+    public void filtersByAmount() {
+        InventorySearchIndex.UserIndex index = new InventorySearchIndex.UserIndex(
+                items("Apples", "Pineapple", "apricots", "Grapes"));
+
+        assert ids(index.search(new InventorySearchIndex.Query(null, false, null, 2, 100))).equals(
+                Arrays.asList(1, 2));
+        assert ids(index.search(new InventorySearchIndex.Query("ap", true, 2, 3, 100))).equals(
+                Arrays.asList(3, 2));
+        assert index.search(new InventorySearchIndex.Query(null, false, 3, 2, 100)).isEmpty();
+    }
+
+    @Test
+    public void followsChanges() {
+        InventorySearchIndex search = new InventorySearchIndex(100, 60);
+        search.finishLoad("a", search.startLoad("a"), items("Apples", "Pears"));
+        InventorySearchIndex.UserIndex index = search.get("a");
+
+        search.itemsUpdated("a", Collections.singletonList(new InventoryItem(1, "Plums", 1, 2)));
+        search.itemsAdded("a", Collections.singletonList(new InventoryItem(3, "Apple juice", 5, 3)));
+        search.itemsAdjusted("a", Collections.singletonMap(2, -2L), 4);
+        search.itemDeleted("a", 3);
+
+        assert index.search(substring("apple")).isEmpty();
+        assert ids(index.search(prefix("plu"))).equals(Collections.singletonList(1));
+        List<InventoryItem> low = index.search(new InventorySearchIndex.Query(null, false, null, 0, 100));
+        assert ids(low).equals(Collections.singletonList(2));
+        assert low.get(0).getVersion() == 4;
+        assert index.search(prefix("plu")).get(0).getVersion() == 2;
+    }
+
+    @Test
+    public void discardsBuildOverlappingChangeAndEvicts() {
+        InventorySearchIndex search = new InventorySearchIndex(3, 60);
+        Object token = search.startLoad("a");
+        search.itemDeleted("a", 1);
+        assert search.finishLoad("a", token, items("Apples")).size() == 1;
+        assert search.get("a") == null;
+
+        search.finishLoad("a", search.startLoad("a"), items("Apples", "Pears"));
+        search.finishLoad("b", search.startLoad("b"), items("Plums"));
+        search.finishLoad("c", search.startLoad("c"), items("Figs", "Kiwis"));
+        assert search.get("a") == null;
+        assert search.get("b") != null;
+        assert search.get("c") != null;
+        search.finishLoad("d", search.startLoad("d"), items("A", "B", "C", "D"));
+        assert search.get("d") == null;
+        assert search.getStats().getLong("evictions") == 1;
+    }
+}
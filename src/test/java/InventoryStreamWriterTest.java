@@ -0,0 +1,52 @@
+import com.benrevo.inventory.InventoryStreamWriter;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author John Hurst
+ */
+public class InventoryStreamWriterTest {
+
+    private static String write(InventoryStreamWriter.Format format, String auth) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InventoryStreamWriter writer = new InventoryStreamWriter(format, out, auth);
+        writer.item(1, "apples", 4, 3L);
+        writer.item(2, "pears, \"green\"", 0, 7L);
+        writer.finish();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void json() throws Exception {
+        JSONObject response = new JSONObject(write(InventoryStreamWriter.Format.JSON, "token"));
+        assert response.getString("auth").equals("token");
+        assert response.getJSONArray("data").length() == 2;
+        assert response.getJSONArray("data").getJSONObject(1).getString("name").equals("pears, \"green\"");
+        assert response.getJSONArray("data").getJSONObject(1).getLong("version") == 7;
+        assert !new JSONObject(write(InventoryStreamWriter.Format.JSON, null)).has("auth");
+    }
+
+    @Test
+    public void ndjson() throws Exception {
+        String[] lines = write(InventoryStreamWriter.Format.NDJSON, "token").split("\n");
+        assert lines.length == 2;
+        assert new JSONObject(lines[0]).getInt("amount") == 4;
+        assert new JSONObject(lines[0]).getLong("version") == 3;
+    }
+
+    @Test
+    public void csv() throws Exception {
+        assert write(InventoryStreamWriter.Format.CSV, "token")
+                .equals("id,name,amount,version\n1,apples,4,3\n2,\"pears, \"\"green\"\"\",0,7\n");
+    }
+
+    @Test
+    public void format() {
+        assert InventoryStreamWriter.Format.of(null, null) == InventoryStreamWriter.Format.JSON;
+        assert InventoryStreamWriter.Format.of("csv", "application/json") == InventoryStreamWriter.Format.CSV;
+        assert InventoryStreamWriter.Format.of(null, "application/x-ndjson") == InventoryStreamWriter.Format.NDJSON;
+    }
+}
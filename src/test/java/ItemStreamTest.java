@@ -0,0 +1,65 @@
+import com.benrevo.inventory.ItemRequest;
+import com.benrevo.inventory.ItemStream;
+import com.benrevo.inventory.RequestReader;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author John Hurst
+ */
+public class ItemStreamTest {
+
+    private static RequestReader reader(String body, long maxBytes) throws IOException {
+        return new RequestReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), maxBytes);
+    }
+
+    @Test
+    public void readsItemsOneByOne() throws Exception {
+        ItemStream items = new ItemStream(reader("{\"data\":[{\"id\":1,\"name\":\"a+b\",\"amount\":2,\"x\":[1]}," +
+                "{\"name\":3}, 7], \"username\":\"test\"}", 1024), "test");
+        ItemRequest first = items.next();
+        assert first.isValidUpdate();
+        assert first.getName().equals("a+b");
+        assert !items.next().isValidNewItem();
+        assert items.next().getName() == null;
+        assert !items.hasNext();
+    }
+
+    @Test
+    public void rejectsOtherUser() throws Exception {
+        ItemStream items = new ItemStream(reader("{\"data\":[{\"id\":1}], \"username\":\"other\"}", 1024), "test");
+        items.next();
+        try {
+            items.hasNext();
+            assert false;
+        } catch (ItemStream.UserMismatchException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsLargeBody() throws Exception {
+        StringBuilder body = new StringBuilder("{\"data\":[");
+        for (int i = 0; i < 10000; i++) {
+            body.append("{\"id\":").append(i).append("},");
+        }
+        ItemStream items = new ItemStream(reader(body.append("{}]}").toString(), 16384), "test");
+        try {
+            while (items.hasNext()) {
+                items.next();
+            }
+            assert false;
+        } catch (UncheckedIOException e) {
+            assert e.getCause() instanceof RequestReader.TooLargeException;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresDataArray() throws Exception {
+        new ItemStream(reader("{\"data\":{}}", 1024), "test");
+    }
+}
@@ -0,0 +1,109 @@
+import com.benrevo.inventory.ReplicaSet;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.sql.Connection;
+
+/**
+ * @author John Hurst
+ */
+public class ReplicaSetTest {
+
+    private static DataSource pool(String name, String url) {
+        PoolProperties p = new PoolProperties();
+        p.setName(name);
+        p.setUrl(url);
+        p.setInitialSize(0);
+        p.setMinIdle(0);
+        p.setMaxIdle(2);
+        p.setMaxActive(2);
+        p.setMaxWait(1000);
+        p.setValidationQuery("SELECT 1");
+        return new DataSource(p);
+    }
+
+    private static DataSource[] replicas(int n) {
+        DataSource[] dataSources = new DataSource[n];
+        for (int i = 0; i < n; i++) {
+            dataSources[i] = pool("replica-" + i, "jdbc:h2:mem:replica" + i + ";DB_CLOSE_DELAY=-1");
+        }
+        return dataSources;
+    }
+
+    @Test
+    public void roundRobin() throws Exception {
+        ReplicaSet replicaSet = new ReplicaSet(replicas(2), false, 1000, null);
+        try {
+            for (int i = 0; i < 4; i++) {
+                try (Connection conn = replicaSet.getConnection()) {
+                    assert conn != null;
+                }
+            }
+            JSONArray stats = replicaSet.getStats();
+            assert stats.getJSONObject(0).getLong("reads") == 2;
+            assert stats.getJSONObject(1).getLong("reads") == 2;
+        } finally {
+            replicaSet.close();
+        }
+    }
+
+    @Test
+    public void leastLoaded() throws Exception {
+        ReplicaSet replicaSet = new ReplicaSet(replicas(2), true, 1000, null);
+        try (Connection first = replicaSet.getConnection();
+             Connection second = replicaSet.getConnection()) {
+            assert first != null && second != null;
+            JSONArray stats = replicaSet.getStats();
+            assert stats.getJSONObject(0).getLong("reads") == 1;
+            assert stats.getJSONObject(1).getLong("reads") == 1;
+        } finally {
+            replicaSet.close();
+        }
+    }
+
+    @Test
+    public void skipsLaggingReplica() throws Exception {
+        ReplicaSet replicaSet = new ReplicaSet(replicas(1), true, 1000, "SELECT 5000");
+        try {
+            replicaSet.check();
+            assert replicaSet.getConnection() == null;
+            JSONArray stats = replicaSet.getStats();
+            assert !stats.getJSONObject(0).getBoolean("healthy");
+            assert stats.getJSONObject(0).getLong("lagMs") == 5000;
+        } finally {
+            replicaSet.close();
+        }
+    }
+
+    @Test
+    public void recoversAfterCheck() throws Exception {
+        ReplicaSet replicaSet = new ReplicaSet(replicas(1), true, 1000, "SELECT 0");
+        try {
+            replicaSet.check();
+            try (Connection conn = replicaSet.getConnection()) {
+                assert conn != null;
+            }
+            assert replicaSet.getStats().getJSONObject(0).getBoolean("healthy");
+        } finally {
+            replicaSet.close();
+        }
+    }
+
+    @Test
+    public void unreachableReplicaFallsBack() {
+        ReplicaSet replicaSet = new ReplicaSet(new DataSource[]{pool("down", "jdbc:unknown:replica")}, true, 1000,
+                null);
+        try {
+            assert replicaSet.getConnection() == null;
+            assert replicaSet.getConnection() == null;
+            JSONArray stats = replicaSet.getStats();
+            assert !stats.getJSONObject(0).getBoolean("healthy");
+            assert stats.getJSONObject(0).getLong("failures") == 1;
+            assert stats.getJSONObject(0).has("error");
+        } finally {
+            replicaSet.close();
+        }
+    }
+}
@@ -2,7 +2,6 @@ import com.benrevo.inventory.AppConfig;
 import com.benrevo.inventory.DataAccess;
 import com.benrevo.inventory.InventoryManagementApplication;
 import com.benrevo.inventory.RestController;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.*;
@@ -10,21 +9,31 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.ResultHandler;
+import org.springframework.test.web.servlet.ResultMatcher;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
-import java.util.Base64;
+import java.util.Collections;
 
 /**
+ * The inventory and user id caches and the search index are turned off because the tests change the database
+ * through their own DataAccess, which the controller's caches cannot see.
  * @author John Hurst
  */
 @RunWith(SpringRunner.class)
 @WebMvcTest(RestController.class)
 @ContextConfiguration(classes = {AppConfig.class})
+@TestPropertySource(properties = {"inventory.cache.enabled=false", "inventory.user-cache.max-size=0",
+        "inventory.search.enabled=false"})
 public class RestTest {
 
     @Autowired
@@ -55,15 +64,75 @@ public class RestTest {
             .put("username", "login")
             .put("id", 1);
 
+    private static final long ASYNC_TIMEOUT_MS = 10000;
+
     private static DataAccess dataAccess = new DataAccess();
 
-    private static String authHash;
+    private String authToken;
+
+    /**
+     * Perform a request answered through a DeferredResult and wait for its answer. Endpoints that stream write the
+     * status, headers and body to the original response and complete with a null result, so their answer is the
+     * response of the request itself; other results are Response Entities, rendered by an async dispatch. Fails with
+     * the status code if the request was answered with a server error, e.g. 503 from the executor or the circuit
+     * breaker.
+     * @param request       Request to perform
+     * @return              Actions on the answered request
+     * @throws Exception    Throws if the request cannot be performed
+     */
+    private ResultActions performAsync(RequestBuilder request) throws Exception {
+        MvcResult started = this.mockMvc.perform(request)
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+        Object answer = started.getAsyncResult(ASYNC_TIMEOUT_MS);
+        assert !(answer instanceof Throwable) : "Request failed: " + answer;
+        ResultActions actions = answer == null ? streamed(started) :
+                this.mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(started));
+        MockHttpServletResponse response = actions.andReturn().getResponse();
+        assert response.getStatus() < 500 :
+                "Request failed with status " + response.getStatus() + ": " + response.getContentAsString();
+        return actions;
+    }
+
+    /**
+     * @param started   Request whose endpoint wrote the response itself
+     * @return          Actions on the response of the request
+     */
+    private static ResultActions streamed(MvcResult started) {
+        return new ResultActions() {
+            @Override
+            public ResultActions andExpect(ResultMatcher matcher) throws Exception {
+                matcher.match(started);
+                return this;
+            }
+
+            @Override
+            public ResultActions andDo(ResultHandler handler) throws Exception {
+                handler.handle(started);
+                return this;
+            }
+
+            @Override
+            public MvcResult andReturn() {
+                return started;
+            }
+        };
+    }
 
     @BeforeClass
     public static void before() throws Exception {
         dataAccess.addUser(authTestObj.getString("username"), authTestObj.getString("password"));
-        authHash = Base64.getEncoder().encodeToString(DigestUtils.getSha512Digest()
-                .digest((authTestObj.getString("username") + authTestObj.getString("password")).getBytes()));
+    }
+
+    @Before
+    public void beforeTest() throws Exception {
+        MvcResult result = performAsync(MockMvcRequestBuilders.post("/login")
+                .accept(MediaType.APPLICATION_JSON)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(authTestObj.toString()))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+        authToken = new JSONObject(result.getResponse().getContentAsString()).getString("auth");
     }
 
     @AfterClass
@@ -78,7 +147,7 @@ public class RestTest {
 
     @Test
     public void test() throws Exception {
-        MvcResult result = this.mockMvc.perform(MockMvcRequestBuilders.post("/register")
+        MvcResult result = performAsync(MockMvcRequestBuilders.post("/register")
                 .accept(MediaType.APPLICATION_JSON)
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(registerTestObj.toString()))
@@ -92,9 +161,9 @@ public class RestTest {
 
     @Test
     public void addInventory() throws Exception {
-        MvcResult result = this.mockMvc.perform(MockMvcRequestBuilders.post("/inventory/add")
+        MvcResult result = performAsync(MockMvcRequestBuilders.post("/inventory/add")
                 .accept(MediaType.APPLICATION_JSON)
-                .header("Authentication", authHash)
+                .header("Authentication", authToken)
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(addTestObj.toString()))
                 .andExpect(MockMvcResultMatchers.status().isOk())
@@ -104,11 +173,13 @@ public class RestTest {
         assert response.has("id");
         assert response.get("id").equals(1);
 
+        // The item was written by the only change of the inventory, so it has the inventory's version
         JSONArray expectedInventory = new JSONArray()
                 .put(new JSONObject()
                     .put("id", 1)
                     .put("name", "apples")
-                    .put("amount", 4));
+                    .put("amount", 4)
+                    .put("version", dataAccess.getInventoryVersion(authTestObj.getString("username"))));
         assert dataAccess.getInventory(authTestObj.getString("username")).toString().equals(expectedInventory.toString());
     }
 
@@ -116,27 +187,82 @@ public class RestTest {
     public void updateInventory() throws Exception {
         dataAccess.addItem(addTestObj.getString("name"), addTestObj.getInt("amount"), authTestObj.getString("username"));
 
-        this.mockMvc.perform(MockMvcRequestBuilders.put("/inventory/update")
+        MvcResult result = performAsync(MockMvcRequestBuilders.put("/inventory/update")
                 .accept(MediaType.APPLICATION_JSON)
-                .header("Authentication", authHash)
+                .header("Authentication", authToken)
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(updateTestObj.toString()))
-                .andExpect(MockMvcResultMatchers.status().isNoContent());
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONObject response = new JSONObject(result.getResponse().getContentAsString());
+        assert response.getJSONArray("counts").toString().equals("[1]");
 
         JSONArray expectedInventory = new JSONArray()
                 .put(new JSONObject()
                     .put("id", 1)
                     .put("name", "bananas")
-                    .put("amount", 5));
+                    .put("amount", 5)
+                    .put("version", response.getLong("version")));
         assert dataAccess.getInventory(authTestObj.getString("username")).toString().equals(expectedInventory.toString());
     }
 
+    @Test
+    public void updateInventoryConflict() throws Exception {
+        String username = authTestObj.getString("username");
+        int id = dataAccess.addItem(addTestObj.getString("name"), addTestObj.getInt("amount"), username);
+        dataAccess.addItem("pears", 2, username);
+
+        // The version to send back is the one the listing returns for the item, not the inventory's
+        MvcResult listing = performAsync(MockMvcRequestBuilders.get("/inventory")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+        JSONObject item = new JSONObject(listing.getResponse().getContentAsString()).getJSONArray("data")
+                .getJSONObject(0);
+        assert item.getInt("id") == id;
+        long read = item.getLong("version");
+        assert read > 0 && read < dataAccess.getInventoryVersion(username);
+        JSONObject update = new JSONObject().put("data", new JSONArray()
+                .put(new JSONObject().put("id", id).put("name", "bananas").put("amount", 5).put("version", read)));
+
+        MvcResult result = performAsync(MockMvcRequestBuilders.put("/inventory/update")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(update.toString()))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+        JSONObject response = new JSONObject(result.getResponse().getContentAsString());
+        assert response.getJSONArray("counts").toString().equals("[1]");
+        assert response.getJSONArray("conflicts").length() == 0;
+        long written = response.getLong("version");
+        assert written > read;
+
+        update.getJSONArray("data").getJSONObject(0).put("name", "cherries");
+        result = performAsync(MockMvcRequestBuilders.put("/inventory/update")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(update.toString()))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+        response = new JSONObject(result.getResponse().getContentAsString());
+        assert response.getJSONArray("counts").toString().equals("[0]");
+        JSONObject conflict = response.getJSONArray("conflicts").getJSONObject(0);
+        assert conflict.getInt("id") == id;
+        assert conflict.getString("name").equals("bananas");
+        assert conflict.getLong("version") == written;
+        assert dataAccess.getInventory(username).getJSONObject(0).getString("name").equals("bananas");
+    }
+
     @Test
     public void login() throws Exception {
 
         dataAccess.addItem(addTestObj.getString("name"), addTestObj.getInt("amount"), authTestObj.getString("username"));
 
-        MvcResult result = this.mockMvc.perform(MockMvcRequestBuilders.post("/login")
+        MvcResult result = performAsync(MockMvcRequestBuilders.post("/login")
                 .accept(MediaType.APPLICATION_JSON)
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(authTestObj.toString()))
@@ -148,9 +274,10 @@ public class RestTest {
                 .put(new JSONObject()
                     .put("name", "apples")
                     .put("amount", 4)
-                    .put("id", 1));
+                    .put("id", 1)
+                    .put("version", dataAccess.getInventoryVersion(authTestObj.getString("username"))));
         assert response.has("auth");
-        assert response.get("auth").equals(authHash);
+        assert response.get("auth") instanceof String;
         assert response.has("data");
         assert response.get("data").toString().equals(expectedData.toString());
     }
@@ -160,9 +287,9 @@ public class RestTest {
 
         dataAccess.addItem(addTestObj.getString("name"), addTestObj.getInt("amount"), authTestObj.getString("username"));
 
-        this.mockMvc.perform(MockMvcRequestBuilders.delete("/inventory/delete")
+        performAsync(MockMvcRequestBuilders.delete("/inventory/delete")
                 .accept(MediaType.APPLICATION_JSON)
-                .header("Authentication", authHash)
+                .header("Authentication", authToken)
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(deleteTestObj.toString()))
                 .andExpect(MockMvcResultMatchers.status().isNoContent());
@@ -172,4 +299,212 @@ public class RestTest {
         System.err.println(dataAccess.getInventory(authTestObj.getString("username")).toString());
         assert dataAccess.getInventory(authTestObj.getString("username")).toString().equals(expectedInventory.toString());
     }
+
+    @Test
+    public void rejectsTokenOfOtherUser() throws Exception {
+        performAsync(MockMvcRequestBuilders.post("/inventory/add")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(new JSONObject(addTestObj.toString()).put("username", "test").toString()))
+                .andExpect(MockMvcResultMatchers.status().isUnauthorized());
+    }
+
+    @Test
+    public void logout() throws Exception {
+        this.mockMvc.perform(MockMvcRequestBuilders.post("/logout")
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isNoContent());
+
+        performAsync(MockMvcRequestBuilders.post("/inventory/add")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(addTestObj.toString()))
+                .andExpect(MockMvcResultMatchers.status().isUnauthorized());
+    }
+
+    @Test
+    public void listInventoryPages() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            dataAccess.addItem("item" + i, i, authTestObj.getString("username"));
+        }
+
+        MvcResult result = performAsync(MockMvcRequestBuilders.get("/inventory")
+                .param("limit", "2")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONObject firstPage = new JSONObject(result.getResponse().getContentAsString());
+        assert firstPage.getJSONArray("data").length() == 2;
+        assert firstPage.getJSONArray("data").getJSONObject(0).getString("name").equals("item0");
+        assert firstPage.getString("next").equals(result.getResponse().getHeader("Next-Cursor"));
+
+        result = performAsync(MockMvcRequestBuilders.get("/inventory")
+                .param("limit", "2")
+                .param("cursor", firstPage.getString("next"))
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONObject secondPage = new JSONObject(result.getResponse().getContentAsString());
+        assert secondPage.getJSONArray("data").length() == 1;
+        assert secondPage.getJSONArray("data").getJSONObject(0).getString("name").equals("item2");
+        assert !secondPage.has("next");
+    }
+
+    @Test
+    public void listInventoryNotModified() throws Exception {
+        dataAccess.addItem("apples", 4, authTestObj.getString("username"));
+
+        MvcResult result = performAsync(MockMvcRequestBuilders.get("/inventory")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+        String etag = result.getResponse().getHeader("ETag");
+        assert etag != null;
+
+        result = performAsync(MockMvcRequestBuilders.get("/inventory")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken)
+                .header("If-None-Match", etag))
+                .andExpect(MockMvcResultMatchers.status().isNotModified())
+                .andReturn();
+        assert result.getResponse().getContentAsString().isEmpty();
+
+        dataAccess.addItem("pears", 2, authTestObj.getString("username"));
+
+        result = performAsync(MockMvcRequestBuilders.get("/inventory")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken)
+                .header("If-None-Match", etag))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+        assert !etag.equals(result.getResponse().getHeader("ETag"));
+    }
+
+    @Test
+    public void inventoryChanges() throws Exception {
+        String username = authTestObj.getString("username");
+        dataAccess.addItem("apples", 4, username);
+        int deleted = dataAccess.addItem("pears", 2, username);
+        long since = dataAccess.getInventoryVersion(username);
+        int added = dataAccess.addItem("plums", 7, username);
+        dataAccess.deleteItem(deleted, username);
+
+        MvcResult result = performAsync(MockMvcRequestBuilders.get("/inventory/changes")
+                .param("since", String.valueOf(since))
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONObject changes = new JSONObject(result.getResponse().getContentAsString());
+        assert changes.getLong("version") == dataAccess.getInventoryVersion(username);
+        assert changes.getJSONArray("changed").length() == 1;
+        assert changes.getJSONArray("changed").getJSONObject(0).getInt("id") == added;
+        assert changes.getJSONArray("deleted").length() == 1;
+        assert changes.getJSONArray("deleted").getJSONObject(0).getInt("id") == deleted;
+
+        result = performAsync(MockMvcRequestBuilders.get("/inventory/changes")
+                .param("since", String.valueOf(changes.getLong("version")))
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONObject none = new JSONObject(result.getResponse().getContentAsString());
+        assert none.getJSONArray("changed").length() == 0;
+        assert none.getJSONArray("deleted").length() == 0;
+    }
+
+    @Test
+    public void inventorySummary() throws Exception {
+        String username = authTestObj.getString("username");
+        int apples = dataAccess.addItem("apples", 4, username);
+        int pears = dataAccess.addItem("pears", 20, username);
+        dataAccess.addItem("plums", 8, username);
+        dataAccess.deleteItem(pears, username);
+        dataAccess.adjustItems(username, Collections.singletonMap(apples, -1L));
+
+        MvcResult result = performAsync(MockMvcRequestBuilders.get("/inventory/summary")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONObject summary = new JSONObject(result.getResponse().getContentAsString());
+        assert summary.getLong("items") == 2;
+        assert summary.getLong("units") == 11;
+        assert summary.getLong("lowStock") == 1;
+        assert dataAccess.reconcileSummaries() == 0;
+    }
+
+    @Test
+    public void importInventory() throws Exception {
+        String body = "id,name,amount\n,apples,4\n,\"pears, green\",20\n,plums,lots\n";
+        MvcResult result = performAsync(MockMvcRequestBuilders.post("/inventory/import")
+                .contentType("text/csv")
+                .content(body)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONObject report = new JSONObject(result.getResponse().getContentAsString());
+        assert report.getString("state").equals("complete");
+        assert report.getLong("imported") == 2;
+        assert report.getLong("rejected") == 1;
+        assert report.getJSONArray("errors").getJSONObject(0).getInt("line") == 4;
+        JSONObject summary = dataAccess.getInventorySummary(authTestObj.getString("username"));
+        assert summary.getLong("items") == 2;
+        assert summary.getLong("units") == 24;
+    }
+
+    @Test
+    public void searchInventory() throws Exception {
+        String username = authTestObj.getString("username");
+        dataAccess.addItem("Green apples", 4, username);
+        dataAccess.addItem("Apple juice", 1, username);
+        dataAccess.addItem("Pears", 2, username);
+
+        MvcResult result = performAsync(MockMvcRequestBuilders.get("/inventory/search")
+                .param("q", "apple")
+                .param("match", "substring")
+                .param("maxAmount", "3")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONArray data = new JSONObject(result.getResponse().getContentAsString()).getJSONArray("data");
+        assert data.length() == 1;
+        assert data.getJSONObject(0).getString("name").equals("Apple juice");
+    }
+
+    @Test
+    public void addInventoryBatch() throws Exception {
+        JSONObject batch = new JSONObject()
+                .put("data", new JSONArray()
+                    .put(new JSONObject().put("name", "apples").put("amount", 4))
+                    .put(new JSONObject().put("name", "pears"))
+                    .put(new JSONObject().put("name", "plums").put("amount", 2)));
+
+        MvcResult result = performAsync(MockMvcRequestBuilders.post("/inventory/add/batch")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Authentication", authToken)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(batch.toString()))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn();
+
+        JSONObject response = new JSONObject(result.getResponse().getContentAsString());
+        assert response.getJSONArray("ids").toString().equals("[1,null,2]");
+        assert response.getJSONArray("errors").length() == 1;
+        assert response.getJSONArray("errors").getJSONObject(0).getInt("index") == 1;
+        assert dataAccess.getInventory(authTestObj.getString("username")).length() == 2;
+    }
 }
@@ -0,0 +1,34 @@
+import com.benrevo.inventory.ShardRouter;
+import org.junit.Test;
+
+/**
+ * @author John Hurst
+ */
+public class ShardRouterTest {
+
+    @Test
+    public void spreadsUsersEvenly() {
+        int[] counts = new int[4];
+        for (int i = 0; i < 40000; i++) {
+            counts[ShardRouter.shardOf("user" + i, 4)]++;
+        }
+        for (int count : counts) {
+            assert count > 9000 && count < 11000 : count;
+        }
+        assert ShardRouter.shardOf("user", 1) == 0;
+    }
+
+    @Test
+    public void addingShardOnlyMovesUsersToIt() {
+        int moved = 0;
+        for (int i = 0; i < 40000; i++) {
+            int before = ShardRouter.shardOf("user" + i, 3);
+            int after = ShardRouter.shardOf("user" + i, 4);
+            if (before != after) {
+                assert after == 3;
+                moved++;
+            }
+        }
+        assert moved > 9000 && moved < 11000 : moved;
+    }
+}
@@ -0,0 +1,163 @@
+import com.benrevo.inventory.AuditEvent;
+import com.benrevo.inventory.DataAccess;
+import com.benrevo.inventory.ShardRebalancer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Routing and rebalancing against several in-memory H2 databases
+ *
+ * @author John Hurst
+ */
+public class ShardingTest {
+
+    private static final int USERS = 30;
+
+    private final List<DataAccess> opened = new ArrayList<>();
+
+    private static String url(int shard) {
+        return "jdbc:h2:mem:shard" + shard + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+    }
+
+    private DataAccess open(int shards) throws Exception {
+        List<JSONObject> configs = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            configs.add(new JSONObject().put("key", url(shard)).put("shard", shard).put("poolMin", 1)
+                    .put("poolMax", 2).put("batchSize", 4));
+        }
+        DataAccess dataAccess = new DataAccess(configs);
+        opened.add(dataAccess);
+        dataAccess.migrateSchema();
+        return dataAccess;
+    }
+
+    private static int countUsers(int shard) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url(shard));
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM users")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Before
+    public void createSchema() throws SQLException {
+        for (int shard = 0; shard < 3; shard++) {
+            try (Connection conn = DriverManager.getConnection(url(shard));
+                 Statement st = conn.createStatement()) {
+                st.execute("DROP ALL OBJECTS");
+                st.execute("CREATE SEQUENCE users_id_seq");
+                st.execute("CREATE SEQUENCE inventory_id_seq");
+                st.execute("CREATE TABLE users (id INTEGER DEFAULT NEXT VALUE FOR users_id_seq PRIMARY KEY, " +
+                        "username VARCHAR(255) NOT NULL, password VARCHAR(255) NOT NULL)");
+                st.execute("CREATE TABLE inventory (id INTEGER DEFAULT NEXT VALUE FOR inventory_id_seq PRIMARY KEY, " +
+                        "productname VARCHAR(255) NOT NULL, amount INTEGER NOT NULL, " +
+                        "userid INTEGER NOT NULL REFERENCES users (id))");
+            }
+        }
+    }
+
+    @After
+    public void close() {
+        for (DataAccess dataAccess : opened) {
+            dataAccess.close();
+        }
+    }
+
+    @Test
+    public void routesUsersToTheirShard() throws Exception {
+        DataAccess dataAccess = open(2);
+        for (int i = 0; i < USERS; i++) {
+            dataAccess.addUser("user" + i, "pw");
+            dataAccess.addItem("item" + i, i, "user" + i);
+        }
+        assert countUsers(0) + countUsers(1) == USERS;
+        assert countUsers(0) > 0 && countUsers(1) > 0;
+        for (int i = 0; i < USERS; i++) {
+            assert dataAccess.login("user" + i, "pw");
+            JSONArray inventory = dataAccess.getInventory("user" + i);
+            assert inventory.length() == 1;
+            assert inventory.getJSONObject(0).getString("name").equals("item" + i);
+        }
+    }
+
+    @Test
+    public void rebalancesOntoAddedShard() throws Exception {
+        DataAccess before = open(2);
+        for (int i = 0; i < USERS; i++) {
+            before.addUser("user" + i, "pw");
+            for (int k = 0; k < 5; k++) {
+                before.addItem("item" + i + "-" + k, k, "user" + i);
+            }
+        }
+        long version = before.getInventoryVersion("user0");
+        before.close();
+
+        DataAccess after = open(3);
+        int moved = new ShardRebalancer(after, 4).rebalance();
+        assert moved == countUsers(2);
+        assert moved > 0;
+        assert new ShardRebalancer(after, 4).rebalance() == 0;
+        assert countUsers(0) + countUsers(1) + countUsers(2) == USERS;
+
+        for (int i = 0; i < USERS; i++) {
+            String username = "user" + i;
+            assert after.login(username, "pw");
+            JSONArray inventory = after.getInventory(username);
+            assert inventory.length() == 5;
+            for (int k = 0; k < inventory.length(); k++) {
+                assert inventory.getJSONObject(k).getString("name").startsWith("item" + i + "-");
+            }
+            assert after.getInventorySummary(username).getLong("items") == 5;
+            int id = after.addItem("new", 1, username);
+            assert id != 0;
+            assert after.deleteItem(id, username);
+        }
+        assert after.reconcileSummaries() == 0;
+
+        if (after.shardOf("user0") == 2) {
+            assert after.getInventoryVersion("user0") > version;
+        }
+    }
+
+    @Test
+    public void storesAuditEventsOnceAndPagesByRowId() throws Exception {
+        DataAccess dataAccess = open(2);
+        List<AuditEvent> batch = new ArrayList<>();
+        // Instance b numbers its events far below instance a, but stores them later
+        for (int i = 0; i < USERS; i++) {
+            batch.add(new AuditEvent("a", 1000 + i, 1000 + i, 1, "user" + i, "add", i, "item" + i, i, null));
+        }
+        dataAccess.writeAuditEvents(batch);
+        // A replay of a batch that was partly stored before
+        dataAccess.writeAuditEvents(batch);
+        dataAccess.writeAuditEvents(Arrays.asList(
+                new AuditEvent("b", 5, 5, 2, "user0", "delete", 0, null, null, null),
+                new AuditEvent("b", 6, 6, 2, "user0", "adjust", 0, null, null, 3L)));
+
+        for (int i = 1; i < USERS; i++) {
+            assert dataAccess.readAuditEvents("user" + i, Long.MAX_VALUE, 10).size() == 1;
+        }
+        List<AuditEvent> page = dataAccess.readAuditEvents("user0", Long.MAX_VALUE, 2);
+        assert page.size() == 2;
+        assert page.get(0).getAction().equals("adjust");
+        assert page.get(0).getInstance().equals("b");
+        assert page.get(1).getAction().equals("delete");
+        List<AuditEvent> older = dataAccess.readAuditEvents("user0", page.get(1).getPosition(), 2);
+        assert older.size() == 1;
+        assert older.get(0).getAction().equals("add");
+        assert older.get(0).getSeq() == 1000;
+    }
+}
@@ -0,0 +1,96 @@
+import com.benrevo.inventory.DataAccess;
+import com.benrevo.inventory.StockDeltaBuffer;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author John Hurst
+ */
+public class StockDeltaBufferTest {
+
+    /**
+     * Data layer recording adjustments in memory instead of writing them to a database
+     */
+    private static class RecordingDataAccess extends DataAccess {
+        private final Map<Integer, AtomicLong> amounts = new ConcurrentHashMap<>();
+        private final AtomicInteger writes = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+
+        RecordingDataAccess() {
+            super(new JSONObject());
+        }
+
+        @Override
+        public int adjustItems(String username, Map<Integer, Long> deltas) throws SQLException {
+            if (failures.getAndDecrement() > 0) {
+                throw new SQLException("Connection refused", "08001");
+            }
+            writes.incrementAndGet();
+            deltas.forEach((id, delta) -> amounts.computeIfAbsent(id, k -> new AtomicLong()).addAndGet(delta));
+            return deltas.size();
+        }
+    }
+
+    @Test
+    public void coalescesDeltas() {
+        RecordingDataAccess dataAccess = new RecordingDataAccess();
+        StockDeltaBuffer buffer = new StockDeltaBuffer(dataAccess, 60000);
+        for (int i = 0; i < 1000; i++) {
+            buffer.add("login", 1, -1);
+        }
+        buffer.add("login", 2, 5);
+        assert buffer.flush() == 2;
+        assert dataAccess.writes.get() == 1;
+        assert dataAccess.amounts.get(1).get() == -1000;
+        assert dataAccess.amounts.get(2).get() == 5;
+        buffer.close();
+    }
+
+    @Test
+    public void losesNothingUnderConcurrentFlushes() throws Exception {
+        RecordingDataAccess dataAccess = new RecordingDataAccess();
+        StockDeltaBuffer buffer = new StockDeltaBuffer(dataAccess, 1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    buffer.add("login", i % 4, 1);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        buffer.close();
+        long total = dataAccess.amounts.values().stream().mapToLong(AtomicLong::get).sum();
+        assert total == 8 * 20000;
+    }
+
+    @Test
+    public void retriesOnClose() {
+        RecordingDataAccess dataAccess = new RecordingDataAccess();
+        StockDeltaBuffer buffer = new StockDeltaBuffer(dataAccess, 60000);
+        buffer.add("login", 1, 3);
+        dataAccess.failures.set(2);
+        assert buffer.close() == 0;
+        assert dataAccess.amounts.get(1).get() == 3;
+    }
+
+    @Test
+    public void countsDeltasDroppedOnClose() {
+        RecordingDataAccess dataAccess = new RecordingDataAccess();
+        StockDeltaBuffer buffer = new StockDeltaBuffer(dataAccess, 60000);
+        buffer.add("login", 1, 3);
+        buffer.add("login", 2, -1);
+        dataAccess.failures.set(Integer.MAX_VALUE);
+        assert buffer.close() == 2;
+        assert dataAccess.amounts.isEmpty();
+    }
+}
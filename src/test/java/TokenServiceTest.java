@@ -0,0 +1,60 @@
+import com.benrevo.inventory.TokenService;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author John Hurst
+ */
+public class TokenServiceTest {
+
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void issueAndVerify() {
+        TokenService tokens = new TokenService(SECRET, 60);
+        TokenService.Claims claims = tokens.verify(tokens.issue(7, "login:user"));
+        assert claims != null;
+        assert claims.getUserId() == 7;
+        assert claims.getUsername().equals("login:user");
+    }
+
+    @Test
+    public void rejectsTamperedToken() {
+        TokenService tokens = new TokenService(SECRET, 60);
+        String token = tokens.issue(7, "login");
+        String forged = new TokenService(SECRET, 60).issue(8, "other");
+        assert tokens.verify(forged.substring(0, forged.indexOf('.')) + token.substring(token.indexOf('.'))) == null;
+        assert tokens.verify(new TokenService(null, 60).issue(7, "login")) == null;
+        assert tokens.verify("garbage") == null;
+    }
+
+    @Test
+    public void rejectsExpiredToken() {
+        TokenService tokens = new TokenService(SECRET, -1);
+        assert tokens.verify(tokens.issue(7, "login")) == null;
+    }
+
+    @Test
+    public void revoke() {
+        TokenService tokens = new TokenService(SECRET, 60);
+        String token = tokens.issue(7, "login");
+        String other = tokens.issue(7, "login");
+        assert tokens.revoke(token);
+        assert tokens.verify(token) == null;
+        assert tokens.verify(other) != null;
+    }
+
+    @Test
+    public void rotateKey() {
+        TokenService tokens = new TokenService(SECRET, 60);
+        String first = tokens.issue(7, "login");
+        tokens.rotateKey("fedcba9876543210fedcba9876543210".getBytes(StandardCharsets.US_ASCII));
+        String second = tokens.issue(7, "login");
+        assert tokens.verify(first) != null;
+        assert tokens.verify(second) != null;
+        tokens.rotateKey(SECRET);
+        assert tokens.verify(first) == null;
+        assert tokens.verify(second) != null;
+    }
+}
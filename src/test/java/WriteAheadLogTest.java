@@ -0,0 +1,145 @@
+import com.benrevo.inventory.WriteAheadLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author John Hurst
+ */
+public class WriteAheadLogTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("wal-test").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] record(int i) {
+        return ("record " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<String> replay(WriteAheadLog log, long from) throws IOException {
+        List<String> records = new ArrayList<>();
+        log.open(from, payload -> records.add(new String(payload, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    @Test
+    public void replaysAcrossSegments() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(dir, 256, 0);
+        replay(log, 0);
+        long middle = 0;
+        for (int i = 0; i < 50; i++) {
+            long position = log.append(record(i));
+            log.sync(position);
+            if (i == 24) {
+                middle = position;
+            }
+        }
+        assert log.getStats().getInt("segments") > 1;
+        log.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(dir, 256, 0);
+        List<String> records = replay(reopened, 0);
+        assert records.size() == 50;
+        assert records.get(49).equals("record 49");
+        reopened.close();
+
+        WriteAheadLog fromMiddle = new WriteAheadLog(dir, 256, 0);
+        records = replay(fromMiddle, middle);
+        assert records.size() == 25;
+        assert records.get(0).equals("record 25");
+        fromMiddle.close();
+    }
+
+    @Test
+    public void ignoresTornTail() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(dir, 4096, 0);
+        replay(log, 0);
+        long last = 0;
+        for (int i = 0; i < 3; i++) {
+            last = log.append(record(i));
+        }
+        log.sync(last);
+        log.close();
+
+        // Damage the payload of the last record, as a write interrupted by a crash would
+        File segment = dir.listFiles((d, name) -> name.startsWith("wal-"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            int offset = (int) last - record(2).length;
+            file.seek(offset);
+            file.write('X');
+        }
+
+        WriteAheadLog reopened = new WriteAheadLog(dir, 4096, 0);
+        List<String> records = replay(reopened, 0);
+        assert records.size() == 2;
+        reopened.sync(reopened.append(record(3)));
+        reopened.close();
+
+        WriteAheadLog again = new WriteAheadLog(dir, 4096, 0);
+        records = replay(again, 0);
+        assert records.size() == 3;
+        assert records.get(2).equals("record 3");
+        again.close();
+    }
+
+    @Test
+    public void sharesSyncsBetweenWriters() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(dir, 1 << 20, 1000);
+        replay(log, 0);
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                int n = i;
+                done.add(writers.submit(() -> {
+                    log.sync(log.append(record(n)));
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+        } finally {
+            writers.shutdown();
+        }
+        assert log.getStats().getLong("records") == 400;
+        assert log.getStats().getLong("syncs") < 400;
+        log.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsRecordLargerThanSegment() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(dir, 64, 0);
+        replay(log, 0);
+        try {
+            log.append(new byte[64]);
+        } finally {
+            log.close();
+        }
+    }
+}